@@ -0,0 +1,205 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.mapview;
+
+import android.os.Environment;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.ViewGroup.LayoutParams;
+
+import org.mapsforge.android.maps.MapView;
+import org.mapsforge.android.maps.mapgenerator.JobParameters;
+import org.mapsforge.android.maps.mapgenerator.JobQueue;
+import org.mapsforge.android.maps.mapgenerator.MapGeneratorJob;
+import org.mapsforge.android.maps.mapgenerator.MapWorkerPool;
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.model.MapPosition;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders the screen of a {@link MapView} with 1, 2, 4 and 8 workers of its {@link MapWorkerPool}.
+ * <p/>
+ * <p>A full screen MapView is added to the map activity and shows the center of a sample map
+ * at the zoom levels 15 to 17. The tiles are queued in the {@link JobQueue} by the MapView
+ * itself and rendered by the pool, the time is taken until all the tiles of the screen are in
+ * the in-memory tile cache. Each rendering changes the text scale a little, so that all the
+ * tiles are new to the caches. The best of three runs is logged.</p>
+ * <p/>
+ * <p>The map file has to be pushed to the device first, else the benchmark is skipped:</p>
+ * <pre>
+ * adb push sample.map /sdcard/geopaparazzi_benchmark/benchmark.map
+ * </pre>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@LargeTest
+public class MapWorkersBenchmark extends ActivityInstrumentationTestCase2<MapviewActivity> {
+    private static final String TAG = "MapWorkersBenchmark";
+    private static final String MAP_FILE_PATH = "geopaparazzi_benchmark/benchmark.map";
+    private static final int[] WORKERS_COUNTS = {1, 2, 4, 8};
+    private static final byte[] ZOOM_LEVELS = {15, 16, 17};
+    private static final int RUNS = 3;
+    private static final long RENDER_TIMEOUT = 120000;
+    private static final long POLL_MILLIS = 5;
+
+    private File mapFile;
+    private MapView mapView;
+    private GeoPoint center;
+    private float textScale = 1f;
+
+    /**
+     * Constructor.
+     */
+    public MapWorkersBenchmark() {
+        super(MapviewActivity.class);
+    }
+
+    public void testRenderingWithWorkers() throws Exception {
+        mapFile = new File(Environment.getExternalStorageDirectory(), MAP_FILE_PATH);
+        if (!mapFile.exists()) {
+            Log.w(TAG, "Benchmark skipped, the map file is missing: " + mapFile);
+            return;
+        }
+        final MapviewActivity activity = getActivity();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mapView = new MapView(activity);
+                activity.addContentView(mapView, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+                assertTrue(mapView.setMapFile(mapFile).isSuccess());
+                center = mapView.getMapDatabase().getMapFileInfo().boundingBox.getCenterPoint();
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+        assertTrue(mapView.getWidth() > 0 && mapView.getHeight() > 0);
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // all the tiles of the screen have to stay in the cache to know when they are rendered
+                int tilesX = mapView.getWidth() / Tile.TILE_SIZE + 2;
+                int tilesY = mapView.getHeight() / Tile.TILE_SIZE + 2;
+                mapView.setInMemoryTileCacheSize(tilesX * tilesY);
+                // the workers take the cache when they are created
+                if (mapView.getNumberOfMapWorkers() == WORKERS_COUNTS[0]) {
+                    mapView.setNumberOfMapWorkers(WORKERS_COUNTS[0] + 1);
+                }
+            }
+        });
+
+        for (final int workersCount : WORKERS_COUNTS) {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mapView.setNumberOfMapWorkers(workersCount);
+                }
+            });
+
+            long bestTime = Long.MAX_VALUE;
+            int tilesCount = 0;
+            for (int run = 0; run < RUNS; run++) {
+                long time = 0;
+                tilesCount = 0;
+                for (byte zoomLevel : ZOOM_LEVELS) {
+                    moveTo(zoomLevel);
+                    // the first rendering at a position also loads the render theme of new workers
+                    render();
+                    long start = System.nanoTime();
+                    tilesCount += render();
+                    time += System.nanoTime() - start;
+                }
+                bestTime = Math.min(bestTime, time / 1000000);
+            }
+            Log.i(TAG, workersCount + " workers: " + tilesCount + " tiles in " + bestTime + " ms, "
+                    + (bestTime / tilesCount) + " ms per tile");
+        }
+    }
+
+    private void moveTo(final byte zoomLevel) throws InterruptedException {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mapView.getController().setCenter(center);
+                mapView.getController().setZoom(zoomLevel);
+            }
+        });
+        while (mapView.isZoomAnimatorRunning()) {
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Render the current screen again and wait for all of its tiles.
+     *
+     * @return the number of tiles of the screen.
+     */
+    private int render() throws InterruptedException {
+        textScale += 0.001f;
+        final float renderTextScale = textScale;
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // new job parameters: the jobs are queued again and rendered by the pool
+                mapView.setTextScale(renderTextScale);
+            }
+        });
+
+        List<MapGeneratorJob> jobs = getScreenJobs(renderTextScale);
+        long start = System.currentTimeMillis();
+        for (MapGeneratorJob job : jobs) {
+            while (!mapView.getInMemoryTileCache().containsKey(job)) {
+                if (System.currentTimeMillis() - start > RENDER_TIMEOUT) {
+                    fail("Tile not rendered: " + job.tile);
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+        return jobs.size();
+    }
+
+    /**
+     * @return the jobs of the tiles of the screen, as queued by the MapView.
+     */
+    private List<MapGeneratorJob> getScreenJobs(float renderTextScale) {
+        MapPosition mapPosition = mapView.getMapPosition().getMapPosition();
+        GeoPoint geoPoint = mapPosition.geoPoint;
+        byte zoomLevel = mapPosition.zoomLevel;
+        double pixelLeft = MercatorProjection.longitudeToPixelX(geoPoint.getLongitude(), zoomLevel) - (mapView.getWidth() >> 1);
+        double pixelTop = MercatorProjection.latitudeToPixelY(geoPoint.getLatitude(), zoomLevel) - (mapView.getHeight() >> 1);
+        long tileLeft = MercatorProjection.pixelXToTileX(pixelLeft, zoomLevel);
+        long tileTop = MercatorProjection.pixelYToTileY(pixelTop, zoomLevel);
+        long tileRight = MercatorProjection.pixelXToTileX(pixelLeft + mapView.getWidth(), zoomLevel);
+        long tileBottom = MercatorProjection.pixelYToTileY(pixelTop + mapView.getHeight(), zoomLevel);
+
+        JobParameters jobParameters = new JobParameters(MapView.DEFAULT_RENDER_THEME, renderTextScale);
+        List<MapGeneratorJob> jobs = new ArrayList<>();
+        for (long tileY = tileTop; tileY <= tileBottom; tileY++) {
+            for (long tileX = tileLeft; tileX <= tileRight; tileX++) {
+                jobs.add(new MapGeneratorJob(new Tile(tileX, tileY, zoomLevel), mapFile, jobParameters,
+                        mapView.getDebugSettings()));
+            }
+        }
+        return jobs;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.mapview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.Environment;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.mapsforge.android.maps.DebugSettings;
+import org.mapsforge.android.maps.mapgenerator.FileSystemTileCache;
+import org.mapsforge.android.maps.mapgenerator.JobParameters;
+import org.mapsforge.android.maps.mapgenerator.MapGeneratorJob;
+import org.mapsforge.android.maps.rendertheme.InternalRenderTheme;
+import org.mapsforge.core.model.Tile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compares put and get latency and disk usage of the {@link FileSystemTileCache} with
+ * the previous way of caching tiles, one file with the raw pixels per tile.
+ * <p/>
+ * <p>The tiles are drawn with lines, areas and labels in the style of a rendered map,
+ * so that they compress like real tiles. The put time of the cache is the time until
+ * the tile is written to the data file by the background thread.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@LargeTest
+public class TileCacheBenchmark extends AndroidTestCase {
+    private static final String TAG = "TileCacheBenchmark";
+    private static final int TILES_COUNT = 200;
+    /*
+     * the cache directory of a map view id which the application does not use
+     */
+    private static final int MAP_VIEW_ID = 99;
+    /*
+     * next to the directories of the FileSystemTileCache, so that both are on the same storage
+     */
+    private static final String RAW_CACHE_DIRECTORY = "Android/data/org.mapsforge.android.maps/cache/" + TAG;
+    private static final long WRITE_TIMEOUT = 10000;
+
+    private final JobParameters jobParameters = new JobParameters(InternalRenderTheme.OSMARENDER, 1f);
+    private final DebugSettings debugSettings = new DebugSettings(false, false, false);
+    private Bitmap tileBitmap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        tileBitmap = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Bitmap.Config.RGB_565);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        tileBitmap.recycle();
+        super.tearDown();
+    }
+
+    public void testFileSystemTileCache() throws Exception {
+        FileSystemTileCache tileCache = new FileSystemTileCache(TILES_COUNT, MAP_VIEW_ID);
+        tileCache.setPersistent(true);
+        try {
+            long putTime = 0;
+            for (int i = 0; i < TILES_COUNT; i++) {
+                drawTile(i);
+                long sizeInBytes = tileCache.getSizeInBytes();
+                long start = System.nanoTime();
+                tileCache.put(getJob(i), tileBitmap);
+                while (tileCache.getSizeInBytes() == sizeInBytes) {
+                    if (System.nanoTime() - start > WRITE_TIMEOUT * 1000000) {
+                        fail("Tile not written: " + i);
+                    }
+                    Thread.yield();
+                }
+                putTime += System.nanoTime() - start;
+            }
+            long diskUsage = tileCache.getSizeInBytes();
+
+            // the index snapshot is written and read again, as between two runs of the application
+            tileCache.destroy();
+            long start = System.nanoTime();
+            tileCache = new FileSystemTileCache(TILES_COUNT, MAP_VIEW_ID);
+            tileCache.setPersistent(true);
+            long openTime = System.nanoTime() - start;
+
+            long getTime = 0;
+            for (int i = 0; i < TILES_COUNT; i++) {
+                start = System.nanoTime();
+                Bitmap bitmap = tileCache.get(getJob(i));
+                getTime += System.nanoTime() - start;
+                assertNotNull(bitmap);
+            }
+
+            log("FileSystemTileCache", putTime, getTime, diskUsage);
+            Log.i(TAG, "FileSystemTileCache: reopened with " + TILES_COUNT + " tiles in " + (openTime / 1000000) + " ms");
+        } finally {
+            tileCache.setPersistent(false);
+            tileCache.destroy();
+        }
+    }
+
+    public void testRawFilePerTile() throws Exception {
+        RawFileTileCache tileCache = new RawFileTileCache(new File(Environment.getExternalStorageDirectory(), RAW_CACHE_DIRECTORY));
+        try {
+            long putTime = 0;
+            for (int i = 0; i < TILES_COUNT; i++) {
+                drawTile(i);
+                long start = System.nanoTime();
+                tileCache.put(i, tileBitmap);
+                putTime += System.nanoTime() - start;
+            }
+
+            long getTime = 0;
+            for (int i = 0; i < TILES_COUNT; i++) {
+                long start = System.nanoTime();
+                Bitmap bitmap = tileCache.get(i);
+                getTime += System.nanoTime() - start;
+                assertNotNull(bitmap);
+            }
+
+            log("raw file per tile", putTime, getTime, tileCache.getSizeInBytes());
+        } finally {
+            tileCache.destroy();
+        }
+    }
+
+    private MapGeneratorJob getJob(int index) {
+        Tile tile = new Tile(8800 + index % 20, 5800 + index / 20, (byte) 14);
+        return new MapGeneratorJob(tile, TAG, jobParameters, debugSettings);
+    }
+
+    private static void log(String name, long putTime, long getTime, long diskUsage) {
+        Log.i(TAG, name + ": put " + (putTime / TILES_COUNT / 1000) + " us, get " + (getTime / TILES_COUNT / 1000)
+                + " us per tile, " + (diskUsage / 1024) + " KB on disk for " + TILES_COUNT + " tiles");
+    }
+
+    /**
+     * Draw a map like tile, the same for the same index.
+     */
+    private void drawTile(int index) {
+        Random random = new Random(index);
+        Canvas canvas = new Canvas(tileBitmap);
+        canvas.drawColor(Color.rgb(242, 239, 233));
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        Path path = new Path();
+        // areas
+        paint.setStyle(Paint.Style.FILL);
+        for (int i = 0; i < 6; i++) {
+            paint.setColor(random.nextBoolean() ? Color.rgb(200, 225, 185) : Color.rgb(181, 208, 208));
+            path.rewind();
+            path.moveTo(random.nextInt(Tile.TILE_SIZE), random.nextInt(Tile.TILE_SIZE));
+            for (int j = 0; j < 5; j++) {
+                path.lineTo(random.nextInt(Tile.TILE_SIZE), random.nextInt(Tile.TILE_SIZE));
+            }
+            path.close();
+            canvas.drawPath(path, paint);
+        }
+        // roads
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        for (int i = 0; i < 20; i++) {
+            paint.setColor(random.nextBoolean() ? Color.WHITE : Color.rgb(253, 191, 111));
+            paint.setStrokeWidth(2 + random.nextInt(6));
+            path.rewind();
+            path.moveTo(random.nextInt(Tile.TILE_SIZE), random.nextInt(Tile.TILE_SIZE));
+            for (int j = 0; j < 4; j++) {
+                path.lineTo(random.nextInt(Tile.TILE_SIZE), random.nextInt(Tile.TILE_SIZE));
+            }
+            canvas.drawPath(path, paint);
+        }
+        // labels
+        paint.setStyle(Paint.Style.FILL);
+        paint.setColor(Color.BLACK);
+        paint.setTextSize(12);
+        for (int i = 0; i < 5; i++) {
+            canvas.drawText("Street " + random.nextInt(1000), random.nextInt(Tile.TILE_SIZE), random.nextInt(Tile.TILE_SIZE), paint);
+        }
+    }
+
+    /**
+     * The tile cache before the data file: every tile is written uncompressed in its own file.
+     */
+    private static class RawFileTileCache {
+        private final File directory;
+        private final byte[] pixels = new byte[Tile.TILE_SIZE_IN_BYTES];
+        private final ByteBuffer byteBuffer = ByteBuffer.wrap(pixels);
+        private final Bitmap bitmap = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Bitmap.Config.RGB_565);
+
+        RawFileTileCache(File directory) {
+            this.directory = directory;
+            assertTrue(directory.isDirectory() || directory.mkdirs());
+        }
+
+        void put(int index, Bitmap tile) throws IOException {
+            byteBuffer.rewind();
+            tile.copyPixelsToBuffer(byteBuffer);
+            FileOutputStream outputStream = new FileOutputStream(getFile(index));
+            try {
+                outputStream.write(pixels, 0, pixels.length);
+            } finally {
+                outputStream.close();
+            }
+        }
+
+        Bitmap get(int index) throws IOException {
+            FileInputStream inputStream = new FileInputStream(getFile(index));
+            try {
+                if (inputStream.read(pixels) != pixels.length) {
+                    return null;
+                }
+            } finally {
+                inputStream.close();
+            }
+            byteBuffer.rewind();
+            bitmap.copyPixelsFromBuffer(byteBuffer);
+            return bitmap;
+        }
+
+        long getSizeInBytes() {
+            long size = 0;
+            for (File file : directory.listFiles()) {
+                size += file.length();
+            }
+            return size;
+        }
+
+        void destroy() {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+            bitmap.recycle();
+        }
+
+        private File getFile(int index) {
+            return new File(directory, index + ".tile");
+        }
+    }
+}
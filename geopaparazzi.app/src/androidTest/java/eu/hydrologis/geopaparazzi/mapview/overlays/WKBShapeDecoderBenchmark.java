@@ -0,0 +1,209 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.mapview.overlays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.vividsolutions.jts.android.ShapeWriter;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.util.Random;
+
+import eu.geopaparazzi.spatialite.database.spatial.core.geometry.WKBShapeDecoder;
+
+/**
+ * Draws a table of 100000 lines and one of 100000 polygons on a tile, once through
+ * {@link WKBReader} and {@link ShapeWriter} and once through the {@link WKBShapeDecoder},
+ * as the {@link SpatialiteTileRenderer} does.
+ * <p/>
+ * <p>The geometries are written as WKB, like the blobs of the layer queries, and spread
+ * over the tile and its neighbours, so that part of them is outside of the tile.
+ * The best of two runs of each way is logged.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@LargeTest
+public class WKBShapeDecoderBenchmark extends AndroidTestCase {
+    private static final String TAG = "WKBShapeDecoderBenchmark";
+    private static final int FEATURES_COUNT = 100000;
+    private static final int VERTICES_COUNT = 10;
+    private static final int RUNS = 2;
+    /*
+     * as in the SpatialiteTileRenderer
+     */
+    private static final int TILE_BUFFER = 32;
+
+    private final Tile tile = new Tile(8800, 5800, (byte) 14);
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private Bitmap bitmap;
+    private Canvas canvas;
+    private Paint fill;
+    private Paint stroke;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        bitmap = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Bitmap.Config.ARGB_8888);
+        canvas = new Canvas(bitmap);
+        fill = new Paint(Paint.ANTI_ALIAS_FLAG);
+        fill.setStyle(Paint.Style.FILL);
+        fill.setColor(Color.argb(100, 0, 0, 255));
+        stroke = new Paint(Paint.ANTI_ALIAS_FLAG);
+        stroke.setStyle(Paint.Style.STROKE);
+        stroke.setStrokeWidth(2);
+        stroke.setColor(Color.RED);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        bitmap.recycle();
+        super.tearDown();
+    }
+
+    public void testLines() throws Exception {
+        compare("lines", createBlobs(false));
+    }
+
+    public void testPolygons() throws Exception {
+        compare("polygons", createBlobs(true));
+    }
+
+    private void compare(String name, byte[][] blobs) {
+        long jtsTime = Long.MAX_VALUE;
+        long decoderTime = Long.MAX_VALUE;
+        int jtsDrawn = 0;
+        int decoderDrawn = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            jtsDrawn = drawWithJts(blobs);
+            jtsTime = Math.min(jtsTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            decoderDrawn = drawWithDecoder(blobs);
+            decoderTime = Math.min(decoderTime, System.nanoTime() - start);
+        }
+        Log.i(TAG, name + ": WKBReader and ShapeWriter " + (jtsTime / 1000000) + " ms, " + jtsDrawn
+                + " drawn; WKBShapeDecoder " + (decoderTime / 1000000) + " ms, " + decoderDrawn + " drawn");
+        assertTrue(jtsDrawn > 0);
+        assertTrue(decoderDrawn > 0);
+    }
+
+    private int drawWithJts(byte[][] blobs) {
+        Envelope tileEnvelope = getBufferedBounds();
+        ShapeWriter shapeWriter = new ShapeWriter(new TilePointTransformation(tile));
+        shapeWriter.setRemoveDuplicatePoints(true);
+        shapeWriter.setDecimation(0);
+        WKBReader wkbReader = new WKBReader();
+        int drawnCount = 0;
+        for (byte[] blob : blobs) {
+            Geometry geometry;
+            try {
+                geometry = wkbReader.read(blob);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+            if (!tileEnvelope.intersects(geometry.getEnvelopeInternal())) {
+                continue;
+            }
+            GeopaparazziOverlay.drawGeometry(geometry, canvas, shapeWriter, fill, stroke);
+            drawnCount++;
+        }
+        return drawnCount;
+    }
+
+    private int drawWithDecoder(byte[][] blobs) {
+        WKBShapeDecoder shapeDecoder = new WKBShapeDecoder(new TilePointTransformation(tile), null);
+        shapeDecoder.setDecimation(0);
+        shapeDecoder.setClip(-TILE_BUFFER, -TILE_BUFFER, Tile.TILE_SIZE + TILE_BUFFER, Tile.TILE_SIZE + TILE_BUFFER);
+        int drawnCount = 0;
+        for (byte[] blob : blobs) {
+            assertTrue(shapeDecoder.decode(blob));
+            if (!shapeDecoder.isVisible()) {
+                continue;
+            }
+            shapeDecoder.draw(canvas, fill, stroke);
+            drawnCount++;
+        }
+        return drawnCount;
+    }
+
+    private Envelope getBufferedBounds() {
+        long pixelX = tile.getPixelX();
+        long pixelY = tile.getPixelY();
+        return new Envelope(MercatorProjection.pixelXToLongitude(pixelX - TILE_BUFFER, tile.zoomLevel),
+                MercatorProjection.pixelXToLongitude(pixelX + Tile.TILE_SIZE + TILE_BUFFER, tile.zoomLevel),
+                MercatorProjection.pixelYToLatitude(pixelY + Tile.TILE_SIZE + TILE_BUFFER, tile.zoomLevel),
+                MercatorProjection.pixelYToLatitude(pixelY - TILE_BUFFER, tile.zoomLevel));
+    }
+
+    /**
+     * Create the WKB of small lines or polygons spread over the tile and its eight neighbours.
+     */
+    private byte[][] createBlobs(boolean isPolygon) {
+        double west = MercatorProjection.tileXToLongitude(tile.tileX - 1, tile.zoomLevel);
+        double east = MercatorProjection.tileXToLongitude(tile.tileX + 2, tile.zoomLevel);
+        double north = MercatorProjection.tileYToLatitude(tile.tileY - 1, tile.zoomLevel);
+        double south = MercatorProjection.tileYToLatitude(tile.tileY + 2, tile.zoomLevel);
+        // features of about a tenth of a tile
+        double size = (east - west) / 30;
+
+        Random random = new Random(FEATURES_COUNT);
+        WKBWriter wkbWriter = new WKBWriter();
+        byte[][] blobs = new byte[FEATURES_COUNT][];
+        for (int i = 0; i < FEATURES_COUNT; i++) {
+            double x = west + random.nextDouble() * (east - west);
+            double y = south + random.nextDouble() * (north - south);
+            Coordinate[] coordinates = new Coordinate[isPolygon ? VERTICES_COUNT + 1 : VERTICES_COUNT];
+            for (int j = 0; j < VERTICES_COUNT; j++) {
+                if (isPolygon) {
+                    // a star around the center, so that the ring is simple
+                    double angle = 2 * Math.PI * j / VERTICES_COUNT;
+                    double radius = size * (0.5 + random.nextDouble() / 2);
+                    coordinates[j] = new Coordinate(x + radius * Math.cos(angle), y + radius * Math.sin(angle));
+                } else {
+                    x += (random.nextDouble() - 0.5) * size;
+                    y += (random.nextDouble() - 0.5) * size;
+                    coordinates[j] = new Coordinate(x, y);
+                }
+            }
+            Geometry geometry;
+            if (isPolygon) {
+                coordinates[VERTICES_COUNT] = new Coordinate(coordinates[0]);
+                geometry = geometryFactory.createPolygon(geometryFactory.createLinearRing(coordinates), null);
+            } else {
+                geometry = geometryFactory.createLineString(coordinates);
+            }
+            blobs[i] = wkbWriter.write(geometry);
+        }
+        return blobs;
+    }
+}
@@ -27,7 +27,9 @@ import android.util.Log;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
 
 import org.mapsforge.android.maps.overlay.OverlayWay;
 import org.mapsforge.core.model.GeoPoint;
@@ -35,6 +37,8 @@ import org.mapsforge.core.model.GeoPoint;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 
@@ -47,19 +51,25 @@ import eu.geopaparazzi.library.gpx.parser.RoutePoint;
 import eu.geopaparazzi.library.gpx.parser.TrackPoint;
 import eu.geopaparazzi.library.gpx.parser.WayPoint;
 import eu.geopaparazzi.library.style.ColorUtilities;
+import eu.geopaparazzi.library.util.PositionUtilities;
 import eu.geopaparazzi.library.util.TimeUtilities;
 import eu.hydrologis.geopaparazzi.GeopaparazziApplication;
 import eu.hydrologis.geopaparazzi.database.objects.GpsLogInfo;
+import eu.hydrologis.geopaparazzi.database.objects.GpsLogPoints;
 import eu.hydrologis.geopaparazzi.database.objects.Line;
 import eu.hydrologis.geopaparazzi.database.objects.LogMapItem;
 
 import static eu.geopaparazzi.library.util.LibraryConstants.DEFAULT_LOG_WIDTH;
+import static eu.hydrologis.geopaparazzi.database.TableDescriptions.GpsLogsChunksTableFields;
 import static eu.hydrologis.geopaparazzi.database.TableDescriptions.GpsLogsDataTableFields;
 import static eu.hydrologis.geopaparazzi.database.TableDescriptions.GpsLogsPropertiesTableFields;
+import static eu.hydrologis.geopaparazzi.database.TableDescriptions.GpsLogsSegmentsTableFields;
 import static eu.hydrologis.geopaparazzi.database.TableDescriptions.GpsLogsTableFields;
 import static eu.hydrologis.geopaparazzi.database.TableDescriptions.TABLE_GPSLOGS;
+import static eu.hydrologis.geopaparazzi.database.TableDescriptions.TABLE_GPSLOG_CHUNKS;
 import static eu.hydrologis.geopaparazzi.database.TableDescriptions.TABLE_GPSLOG_DATA;
 import static eu.hydrologis.geopaparazzi.database.TableDescriptions.TABLE_GPSLOG_PROPERTIES;
+import static eu.hydrologis.geopaparazzi.database.TableDescriptions.TABLE_GPSLOG_SEGMENTS;
 
 /**
  * @author Andrea Antonello (www.hydrologis.com)
@@ -70,6 +80,20 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     private static SimpleDateFormat dateFormatter = TimeUtilities.INSTANCE.TIME_FORMATTER_SQLITE_UTC;
     private static SimpleDateFormat dateFormatterForLabelInLocalTime = TimeUtilities.INSTANCE.TIMESTAMPFORMATTER_LOCAL;
 
+    /**
+     * The max number of points of a log segment in the spatial index.
+     */
+    public static final int SEGMENT_SIZE = 256;
+
+    /*
+     * the database whose segments index is known to be complete
+     */
+    private static SQLiteDatabase segmentsIndexDatabase;
+    /*
+     * the database whose segments index could not be built, it is not tried again
+     */
+    private static SQLiteDatabase segmentsIndexFailedDatabase;
+
     /**
      * Create log tables.
      *
@@ -194,6 +218,56 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             Log.i("DAOGPSLOG", "Create the gpslogs properties table with: \n" + CREATE_TABLE_GPSLOGS_PROPERTIES);
         sqliteDatabase.execSQL(CREATE_TABLE_GPSLOGS_PROPERTIES);
 
+        createChunksTable(sqliteDatabase);
+        createSegmentsTable(sqliteDatabase);
+        segmentsIndexDatabase = sqliteDatabase;
+    }
+
+    /**
+     * Create the table of the compacted logs, if it doesn't exist yet.
+     * <p/>
+     * <p>Older projects don't have it until the first log is compacted.</p>
+     *
+     * @param sqliteDatabase the database to use.
+     */
+    public static void createChunksTable(SQLiteDatabase sqliteDatabase) {
+        StringBuilder sB = new StringBuilder();
+        sB.append("CREATE TABLE IF NOT EXISTS ");
+        sB.append(TABLE_GPSLOG_CHUNKS);
+        sB.append(" (");
+        sB.append(GpsLogsChunksTableFields.COLUMN_ID.getFieldName() + " INTEGER PRIMARY KEY AUTOINCREMENT, ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_LOGID.getFieldName()).append(" INTEGER NOT NULL ");
+        sB.append("CONSTRAINT ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(" REFERENCES ");
+        sB.append(TABLE_GPSLOGS);
+        sB.append("(" + GpsLogsTableFields.COLUMN_ID.getFieldName() + ") ON DELETE CASCADE,");
+        sB.append(GpsLogsChunksTableFields.COLUMN_CHUNK_INDEX.getFieldName()).append(" INTEGER NOT NULL, ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_CHUNK_COUNT.getFieldName()).append(" INTEGER NOT NULL, ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_CHUNK_MINLON.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_CHUNK_MAXLON.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_CHUNK_MINLAT.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_CHUNK_MAXLAT.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_CHUNK_STARTTS.getFieldName()).append(" LONG NOT NULL, ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_CHUNK_ENDTS.getFieldName()).append(" LONG NOT NULL, ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_CHUNK_DATA.getFieldName()).append(" BLOB NOT NULL");
+        sB.append(");");
+        String CREATE_TABLE_GPSLOG_CHUNKS = sB.toString();
+
+        sB = new StringBuilder();
+        sB.append("CREATE INDEX IF NOT EXISTS gpslogchunks_logid_idx ON ");
+        sB.append(TABLE_GPSLOG_CHUNKS);
+        sB.append(" ( ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(", ");
+        sB.append(GpsLogsChunksTableFields.COLUMN_CHUNK_INDEX.getFieldName());
+        sB.append(" );");
+        String CREATE_INDEX_GPSLOG_CHUNKS_LOGID = sB.toString();
+
+        if (GPLog.LOG_ANDROID)
+            Log.i("DAOGPSLOG", "Create the gpslog chunks table with: \n" + CREATE_TABLE_GPSLOG_CHUNKS);
+        sqliteDatabase.execSQL(CREATE_TABLE_GPSLOG_CHUNKS);
+        sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_CHUNKS_LOGID);
     }
 
     public SQLiteDatabase getDatabase() throws Exception {
@@ -239,6 +313,9 @@ public class DaoGpsLog implements IGpsLogDbHelper {
 
     /**
      * Adds a new XY entry to the gps table.
+     * <p/>
+     * <p>Each call reads and rewrites the last segment of the log in the spatial index,
+     * use {@link #addGpsLogDataPoints} to add more than a few points.</p>
      *
      * @param gpslogId the ID from the GPS log table.
      * @param lon      longitude.
@@ -263,6 +340,59 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         values.put(GpsLogsDataTableFields.COLUMN_DATA_ALTIM.getFieldName(), altim);
         values.put(GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName(), timestamp);
         sqliteDatabase.insertOrThrow(TABLE_GPSLOG_DATA, null, values);
+
+        if (hasSegmentsIndex(sqliteDatabase)) {
+            appendToGpslogIndex(sqliteDatabase, gpslogId, new double[]{lon}, new double[]{lat}, new long[]{timestamp}, 1);
+        }
+    }
+
+    /**
+     * Adds several gps log points to a log through a single compiled statement.
+     * <p/>
+     * <p>The last segments of the log in the spatial index are extended with the new points.</p>
+     *
+     * @param sqliteDatabase the database to use.
+     * @param gpslogId       the log to add the points to.
+     * @param lons           the longitudes.
+     * @param lats           the latitudes.
+     * @param altims         the altitudes/elevations.
+     * @param timestamps     the timestamps.
+     * @param count          the number of points to take from the arrays.
+     * @throws IOException if something goes wrong
+     */
+    public void addGpsLogDataPoints(SQLiteDatabase sqliteDatabase, long gpslogId, double[] lons, double[] lats,
+                                    double[] altims, long[] timestamps, int count) throws IOException {
+        insertGpsLogDataRows(sqliteDatabase, gpslogId, lons, lats, altims, timestamps, count);
+        if (hasSegmentsIndex(sqliteDatabase)) {
+            appendToGpslogIndex(sqliteDatabase, gpslogId, lons, lats, timestamps, count);
+        }
+    }
+
+    private static void insertGpsLogDataRows(SQLiteDatabase sqliteDatabase, long gpslogId, double[] lons, double[] lats,
+                                             double[] altims, long[] timestamps, int count) {
+        String insert = "INSERT INTO " + TABLE_GPSLOG_DATA + " (" +
+                GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + ", " +
+                GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName() + ", " +
+                GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName() + ", " +
+                GpsLogsDataTableFields.COLUMN_DATA_ALTIM.getFieldName() + ", " +
+                GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + ") VALUES (?, ?, ?, ?, ?)";
+        SQLiteStatement insertStatement = sqliteDatabase.compileStatement(insert);
+        try {
+            for (int i = 0; i < count; i++) {
+                // if the point is not valid, do not insert it
+                if (!PositionUtilities.isValidCoordinateLL(lons[i], lats[i])) {
+                    continue;
+                }
+                insertStatement.bindLong(1, gpslogId);
+                insertStatement.bindDouble(2, lons[i]);
+                insertStatement.bindDouble(3, lats[i]);
+                insertStatement.bindDouble(4, altims[i]);
+                insertStatement.bindLong(5, timestamps[i]);
+                insertStatement.executeInsert();
+            }
+        } finally {
+            insertStatement.close();
+        }
     }
 
     /**
@@ -293,6 +423,19 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             sqlUpdate.execute();
             sqlUpdate.close();
 
+            // delete compacted data
+            if (hasChunksTable(sqliteDatabase)) {
+                query = "delete from " + TABLE_GPSLOG_CHUNKS + " where " + GpsLogsChunksTableFields.COLUMN_LOGID.getFieldName() + " = " + id;
+                sqlUpdate = sqliteDatabase.compileStatement(query);
+                sqlUpdate.execute();
+                sqlUpdate.close();
+            }
+
+            // delete segments
+            if (hasSegmentsIndex(sqliteDatabase)) {
+                removeGpslogIndex(sqliteDatabase, id);
+            }
+
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
             GPLog.error("DOAGPSLOG", e.getLocalizedMessage(), e);
@@ -484,13 +627,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                     String color = c.getString(1);
                     double width = c.getDouble(2);
 
-                    Paint wayPaintOutline = new Paint(Paint.ANTI_ALIAS_FLAG);
-                    wayPaintOutline.setStyle(Paint.Style.STROKE);
-                    int lineColor = ColorUtilities.toColor(color);
-                    wayPaintOutline.setColor(lineColor);
-                    wayPaintOutline.setAlpha(255);
-                    wayPaintOutline.setStrokeWidth((float) width);
-                    wayPaintOutline.setStrokeJoin(Paint.Join.ROUND);
+                    Paint wayPaintOutline = createLogPaint(color, width);
 
                     OverlayWay way = new OverlayWay();
                     List<GeoPoint> gpslogGeoPoints = getGpslogGeoPoints(sqliteDatabase, logid, -1);
@@ -534,8 +671,133 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         return way;
     }
 
+    /**
+     * Get a version of each visible gps log, which changes whenever the points or the style of the log change.
+     * <p/>
+     * <p>Only the logs, properties and segments tables are read, so that cached log geometries
+     * can be checked without reading any point.</p>
+     *
+     * @return the versions by log id.
+     * @throws IOException if something goes wrong.
+     */
+    public static LinkedHashMap<Long, String> getVisibleGpslogVersions() throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        String idField = GpsLogsTableFields.COLUMN_ID.getFieldName();
+        String segmentsQuery = "";
+        if (hasSegmentsIndex(sqliteDatabase)) {
+            // the points added to a log and the logs merged into it change its segments
+            segmentsQuery = ", (select count(*) || ':' || sum(" + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_COUNT.getFieldName() +
+                    ") || ':' || max(" + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDTS.getFieldName() + ") from " +
+                    TABLE_GPSLOG_SEGMENTS + " s where s." + GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName() +
+                    " = l." + idField + ")";
+        }
+        String query = "select l." + idField +
+                ", p." + GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_COLOR.getFieldName() +
+                ", p." + GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_WIDTH.getFieldName() +
+                ", l." + GpsLogsTableFields.COLUMN_LOG_ENDTS.getFieldName() +
+                ", l." + GpsLogsTableFields.COLUMN_LOG_LENGTHM.getFieldName() +
+                segmentsQuery +
+                " from " + TABLE_GPSLOGS + " l, " + TABLE_GPSLOG_PROPERTIES + " p where l." + idField +
+                " = p." + GpsLogsPropertiesTableFields.COLUMN_LOGID.getFieldName() +
+                " and p." + GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_VISIBLE.getFieldName() + " = 1" +
+                " order by l." + idField;
+
+        LinkedHashMap<Long, String> versions = new LinkedHashMap<>();
+        try (Cursor c = sqliteDatabase.rawQuery(query, null)) {
+            c.moveToFirst();
+            while (!c.isAfterLast()) {
+                StringBuilder version = new StringBuilder();
+                for (int i = 1; i < c.getColumnCount(); i++) {
+                    version.append(c.getString(i)).append(';');
+                }
+                versions.put(c.getLong(0), version.toString());
+                c.moveToNext();
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Get a gps log with a simplified geometry, for the low zoom levels.
+     *
+     * @param logId     the log id.
+     * @param tolerance the distance in degrees within which points are removed.
+     * @return the way overlay or <code>null</code>, if the log has less than two points.
+     * @throws IOException if something goes wrong.
+     */
+    public static OverlayWay getGpslogSimplifiedOverlayById(long logId, double tolerance) throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        String query = "select " + GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_COLOR.getFieldName() +
+                ", " + GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_WIDTH.getFieldName() +
+                " from " + TABLE_GPSLOG_PROPERTIES + " where " +
+                GpsLogsPropertiesTableFields.COLUMN_LOGID.getFieldName() + " = " + logId;
+        Paint paintOutline;
+        try (Cursor c = sqliteDatabase.rawQuery(query, null)) {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            paintOutline = createLogPaint(c.getString(0), c.getDouble(1));
+        }
+
+        List<GeoPoint> gpslogGeoPoints = getGpslogSimplifiedGeoPoints(sqliteDatabase, logId, tolerance);
+        if (gpslogGeoPoints.size() < 2) {
+            return null;
+        }
+        OverlayWay way = new OverlayWay();
+        way.setPaint(null, paintOutline);
+        way.setWayNodes(new GeoPoint[][]{gpslogGeoPoints.toArray(new GeoPoint[gpslogGeoPoints.size()])});
+        return way;
+    }
+
+    private static Paint createLogPaint(String color, double width) {
+        Paint wayPaintOutline = new Paint(Paint.ANTI_ALIAS_FLAG);
+        wayPaintOutline.setStyle(Paint.Style.STROKE);
+        int lineColor = ColorUtilities.toColor(color);
+        wayPaintOutline.setColor(lineColor);
+        wayPaintOutline.setAlpha(255);
+        wayPaintOutline.setStrokeWidth((float) width);
+        wayPaintOutline.setStrokeJoin(Paint.Join.ROUND);
+        return wayPaintOutline;
+    }
+
+    private static List<GeoPoint> getGpslogSimplifiedGeoPoints(SQLiteDatabase sqliteDatabase, long logId, double tolerance)
+            throws IOException {
+        GpsLogPoints points = readGpslogPoints(sqliteDatabase, logId);
+        Coordinate[] coordinates = new Coordinate[points.size];
+        for (int i = 0; i < points.size; i++) {
+            coordinates[i] = new Coordinate(points.lons[i], points.lats[i]);
+        }
+        Coordinate[] simplified = coordinates;
+        if (coordinates.length > 2) {
+            simplified = DouglasPeuckerSimplifier.simplify(new GeometryFactory().createLineString(coordinates), tolerance)
+                    .getCoordinates();
+        }
+        List<GeoPoint> line = new ArrayList<>(simplified.length);
+        for (Coordinate coordinate : simplified) {
+            try {
+                line.add(new GeoPoint(coordinate.y, coordinate.x));
+            } catch (Exception e) {
+                // ignore invalid coordinates
+            }
+        }
+        return line;
+    }
+
     private static List<GeoPoint> getGpslogGeoPoints(SQLiteDatabase sqliteDatabase, long logId, int pointsNum)
             throws IOException {
+        if (isCompacted(sqliteDatabase, logId)) {
+            GpsLogPoints points = readGpslogPoints(sqliteDatabase, logId);
+            int step = getDecimationStep(points.size, pointsNum);
+            List<GeoPoint> line = new ArrayList<>(points.size / step + 1);
+            for (int i = 0; i < points.size; i += step) {
+                try {
+                    line.add(new GeoPoint(points.lats[i], points.lons[i]));
+                } catch (Exception e) {
+                    // ignore invalid coordinates
+                }
+            }
+            return line;
+        }
 
         String asColumnsToReturn[] = {GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(), GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName()};
         String strSortOrder = GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + " ASC";
@@ -574,6 +836,589 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         }
     }
 
+    /**
+     * Compact the points of a gps log into chunks of {@link GpsLogChunkCodec#CHUNK_SIZE} points.
+     * <p/>
+     * <p>The points are moved out of the gps log data table, where each point is a row in four indexes,
+     * into encoded blobs with their bounds. Coordinates keep 7 decimals and elevations centimeters.
+     * Compacted logs are read by the other methods of this class as the ones that are not.
+     * Points added to a compacted log are merged into the chunks by compacting it again.</p>
+     *
+     * @param logId the id of the log.
+     * @return the number of points in the compacted log.
+     * @throws IOException if something goes wrong.
+     */
+    public static int compactGpslog(long logId) throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        sqliteDatabase.beginTransaction();
+        try {
+            createChunksTable(sqliteDatabase);
+            int pointsCount = compactGpslog(sqliteDatabase, logId);
+            sqliteDatabase.setTransactionSuccessful();
+            return pointsCount;
+        } catch (Exception e) {
+            GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Get the points of a gps log, be it compacted or not.
+     *
+     * @param logId the id of the log.
+     * @return the points.
+     * @throws IOException if something goes wrong.
+     */
+    public static GpsLogPoints getGpslogPoints(long logId) throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        return readGpslogPoints(sqliteDatabase, logId);
+    }
+
+    private static int compactGpslog(SQLiteDatabase sqliteDatabase, long logId) throws IOException {
+        // back to rows first, so that points added after a previous compaction get sorted in
+        expandGpslog(sqliteDatabase, logId);
+        GpsLogPoints points = readGpslogRows(sqliteDatabase, logId);
+
+        String insert = "INSERT INTO " + TABLE_GPSLOG_CHUNKS + " (" +
+                GpsLogsChunksTableFields.COLUMN_LOGID.getFieldName() + ", " +
+                GpsLogsChunksTableFields.COLUMN_CHUNK_INDEX.getFieldName() + ", " +
+                GpsLogsChunksTableFields.COLUMN_CHUNK_COUNT.getFieldName() + ", " +
+                GpsLogsChunksTableFields.COLUMN_CHUNK_MINLON.getFieldName() + ", " +
+                GpsLogsChunksTableFields.COLUMN_CHUNK_MAXLON.getFieldName() + ", " +
+                GpsLogsChunksTableFields.COLUMN_CHUNK_MINLAT.getFieldName() + ", " +
+                GpsLogsChunksTableFields.COLUMN_CHUNK_MAXLAT.getFieldName() + ", " +
+                GpsLogsChunksTableFields.COLUMN_CHUNK_STARTTS.getFieldName() + ", " +
+                GpsLogsChunksTableFields.COLUMN_CHUNK_ENDTS.getFieldName() + ", " +
+                GpsLogsChunksTableFields.COLUMN_CHUNK_DATA.getFieldName() + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        SQLiteStatement insertStatement = sqliteDatabase.compileStatement(insert);
+        try {
+            int chunkIndex = 0;
+            for (int from = 0; from < points.size; from += GpsLogChunkCodec.CHUNK_SIZE) {
+                int count = Math.min(GpsLogChunkCodec.CHUNK_SIZE, points.size - from);
+                Envelope bounds = new Envelope();
+                for (int i = from; i < from + count; i++) {
+                    bounds.expandToInclude(points.lons[i], points.lats[i]);
+                }
+                byte[] data = GpsLogChunkCodec.encode(points.lons, points.lats, points.altims, points.timestamps, from, count);
+
+                insertStatement.bindLong(1, logId);
+                insertStatement.bindLong(2, chunkIndex++);
+                insertStatement.bindLong(3, count);
+                insertStatement.bindDouble(4, bounds.getMinX());
+                insertStatement.bindDouble(5, bounds.getMaxX());
+                insertStatement.bindDouble(6, bounds.getMinY());
+                insertStatement.bindDouble(7, bounds.getMaxY());
+                insertStatement.bindLong(8, points.timestamps[from]);
+                insertStatement.bindLong(9, points.timestamps[from + count - 1]);
+                insertStatement.bindBlob(10, data);
+                insertStatement.executeInsert();
+            }
+        } finally {
+            insertStatement.close();
+        }
+
+        sqliteDatabase.execSQL("delete from " + TABLE_GPSLOG_DATA + " where " + GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + " = " + logId);
+        return points.size;
+    }
+
+    /**
+     * Move the points of a compacted log back to the gps log data table.
+     */
+    private static void expandGpslog(SQLiteDatabase sqliteDatabase, long logId) throws IOException {
+        if (!isCompacted(sqliteDatabase, logId)) {
+            return;
+        }
+        GpsLogPoints points = readGpslogChunks(sqliteDatabase, logId, "ASC", null);
+        // same points, the segments stay valid
+        insertGpsLogDataRows(sqliteDatabase, logId, points.lons, points.lats, points.altims, points.timestamps,
+                points.size);
+        sqliteDatabase.execSQL("delete from " + TABLE_GPSLOG_CHUNKS + " where " + GpsLogsChunksTableFields.COLUMN_LOGID.getFieldName() + " = " + logId);
+    }
+
+    /**
+     * Read the points of a log, the compacted ones first.
+     */
+    private static GpsLogPoints readGpslogPoints(SQLiteDatabase sqliteDatabase, long logId) throws IOException {
+        return readGpslogPoints(sqliteDatabase, logId, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Read the points of a log between two timestamps, included.
+     */
+    private static GpsLogPoints readGpslogPoints(SQLiteDatabase sqliteDatabase, long logId, long startTs, long endTs)
+            throws IOException {
+        GpsLogPoints rows = readGpslogRows(sqliteDatabase, logId, startTs, endTs);
+        if (!isCompacted(sqliteDatabase, logId)) {
+            return rows;
+        }
+        GpsLogPoints chunks = readGpslogChunks(sqliteDatabase, logId, "ASC", null, startTs, endTs);
+        if (rows.size == 0) {
+            return chunks;
+        }
+        int size = chunks.size + rows.size;
+        double[] lons = Arrays.copyOf(chunks.lons, size);
+        double[] lats = Arrays.copyOf(chunks.lats, size);
+        double[] altims = Arrays.copyOf(chunks.altims, size);
+        long[] timestamps = Arrays.copyOf(chunks.timestamps, size);
+        System.arraycopy(rows.lons, 0, lons, chunks.size, rows.size);
+        System.arraycopy(rows.lats, 0, lats, chunks.size, rows.size);
+        System.arraycopy(rows.altims, 0, altims, chunks.size, rows.size);
+        System.arraycopy(rows.timestamps, 0, timestamps, chunks.size, rows.size);
+        return new GpsLogPoints(size, lons, lats, altims, timestamps);
+    }
+
+    private static GpsLogPoints readGpslogRows(SQLiteDatabase sqliteDatabase, long logId) {
+        return readGpslogRows(sqliteDatabase, logId, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private static GpsLogPoints readGpslogRows(SQLiteDatabase sqliteDatabase, long logId, long startTs, long endTs) {
+        String asColumnsToReturn[] = {//
+                GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(), //
+                GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName(), //
+                GpsLogsDataTableFields.COLUMN_DATA_ALTIM.getFieldName(),//
+                GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName()//
+        };
+        String strSortOrder = GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + " ASC";
+        String strWhere = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + "=" + logId;
+        if (startTs != Long.MIN_VALUE || endTs != Long.MAX_VALUE) {
+            strWhere += " AND " + GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + " BETWEEN " + startTs + " AND " + endTs;
+        }
+        Cursor c = null;
+        try {
+            c = sqliteDatabase.query(TABLE_GPSLOG_DATA, asColumnsToReturn, strWhere, null, null, null, strSortOrder);
+            int count = c.getCount();
+            double[] lons = new double[count];
+            double[] lats = new double[count];
+            double[] altims = new double[count];
+            long[] timestamps = new long[count];
+            int index = 0;
+            c.moveToFirst();
+            while (!c.isAfterLast() && index < count) {
+                lons[index] = c.getDouble(0);
+                lats[index] = c.getDouble(1);
+                altims[index] = c.getDouble(2);
+                timestamps[index] = c.getLong(3);
+                index++;
+                c.moveToNext();
+            }
+            return new GpsLogPoints(index, lons, lats, altims, timestamps);
+        } finally {
+            if (c != null)
+                c.close();
+        }
+    }
+
+    /**
+     * Decode the chunks of a log one after the other.
+     *
+     * @param order the chunks order, ASC or DESC.
+     * @param limit the max number of chunks to read or <code>null</code>.
+     */
+    private static GpsLogPoints readGpslogChunks(SQLiteDatabase sqliteDatabase, long logId, String order, String limit)
+            throws IOException {
+        return readGpslogChunks(sqliteDatabase, logId, order, limit, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Decode the chunks of a log one after the other, keeping the points between two timestamps, included.
+     */
+    private static GpsLogPoints readGpslogChunks(SQLiteDatabase sqliteDatabase, long logId, String order, String limit,
+                                                 long startTs, long endTs) throws IOException {
+        String asColumnsToReturn[] = {//
+                GpsLogsChunksTableFields.COLUMN_CHUNK_COUNT.getFieldName(), //
+                GpsLogsChunksTableFields.COLUMN_CHUNK_DATA.getFieldName() //
+        };
+        String strSortOrder = GpsLogsChunksTableFields.COLUMN_CHUNK_INDEX.getFieldName() + " " + order;
+        String strWhere = GpsLogsChunksTableFields.COLUMN_LOGID.getFieldName() + "=" + logId;
+        boolean hasTimeRange = startTs != Long.MIN_VALUE || endTs != Long.MAX_VALUE;
+        if (hasTimeRange) {
+            strWhere += " AND " + GpsLogsChunksTableFields.COLUMN_CHUNK_ENDTS.getFieldName() + " >= " + startTs +
+                    " AND " + GpsLogsChunksTableFields.COLUMN_CHUNK_STARTTS.getFieldName() + " <= " + endTs;
+        }
+        Cursor c = null;
+        try {
+            c = sqliteDatabase.query(TABLE_GPSLOG_CHUNKS, asColumnsToReturn, strWhere, null, null, null, strSortOrder, limit);
+            int capacity = Math.max(1, c.getCount()) * GpsLogChunkCodec.CHUNK_SIZE;
+            double[] lons = new double[capacity];
+            double[] lats = new double[capacity];
+            double[] altims = new double[capacity];
+            long[] timestamps = new long[capacity];
+            int size = 0;
+            c.moveToFirst();
+            while (!c.isAfterLast()) {
+                int count = c.getInt(0);
+                if (size + count > lons.length) {
+                    int newLength = Math.max(size + count, lons.length * 2);
+                    lons = Arrays.copyOf(lons, newLength);
+                    lats = Arrays.copyOf(lats, newLength);
+                    altims = Arrays.copyOf(altims, newLength);
+                    timestamps = Arrays.copyOf(timestamps, newLength);
+                }
+                GpsLogChunkCodec.decode(c.getBlob(1), count, lons, lats, altims, timestamps, size);
+                if (hasTimeRange) {
+                    int end = size + count;
+                    for (int i = size; i < end; i++) {
+                        if (timestamps[i] >= startTs && timestamps[i] <= endTs) {
+                            lons[size] = lons[i];
+                            lats[size] = lats[i];
+                            altims[size] = altims[i];
+                            timestamps[size] = timestamps[i];
+                            size++;
+                        }
+                    }
+                } else {
+                    size += count;
+                }
+                c.moveToNext();
+            }
+            return new GpsLogPoints(size, lons, lats, altims, timestamps);
+        } finally {
+            if (c != null)
+                c.close();
+        }
+    }
+
+    private static boolean isCompacted(SQLiteDatabase sqliteDatabase, long logId) {
+        if (!hasChunksTable(sqliteDatabase)) {
+            return false;
+        }
+        String query = "select 1 from " + TABLE_GPSLOG_CHUNKS + " where " +
+                GpsLogsChunksTableFields.COLUMN_LOGID.getFieldName() + " = " + logId + " limit 1";
+        try (Cursor c = sqliteDatabase.rawQuery(query, null)) {
+            return c.moveToFirst();
+        }
+    }
+
+    private static boolean hasChunksTable(SQLiteDatabase sqliteDatabase) {
+        return hasTable(sqliteDatabase, TABLE_GPSLOG_CHUNKS);
+    }
+
+    private static boolean hasTable(SQLiteDatabase sqliteDatabase, String tableName) {
+        String query = "select 1 from sqlite_master where type='table' and name='" + tableName + "'";
+        try (Cursor c = sqliteDatabase.rawQuery(query, null)) {
+            return c.moveToFirst();
+        }
+    }
+
+    /**
+     * @return the step with which to go through the points to get at most the wanted number.
+     */
+    private static int getDecimationStep(int count, int pointsNum) {
+        if (pointsNum != -1 && count > pointsNum) {
+            return (int) Math.ceil((double) count / pointsNum);
+        }
+        return 1;
+    }
+
+    /**
+     * Create the spatial index of the log segments, if it doesn't exist yet.
+     * <p/>
+     * <p>Each log is split in segments of up to {@link #SEGMENT_SIZE} points, consecutive segments
+     * share their boundary point. The bounds of the segments are kept in a plain table with a
+     * B-tree index over them, which works with any sqlite build.</p>
+     *
+     * @param sqliteDatabase the database to use.
+     */
+    private static void createSegmentsTable(SQLiteDatabase sqliteDatabase) {
+        StringBuilder sB = new StringBuilder();
+        sB.append("CREATE TABLE IF NOT EXISTS ");
+        sB.append(TABLE_GPSLOG_SEGMENTS);
+        sB.append(" (");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_ID.getFieldName() + " INTEGER PRIMARY KEY AUTOINCREMENT, ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName()).append(" INTEGER NOT NULL ");
+        sB.append("CONSTRAINT ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(" REFERENCES ");
+        sB.append(TABLE_GPSLOGS);
+        sB.append("(" + GpsLogsTableFields.COLUMN_ID.getFieldName() + ") ON DELETE CASCADE,");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_STARTTS.getFieldName()).append(" LONG NOT NULL, ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDTS.getFieldName()).append(" LONG NOT NULL, ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDLON.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDLAT.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_COUNT.getFieldName()).append(" INTEGER NOT NULL, ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MINLON.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MAXLON.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MINLAT.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MAXLAT.getFieldName()).append(" REAL NOT NULL");
+        sB.append(");");
+        String CREATE_TABLE_GPSLOG_SEGMENTS = sB.toString();
+
+        sB = new StringBuilder();
+        sB.append("CREATE INDEX IF NOT EXISTS gpslogsegments_logid_idx ON ");
+        sB.append(TABLE_GPSLOG_SEGMENTS);
+        sB.append(" ( ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(", ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDTS.getFieldName());
+        sB.append(" );");
+        String CREATE_INDEX_GPSLOG_SEGMENTS_LOGID = sB.toString();
+
+        /*
+         * the area queries scan the range of min latitudes and check
+         * the other bounds in the index, without reading the rows
+         */
+        sB = new StringBuilder();
+        sB.append("CREATE INDEX IF NOT EXISTS gpslogsegments_bounds_idx ON ");
+        sB.append(TABLE_GPSLOG_SEGMENTS);
+        sB.append(" ( ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MINLAT.getFieldName()).append(", ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MAXLAT.getFieldName()).append(", ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MINLON.getFieldName()).append(", ");
+        sB.append(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MAXLON.getFieldName());
+        sB.append(" );");
+        String CREATE_INDEX_GPSLOG_SEGMENTS_BOUNDS = sB.toString();
+
+        if (GPLog.LOG_ANDROID)
+            Log.i("DAOGPSLOG", "Create the gpslog segments table with: \n" + CREATE_TABLE_GPSLOG_SEGMENTS);
+        sqliteDatabase.execSQL(CREATE_TABLE_GPSLOG_SEGMENTS);
+        sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_SEGMENTS_LOGID);
+        sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_SEGMENTS_BOUNDS);
+    }
+
+    /**
+     * Make sure that the spatial index of the log segments exists and covers all the logs.
+     * <p/>
+     * <p>Projects created before the index have it built at the first use. If that fails,
+     * it is not tried again for the same database.</p>
+     *
+     * @return <code>false</code> if the index is not available.
+     */
+    private static synchronized boolean checkSegmentsIndex(SQLiteDatabase sqliteDatabase) {
+        if (hasSegmentsIndex(sqliteDatabase)) {
+            return true;
+        }
+        if (segmentsIndexFailedDatabase == sqliteDatabase) {
+            return false;
+        }
+        sqliteDatabase.beginTransaction();
+        try {
+            createSegmentsTable(sqliteDatabase);
+            List<Long> logIds = new ArrayList<>();
+            String query = "select " + GpsLogsTableFields.COLUMN_ID.getFieldName() + " from " + TABLE_GPSLOGS;
+            try (Cursor c = sqliteDatabase.rawQuery(query, null)) {
+                c.moveToFirst();
+                while (!c.isAfterLast()) {
+                    logIds.add(c.getLong(0));
+                    c.moveToNext();
+                }
+            }
+            for (long logId : logIds) {
+                indexGpslog(sqliteDatabase, logId);
+            }
+            sqliteDatabase.setTransactionSuccessful();
+        } catch (Exception e) {
+            GPLog.error("DAOGPSLOG", "The gps logs are read without spatial index.", e);
+            segmentsIndexFailedDatabase = sqliteDatabase;
+            return false;
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+        segmentsIndexDatabase = sqliteDatabase;
+        return true;
+    }
+
+    private static boolean hasSegmentsIndex(SQLiteDatabase sqliteDatabase) {
+        if (segmentsIndexDatabase == sqliteDatabase) {
+            return true;
+        }
+        // the index is built in one transaction, if it is there it is complete
+        if (hasTable(sqliteDatabase, TABLE_GPSLOG_SEGMENTS)) {
+            segmentsIndexDatabase = sqliteDatabase;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Rebuild the segments of a log.
+     */
+    private static void indexGpslog(SQLiteDatabase sqliteDatabase, long logId) throws IOException {
+        removeGpslogIndex(sqliteDatabase, logId);
+        GpsLogPoints points = readGpslogPoints(sqliteDatabase, logId);
+        appendToGpslogIndex(sqliteDatabase, logId, points.lons, points.lats, points.timestamps, points.size);
+    }
+
+    private static void removeGpslogIndex(SQLiteDatabase sqliteDatabase, long logId) {
+        sqliteDatabase.execSQL("delete from " + TABLE_GPSLOG_SEGMENTS + " where " +
+                GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName() + " = " + logId);
+    }
+
+    /**
+     * Add points at the end of the segments of a log, filling up the last segment first.
+     */
+    private static void appendToGpslogIndex(SQLiteDatabase sqliteDatabase, long logId, double[] lons, double[] lats,
+                                            long[] timestamps, int count) throws IOException {
+        GpsLogSegment lastSegment = null;
+        String query = "select " + GpsLogsSegmentsTableFields.COLUMN_ID.getFieldName() +
+                ", " + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_COUNT.getFieldName() +
+                ", " + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_STARTTS.getFieldName() +
+                ", " + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDTS.getFieldName() +
+                ", " + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDLON.getFieldName() +
+                ", " + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDLAT.getFieldName() +
+                ", " + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MINLON.getFieldName() +
+                ", " + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MAXLON.getFieldName() +
+                ", " + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MINLAT.getFieldName() +
+                ", " + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MAXLAT.getFieldName() +
+                " from " + TABLE_GPSLOG_SEGMENTS +
+                " where " + GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName() + " = " + logId +
+                " order by " + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDTS.getFieldName() + " desc limit 1";
+        try (Cursor c = sqliteDatabase.rawQuery(query, null)) {
+            if (c.moveToFirst()) {
+                lastSegment = new GpsLogSegment();
+                lastSegment.id = c.getLong(0);
+                lastSegment.count = c.getInt(1);
+                lastSegment.startTs = c.getLong(2);
+                lastSegment.endTs = c.getLong(3);
+                lastSegment.endLon = c.getDouble(4);
+                lastSegment.endLat = c.getDouble(5);
+                lastSegment.minLon = c.getDouble(6);
+                lastSegment.maxLon = c.getDouble(7);
+                lastSegment.minLat = c.getDouble(8);
+                lastSegment.maxLat = c.getDouble(9);
+            }
+        }
+        if (lastSegment != null && count > 0 && timestamps[0] < lastSegment.endTs) {
+            // points added in the middle of the log
+            indexGpslog(sqliteDatabase, logId);
+            return;
+        }
+
+        for (GpsLogSegment segment : GpsLogSegment.append(lastSegment, lons, lats, timestamps, count, SEGMENT_SIZE)) {
+            writeSegment(sqliteDatabase, logId, segment);
+        }
+    }
+
+    private static void writeSegment(SQLiteDatabase sqliteDatabase, long logId, GpsLogSegment segment) {
+        ContentValues values = new ContentValues();
+        values.put(GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName(), logId);
+        values.put(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_STARTTS.getFieldName(), segment.startTs);
+        values.put(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDTS.getFieldName(), segment.endTs);
+        values.put(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDLON.getFieldName(), segment.endLon);
+        values.put(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDLAT.getFieldName(), segment.endLat);
+        values.put(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_COUNT.getFieldName(), segment.count);
+        values.put(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MINLON.getFieldName(), segment.minLon);
+        values.put(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MAXLON.getFieldName(), segment.maxLon);
+        values.put(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MINLAT.getFieldName(), segment.minLat);
+        values.put(GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MAXLAT.getFieldName(), segment.maxLat);
+
+        if (segment.id == -1) {
+            segment.id = sqliteDatabase.insertOrThrow(TABLE_GPSLOG_SEGMENTS, null, values);
+        } else {
+            sqliteDatabase.update(TABLE_GPSLOG_SEGMENTS, values,
+                    GpsLogsSegmentsTableFields.COLUMN_ID.getFieldName() + " = " + segment.id, null);
+        }
+    }
+
+    /**
+     * Get the parts of the visible gps logs that touch an area.
+     * <p/>
+     * <p>Only the log segments whose bounds intersect the area are read, through the spatial index.
+     * Consecutive segments of a log are joined in a single line.</p>
+     *
+     * @param bounds the area in lat/long.
+     * @return the logs list, one way per log.
+     * @throws IOException if something goes wrong.
+     */
+    public static List<OverlayWay> getGpslogOverlays(Envelope bounds) throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        if (!checkSegmentsIndex(sqliteDatabase)) {
+            return getGpslogOverlays();
+        }
+
+        List<OverlayWay> logsList = new ArrayList<>();
+        for (LogSegmentsRun run : getLogSegmentsRuns(sqliteDatabase, bounds)) {
+            List<GeoPoint[]> wayNodes = new ArrayList<>();
+            for (long[] tsRange : run.tsRanges) {
+                GpsLogPoints points = readGpslogPoints(sqliteDatabase, run.logId, tsRange[0], tsRange[1]);
+                List<GeoPoint> line = new ArrayList<>(points.size);
+                for (int i = 0; i < points.size; i++) {
+                    try {
+                        line.add(new GeoPoint(points.lats[i], points.lons[i]));
+                    } catch (Exception e) {
+                        // ignore invalid coordinates
+                    }
+                }
+                if (line.size() > 1) {
+                    wayNodes.add(line.toArray(new GeoPoint[line.size()]));
+                }
+            }
+            if (wayNodes.size() > 0) {
+                OverlayWay way = new OverlayWay();
+                way.setPaint(null, createLogPaint(run.color, run.width));
+                way.setWayNodes(wayNodes.toArray(new GeoPoint[wayNodes.size()][]));
+                logsList.add(way);
+            }
+        }
+        return logsList;
+    }
+
+    /**
+     * Query the spatial index for the segments of the visible logs in an area,
+     * joining the consecutive ones.
+     */
+    private static List<LogSegmentsRun> getLogSegmentsRuns(SQLiteDatabase sqliteDatabase, Envelope bounds) {
+        String sql = "select s." + GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName() +
+                ", s." + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_STARTTS.getFieldName() +
+                ", s." + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_ENDTS.getFieldName() +
+                ", g." + GpsLogsTableFields.COLUMN_LOG_TEXT.getFieldName() +
+                ", p." + GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_COLOR.getFieldName() +
+                ", p." + GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_WIDTH.getFieldName() +
+                " from " + TABLE_GPSLOG_SEGMENTS + " s, " +
+                TABLE_GPSLOGS + " g, " + TABLE_GPSLOG_PROPERTIES + " p where " +
+                "s." + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MINLAT.getFieldName() + " <= " + bounds.getMaxY() + " and " +
+                "s." + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MAXLAT.getFieldName() + " >= " + bounds.getMinY() + " and " +
+                "s." + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MINLON.getFieldName() + " <= " + bounds.getMaxX() + " and " +
+                "s." + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_MAXLON.getFieldName() + " >= " + bounds.getMinX() + " and " +
+                "g." + GpsLogsTableFields.COLUMN_ID.getFieldName() + " = s." + GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName() + " and " +
+                "p." + GpsLogsPropertiesTableFields.COLUMN_LOGID.getFieldName() + " = s." + GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName() + " and " +
+                "p." + GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_VISIBLE.getFieldName() + " = 1" +
+                " order by s." + GpsLogsSegmentsTableFields.COLUMN_LOGID.getFieldName() +
+                ", s." + GpsLogsSegmentsTableFields.COLUMN_SEGMENT_STARTTS.getFieldName();
+
+        List<LogSegmentsRun> runs = new ArrayList<>();
+        LogSegmentsRun run = null;
+        try (Cursor c = sqliteDatabase.rawQuery(sql, null)) {
+            c.moveToFirst();
+            while (!c.isAfterLast()) {
+                long logId = c.getLong(0);
+                long startTs = c.getLong(1);
+                long endTs = c.getLong(2);
+                if (run == null || run.logId != logId) {
+                    run = new LogSegmentsRun();
+                    run.logId = logId;
+                    run.name = c.getString(3);
+                    run.color = c.getString(4);
+                    run.width = c.getDouble(5);
+                    runs.add(run);
+                }
+                long[] lastRange = run.tsRanges.size() > 0 ? run.tsRanges.get(run.tsRanges.size() - 1) : null;
+                if (lastRange != null && lastRange[1] == startTs) {
+                    lastRange[1] = endTs;
+                } else {
+                    run.tsRanges.add(new long[]{startTs, endTs});
+                }
+                c.moveToNext();
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * The consecutive segments of a log that were found in an area.
+     */
+    private static class LogSegmentsRun {
+        long logId;
+        String name;
+        String color;
+        double width;
+        /*
+         * the [start, end] timestamps of each group of consecutive segments
+         */
+        final List<long[]> tsRanges = new ArrayList<>();
+    }
+
     /**
      * Update the properties of a log.
      *
@@ -677,6 +1522,9 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
         sqliteDatabase.beginTransaction();
         try {
+            // the points to move need to be rows
+            expandGpslog(sqliteDatabase, logidToRemove);
+            boolean isDestinationCompacted = isCompacted(sqliteDatabase, destinationLogId);
 
             StringBuilder sb = new StringBuilder();
             sb.append("delete from ");
@@ -717,6 +1565,14 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             sqlUpdate.execute();
             sqlUpdate.close();
 
+            if (isDestinationCompacted) {
+                compactGpslog(sqliteDatabase, destinationLogId);
+            }
+            if (hasSegmentsIndex(sqliteDatabase)) {
+                removeGpslogIndex(sqliteDatabase, logidToRemove);
+                indexGpslog(sqliteDatabase, destinationLogId);
+            }
+
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
             GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
@@ -845,7 +1701,39 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             if (c != null)
                 c.close();
         }
-        return linesMap;
+
+        if (!hasChunksTable(sqliteDatabase)) {
+            return linesMap;
+        }
+        // the compacted logs are decoded one at a time
+        String query = "select distinct " + GpsLogsChunksTableFields.COLUMN_LOGID.getFieldName() + " from " + TABLE_GPSLOG_CHUNKS;
+        List<Long> compactedIds = new ArrayList<>();
+        try (Cursor idsCursor = sqliteDatabase.rawQuery(query, null)) {
+            idsCursor.moveToFirst();
+            while (!idsCursor.isAfterLast()) {
+                compactedIds.add(idsCursor.getLong(0));
+                idsCursor.moveToNext();
+            }
+        }
+        if (compactedIds.size() == 0) {
+            return linesMap;
+        }
+        for (long logid : compactedIds) {
+            Line line = linesMap.get(logid);
+            if (line == null) {
+                line = new Line("log_" + logid);
+                linesMap.put(logid, line);
+            }
+            addPointsToLine(line, readGpslogChunks(sqliteDatabase, logid, "ASC", null), 1);
+        }
+        // keep the logs ordered by id
+        List<Long> logIds = new ArrayList<>(linesMap.keySet());
+        Collections.sort(logIds);
+        LinkedHashMap<Long, Line> sortedLinesMap = new LinkedHashMap<>();
+        for (Long logid : logIds) {
+            sortedLinesMap.put(logid, linesMap.get(logid));
+        }
+        return sortedLinesMap;
     }
 
 
@@ -861,6 +1749,9 @@ public class DaoGpsLog implements IGpsLogDbHelper {
      */
     public static STRtree getGpsLogInfoTree(double n, double s, double e, double w) throws IOException {
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        if (checkSegmentsIndex(sqliteDatabase)) {
+            return getGpsLogInfoTreeFromSegments(sqliteDatabase, n, s, e, w);
+        }
 
         String idField1 = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName();
         String lonField = GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName();
@@ -912,9 +1803,95 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             if (c != null)
                 c.close();
         }
+
+        if (hasChunksTable(sqliteDatabase)) {
+            addCompactedGpsLogInfo(sqliteDatabase, tree, n, s, e, w);
+        }
+        return tree;
+    }
+
+    /**
+     * Build the tree reading only the log segments that touch the area.
+     */
+    private static STRtree getGpsLogInfoTreeFromSegments(SQLiteDatabase sqliteDatabase, double n, double s, double e,
+                                                         double w) throws IOException {
+        STRtree tree = new STRtree();
+        for (LogSegmentsRun run : getLogSegmentsRuns(sqliteDatabase, new Envelope(w, e, s, n))) {
+            for (long[] tsRange : run.tsRanges) {
+                GpsLogPoints points = readGpslogPoints(sqliteDatabase, run.logId, tsRange[0], tsRange[1]);
+                for (int i = 0; i < points.size; i++) {
+                    if (points.lons[i] > w && points.lons[i] < e && points.lats[i] > s && points.lats[i] < n) {
+                        GpsLogInfo gli = new GpsLogInfo();
+                        gli.pointXYZ = new Coordinate(points.lons[i], points.lats[i], points.altims[i]);
+                        gli.timestamp = points.timestamps[i];
+                        gli.logName = run.name;
+                        gli.color = run.color;
+                        tree.insert(new Envelope(gli.pointXYZ), gli);
+                    }
+                }
+            }
+        }
         return tree;
     }
 
+    /**
+     * Add to the tree the points of the compacted logs, decoding only the chunks that touch the area.
+     */
+    private static void addCompactedGpsLogInfo(SQLiteDatabase sqliteDatabase, STRtree tree, double n, double s, double e,
+                                               double w) throws IOException {
+        String idField1 = GpsLogsChunksTableFields.COLUMN_LOGID.getFieldName();
+        String countField = GpsLogsChunksTableFields.COLUMN_CHUNK_COUNT.getFieldName();
+        String dataField = GpsLogsChunksTableFields.COLUMN_CHUNK_DATA.getFieldName();
+
+        String idField = GpsLogsTableFields.COLUMN_ID.getFieldName();
+        String nameField = GpsLogsTableFields.COLUMN_LOG_TEXT.getFieldName();
+
+        String idField2 = GpsLogsPropertiesTableFields.COLUMN_LOGID.getFieldName();
+        String colorField = GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_COLOR.getFieldName();
+        String visibleField = GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_VISIBLE.getFieldName();
+
+        String sql = "select d." + countField + ", d." + dataField + ", g." + nameField + ", p." + colorField +
+                " from " + TABLE_GPSLOG_CHUNKS + " d, " + TableDescriptions.TABLE_GPSLOGS +
+                " g, " + TableDescriptions.TABLE_GPSLOG_PROPERTIES + " p where " +
+                "d." + idField1 + "=g." + idField + " and p." + idField2 + "=g." + idField + " and " +
+                "p." + visibleField + " = 1 and " +
+                "d." + GpsLogsChunksTableFields.COLUMN_CHUNK_MAXLON.getFieldName() + " > " + w + " and " +
+                "d." + GpsLogsChunksTableFields.COLUMN_CHUNK_MINLON.getFieldName() + " < " + e + " and " +
+                "d." + GpsLogsChunksTableFields.COLUMN_CHUNK_MAXLAT.getFieldName() + " > " + s + " and " +
+                "d." + GpsLogsChunksTableFields.COLUMN_CHUNK_MINLAT.getFieldName() + " < " + n;
+
+        double[] lons = new double[GpsLogChunkCodec.CHUNK_SIZE];
+        double[] lats = new double[GpsLogChunkCodec.CHUNK_SIZE];
+        double[] altims = new double[GpsLogChunkCodec.CHUNK_SIZE];
+        long[] timestamps = new long[GpsLogChunkCodec.CHUNK_SIZE];
+        try (Cursor c = sqliteDatabase.rawQuery(sql, null)) {
+            c.moveToFirst();
+            while (!c.isAfterLast()) {
+                int count = c.getInt(0);
+                if (count > lons.length) {
+                    lons = new double[count];
+                    lats = new double[count];
+                    altims = new double[count];
+                    timestamps = new long[count];
+                }
+                GpsLogChunkCodec.decode(c.getBlob(1), count, lons, lats, altims, timestamps, 0);
+                String name = c.getString(2);
+                String color = c.getString(3);
+                for (int i = 0; i < count; i++) {
+                    if (lons[i] > w && lons[i] < e && lats[i] > s && lats[i] < n) {
+                        GpsLogInfo gli = new GpsLogInfo();
+                        gli.pointXYZ = new Coordinate(lons[i], lats[i], altims[i]);
+                        gli.timestamp = timestamps[i];
+                        gli.logName = name;
+                        gli.color = color;
+                        tree.insert(new Envelope(gli.pointXYZ), gli);
+                    }
+                }
+                c.moveToNext();
+            }
+        }
+    }
+
 
     /**
      * Get the line for a certain log id from the db
@@ -926,6 +1903,12 @@ public class DaoGpsLog implements IGpsLogDbHelper {
      */
     public static Line getGpslogAsLine(long logId, int pointsNum) throws IOException {
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        if (isCompacted(sqliteDatabase, logId)) {
+            GpsLogPoints points = readGpslogPoints(sqliteDatabase, logId);
+            Line line = new Line("log_" + logId);
+            addPointsToLine(line, points, getDecimationStep(points.size, pointsNum));
+            return line;
+        }
 
         String asColumnsToReturn[] = {//
                 GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(), //
@@ -968,6 +1951,12 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         }
     }
 
+    private static void addPointsToLine(Line line, GpsLogPoints points, int step) {
+        for (int i = 0; i < points.size; i += step) {
+            line.addPoint(points.lons[i], points.lats[i], points.altims[i], String.valueOf(points.timestamps[i]));
+        }
+    }
+
     /**
      * Get the first point of a gps log.
      *
@@ -977,6 +1966,12 @@ public class DaoGpsLog implements IGpsLogDbHelper {
      */
     public static double[] getGpslogFirstPoint(long logId) throws IOException {
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        if (isCompacted(sqliteDatabase, logId)) {
+            GpsLogPoints points = readGpslogChunks(sqliteDatabase, logId, "ASC", "1");
+            if (points.size > 0) {
+                return new double[]{points.lons[0], points.lats[0]};
+            }
+        }
 
         String asColumnsToReturn[] = {//
                 GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(), //
@@ -1011,6 +2006,12 @@ public class DaoGpsLog implements IGpsLogDbHelper {
      */
     public static double[] getGpslogLastPoint(long logId) throws IOException {
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        if (isCompacted(sqliteDatabase, logId)) {
+            GpsLogPoints points = readGpslogChunks(sqliteDatabase, logId, "DESC", "1");
+            if (points.size > 0) {
+                return new double[]{points.lons[points.size - 1], points.lats[points.size - 1]};
+            }
+        }
 
         String asColumnsToReturn[] = {//
                 GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(), //
@@ -1103,16 +2104,24 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                 try {
                     long currentTimeMillis = System.currentTimeMillis();
                     List<TrackPoint> points = trackSegment.getPoints();
-                    for (int i = 0; i < points.size(); i++) {
+                    int size = points.size();
+                    double[] lons = new double[size];
+                    double[] lats = new double[size];
+                    double[] altims = new double[size];
+                    long[] timestamps = new long[size];
+                    for (int i = 0; i < size; i++) {
                         TrackPoint point = points.get(i);
                         if (point.getTime() > 0) {
                             date = point.getTime();
                         } else {
                             date = currentTimeMillis + i * 1000l;
                         }
-                        helper.addGpsLogDataPoint(sqliteDatabase, logId, point.getLongitude(), point.getLatitude(),
-                                point.getElevation(), date);
+                        lons[i] = point.getLongitude();
+                        lats[i] = point.getLatitude();
+                        altims[i] = point.getElevation();
+                        timestamps[i] = date;
                     }
+                    helper.addGpsLogDataPoints(sqliteDatabase, logId, lons, lats, altims, timestamps, size);
                     sqliteDatabase.setTransactionSuccessful();
                 } catch (Exception e) {
                     GPLog.error("DAOMAPS", e.getLocalizedMessage(), e);
@@ -1151,7 +2160,12 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                 try {
                     long currentTimeMillis = System.currentTimeMillis();
                     List<RoutePoint> points = route.getPoints();
-                    for (int i = 0; i < points.size(); i++) {
+                    int size = points.size();
+                    double[] lons = new double[size];
+                    double[] lats = new double[size];
+                    double[] altims = new double[size];
+                    long[] timestamps = new long[size];
+                    for (int i = 0; i < size; i++) {
                         RoutePoint point = points.get(i);
                         long date;
                         if (point.getTime() > 0) {
@@ -1159,9 +2173,12 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                         } else {
                             date = currentTimeMillis + i * 1000l;
                         }
-                        helper.addGpsLogDataPoint(sqliteDatabase, logId, point.getLongitude(), point.getLatitude(),
-                                point.getElevation(), date);
+                        lons[i] = point.getLongitude();
+                        lats[i] = point.getLatitude();
+                        altims[i] = point.getElevation();
+                        timestamps[i] = date;
                     }
+                    helper.addGpsLogDataPoints(sqliteDatabase, logId, lons, lats, altims, timestamps, size);
                     sqliteDatabase.setTransactionSuccessful();
                 } catch (Exception e) {
                     GPLog.error("DAOMAPS", e.getLocalizedMessage(), e);
@@ -1256,14 +2273,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         try {
             // get the log data, sum up the distances
             SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
-            String asColumnsToReturn[] = { //
-                    GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(), //
-                    GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName(), //
-                    GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() //
-            };
-            String strSortOrder = GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + " ASC";
-            String strWhere = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + "=" + logId;
-            Cursor c = null;
+            GpsLogPoints points = readGpslogPoints(sqliteDatabase, logId);
             double summedDistance = 0.0;
             double lon = 0.0;
             double lat = 0.0;
@@ -1271,44 +2281,35 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             double prevLat = 0.0;
 
             if (GPLog.LOG_ABSURD)
-                GPLog.addLogEntry("DAOGPSLOG", strWhere);
-            try {
-                c = sqliteDatabase.query(TABLE_GPSLOG_DATA, asColumnsToReturn, strWhere, null, null, null, strSortOrder);
-                c.moveToFirst();
-                while (!c.isAfterLast()) {
-                    lon = c.getDouble(0);
-                    lat = c.getDouble(1);
-
-                    Location newLoc = new Location("tempLoc1"); //$NON-NLS-1$
-                    newLoc.setLongitude(lon);
-                    newLoc.setLatitude(lat);
-                    Location prevLoc = new Location("tempLoc2"); //$NON-NLS-1$
-
-                    if (GPLog.LOG_ABSURD) {
-                        GPLog.addLogEntry("DAOGPSLOG", "lon: " + String.valueOf(lon));
-                        GPLog.addLogEntry("DAOGPSLOG", "lat: " + String.valueOf(lat));
-                        GPLog.addLogEntry("DAOGPSLOG", "prevlon: " + String.valueOf(prevLon));
-                        GPLog.addLogEntry("DAOGPSLOG", "prevlat: " + String.valueOf(prevLat));
-                    }
-                    if (prevLon == 0.0) {
-                        prevLon = lon;
-                        prevLat = lat;
-                    }
-                    prevLoc.setLongitude(prevLon);
-                    prevLoc.setLatitude(prevLat);
-                    double lastDistance = newLoc.distanceTo(prevLoc);
-                    if (GPLog.LOG_ABSURD) {
-                        GPLog.addLogEntry("DAOGPSLOG", "distance: " + String.valueOf(lastDistance));
-                    }
-                    summedDistance = summedDistance + lastDistance;
+                GPLog.addLogEntry("DAOGPSLOG", "logid: " + logId);
+            for (int i = 0; i < points.size; i++) {
+                lon = points.lons[i];
+                lat = points.lats[i];
+
+                Location newLoc = new Location("tempLoc1"); //$NON-NLS-1$
+                newLoc.setLongitude(lon);
+                newLoc.setLatitude(lat);
+                Location prevLoc = new Location("tempLoc2"); //$NON-NLS-1$
+
+                if (GPLog.LOG_ABSURD) {
+                    GPLog.addLogEntry("DAOGPSLOG", "lon: " + String.valueOf(lon));
+                    GPLog.addLogEntry("DAOGPSLOG", "lat: " + String.valueOf(lat));
+                    GPLog.addLogEntry("DAOGPSLOG", "prevlon: " + String.valueOf(prevLon));
+                    GPLog.addLogEntry("DAOGPSLOG", "prevlat: " + String.valueOf(prevLat));
+                }
+                if (prevLon == 0.0) {
                     prevLon = lon;
                     prevLat = lat;
-
-                    c.moveToNext();
                 }
-            } finally {
-                if (c != null)
-                    c.close();
+                prevLoc.setLongitude(prevLon);
+                prevLoc.setLatitude(prevLat);
+                double lastDistance = newLoc.distanceTo(prevLoc);
+                if (GPLog.LOG_ABSURD) {
+                    GPLog.addLogEntry("DAOGPSLOG", "distance: " + String.valueOf(lastDistance));
+                }
+                summedDistance = summedDistance + lastDistance;
+                prevLon = lon;
+                prevLat = lat;
             }
 
             // update the gpslogs table with the summed distance
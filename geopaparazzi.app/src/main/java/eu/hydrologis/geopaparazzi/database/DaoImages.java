@@ -24,6 +24,8 @@ import android.database.sqlite.SQLiteStatement;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 import org.mapsforge.android.maps.overlay.OverlayItem;
 import org.mapsforge.core.model.GeoPoint;
 
@@ -37,6 +39,7 @@ import eu.geopaparazzi.library.database.IImagesDbHelper;
 import eu.geopaparazzi.library.database.Image;
 import eu.geopaparazzi.library.images.ImageUtilities;
 import eu.hydrologis.geopaparazzi.GeopaparazziApplication;
+import eu.hydrologis.geopaparazzi.database.objects.ClusterOverlayItem;
 
 import static eu.hydrologis.geopaparazzi.database.TableDescriptions.ImageDataTableFields;
 import static eu.hydrologis.geopaparazzi.database.TableDescriptions.ImageTableFields;
@@ -586,6 +589,21 @@ public class DaoImages implements IImagesDbHelper {
      * @throws IOException if something goes wrong.
      */
     public static List<OverlayItem> getImagesOverlayList(Drawable marker, boolean onlyStandalone) throws IOException {
+        return getImagesOverlayList(marker, onlyStandalone, null);
+    }
+
+    /**
+     * Get the image overlays inside some bounds.
+     *
+     * @param marker the marker to use.
+     * @param onlyStandalone if true, only pure image notes are returned.
+     *                       One example of non pure image notes is the image
+     *                       that belongs to a form based note.
+     * @param nswe the bounds as [n, s, w, e], or <code>null</code> to get all the images.
+     * @return the list of {@link OverlayItem}s.
+     * @throws IOException if something goes wrong.
+     */
+    public static List<OverlayItem> getImagesOverlayList(Drawable marker, boolean onlyStandalone, float[] nswe) throws IOException {
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
         List<OverlayItem> images = new ArrayList<>();
         String asColumnsToReturn[] = {//
@@ -596,10 +614,21 @@ public class DaoImages implements IImagesDbHelper {
         };
         String strSortOrder = "_id ASC";
         String whereString = null;
+        String[] whereArgs = null;
         if (onlyStandalone) {
             whereString = ImageTableFields.COLUMN_NOTE_ID.getFieldName() + " < 0";
         }
-        Cursor c = sqliteDatabase.query(TABLE_IMAGES, asColumnsToReturn, whereString, null, null, null, strSortOrder);
+        if (nswe != null) {
+            String boundsWhereString = "(" + ImageTableFields.COLUMN_LON.getFieldName() + " BETWEEN ? AND ?) AND (" +
+                    ImageTableFields.COLUMN_LAT.getFieldName() + " BETWEEN ? AND ?)";
+            if (whereString == null) {
+                whereString = boundsWhereString;
+            } else {
+                whereString = whereString + " AND " + boundsWhereString;
+            }
+            whereArgs = new String[]{String.valueOf(nswe[2]), String.valueOf(nswe[3]), String.valueOf(nswe[1]), String.valueOf(nswe[0])};
+        }
+        Cursor c = sqliteDatabase.query(TABLE_IMAGES, asColumnsToReturn, whereString, whereArgs, null, null, strSortOrder);
         c.moveToFirst();
         while (!c.isAfterLast()) {
             double lon = c.getDouble(0);
@@ -615,5 +644,61 @@ public class DaoImages implements IImagesDbHelper {
         return images;
     }
 
+    /**
+     * Get the image overlays inside some bounds, grouped in the cells of a lon/lat grid.
+     * <p/>
+     * <p>The grouping is done by the database: the images of a cell that holds more than one
+     * are returned as a single {@link ClusterOverlayItem} placed at their centroid.</p>
+     *
+     * @param marker         the marker to use.
+     * @param onlyStandalone if true, only pure image notes are returned.
+     * @param nswe           the bounds as [n, s, w, e].
+     * @param cellWidth      the width of the grid cells in degrees.
+     * @param cellHeight     the height of the grid cells in degrees.
+     * @return the list of {@link OverlayItem}s.
+     * @throws IOException if something goes wrong.
+     */
+    public static List<OverlayItem> getImagesOverlayClusters(Drawable marker, boolean onlyStandalone, float[] nswe,
+                                                             double cellWidth, double cellHeight) throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        String lonField = ImageTableFields.COLUMN_LON.getFieldName();
+        String latField = ImageTableFields.COLUMN_LAT.getFieldName();
+        StringBuilder sB = new StringBuilder();
+        sB.append("SELECT count(*), avg(").append(lonField).append("), avg(").append(latField);
+        sB.append("), min(").append(lonField).append("), max(").append(lonField);
+        sB.append("), min(").append(latField).append("), max(").append(latField);
+        // the columns of an arbitrary row of the cell, used only for cells of one image
+        sB.append("), ").append(ImageTableFields.COLUMN_IMAGEDATA_ID.getFieldName());
+        sB.append(", ").append(ImageTableFields.COLUMN_TEXT.getFieldName());
+        sB.append(" FROM ").append(TABLE_IMAGES);
+        sB.append(" WHERE (").append(lonField).append(" BETWEEN ? AND ?) AND (");
+        sB.append(latField).append(" BETWEEN ? AND ?)");
+        if (onlyStandalone) {
+            sB.append(" AND ").append(ImageTableFields.COLUMN_NOTE_ID.getFieldName()).append(" < 0");
+        }
+        sB.append(" GROUP BY cast((").append(lonField).append(" + 180) / ").append(cellWidth).append(" AS integer)");
+        sB.append(", cast((").append(latField).append(" + 90) / ").append(cellHeight).append(" AS integer)");
+        String[] whereArgs = new String[]{String.valueOf(nswe[2]), String.valueOf(nswe[3]), String.valueOf(nswe[1]), String.valueOf(nswe[0])};
+
+        List<OverlayItem> images = new ArrayList<>();
+        Cursor c = sqliteDatabase.rawQuery(sB.toString(), whereArgs);
+        c.moveToFirst();
+        while (!c.isAfterLast()) {
+            int count = c.getInt(0);
+            GeoPoint centroid = new GeoPoint(c.getDouble(2), c.getDouble(1));
+            if (count == 1) {
+                long imageDataId = c.getLong(7);
+                String text = c.getString(8);
+                images.add(new OverlayItem(centroid, text, imageDataId + "", marker));
+            } else {
+                Envelope bounds = new Envelope(c.getDouble(3), c.getDouble(4), c.getDouble(5), c.getDouble(6));
+                images.add(new ClusterOverlayItem(centroid, count, bounds));
+            }
+            c.moveToNext();
+        }
+        c.close();
+        return images;
+    }
+
 
 }
@@ -19,11 +19,14 @@ package eu.hydrologis.geopaparazzi.database;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 import org.mapsforge.android.maps.overlay.OverlayItem;
 import org.mapsforge.core.model.Coordinates;
 import org.mapsforge.core.model.GeoPoint;
@@ -34,21 +37,51 @@ import java.util.Date;
 import java.util.List;
 
 import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.forms.FormUtilities;
 import eu.geopaparazzi.library.util.LibraryConstants;
 import eu.geopaparazzi.library.util.PositionUtilities;
 import eu.geopaparazzi.library.util.TimeUtilities;
 import eu.hydrologis.geopaparazzi.GeopaparazziApplication;
+import eu.hydrologis.geopaparazzi.database.objects.ClusterOverlayItem;
+import eu.hydrologis.geopaparazzi.database.objects.ItemComparators;
 import eu.hydrologis.geopaparazzi.database.objects.Note;
 import eu.hydrologis.geopaparazzi.database.objects.NoteOverlayItem;
 
+import static eu.hydrologis.geopaparazzi.database.TableDescriptions.NotesFtsTableFields;
 import static eu.hydrologis.geopaparazzi.database.TableDescriptions.NotesTableFields;
 import static eu.hydrologis.geopaparazzi.database.TableDescriptions.TABLE_NOTES;
+import static eu.hydrologis.geopaparazzi.database.TableDescriptions.TABLE_NOTES_FTS;
 
 /**
  * @author Andrea Antonello (www.hydrologis.com)
  */
 @SuppressWarnings("nls")
 public class DaoNotes {
+    /**
+     * Notes in insertion order.
+     */
+    public static final int SORT_NONE = 0;
+    /**
+     * Notes sorted by text.
+     */
+    public static final int SORT_TEXT = 1;
+    /**
+     * Notes sorted by text, inverse.
+     */
+    public static final int SORT_TEXT_INVERSE = 2;
+    /**
+     * Notes sorted by distance from a point.
+     */
+    public static final int SORT_DISTANCE = 3;
+    /**
+     * Notes sorted by distance from a point, inverse.
+     */
+    public static final int SORT_DISTANCE_INVERSE = 4;
+
+    /**
+     * The database of which the full text index is known to exist.
+     */
+    private static SQLiteDatabase notesIndexDatabase;
 
     /**
      * Create the notes tables.
@@ -110,6 +143,9 @@ public class DaoNotes {
             sqliteDatabase.execSQL(CREATE_INDEX_NOTES_TS);
             sqliteDatabase.execSQL(CREATE_INDEX_NOTES_X_BY_Y);
             sqliteDatabase.execSQL(CREATE_INDEX_NOTES_ISDIRTY);
+            if (createNotesIndexTable(sqliteDatabase)) {
+                notesIndexDatabase = sqliteDatabase;
+            }
 
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
@@ -186,6 +222,9 @@ public class DaoNotes {
             values.put(NotesTableFields.COLUMN_STYLE.getFieldName(), style);
         values.put(NotesTableFields.COLUMN_ISDIRTY.getFieldName(), 1);
         long noteId = sqliteDatabase.insertOrThrow(TABLE_NOTES, null, values);
+        if (hasNotesIndex(sqliteDatabase)) {
+            indexNote(sqliteDatabase, noteId, text, description, form);
+        }
         return noteId;
     }
 
@@ -203,6 +242,9 @@ public class DaoNotes {
             String query = "delete from " + TABLE_NOTES + " where " + NotesTableFields.COLUMN_ID.getFieldName() + " = " + id;
             SQLiteStatement sqlUpdate = sqliteDatabase.compileStatement(query);
             sqlUpdate.execute();
+            if (hasNotesIndex(sqliteDatabase)) {
+                sqliteDatabase.delete(TABLE_NOTES_FTS, "docid = " + id, null);
+            }
 
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
@@ -226,6 +268,11 @@ public class DaoNotes {
             String query = "delete from " + TABLE_NOTES + " where " + NotesTableFields.COLUMN_DESCRIPTION.getFieldName() + " = " + LibraryConstants.OSM;
             SQLiteStatement sqlUpdate = sqliteDatabase.compileStatement(query);
             sqlUpdate.execute();
+            if (hasNotesIndex(sqliteDatabase)) {
+                // remove the index entries left without note
+                sqliteDatabase.delete(TABLE_NOTES_FTS, "docid not in (select " + NotesTableFields.COLUMN_ID.getFieldName() +
+                        " from " + TABLE_NOTES + ")", null);
+            }
 
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
@@ -256,8 +303,26 @@ public class DaoNotes {
         String[] whereArgs = null;
 
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        sqliteDatabase.beginTransaction();
+        try {
+            sqliteDatabase.update(TABLE_NOTES, updatedValues, where, whereArgs);
+
+            if (hasNotesIndex(sqliteDatabase)) {
+                ContentValues indexValues = new ContentValues();
+                indexValues.put(NotesFtsTableFields.COLUMN_FORMVALUES.getFieldName(), getFormValues(jsonStr));
+                if (noteText != null && noteText.length() > 0) {
+                    indexValues.put(NotesFtsTableFields.COLUMN_TEXT.getFieldName(), noteText);
+                }
+                sqliteDatabase.update(TABLE_NOTES_FTS, indexValues, "docid = " + id, null);
+            }
 
-        sqliteDatabase.update(TABLE_NOTES, updatedValues, where, whereArgs);
+            sqliteDatabase.setTransactionSuccessful();
+        } catch (Exception e) {
+            GPLog.error("DAONOTES", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
     }
 
     /**
@@ -326,6 +391,109 @@ public class DaoNotes {
         return notes;
     }
 
+    /**
+     * Get a page of the notes that match a filter.
+     * <p/>
+     * <p>The filter is looked up in the full text index of the note texts, descriptions and
+     * form values, each of its words matching the words that start with it. Without the index,
+     * the filter is searched in the note texts.</p>
+     * <p/>
+     * <p>The form of the notes is not read, use {@link #getNoteById(long)} to get it.</p>
+     *
+     * @param filter   the filter or <code>null</code> to get all the notes.
+     * @param sortMode the sort order, one of the <code>SORT_*</code> constants.
+     * @param lon      the longitude of the point to sort by distance from.
+     * @param lat      the latitude of the point to sort by distance from.
+     * @param offset   the number of notes to skip.
+     * @param limit    the maximum number of notes to return.
+     * @return the notes of the page.
+     * @throws IOException if something goes wrong.
+     */
+    public static List<Note> getNotesPage(String filter, int sortMode, double lon, double lat, int offset, int limit)
+            throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+
+        String idField = NotesTableFields.COLUMN_ID.getFieldName();
+        String textField = NotesTableFields.COLUMN_TEXT.getFieldName();
+        StringBuilder sB = new StringBuilder();
+        sB.append("SELECT ");
+        sB.append(idField).append(", ");
+        sB.append(NotesTableFields.COLUMN_LON.getFieldName()).append(", ");
+        sB.append(NotesTableFields.COLUMN_LAT.getFieldName()).append(", ");
+        sB.append(NotesTableFields.COLUMN_ALTIM.getFieldName()).append(", ");
+        sB.append(textField).append(", ");
+        sB.append(NotesTableFields.COLUMN_TS.getFieldName()).append(", ");
+        sB.append(NotesTableFields.COLUMN_DESCRIPTION.getFieldName()).append(", ");
+        sB.append(NotesTableFields.COLUMN_STYLE.getFieldName()).append(", ");
+        sB.append(NotesTableFields.COLUMN_ISDIRTY.getFieldName());
+        sB.append(" FROM ").append(TABLE_NOTES);
+
+        String[] args = null;
+        if (filter != null && filter.trim().length() > 0) {
+            if (checkNotesIndex(sqliteDatabase)) {
+                String matchQuery = toMatchQuery(filter);
+                if (matchQuery != null) {
+                    sB.append(" WHERE ").append(idField).append(" IN (SELECT docid FROM ");
+                    sB.append(TABLE_NOTES_FTS).append(" WHERE ").append(TABLE_NOTES_FTS).append(" MATCH ?)");
+                    args = new String[]{matchQuery};
+                }
+            } else {
+                sB.append(" WHERE ").append(textField).append(" LIKE ? ESCAPE '\\'");
+                args = new String[]{"%" + escapeLike(filter) + "%"};
+            }
+        }
+
+        // the same planar distance as ItemComparators.NotesDistanceFromPointComparator, which sorts the images
+        double lonScale = ItemComparators.NotesDistanceFromPointComparator.getLongitudeScale(lat);
+        String distance = "((" + NotesTableFields.COLUMN_LON.getFieldName() + " - " + lon + ") * (" +
+                NotesTableFields.COLUMN_LON.getFieldName() + " - " + lon + ") * " + (lonScale * lonScale) + " + (" +
+                NotesTableFields.COLUMN_LAT.getFieldName() + " - " + lat + ") * (" +
+                NotesTableFields.COLUMN_LAT.getFieldName() + " - " + lat + "))";
+        // the id is always last, so that the pages don't overlap
+        switch (sortMode) {
+            case SORT_TEXT:
+                sB.append(" ORDER BY ").append(textField).append(", ").append(idField);
+                break;
+            case SORT_TEXT_INVERSE:
+                sB.append(" ORDER BY ").append(textField).append(" DESC, ").append(idField).append(" DESC");
+                break;
+            case SORT_DISTANCE:
+                sB.append(" ORDER BY ").append(distance).append(", ").append(idField);
+                break;
+            case SORT_DISTANCE_INVERSE:
+                sB.append(" ORDER BY ").append(distance).append(" DESC, ").append(idField).append(" DESC");
+                break;
+            default:
+                sB.append(" ORDER BY ").append(idField);
+                break;
+        }
+        sB.append(" LIMIT ").append(limit).append(" OFFSET ").append(offset);
+
+        List<Note> notes = new ArrayList<>();
+        try (Cursor c = sqliteDatabase.rawQuery(sB.toString(), args)) {
+            c.moveToFirst();
+            while (!c.isAfterLast()) {
+                long id = c.getLong(0);
+                double noteLon = c.getDouble(1);
+                double noteLat = c.getDouble(2);
+                double altim = c.getDouble(3);
+                String text = c.getString(4);
+                long timestamp = c.getLong(5);
+                String description = c.getString(6);
+                String style = c.getString(7);
+                int isDirty = c.getInt(8);
+
+                Note note = new Note(id, text, description, timestamp, noteLon, noteLat, altim, null, isDirty, style);
+                notes.add(note);
+                c.moveToNext();
+            }
+        } catch (SQLException e) {
+            GPLog.error("DAONOTES", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        }
+        return notes;
+    }
+
     public static Note getNoteById(long checkId) throws IOException {
 
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
@@ -385,6 +553,18 @@ public class DaoNotes {
      * @throws IOException if something goes wrong.
      */
     public static List<OverlayItem> getNoteOverlaysList(Drawable marker) throws IOException {
+        return getNoteOverlaysList(marker, null);
+    }
+
+    /**
+     * Get the list of notes inside some bounds from the db as OverlayItems.
+     *
+     * @param marker the marker to use.
+     * @param nswe   the bounds as [n, s, w, e], or <code>null</code> to get all the notes.
+     * @return list of notes.
+     * @throws IOException if something goes wrong.
+     */
+    public static List<OverlayItem> getNoteOverlaysList(Drawable marker, float[] nswe) throws IOException {
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
         List<OverlayItem> notesList = new ArrayList<>();
         String asColumnsToReturn[] = { //
@@ -394,7 +574,14 @@ public class DaoNotes {
                 NotesTableFields.COLUMN_TEXT.getFieldName() //
         };// ,
         String strSortOrder = "_id ASC";
-        Cursor c = sqliteDatabase.query(TABLE_NOTES, asColumnsToReturn, null, null, null, null, strSortOrder);
+        String whereString = null;
+        String[] whereArgs = null;
+        if (nswe != null) {
+            whereString = "(" + NotesTableFields.COLUMN_LON.getFieldName() + " BETWEEN ? AND ?) AND (" +
+                    NotesTableFields.COLUMN_LAT.getFieldName() + " BETWEEN ? AND ?)";
+            whereArgs = new String[]{String.valueOf(nswe[2]), String.valueOf(nswe[3]), String.valueOf(nswe[1]), String.valueOf(nswe[0])};
+        }
+        Cursor c = sqliteDatabase.query(TABLE_NOTES, asColumnsToReturn, whereString, whereArgs, null, null, strSortOrder);
         c.moveToFirst();
         while (!c.isAfterLast()) {
             double lon = c.getDouble(0);
@@ -402,6 +589,7 @@ public class DaoNotes {
 
 
             if(!PositionUtilities.isValidCoordinateLL(lon, lat)){
+                c.moveToNext();
                 continue;
             }
 
@@ -422,5 +610,194 @@ public class DaoNotes {
         return notesList;
     }
 
+    /**
+     * Get the notes inside some bounds from the db, grouped in the cells of a lon/lat grid.
+     * <p/>
+     * <p>The grouping is done by the database: the notes of a cell that holds more than one
+     * are returned as a single {@link ClusterOverlayItem} placed at their centroid.</p>
+     *
+     * @param marker     the marker to use.
+     * @param nswe       the bounds as [n, s, w, e].
+     * @param cellWidth  the width of the grid cells in degrees.
+     * @param cellHeight the height of the grid cells in degrees.
+     * @return list of notes and clusters.
+     * @throws IOException if something goes wrong.
+     */
+    public static List<OverlayItem> getNoteOverlayClusters(Drawable marker, float[] nswe, double cellWidth, double cellHeight) throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        String lonField = NotesTableFields.COLUMN_LON.getFieldName();
+        String latField = NotesTableFields.COLUMN_LAT.getFieldName();
+        StringBuilder sB = new StringBuilder();
+        sB.append("SELECT count(*), avg(").append(lonField).append("), avg(").append(latField);
+        sB.append("), min(").append(lonField).append("), max(").append(lonField);
+        sB.append("), min(").append(latField).append("), max(").append(latField);
+        // the columns of an arbitrary row of the cell, used only for cells of one note
+        sB.append("), ").append(NotesTableFields.COLUMN_TS.getFieldName());
+        sB.append(", ").append(NotesTableFields.COLUMN_TEXT.getFieldName());
+        sB.append(" FROM ").append(TABLE_NOTES);
+        sB.append(" WHERE (").append(lonField).append(" BETWEEN ? AND ?) AND (");
+        sB.append(latField).append(" BETWEEN ? AND ?)");
+        sB.append(" GROUP BY cast((").append(lonField).append(" + 180) / ").append(cellWidth).append(" AS integer)");
+        sB.append(", cast((").append(latField).append(" + 90) / ").append(cellHeight).append(" AS integer)");
+        String[] whereArgs = new String[]{String.valueOf(nswe[2]), String.valueOf(nswe[3]), String.valueOf(nswe[1]), String.valueOf(nswe[0])};
+
+        List<OverlayItem> notesList = new ArrayList<>();
+        Cursor c = sqliteDatabase.rawQuery(sB.toString(), whereArgs);
+        c.moveToFirst();
+        while (!c.isAfterLast()) {
+            int count = c.getInt(0);
+            GeoPoint centroid = new GeoPoint(c.getDouble(2), c.getDouble(1));
+            if (count == 1) {
+                long date = c.getLong(7);
+                String text = c.getString(8);
+
+                StringBuilder description = new StringBuilder();
+                description.append(text);
+                description.append("\n\n");
+                description.append(TimeUtilities.INSTANCE.TIME_FORMATTER_LOCAL.format(new Date(date)));
+                notesList.add(new NoteOverlayItem(centroid, text, description.toString(), marker));
+            } else {
+                Envelope bounds = new Envelope(c.getDouble(3), c.getDouble(4), c.getDouble(5), c.getDouble(6));
+                notesList.add(new ClusterOverlayItem(centroid, count, bounds));
+            }
+            c.moveToNext();
+        }
+        c.close();
+        return notesList;
+    }
+
+    /**
+     * Create the full text index of the notes, if it doesn't exist yet.
+     *
+     * @param sqliteDatabase the database to use.
+     * @return <code>false</code> if the sqlite build doesn't support full text search.
+     */
+    private static boolean createNotesIndexTable(SQLiteDatabase sqliteDatabase) {
+        StringBuilder sB = new StringBuilder();
+        sB.append("CREATE VIRTUAL TABLE IF NOT EXISTS ");
+        sB.append(TABLE_NOTES_FTS);
+        sB.append(" USING fts4(");
+        sB.append(NotesFtsTableFields.COLUMN_TEXT.getFieldName()).append(", ");
+        sB.append(NotesFtsTableFields.COLUMN_DESCRIPTION.getFieldName()).append(", ");
+        sB.append(NotesFtsTableFields.COLUMN_FORMVALUES.getFieldName());
+        String CREATE_TABLE_NOTES_FTS = sB.toString();
+
+        try {
+            // the unicode tokenizer also folds the case of non ascii letters
+            sqliteDatabase.execSQL(CREATE_TABLE_NOTES_FTS + ", tokenize=unicode61);");
+            return true;
+        } catch (SQLException e) {
+            if (GPLog.LOG_HEAVY)
+                Log.i("DAONOTES", "No unicode61 tokenizer, using the simple one.");
+        }
+        try {
+            sqliteDatabase.execSQL(CREATE_TABLE_NOTES_FTS + ");");
+            return true;
+        } catch (SQLException e) {
+            GPLog.error("DAONOTES", "No full text search support, notes are filtered by their text only.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Make sure that the full text index of the notes exists and covers all the notes.
+     * <p/>
+     * <p>Projects created before the index have it built at the first use.</p>
+     *
+     * @return <code>false</code> if the index is not available.
+     */
+    private static synchronized boolean checkNotesIndex(SQLiteDatabase sqliteDatabase) {
+        if (hasNotesIndex(sqliteDatabase)) {
+            return true;
+        }
+        sqliteDatabase.beginTransaction();
+        try {
+            if (!createNotesIndexTable(sqliteDatabase)) {
+                return false;
+            }
+            String query = "select " + //
+                    NotesTableFields.COLUMN_ID.getFieldName() + ", " + //
+                    NotesTableFields.COLUMN_TEXT.getFieldName() + ", " + //
+                    NotesTableFields.COLUMN_DESCRIPTION.getFieldName() + ", " + //
+                    NotesTableFields.COLUMN_FORM.getFieldName() + //
+                    " from " + TABLE_NOTES;
+            try (Cursor c = sqliteDatabase.rawQuery(query, null)) {
+                c.moveToFirst();
+                while (!c.isAfterLast()) {
+                    indexNote(sqliteDatabase, c.getLong(0), c.getString(1), c.getString(2), c.getString(3));
+                    c.moveToNext();
+                }
+            }
+            sqliteDatabase.setTransactionSuccessful();
+        } catch (Exception e) {
+            GPLog.error("DAONOTES", e.getLocalizedMessage(), e);
+            return false;
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+        notesIndexDatabase = sqliteDatabase;
+        return true;
+    }
+
+    private static boolean hasNotesIndex(SQLiteDatabase sqliteDatabase) {
+        if (notesIndexDatabase == sqliteDatabase) {
+            return true;
+        }
+        // the index is built in one transaction, if it is there it is complete
+        String query = "select 1 from sqlite_master where type='table' and name='" + TABLE_NOTES_FTS + "'";
+        try (Cursor c = sqliteDatabase.rawQuery(query, null)) {
+            if (c.moveToFirst()) {
+                notesIndexDatabase = sqliteDatabase;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void indexNote(SQLiteDatabase sqliteDatabase, long noteId, String text, String description, String form) {
+        ContentValues values = new ContentValues();
+        values.put("docid", noteId);
+        values.put(NotesFtsTableFields.COLUMN_TEXT.getFieldName(), text);
+        values.put(NotesFtsTableFields.COLUMN_DESCRIPTION.getFieldName(), description);
+        values.put(NotesFtsTableFields.COLUMN_FORMVALUES.getFieldName(), getFormValues(form));
+        sqliteDatabase.insertOrThrow(TABLE_NOTES_FTS, null, values);
+    }
+
+    private static String getFormValues(String form) {
+        if (form == null || form.length() == 0) {
+            return "";
+        }
+        try {
+            return FormUtilities.formValuesToText(form);
+        } catch (Exception e) {
+            GPLog.error("DAONOTES", "Unable to read the form values of a note.", e);
+            return "";
+        }
+    }
+
+    /**
+     * @return the full text query that matches the words starting with the words of the filter,
+     * or <code>null</code> if the filter has no words.
+     */
+    static String toMatchQuery(String filter) {
+        StringBuilder sB = new StringBuilder();
+        // lowercase, so that no word is taken as an operator
+        for (String word : filter.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() > 0) {
+                sB.append(word).append("* ");
+            }
+        }
+        if (sB.length() == 0) {
+            return null;
+        }
+        return sB.toString().trim();
+    }
+
+    /**
+     * @return the filter with the LIKE wildcards escaped by a backslash, so that they match themselves.
+     */
+    static String escapeLike(String filter) {
+        return filter.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
 
 }
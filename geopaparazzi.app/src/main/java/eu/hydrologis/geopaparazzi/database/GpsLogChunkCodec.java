@@ -0,0 +1,152 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.database;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes chunks of gps log points into compact blobs.
+ * <p/>
+ * <p>Each column is stored in turn: longitudes and latitudes as fixed point values with
+ * 7 decimals, elevations in centimeters and timestamps in milliseconds. Every value is
+ * written as the difference from the previous one of the same column, zigzag encoded
+ * into a variable length integer, so that the small steps of a track take one or
+ * two bytes per value.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpsLogChunkCodec {
+    /**
+     * The number of points stored in a chunk.
+     */
+    public static final int CHUNK_SIZE = 1024;
+
+    private static final double COORDINATE_SCALE = 1E7;
+    private static final double ELEVATION_SCALE = 100.0;
+
+    private GpsLogChunkCodec() {
+    }
+
+    /**
+     * Encode a range of points.
+     *
+     * @param lons       the longitudes.
+     * @param lats       the latitudes.
+     * @param altims     the elevations.
+     * @param timestamps the timestamps.
+     * @param from       the index of the first point to encode.
+     * @param count      the number of points to encode.
+     * @return the encoded chunk.
+     */
+    public static byte[] encode(double[] lons, double[] lats, double[] altims, long[] timestamps, int from, int count) {
+        // worst case of 10 bytes per value
+        byte[] buffer = new byte[count * 4 * 10];
+        int position = 0;
+        long previous = 0;
+        for (int i = from; i < from + count; i++) {
+            long value = Math.round(lons[i] * COORDINATE_SCALE);
+            position = writeVarLong(buffer, position, value - previous);
+            previous = value;
+        }
+        previous = 0;
+        for (int i = from; i < from + count; i++) {
+            long value = Math.round(lats[i] * COORDINATE_SCALE);
+            position = writeVarLong(buffer, position, value - previous);
+            previous = value;
+        }
+        previous = 0;
+        for (int i = from; i < from + count; i++) {
+            long value = Math.round(altims[i] * ELEVATION_SCALE);
+            position = writeVarLong(buffer, position, value - previous);
+            previous = value;
+        }
+        previous = 0;
+        for (int i = from; i < from + count; i++) {
+            position = writeVarLong(buffer, position, timestamps[i] - previous);
+            previous = timestamps[i];
+        }
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * Decode a chunk into the given arrays.
+     *
+     * @param chunk      the encoded chunk.
+     * @param count      the number of points in the chunk.
+     * @param lons       the array to put the longitudes in.
+     * @param lats       the array to put the latitudes in.
+     * @param altims     the array to put the elevations in.
+     * @param timestamps the array to put the timestamps in.
+     * @param offset     the index of the arrays at which to put the first point.
+     * @throws IOException if the chunk is corrupted.
+     */
+    public static void decode(byte[] chunk, int count, double[] lons, double[] lats, double[] altims, long[] timestamps,
+                              int offset) throws IOException {
+        int[] position = new int[]{0};
+        long value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            value += readVarLong(chunk, position);
+            lons[i] = value / COORDINATE_SCALE;
+        }
+        value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            value += readVarLong(chunk, position);
+            lats[i] = value / COORDINATE_SCALE;
+        }
+        value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            value += readVarLong(chunk, position);
+            altims[i] = value / ELEVATION_SCALE;
+        }
+        value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            value += readVarLong(chunk, position);
+            timestamps[i] = value;
+        }
+    }
+
+    private static int writeVarLong(byte[] buffer, int position, long value) {
+        // zigzag, so that small negative values stay small
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        buffer[position++] = (byte) zigzag;
+        return position;
+    }
+
+    private static long readVarLong(byte[] buffer, int[] position) throws IOException {
+        long zigzag = 0;
+        int shift = 0;
+        while (true) {
+            if (position[0] >= buffer.length || shift > 63) {
+                throw new IOException("Corrupted gps log chunk.");
+            }
+            byte b = buffer[position[0]++];
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.geopaparazzi.library.util.PositionUtilities;
+
+/**
+ * A segment of a gps log in the spatial index: the time range and bounds of up to
+ * {@link DaoGpsLog#SEGMENT_SIZE} consecutive points.
+ * <p/>
+ * <p>Consecutive segments share their boundary point, so that the lines drawn from
+ * the segments of a log are connected.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogSegment {
+    /**
+     * The id of the segment in the database, -1 if it is not stored yet.
+     */
+    public long id = -1;
+    public long startTs;
+    public long endTs;
+    public double endLon;
+    public double endLat;
+    public int count;
+    public double minLon = Double.POSITIVE_INFINITY;
+    public double maxLon = Double.NEGATIVE_INFINITY;
+    public double minLat = Double.POSITIVE_INFINITY;
+    public double maxLat = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Add points at the end of a log, filling up its last segment first.
+     * <p/>
+     * <p>Points with invalid coordinates are skipped.</p>
+     *
+     * @param lastSegment the last segment of the log, <code>null</code> if the log has none yet.
+     * @param lons        the longitudes.
+     * @param lats        the latitudes.
+     * @param timestamps  the timestamps.
+     * @param count       the number of points to take from the arrays.
+     * @param segmentSize the max number of points of a segment.
+     * @return the segments to store, in time order: the given last segment if it changed
+     * and the new ones.
+     */
+    public static List<GpsLogSegment> append(GpsLogSegment lastSegment, double[] lons, double[] lats, long[] timestamps,
+                                             int count, int segmentSize) {
+        List<GpsLogSegment> segments = new ArrayList<>();
+        GpsLogSegment segment = lastSegment;
+        for (int i = 0; i < count; i++) {
+            if (!PositionUtilities.isValidCoordinateLL(lons[i], lats[i])) {
+                continue;
+            }
+            if (segment == null) {
+                segment = new GpsLogSegment();
+                segment.startTs = timestamps[i];
+                segments.add(segment);
+            } else if (segment.count >= segmentSize) {
+                // the new segment starts from the last point of the previous
+                GpsLogSegment previous = segment;
+                segment = new GpsLogSegment();
+                segment.startTs = previous.endTs;
+                segment.add(previous.endLon, previous.endLat, previous.endTs);
+                segments.add(segment);
+            } else if (segments.isEmpty()) {
+                segments.add(segment);
+            }
+            segment.add(lons[i], lats[i], timestamps[i]);
+        }
+        return segments;
+    }
+
+    private void add(double lon, double lat, long ts) {
+        minLon = Math.min(minLon, lon);
+        maxLon = Math.max(maxLon, lon);
+        minLat = Math.min(minLat, lat);
+        maxLat = Math.max(maxLat, lat);
+        endTs = ts;
+        endLon = lon;
+        endLat = lat;
+        count++;
+    }
+}
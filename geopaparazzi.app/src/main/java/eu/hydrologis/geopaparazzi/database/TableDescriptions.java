@@ -32,6 +32,10 @@ public class TableDescriptions {
      * The notes table name.
      */
     public static final String TABLE_NOTES = "notes";
+    /**
+     * The notes full text index name.
+     */
+    public static final String TABLE_NOTES_FTS = "notesfts";
     /**
      * Image table name.
      */
@@ -52,6 +56,14 @@ public class TableDescriptions {
      * gpslog properties table name.
      */
     public static final String TABLE_GPSLOG_PROPERTIES = "gpslogsproperties";
+    /**
+     * gpslog compacted data table name.
+     */
+    public static final String TABLE_GPSLOG_CHUNKS = "gpslogschunks";
+    /**
+     * gpslog segments table name.
+     */
+    public static final String TABLE_GPSLOG_SEGMENTS = "gpslogssegments";
 
     public enum MetadataTableFields {
         /**
@@ -196,6 +208,37 @@ public class TableDescriptions {
         }
     }
 
+    public static enum NotesFtsTableFields {
+        /**
+         * Simple text of the note.
+         */
+        COLUMN_TEXT("text", String.class),
+        /**
+         * Description of the note.
+         */
+        COLUMN_DESCRIPTION("description", String.class),
+        /**
+         * The values of the note form, one per line.
+         */
+        COLUMN_FORMVALUES("formvalues", String.class);
+
+        private String fieldName;
+        private Class fieldClass;
+
+        NotesFtsTableFields(String fieldName, Class fieldClass) {
+            this.fieldName = fieldName;
+            this.fieldClass = fieldClass;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public Class getFieldClass() {
+            return fieldClass;
+        }
+    }
+
     public static enum ImageTableFields {
         /**
          * id of the note, Generated by the db.
@@ -411,4 +454,130 @@ public class TableDescriptions {
             return fieldClass;
         }
     }
+
+    public static enum GpsLogsChunksTableFields {
+        /**
+         * id of the chunk, Generated by the db.
+         */
+        COLUMN_ID("_id", Long.class),
+        /**
+         * the id of the parent gps log.
+         */
+        COLUMN_LOGID("logid", Long.class),
+        /**
+         * the position of the chunk in the log.
+         */
+        COLUMN_CHUNK_INDEX("chunkindex", Integer.class),
+        /**
+         * the number of points in the chunk.
+         */
+        COLUMN_CHUNK_COUNT("pointscount", Integer.class),
+        /**
+         * the min longitude of the chunk points.
+         */
+        COLUMN_CHUNK_MINLON("minlon", Double.class),
+        /**
+         * the max longitude of the chunk points.
+         */
+        COLUMN_CHUNK_MAXLON("maxlon", Double.class),
+        /**
+         * the min latitude of the chunk points.
+         */
+        COLUMN_CHUNK_MINLAT("minlat", Double.class),
+        /**
+         * the max latitude of the chunk points.
+         */
+        COLUMN_CHUNK_MAXLAT("maxlat", Double.class),
+        /**
+         * the UTC timestamp of the first point.
+         */
+        COLUMN_CHUNK_STARTTS("startts", Long.class),
+        /**
+         * the UTC timestamp of the last point.
+         */
+        COLUMN_CHUNK_ENDTS("endts", Long.class),
+        /**
+         * the encoded points.
+         */
+        COLUMN_CHUNK_DATA("data", byte[].class);
+
+        private String fieldName;
+        private Class fieldClass;
+
+        GpsLogsChunksTableFields(String fieldName, Class fieldClass) {
+            this.fieldName = fieldName;
+            this.fieldClass = fieldClass;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public Class getFieldClass() {
+            return fieldClass;
+        }
+    }
+
+    public static enum GpsLogsSegmentsTableFields {
+        /**
+         * id of the segment, Generated by the db.
+         */
+        COLUMN_ID("_id", Long.class),
+        /**
+         * the id of the parent gps log.
+         */
+        COLUMN_LOGID("logid", Long.class),
+        /**
+         * the UTC timestamp of the first point.
+         */
+        COLUMN_SEGMENT_STARTTS("startts", Long.class),
+        /**
+         * the UTC timestamp of the last point.
+         */
+        COLUMN_SEGMENT_ENDTS("endts", Long.class),
+        /**
+         * the longitude of the last point.
+         */
+        COLUMN_SEGMENT_ENDLON("endlon", Double.class),
+        /**
+         * the latitude of the last point.
+         */
+        COLUMN_SEGMENT_ENDLAT("endlat", Double.class),
+        /**
+         * the number of points in the segment.
+         */
+        COLUMN_SEGMENT_COUNT("pointscount", Integer.class),
+        /**
+         * the min longitude of the segment points.
+         */
+        COLUMN_SEGMENT_MINLON("minlon", Double.class),
+        /**
+         * the max longitude of the segment points.
+         */
+        COLUMN_SEGMENT_MAXLON("maxlon", Double.class),
+        /**
+         * the min latitude of the segment points.
+         */
+        COLUMN_SEGMENT_MINLAT("minlat", Double.class),
+        /**
+         * the max latitude of the segment points.
+         */
+        COLUMN_SEGMENT_MAXLAT("maxlat", Double.class);
+
+        private String fieldName;
+        private Class fieldClass;
+
+        GpsLogsSegmentsTableFields(String fieldName, Class fieldClass) {
+            this.fieldName = fieldName;
+            this.fieldClass = fieldClass;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public Class getFieldClass() {
+            return fieldClass;
+        }
+    }
 }
@@ -0,0 +1,63 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.database.objects;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import org.mapsforge.android.maps.overlay.OverlayItem;
+import org.mapsforge.core.model.GeoPoint;
+
+/**
+ * An item standing for several items that are too close to be drawn one by one.
+ * <p/>
+ * <p>It has no marker, the overlay draws it as a circle with the number of items.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ClusterOverlayItem extends OverlayItem {
+
+    private final int count;
+    private final Envelope bounds;
+
+    /**
+     * Constructor.
+     *
+     * @param geoPoint the position of the cluster.
+     * @param count    the number of clustered items.
+     * @param bounds   the bounds of the clustered items.
+     */
+    public ClusterOverlayItem(GeoPoint geoPoint, int count, Envelope bounds) {
+        super(geoPoint, String.valueOf(count), null, null);
+        this.count = count;
+        this.bounds = bounds;
+    }
+
+    /**
+     * @return the number of clustered items.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the bounds of the clustered items.
+     */
+    public Envelope getBounds() {
+        return bounds;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.database.objects;
+
+/**
+ * The points of a gps log in primitive arrays, sorted by timestamp.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogPoints {
+    /**
+     * The number of points.
+     */
+    public final int size;
+    /**
+     * The longitudes.
+     */
+    public final double[] lons;
+    /**
+     * The latitudes.
+     */
+    public final double[] lats;
+    /**
+     * The elevations.
+     */
+    public final double[] altims;
+    /**
+     * The UTC timestamps.
+     */
+    public final long[] timestamps;
+
+    /**
+     * Constructor.
+     *
+     * @param size       the number of points.
+     * @param lons       the longitudes.
+     * @param lats       the latitudes.
+     * @param altims     the elevations.
+     * @param timestamps the timestamps.
+     */
+    public GpsLogPoints(int size, double[] lons, double[] lats, double[] altims, long[] timestamps) {
+        this.size = size;
+        this.lons = lons;
+        this.lats = lats;
+        this.altims = altims;
+        this.timestamps = timestamps;
+    }
+}
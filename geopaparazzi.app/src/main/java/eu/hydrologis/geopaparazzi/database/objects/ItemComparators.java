@@ -20,7 +20,6 @@ package eu.hydrologis.geopaparazzi.database.objects;
 import java.util.Comparator;
 
 import eu.geopaparazzi.library.database.ANote;
-import eu.geopaparazzi.library.util.PointF3D;
 
 /**
  * {@link MapItem} comparators to sort them.
@@ -163,35 +162,50 @@ public class ItemComparators {
         }
     }
 
+    /**
+     * Sorts notes by distance from a point.
+     * <p/>
+     * <p>The distance is measured on a plane in which longitudes are scaled by the cosine of the
+     * latitude of the point, as in {@link eu.hydrologis.geopaparazzi.database.DaoNotes#getNotesPage},
+     * so that notes sorted here and notes sorted by the database are in the same order.</p>
+     */
     public static class NotesDistanceFromPointComparator implements Comparator<ANote> {
         private boolean doInverse = false;
-        private PointF3D p;
+        private final double lon;
+        private final double lat;
+        private final double lonScale;
 
         /**
-         *
+         * @param lon the longitude of the point.
+         * @param lat the latitude of the point.
          */
         public NotesDistanceFromPointComparator(double lon, double lat) {
-            p = new PointF3D((float) lon, (float) lat);
+            this(lon, lat, false);
         }
 
         /**
+         * @param lon       the longitude of the point.
+         * @param lat       the latitude of the point.
          * @param doInverse invert comparator.
          */
         public NotesDistanceFromPointComparator(double lon, double lat, boolean doInverse) {
-            p = new PointF3D((float) lon, (float) lat);
+            this.lon = lon;
+            this.lat = lat;
+            this.lonScale = getLongitudeScale(lat);
             this.doInverse = doInverse;
         }
 
-        public int compare(ANote m1, ANote m2) {
-            float lon1 = (float) m1.getLon();
-            float lat1 = (float) m1.getLat();
-            float lon2 = (float) m2.getLon();
-            float lat2 = (float) m2.getLat();
+        /**
+         * @param lat the latitude of the point.
+         * @return the factor by which the longitude differences are multiplied.
+         */
+        public static double getLongitudeScale(double lat) {
+            return Math.cos(Math.toRadians(lat));
+        }
 
-            PointF3D p1 = new PointF3D(lon1, lat1);
-            PointF3D p2 = new PointF3D(lon2, lat2);
-            float d1 = p.distance2d(p1);
-            float d2 = p.distance2d(p2);
+        public int compare(ANote m1, ANote m2) {
+            double d1 = getDistanceSquared(m1);
+            double d2 = getDistanceSquared(m2);
 
             if (d1 < d2) {
                 return doInverse ? 1 : -1;
@@ -201,6 +215,12 @@ public class ItemComparators {
                 return 0;
             }
         }
+
+        private double getDistanceSquared(ANote note) {
+            double deltaLon = (note.getLon() - lon) * lonScale;
+            double deltaLat = note.getLat() - lat;
+            return deltaLon * deltaLon + deltaLat * deltaLat;
+        }
     }
 
 }
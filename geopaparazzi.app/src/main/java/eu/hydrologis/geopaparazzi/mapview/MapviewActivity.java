@@ -75,7 +75,6 @@ import org.mapsforge.android.maps.Projection;
 import org.mapsforge.android.maps.mapgenerator.MapGenerator;
 import org.mapsforge.android.maps.overlay.Overlay;
 import org.mapsforge.android.maps.overlay.OverlayItem;
-import org.mapsforge.android.maps.overlay.OverlayWay;
 import org.mapsforge.core.model.GeoPoint;
 
 import java.io.File;
@@ -98,6 +97,7 @@ import eu.geopaparazzi.library.features.Tool;
 import eu.geopaparazzi.library.features.ToolGroup;
 import eu.geopaparazzi.library.forms.FormInfoHolder;
 import eu.geopaparazzi.library.gps.GpsLoggingStatus;
+import eu.geopaparazzi.library.gps.GpsService;
 import eu.geopaparazzi.library.gps.GpsServiceStatus;
 import eu.geopaparazzi.library.gps.GpsServiceUtilities;
 import eu.geopaparazzi.library.mixare.MixareHandler;
@@ -121,7 +121,6 @@ import eu.geopaparazzi.spatialite.database.spatial.core.tables.AbstractSpatialTa
 import eu.hydrologis.geopaparazzi.R;
 import eu.hydrologis.geopaparazzi.database.DaoBookmarks;
 import eu.hydrologis.geopaparazzi.database.DaoGpsLog;
-import eu.hydrologis.geopaparazzi.database.DaoImages;
 import eu.hydrologis.geopaparazzi.database.DaoNotes;
 import eu.hydrologis.geopaparazzi.database.objects.Bookmark;
 import eu.hydrologis.geopaparazzi.database.objects.Note;
@@ -136,6 +135,8 @@ import eu.hydrologis.geopaparazzi.maptools.tools.PolygonMainEditingToolGroup;
 import eu.hydrologis.geopaparazzi.maptools.tools.PolygonOnSelectionToolGroup;
 import eu.hydrologis.geopaparazzi.maptools.tools.TapMeasureTool;
 import eu.hydrologis.geopaparazzi.mapview.overlays.ArrayGeopaparazziOverlay;
+import eu.hydrologis.geopaparazzi.mapview.overlays.ViewportItemsSource;
+import eu.hydrologis.geopaparazzi.mapview.overlays.ViewportLogsSource;
 import eu.hydrologis.geopaparazzi.ui.activities.AddNotesActivity;
 import eu.hydrologis.geopaparazzi.ui.activities.BookmarksListActivity;
 import eu.hydrologis.geopaparazzi.ui.activities.GpsDataListActivity;
@@ -180,6 +181,11 @@ public class MapviewActivity extends MapActivity implements OnTouchListener, OnC
     private SharedPreferences mPeferences;
 
     private ArrayGeopaparazziOverlay mDataOverlay;
+    /*
+     * kept for the life of the activity, so that the simplified logs survive the refreshes
+     */
+    private final ViewportLogsSource mLogsSource = new ViewportLogsSource();
+    private ViewportItemsSource mItemsSource;
 
     private List<String> smsString;
     private Drawable notesDrawable;
@@ -472,6 +478,9 @@ public class MapviewActivity extends MapActivity implements OnTouchListener, OnC
 
         if (mDataOverlay != null)
             mDataOverlay.dispose();
+        mLogsSource.destroy();
+        if (mItemsSource != null)
+            mItemsSource.destroy();
 
         if (mMapView != null) {
             MapGenerator mapGenerator = mMapView.getMapGenerator();
@@ -488,35 +497,48 @@ public class MapviewActivity extends MapActivity implements OnTouchListener, OnC
             mDataOverlay.clearItems();
             mDataOverlay.clearWays();
 
-            List<OverlayWay> logOverlaysList = DaoGpsLog.getGpslogOverlays();
-            mDataOverlay.addWays(logOverlaysList);
+            // the gps logs are read for the viewport while drawing, only the changed logs are read again
+            mLogsSource.setOverlay(mDataOverlay);
+            mLogsSource.invalidate();
+            mDataOverlay.setViewportLogsSource(mLogsSource);
 
             boolean imagesVisible = mPeferences.getBoolean(Constants.PREFS_KEY_IMAGES_VISIBLE, true);
             boolean notesVisible = mPeferences.getBoolean(Constants.PREFS_KEY_NOTES_VISIBLE, true);
 
             /* images */
+            Drawable newImageMarker = null;
             if (imagesVisible) {
                 Drawable imageMarker = Compat.getDrawable(this, R.drawable.ic_images_48dp);
-                Drawable newImageMarker = ArrayGeopaparazziOverlay.boundCenter(imageMarker);
-                List<OverlayItem> imagesOverlaysList = DaoImages.getImagesOverlayList(newImageMarker, true);
-                mDataOverlay.addItems(imagesOverlaysList);
+                newImageMarker = ArrayGeopaparazziOverlay.boundCenter(imageMarker);
             }
 
             /* gps notes */
+            Drawable newNotesMarker = null;
             if (notesVisible) {
                 notesDrawable.setBounds(notesDrawable.getIntrinsicWidth(), notesDrawable.getIntrinsicHeight() / -2, notesDrawable.getIntrinsicWidth() / 2,
                         notesDrawable.getIntrinsicHeight() / 2);
-                Drawable newNotesMarker = ArrayGeopaparazziOverlay.boundCenter(notesDrawable);
-                List<OverlayItem> noteOverlaysList = DaoNotes.getNoteOverlaysList(newNotesMarker);
-                mDataOverlay.addItems(noteOverlaysList);
+                newNotesMarker = ArrayGeopaparazziOverlay.boundCenter(notesDrawable);
             }
 
+            // images and notes are read for the viewport while drawing, the source is created again each
+            // time the map gets back the focus, which is after notes and images are added or removed
+            if (mItemsSource != null)
+                mItemsSource.destroy();
+            mItemsSource = new ViewportItemsSource(mDataOverlay, newImageMarker, newNotesMarker);
+            mDataOverlay.setViewportItemsSource(mItemsSource);
+
             /* bookmarks */
             Drawable bookmarkMarker = Compat.getDrawable(this, R.drawable.ic_bookmarks_48dp);
             Drawable newBookmarkMarker = ArrayGeopaparazziOverlay.boundCenter(bookmarkMarker);
             List<OverlayItem> bookmarksOverlays = DaoBookmarks.getBookmarksOverlays(newBookmarkMarker);
             mDataOverlay.addItems(bookmarksOverlays);
 
+            // the log being recorded is read from the database only up to the last written points
+            double[][] pendingLogPositions = GpsService.getPendingLogPositions();
+            if (pendingLogPositions != null) {
+                mDataOverlay.setCurrentGpsLog(pendingLogPositions[0], pendingLogPositions[1]);
+            }
+
             // read last known gps position
             if (lastGpsPosition != null) {
                 GeoPoint geoPoint = toGeopoint((int) (lastGpsPosition[0] * E6), (int) (lastGpsPosition[1] * E6));
@@ -855,15 +877,21 @@ public class MapviewActivity extends MapActivity implements OnTouchListener, OnC
                             sqliteDatabase.beginTransaction();
                             try {
                                 long nowPlus10Secs = now;
-                                for (int i = 0; i < routePoints.length; i = i + 2) {
-                                    double lon = routePoints[i];
-                                    double lat = routePoints[i + 1];
-                                    double altim = -1;
+                                int size = routePoints.length / 2;
+                                double[] lons = new double[size];
+                                double[] lats = new double[size];
+                                double[] altims = new double[size];
+                                long[] timestamps = new long[size];
+                                for (int i = 0; i < size; i++) {
+                                    lons[i] = routePoints[2 * i];
+                                    lats[i] = routePoints[2 * i + 1];
+                                    altims[i] = -1;
 
                                     // dummy time increment
                                     nowPlus10Secs = nowPlus10Secs + 10000;
-                                    logDumper.addGpsLogDataPoint(sqliteDatabase, newLogId, lon, lat, altim, nowPlus10Secs);
+                                    timestamps[i] = nowPlus10Secs;
                                 }
+                                logDumper.addGpsLogDataPoints(sqliteDatabase, newLogId, lons, lats, altims, timestamps, size);
 
                                 sqliteDatabase.setTransactionSuccessful();
                             } finally {
@@ -55,7 +55,6 @@ import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import eu.geopaparazzi.library.core.ResourcesManager;
 import eu.geopaparazzi.library.core.maps.SpatialiteMap;
@@ -74,12 +73,15 @@ import eu.geopaparazzi.spatialite.database.spatial.SpatialiteSourcesManager;
 import eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers.SpatialiteDatabaseHandler;
 import eu.geopaparazzi.spatialite.database.spatial.core.enums.GeometryType;
 import eu.geopaparazzi.spatialite.database.spatial.core.geometry.GeometryIterator;
+import eu.geopaparazzi.spatialite.database.spatial.core.geometry.WKBShapeDecoder;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
+import eu.geopaparazzi.spatialite.database.spatial.util.SpatialiteLibraryConstants;
 import eu.geopaparazzi.library.style.Style;
 import eu.hydrologis.geopaparazzi.GeopaparazziApplication;
 import eu.hydrologis.geopaparazzi.R;
 import eu.hydrologis.geopaparazzi.database.DaoImages;
 import eu.hydrologis.geopaparazzi.database.DaoNotes;
+import eu.hydrologis.geopaparazzi.database.objects.ClusterOverlayItem;
 import eu.hydrologis.geopaparazzi.database.objects.Note;
 import eu.hydrologis.geopaparazzi.database.objects.NoteOverlayItem;
 import eu.hydrologis.geopaparazzi.mapview.MapviewActivity;
@@ -97,6 +99,19 @@ import jsqlite.Exception;
 public abstract class GeopaparazziOverlay extends Overlay {
 
     private static final String THREAD_NAME = "GeopaparazziOverlay"; //$NON-NLS-1$
+    /**
+     * Pixels around the canvas inside which the spatialite geometries are still drawn.
+     */
+    private static final int SPATIALITE_CLIP_BUFFER = 32;
+    /**
+     * Pixels around the canvas inside which items are still looked for, so that markers
+     * of items just outside are drawn.
+     */
+    private static final int ITEMS_BUFFER = 64;
+    /**
+     * Minimum radius in pixels of the circle of a cluster of items.
+     */
+    private static final int CLUSTER_RADIUS = 18;
 
     /**
      * Sets the bounds of the given drawable so that (0,0) is the center of the bottom row.
@@ -117,10 +132,16 @@ public abstract class GeopaparazziOverlay extends Overlay {
     private Paint defaultWayPaintFill;
     private Paint defaultWayPaintOutline;
     private Path wayPath;
+    private volatile ViewportLogsSource viewportLogsSource;
 
     private Point itemPosition;
-    private final List<Integer> visibleItems = new ArrayList<>();
-    private final List<Integer> visibleItemsRedraw = new ArrayList<>();
+    private final List<OverlayItem> visibleItems = new ArrayList<>();
+    private final List<OverlayItem> visibleItemsRedraw = new ArrayList<>();
+    private volatile ViewportItemsSource viewportItemsSource;
+    private Paint clusterFillPaint;
+    private Paint clusterOutlinePaint;
+    private Paint clusterTextPaint;
+    private float clusterRadius;
 
     /*
      * gps stuff
@@ -132,13 +153,12 @@ public abstract class GeopaparazziOverlay extends Overlay {
     private Drawable gpsMarker;
 
     private Path gpsPath;
-    private final OverlayWay gpslogOverlay;
     private Paint gpsTrackPaintYellow;
     private Paint gpsTrackPaintBlack;
     private Paint gpsOutline;
     private Paint gpsFill;
 
-    private List<GeoPoint> currentGpsLog = new ArrayList<>();
+    private final GpsTrackBuffer currentGpsLog = new GpsTrackBuffer();
     private Paint textPaint;
     private Paint textHaloPaint;
     private boolean isNotesTextVisible;
@@ -146,6 +166,12 @@ public abstract class GeopaparazziOverlay extends Overlay {
     private GpsServiceStatus gpsServiceStatus = GpsServiceStatus.GPS_OFF;
     private GpsLoggingStatus gpsLoggingStatus = GpsLoggingStatus.GPS_DATABASELOGGING_OFF;
 
+    /*
+     * if available, spatialite geometries are drawn from pre-rendered tiles
+     */
+    private SpatialiteTileRenderer spatialiteTileRenderer;
+    private final List<DisplayLabel> labelsDisplayList = new ArrayList<>();
+
     /**
      * Create a {@link OverlayWay} wrapped type.
      *
@@ -227,8 +253,27 @@ public abstract class GeopaparazziOverlay extends Overlay {
             textHaloPaint.setTextSize(notesTextSize);
         }
 
+        clusterRadius = isHighDensity ? CLUSTER_RADIUS * 2 : CLUSTER_RADIUS;
+        clusterFillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        clusterFillPaint.setStyle(Paint.Style.FILL);
+        clusterFillPaint.setColor(Color.rgb(255, 140, 0));
+        clusterFillPaint.setAlpha(200);
+        clusterOutlinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        clusterOutlinePaint.setStyle(Paint.Style.STROKE);
+        clusterOutlinePaint.setColor(Color.WHITE);
+        clusterOutlinePaint.setStrokeWidth(isHighDensity ? 4 : 2);
+        clusterTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        clusterTextPaint.setStyle(Paint.Style.FILL);
+        clusterTextPaint.setColor(Color.WHITE);
+        clusterTextPaint.setTextAlign(Align.CENTER);
+        clusterTextPaint.setFakeBoldText(true);
+        clusterTextPaint.setTextSize(clusterRadius);
+
+        if (preferences.getBoolean(SpatialiteLibraryConstants.PREFS_KEY_SPATIALITE_TILED_RENDERING, false)) {
+            spatialiteTileRenderer = new SpatialiteTileRenderer(this);
+        }
+
         gpsMarker = ItemizedOverlay.boundCenter(gpsMarker);
-        gpslogOverlay = new OverlayWay(null, gpsOutline);
 
         currentGpsLog.clear();
     }
@@ -261,6 +306,26 @@ public abstract class GeopaparazziOverlay extends Overlay {
      */
     public abstract int itemSize();
 
+    /**
+     * Set the source of the items that are read for the viewport at each redraw,
+     * in addition to the items of this overlay.
+     *
+     * @param viewportItemsSource the source or <code>null</code> to remove it.
+     */
+    public void setViewportItemsSource(ViewportItemsSource viewportItemsSource) {
+        this.viewportItemsSource = viewportItemsSource;
+    }
+
+    /**
+     * Set the source of the gps logs that are read for the viewport at each redraw,
+     * in addition to the ways of this overlay.
+     *
+     * @param viewportLogsSource the source or <code>null</code> to remove it.
+     */
+    public void setViewportLogsSource(ViewportLogsSource viewportLogsSource) {
+        this.viewportLogsSource = viewportLogsSource;
+    }
+
     private void drawWayPathOnCanvas(Canvas canvas, Point drawPosition, OverlayWay overlayWay) {
         // assemble the ways
         this.wayPath.reset();
@@ -320,18 +385,6 @@ public abstract class GeopaparazziOverlay extends Overlay {
         }
     }
 
-    private void assembleGpsWayPath(Point drawPosition, OverlayWay overlayWay) {
-        this.gpsPath.reset();
-        for (int i = 0; i < overlayWay.cachedWayPositions.length; ++i) {
-            this.gpsPath.moveTo(overlayWay.cachedWayPositions[i][0].x - drawPosition.x, overlayWay.cachedWayPositions[i][0].y
-                    - drawPosition.y);
-            for (int j = 1; j < overlayWay.cachedWayPositions[i].length; ++j) {
-                this.gpsPath.lineTo(overlayWay.cachedWayPositions[i][j].x - drawPosition.x, overlayWay.cachedWayPositions[i][j].y
-                        - drawPosition.y);
-            }
-        }
-    }
-
     private void drawGpsWayPathOnCanvas(Canvas canvas) {
         canvas.drawPath(this.gpsPath, this.gpsTrackPaintBlack);
         canvas.drawPath(this.gpsPath, this.gpsTrackPaintYellow);
@@ -342,6 +395,19 @@ public abstract class GeopaparazziOverlay extends Overlay {
         canvas.drawPath(this.path, gpsFill);
     }
 
+    /**
+     * Replace the positions of the gps log being recorded.
+     *
+     * @param lons the longitudes.
+     * @param lats the latitudes.
+     */
+    public void setCurrentGpsLog(double[] lons, double[] lats) {
+        currentGpsLog.clear();
+        for (int i = 0; i < lons.length; i++) {
+            currentGpsLog.add(lons[i], lats[i]);
+        }
+    }
+
     /**
      * Set the current gps position.
      *
@@ -356,7 +422,8 @@ public abstract class GeopaparazziOverlay extends Overlay {
         this.gpsServiceStatus = gpsServiceStatus;
         this.gpsLoggingStatus = gpsLoggingStatus;
         if (gpsLoggingStatus == GpsLoggingStatus.GPS_DATABASELOGGING_ON) {
-            currentGpsLog.add(position);
+            if (position != null)
+                currentGpsLog.add(position.getLongitude(), position.getLatitude());
         } else {
             currentGpsLog.clear();
         }
@@ -396,27 +463,20 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
             // get the current way
             OverlayWay overlayWay = createWay(wayIndex);
-            if (overlayWay == null) {
-                continue;
-            }
-
-            // make sure that the current way has way nodes
-            if (overlayWay.wayNodes == null || overlayWay.wayNodes.length == 0) {
-                continue;
-            }
+            drawWay(canvas, drawPosition, projection, drawZoomLevel, overlayWay);
+        }
 
-            // make sure that the cached way node positions are valid
-            if (drawZoomLevel != overlayWay.cachedZoomLevel) {
-                for (int i = 0; i < overlayWay.cachedWayPositions.length; ++i) {
-                    for (int j = 0; j < overlayWay.cachedWayPositions[i].length; ++j) {
-                        overlayWay.cachedWayPositions[i][j] = projection.toPoint(overlayWay.wayNodes[i][j],
-                                overlayWay.cachedWayPositions[i][j], drawZoomLevel);
-                    }
+        ViewportLogsSource logsSource = viewportLogsSource;
+        if (logsSource != null) {
+            Envelope logsEnvelope = getCanvasEnvelope(canvas, projection, 0);
+            List<OverlayWay> viewportWays = logsSource.getWays(logsEnvelope, drawZoomLevel);
+            for (OverlayWay overlayWay : viewportWays) {
+                if (stopDrawing()) {
+                    // stop working
+                    return;
                 }
-                overlayWay.cachedZoomLevel = drawZoomLevel;
+                drawWay(canvas, drawPosition, projection, drawZoomLevel, overlayWay);
             }
-
-            drawWayPathOnCanvas(canvas, drawPosition, overlayWay);
         }
 
         /*
@@ -438,81 +498,25 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
             // get the current item
             OverlayItem overlayItem = createItem(itemIndex);
-            if (overlayItem == null) {
-                continue;
-            }
-
-            // make sure that the current item has a position
-            if (overlayItem.getPoint() == null) {
-                continue;
-            }
-
-            // make sure that the cached item position is valid
-            if (drawZoomLevel != overlayItem.cachedZoomLevel) {
-                overlayItem.cachedMapPosition = projection.toPoint(overlayItem.getPoint(), overlayItem.cachedMapPosition,
-                        drawZoomLevel);
-                overlayItem.cachedZoomLevel = drawZoomLevel;
-            }
-
-            // calculate the relative item position on the canvas
-            this.itemPosition.x = overlayItem.cachedMapPosition.x - drawPosition.x;
-            this.itemPosition.y = overlayItem.cachedMapPosition.y - drawPosition.y;
-
-            // get the correct marker for the item
-            Drawable itemMarker = overlayItem.getMarker();
-            if (itemMarker == null) continue;
-
-            // get the position of the marker
-            Rect markerBounds = itemMarker.copyBounds();
-            int intrinsicWidth = itemMarker.getIntrinsicWidth() / 2;
-            int intrinsicHeight = itemMarker.getIntrinsicHeight() / 2;
-
-            // calculate the bounding box of the marker
-            int left;
-            int right;
-            int top;
-            int itemBottom;
-            if (overlayItem instanceof NoteOverlayItem) {
-                left = this.itemPosition.x - intrinsicWidth;
-                right = this.itemPosition.x + intrinsicWidth;
-                top = this.itemPosition.y - intrinsicHeight;
-                itemBottom = this.itemPosition.y + intrinsicHeight;
-            } else {
-                left = this.itemPosition.x + intrinsicWidth / 2 - intrinsicWidth;
-                right = this.itemPosition.x + intrinsicWidth / 2 + intrinsicWidth;
-                top = this.itemPosition.y + intrinsicHeight / 2 - intrinsicHeight;
-                itemBottom = this.itemPosition.y + intrinsicHeight / 2 + intrinsicHeight;
-            }
-
-            // check if the bounding box of the marker intersects with the canvas
-            if (right >= 0 && left <= canvasWidth && itemBottom >= 0 && top <= canvasHeight) {
-                // set the position of the marker
-                itemMarker.setBounds(left, top, right, itemBottom);
-
-                // draw the item marker on the canvas
-                itemMarker.draw(canvas);
-
-                // restore the position of the marker
-                itemMarker.setBounds(markerBounds);
-
-                // add the current item index to the list of visible items
-                this.visibleItemsRedraw.add(itemIndex);
+            drawItem(canvas, drawPosition, projection, drawZoomLevel, overlayItem);
+        }
 
-                if (isNotesTextVisible && overlayItem instanceof NoteOverlayItem) {
-                    String title = overlayItem.getTitle();
-                    float delta = markerBounds.width() / 4f;
-                    float x = right - delta;
-                    float y = top + delta;
-                    if (doNotesTextHalo)
-                        canvas.drawText(title, x, y, textHaloPaint);
-                    canvas.drawText(title, x, y, textPaint);
+        ViewportItemsSource itemsSource = viewportItemsSource;
+        if (itemsSource != null) {
+            Envelope itemsEnvelope = getCanvasEnvelope(canvas, projection, ITEMS_BUFFER);
+            List<OverlayItem> viewportItems = itemsSource.getItems(itemsEnvelope, drawZoomLevel);
+            for (OverlayItem overlayItem : viewportItems) {
+                if (stopDrawing()) {
+                    // stop working
+                    return;
                 }
+                drawItem(canvas, drawPosition, projection, drawZoomLevel, overlayItem);
             }
         }
 
         // swap the two visible item lists
         synchronized (visibleItems) {
-            List<Integer> visibleItemsTemp = new ArrayList<>(visibleItems);
+            List<OverlayItem> visibleItemsTemp = new ArrayList<>(visibleItems);
             visibleItems.clear();
             visibleItems.addAll(visibleItemsRedraw);
             visibleItemsRedraw.addAll(visibleItemsTemp);
@@ -523,28 +527,8 @@ public abstract class GeopaparazziOverlay extends Overlay {
          */
         if (gpsLoggingStatus == GpsLoggingStatus.GPS_DATABASELOGGING_ON) {
             // if a track is recorded, show it
-            synchronized (gpslogOverlay) {
-                int size = currentGpsLog.size();
-                if (size > 1) {
-                    GeoPoint[] geoPoints = currentGpsLog.toArray(new GeoPoint[currentGpsLog.size()]);
-                    gpslogOverlay.setWayNodes(new GeoPoint[][]{geoPoints});
-                    // make sure that the current way has way nodes
-                    if (gpslogOverlay.wayNodes != null && gpslogOverlay.wayNodes.length != 0) {
-                        // make sure that the cached way node positions are valid
-                        if (drawZoomLevel != gpslogOverlay.cachedZoomLevel) {
-                            for (int i = 0; i < gpslogOverlay.cachedWayPositions.length; ++i) {
-                                for (int j = 0; j < gpslogOverlay.cachedWayPositions[i].length; ++j) {
-                                    gpslogOverlay.cachedWayPositions[i][j] = projection.toPoint(gpslogOverlay.wayNodes[i][j],
-                                            gpslogOverlay.cachedWayPositions[i][j], drawZoomLevel);
-                                }
-                            }
-                            gpslogOverlay.cachedZoomLevel = drawZoomLevel;
-                        }
-
-                        assembleGpsWayPath(drawPosition, gpslogOverlay);
-                        drawGpsWayPathOnCanvas(canvas);
-                    }
-                }
+            if (currentGpsLog.assemblePath(gpsPath, drawZoomLevel, drawPosition, canvasWidth, canvasHeight)) {
+                drawGpsWayPathOnCanvas(canvas);
             }
         }
 
@@ -611,17 +595,136 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
     }
 
-    private void drawFromSpatialite(Canvas canvas, Point drawPosition, Projection projection, byte drawZoomLevel) {
-        /*
-         * draw from spatialite
-         */
+    private void drawWay(Canvas canvas, Point drawPosition, Projection projection, byte drawZoomLevel, OverlayWay overlayWay) {
+        if (overlayWay == null) {
+            return;
+        }
+
+        // make sure that the current way has way nodes
+        if (overlayWay.wayNodes == null || overlayWay.wayNodes.length == 0) {
+            return;
+        }
+
+        // make sure that the cached way node positions are valid
+        if (drawZoomLevel != overlayWay.cachedZoomLevel) {
+            for (int i = 0; i < overlayWay.cachedWayPositions.length; ++i) {
+                for (int j = 0; j < overlayWay.cachedWayPositions[i].length; ++j) {
+                    overlayWay.cachedWayPositions[i][j] = projection.toPoint(overlayWay.wayNodes[i][j],
+                            overlayWay.cachedWayPositions[i][j], drawZoomLevel);
+                }
+            }
+            overlayWay.cachedZoomLevel = drawZoomLevel;
+        }
+
+        drawWayPathOnCanvas(canvas, drawPosition, overlayWay);
+    }
+
+    private void drawItem(Canvas canvas, Point drawPosition, Projection projection, byte drawZoomLevel, OverlayItem overlayItem) {
+        if (overlayItem == null) {
+            return;
+        }
+
+        // make sure that the current item has a position
+        if (overlayItem.getPoint() == null) {
+            return;
+        }
+
+        // make sure that the cached item position is valid
+        if (drawZoomLevel != overlayItem.cachedZoomLevel) {
+            overlayItem.cachedMapPosition = projection.toPoint(overlayItem.getPoint(), overlayItem.cachedMapPosition,
+                    drawZoomLevel);
+            overlayItem.cachedZoomLevel = drawZoomLevel;
+        }
+
+        // calculate the relative item position on the canvas
+        this.itemPosition.x = overlayItem.cachedMapPosition.x - drawPosition.x;
+        this.itemPosition.y = overlayItem.cachedMapPosition.y - drawPosition.y;
+
+        int canvasHeight = canvas.getHeight();
+        int canvasWidth = canvas.getWidth();
+
+        if (overlayItem instanceof ClusterOverlayItem) {
+            String countText = overlayItem.getTitle();
+            float radius = Math.max(clusterRadius, clusterTextPaint.measureText(countText) / 2f + clusterRadius / 3f);
+            if (this.itemPosition.x + radius >= 0 && this.itemPosition.x - radius <= canvasWidth
+                    && this.itemPosition.y + radius >= 0 && this.itemPosition.y - radius <= canvasHeight) {
+                canvas.drawCircle(this.itemPosition.x, this.itemPosition.y, radius, clusterFillPaint);
+                canvas.drawCircle(this.itemPosition.x, this.itemPosition.y, radius, clusterOutlinePaint);
+                float textY = this.itemPosition.y - (clusterTextPaint.ascent() + clusterTextPaint.descent()) / 2f;
+                canvas.drawText(countText, this.itemPosition.x, textY, clusterTextPaint);
+                this.visibleItemsRedraw.add(overlayItem);
+            }
+            return;
+        }
+
+        // get the correct marker for the item
+        Drawable itemMarker = overlayItem.getMarker();
+        if (itemMarker == null) return;
+
+        // get the position of the marker
+        Rect markerBounds = itemMarker.copyBounds();
+        int intrinsicWidth = itemMarker.getIntrinsicWidth() / 2;
+        int intrinsicHeight = itemMarker.getIntrinsicHeight() / 2;
+
+        // calculate the bounding box of the marker
+        int left;
+        int right;
+        int top;
+        int itemBottom;
+        if (overlayItem instanceof NoteOverlayItem) {
+            left = this.itemPosition.x - intrinsicWidth;
+            right = this.itemPosition.x + intrinsicWidth;
+            top = this.itemPosition.y - intrinsicHeight;
+            itemBottom = this.itemPosition.y + intrinsicHeight;
+        } else {
+            left = this.itemPosition.x + intrinsicWidth / 2 - intrinsicWidth;
+            right = this.itemPosition.x + intrinsicWidth / 2 + intrinsicWidth;
+            top = this.itemPosition.y + intrinsicHeight / 2 - intrinsicHeight;
+            itemBottom = this.itemPosition.y + intrinsicHeight / 2 + intrinsicHeight;
+        }
+
+        // check if the bounding box of the marker intersects with the canvas
+        if (right >= 0 && left <= canvasWidth && itemBottom >= 0 && top <= canvasHeight) {
+            // set the position of the marker
+            itemMarker.setBounds(left, top, right, itemBottom);
+
+            // draw the item marker on the canvas
+            itemMarker.draw(canvas);
+
+            // restore the position of the marker
+            itemMarker.setBounds(markerBounds);
+
+            // add the current item to the list of visible items
+            this.visibleItemsRedraw.add(overlayItem);
+
+            if (isNotesTextVisible && overlayItem instanceof NoteOverlayItem) {
+                String title = overlayItem.getTitle();
+                float delta = markerBounds.width() / 4f;
+                float x = right - delta;
+                float y = top + delta;
+                if (doNotesTextHalo)
+                    canvas.drawText(title, x, y, textHaloPaint);
+                canvas.drawText(title, x, y, textPaint);
+            }
+        }
+    }
+
+    /**
+     * Get the lat/long bounds of the canvas.
+     *
+     * @param canvas     the canvas.
+     * @param projection the projection of the map.
+     * @param buffer     the pixels to add around the canvas.
+     * @return the bounds, the whole world if they can't be calculated.
+     */
+    private Envelope getCanvasEnvelope(Canvas canvas, Projection projection, int buffer) {
         double n = 90;
         double w = -180;
         double s = -90;
         double e = 180;
         try {
-            GeoPoint zeroPoint = projection.fromPixels(0, 0);
-            GeoPoint whPoint = projection.fromPixels(canvas.getWidth(), canvas.getHeight());
+            GeoPoint zeroPoint = projection.fromPixels(-buffer, -buffer);
+            GeoPoint whPoint = projection.fromPixels(canvas.getWidth() + buffer, canvas.getHeight() + buffer);
             n = zeroPoint.getLatitude();
             w = zeroPoint.getLongitude();
             s = whPoint.getLatitude();
@@ -629,14 +732,43 @@ public abstract class GeopaparazziOverlay extends Overlay {
         } catch (java.lang.Exception e2) {
             GPLog.error(this, "Problems retrieving viewport bounds", e2); //$NON-NLS-1$
         }
-        Envelope canvasEnvelope = new Envelope(w, e, s, n);
+        return new Envelope(w, e, s, n);
+    }
+
+    private void drawFromSpatialite(Canvas canvas, Point drawPosition, Projection projection, byte drawZoomLevel) {
+        /*
+         * draw from spatialite
+         */
+        Envelope canvasEnvelope = getCanvasEnvelope(canvas, projection, 0);
+        double n = canvasEnvelope.getMaxY();
+        double w = canvasEnvelope.getMinX();
+        double s = canvasEnvelope.getMinY();
+        double e = canvasEnvelope.getMaxX();
+        labelsDisplayList.clear();
         try {
             HashMap<SpatialiteMap, SpatialVectorTable> spatialiteMaps2TablesMap = SpatialiteSourcesManager.INSTANCE.getSpatialiteMaps2TablesMap();
             HashMap<SpatialiteMap, SpatialiteDatabaseHandler> spatialiteMaps2DbHandlersMap = SpatialiteSourcesManager.INSTANCE.getSpatialiteMaps2DbHandlersMap();
 
             List<SpatialiteMap> spatialiteMaps = SpatialiteSourcesManager.INSTANCE.getSpatialiteMaps();
             Collections.sort(spatialiteMaps, new SpatialiteMapOrderComparator());
+            boolean doGeometries = true;
             try {
+                if (spatialiteTileRenderer != null) {
+                    // geometries are rendered in the background, here only the cached tiles are drawn
+                    List<SpatialiteTileRenderer.TileLayer> tileLayers = new ArrayList<>();
+                    for (SpatialiteMap spatialiteMap : spatialiteMaps) {
+                        if (spatialiteMap.isVisible) {
+                            tileLayers.add(new SpatialiteTileRenderer.TileLayer(spatialiteMaps2TablesMap.get(spatialiteMap),
+                                    spatialiteMaps2DbHandlersMap.get(spatialiteMap)));
+                        }
+                    }
+                    spatialiteTileRenderer.drawTiles(canvas, drawPosition, drawZoomLevel, tileLayers);
+                    doGeometries = false;
+                }
+
+                /*
+                 * a single query per table draws the geometries and collects the labels
+                 */
                 for (SpatialiteMap spatialiteMap : spatialiteMaps) {
                     if (stopDrawing()) {
                         // stop working
@@ -652,15 +784,24 @@ public abstract class GeopaparazziOverlay extends Overlay {
                         // we do not draw outside of the zoom levels
                         continue;
                     }
+                    boolean doLabels = style.labelvisible != 0;
+                    if (!doGeometries && !doLabels) {
+                        continue;
+                    }
+                    if (!spatialDatabaseHandler.isOpen()) {
+                        continue;
+                    }
 
                     GeometryIterator geometryIterator = null;
                     try {
                         Paint fill = null;
                         Paint stroke = null;
-                        if (style.fillcolor != null && style.fillcolor.trim().length() > 0)
-                            fill = spatialDatabaseHandler.getFillPaint4Style(style);
-                        if (style.strokecolor != null && style.strokecolor.trim().length() > 0)
-                            stroke = spatialDatabaseHandler.getStrokePaint4Style(style);
+                        if (doGeometries) {
+                            if (style.fillcolor != null && style.fillcolor.trim().length() > 0)
+                                fill = spatialDatabaseHandler.getFillPaint4Style(style);
+                            if (style.strokecolor != null && style.strokecolor.trim().length() > 0)
+                                stroke = spatialDatabaseHandler.getStrokePaint4Style(style);
+                        }
                         PointTransformation pointTransformer = new MapsforgePointTransformation(projection, drawPosition,
                                 drawZoomLevel);
                         ShapeWriter shapeWriter;
@@ -677,10 +818,80 @@ public abstract class GeopaparazziOverlay extends Overlay {
                         }
                         shapeWriter.setRemoveDuplicatePoints(true);
                         shapeWriter.setDecimation(style.decimationFactor);
+                        WKBShapeDecoder shapeDecoder = null;
+                        if (!spatialTable.isGeometryCollection()) {
+                            shapeDecoder = new WKBShapeDecoder(pointTransformer,
+                                    spatialTable.isPoint() ? ShapeWriter.getShape(style.shape, style.size) : null);
+                            shapeDecoder.setDecimation(style.decimationFactor);
+                            shapeDecoder.setClip(-SPATIALITE_CLIP_BUFFER, -SPATIALITE_CLIP_BUFFER,
+                                    canvas.getWidth() + SPATIALITE_CLIP_BUFFER, canvas.getHeight() + SPATIALITE_CLIP_BUFFER);
+                        }
+
+                        Paint dbTextPaint = null;
+                        Paint dbTextHaloPaint = null;
+                        float delta = style.size / 2f;
+                        if (delta < 2) {
+                            delta = 2;
+                        }
+                        if (doLabels) {
+                            dbTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+                            dbTextPaint.setStyle(Paint.Style.FILL);
+                            dbTextPaint.setColor(Color.BLACK);
+                            dbTextPaint.setTextSize(style.labelsize);
+                            dbTextHaloPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+                            dbTextHaloPaint.setStyle(Paint.Style.STROKE);
+                            dbTextHaloPaint.setStrokeWidth(3);
+                            dbTextHaloPaint.setColor(Color.WHITE);
+                            dbTextHaloPaint.setTextSize(style.labelsize);
+                            if (spatialTable.isLine()) {
+                                dbTextHaloPaint.setTextAlign(Align.CENTER);
+                                dbTextPaint.setTextAlign(Align.CENTER);
+                            } else {
+                                dbTextHaloPaint.setTextAlign(Align.LEFT);
+                                dbTextPaint.setTextAlign(Align.LEFT);
+                            }
+                        }
+
                         geometryIterator = spatialDatabaseHandler.getGeometryIteratorInBounds(
-                                LibraryConstants.SRID_WGS84_4326, spatialTable, n, s, e, w);
+                                LibraryConstants.SRID_WGS84_4326, spatialTable, n, s, e, w, drawZoomLevel);
                         while (geometryIterator.hasNext()) {
-                            Geometry geom = geometryIterator.next();
+                            byte[] geomBytes = geometryIterator.nextBytes();
+                            String labelText = null;
+                            if (doLabels) {
+                                labelText = geometryIterator.getLabelText();
+                                if (labelText != null && labelText.length() == 0) {
+                                    labelText = null;
+                                }
+                            }
+                            if (!doGeometries && labelText == null) {
+                                continue;
+                            }
+                            if (shapeDecoder != null && shapeDecoder.decode(geomBytes)) {
+                                // the geometry is drawn straight from the blob
+                                if (!shapeDecoder.isVisible()) {
+                                    continue;
+                                }
+                                if (doGeometries) {
+                                    shapeDecoder.draw(canvas, fill, stroke);
+                                }
+                                if (labelText != null) {
+                                    if (shapeDecoder.getType() == WKBShapeDecoder.TYPE_LINE) {
+                                        Path linePath = new Path(shapeDecoder.getPath());
+                                        labelsDisplayList.add(new DisplayLabel(labelText, linePath, 0, 0, dbTextPaint,
+                                                dbTextHaloPaint));
+                                    } else {
+                                        PointF dest = new PointF();
+                                        shapeDecoder.getLabelPosition(dest);
+                                        labelsDisplayList.add(new DisplayLabel(labelText, null, dest.x + delta, dest.y - delta,
+                                                dbTextPaint, dbTextHaloPaint));
+                                    }
+                                }
+                                if (stopDrawing()) { // stop working
+                                    return;
+                                }
+                                continue;
+                            }
+                            Geometry geom = geomBytes != null ? geometryIterator.readGeometry(geomBytes) : null;
                             if (geom != null) {
                                 if (!canvasEnvelope.intersects(geom.getEnvelopeInternal())) {
                                     // TODO check the performance impact of this
@@ -691,11 +902,17 @@ public abstract class GeopaparazziOverlay extends Overlay {
                                     for (int j = 0; j < geometriesCount; j++) {
                                         Geometry geom_collect = geom.getGeometryN(j);
                                         if (geom_collect != null) {
-                                            String geometryType = geom_collect.getGeometryType();
-                                            if (geometryType.toUpperCase().contains("POINT")) {
-                                                drawGeometry(geom_collect, canvas, shape_writer_point, fill, stroke);
-                                            } else {
-                                                drawGeometry(geom_collect, canvas, shapeWriter, fill, stroke);
+                                            if (doGeometries) {
+                                                String geometryType = geom_collect.getGeometryType();
+                                                if (geometryType.toUpperCase().contains("POINT")) {
+                                                    drawGeometry(geom_collect, canvas, shape_writer_point, fill, stroke);
+                                                } else {
+                                                    drawGeometry(geom_collect, canvas, shapeWriter, fill, stroke);
+                                                }
+                                            }
+                                            if (labelText != null) {
+                                                addLabel(pointTransformer, geom_collect, null, labelText, dbTextPaint,
+                                                        dbTextHaloPaint, delta);
                                             }
                                             if (stopDrawing()) { // stop working
                                                 return;
@@ -703,7 +920,17 @@ public abstract class GeopaparazziOverlay extends Overlay {
                                         }
                                     }
                                 } else {
-                                    drawGeometry(geom, canvas, shapeWriter, fill, stroke);
+                                    DrawableShape shape = null;
+                                    if (doGeometries) {
+                                        shape = drawGeometry(geom, canvas, shapeWriter, fill, stroke);
+                                    }
+                                    if (labelText != null) {
+                                        if (spatialTable.isLine() && shape == null) {
+                                            shape = shapeWriter.toShape(geom);
+                                        }
+                                        addLabel(pointTransformer, geom, spatialTable.isLine() ? shape : null, labelText,
+                                                dbTextPaint, dbTextHaloPaint, delta);
+                                    }
                                     if (stopDrawing()) { // stop working
                                         return;
                                     }
@@ -727,104 +954,19 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
 
             /*
-             * draw labels
+             * draw labels, on top of all the geometries
              */
-            for (Map.Entry<SpatialiteMap, SpatialiteDatabaseHandler> entry : spatialiteMaps2DbHandlersMap.entrySet()) {
+            for (DisplayLabel displayLabel : labelsDisplayList) {
                 if (stopDrawing()) {
                     // stop working
                     return;
                 }
-                SpatialiteMap spatialiteMap = entry.getKey();
-                if (!spatialiteMap.isVisible) {
-                    continue;
-                }
-
-                SpatialiteDatabaseHandler spatialDatabaseHandler = entry.getValue();
-
-                SpatialVectorTable spatialTable = spatialiteMaps2TablesMap.get(spatialiteMap);
-                Style style = spatialTable.getStyle();
-
-                if (style.labelvisible == 0) {
-                    continue;
-                }
-                if (drawZoomLevel < style.minZoom || drawZoomLevel > style.maxZoom) {
-                    // we do not draw outside of the zoom levels
-                    continue;
-                }
-
-                float delta = style.size / 2f;
-                if (delta < 2) {
-                    delta = 2;
-                }
-
-                Paint dbTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-                dbTextPaint.setStyle(Paint.Style.FILL);
-                dbTextPaint.setColor(Color.BLACK);
-                dbTextPaint.setTextSize(style.labelsize);
-                Paint dbTextHaloPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-                dbTextHaloPaint.setStyle(Paint.Style.STROKE);
-                dbTextHaloPaint.setStrokeWidth(3);
-                dbTextHaloPaint.setColor(Color.WHITE);
-                dbTextHaloPaint.setTextSize(style.labelsize);
-
-                GeometryIterator geometryIterator = null;
-                try {
-                    PointTransformation pointTransformer = new MapsforgePointTransformation(projection, drawPosition,
-                            drawZoomLevel);
-                    ShapeWriter linesWriter = null;
-                    if (spatialTable.isLine()) {
-                        linesWriter = new ShapeWriter(pointTransformer, spatialTable.getStyle().shape,
-                                spatialTable.getStyle().size);
-                        dbTextHaloPaint.setTextAlign(Align.CENTER);
-                        dbTextPaint.setTextAlign(Align.CENTER);
-                    } else {
-                        dbTextHaloPaint.setTextAlign(Align.LEFT);
-                        dbTextPaint.setTextAlign(Align.LEFT);
-                    }
-
-                    if (spatialDatabaseHandler.isOpen()) {
-                        geometryIterator = spatialDatabaseHandler.getGeometryIteratorInBounds(
-                                LibraryConstants.SRID_WGS84_4326, spatialTable, n, s, e, w);
-                        while (geometryIterator.hasNext()) {
-                            Geometry geom = geometryIterator.next();
-                            if (geom != null) {
-                                if (!canvasEnvelope.intersects(geom.getEnvelopeInternal())) {
-                                    // TODO check the performance impact of this
-                                    continue;
-                                }
-                                String labelText = geometryIterator.getLabelText();
-                                if (labelText == null || labelText.length() == 0) {
-                                    continue;
-                                }
-                                if (spatialTable.isGeometryCollection()) {
-                                    int geometriesCount = geom.getNumGeometries();
-                                    for (int j = 0; j < geometriesCount; j++) {
-                                        Geometry geom_collect = geom.getGeometryN(j);
-                                        if (geom_collect != null) {
-                                            drawLabel(pointTransformer, geom_collect, labelText, canvas, dbTextPaint,
-                                                    dbTextHaloPaint, delta, linesWriter);
-                                            if (stopDrawing()) { // stop working
-                                                return;
-                                            }
-                                        }
-                                    }
-                                } else {
-                                    drawLabel(pointTransformer, geom, labelText, canvas, dbTextPaint, dbTextHaloPaint, delta,
-                                            linesWriter);
-                                    if (stopDrawing()) { // stop working
-                                        return;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                } finally {
-                    if (geometryIterator != null)
-                        geometryIterator.close();
-                }
+                displayLabel.draw(canvas);
             }
         } catch (Exception e1) {
             GPLog.error(this, "GeopaparazziOverlay.drawFromSpatialite [failed]", e1); //$NON-NLS-1$
+        } finally {
+            labelsDisplayList.clear();
         }
     }
 
@@ -832,7 +974,12 @@ public abstract class GeopaparazziOverlay extends Overlay {
         return isInterrupted() || sizeHasChanged() || needRedraw();
     }
 
-    private static void drawGeometry(Geometry geom, Canvas canvas, ShapeWriter shape_writer, Paint fill, Paint stroke) {
+    /**
+     * Draw a geometry with the given paints.
+     *
+     * @return the shape created by the writer.
+     */
+    static DrawableShape drawGeometry(Geometry geom, Canvas canvas, ShapeWriter shape_writer, Paint fill, Paint stroke) {
         String s_geometry_type = geom.getGeometryType();
         int i_geometry_type = GeometryType.forValue(s_geometry_type);
         GeometryType geometry_type = GeometryType.forValue(i_geometry_type);
@@ -882,12 +1029,18 @@ public abstract class GeopaparazziOverlay extends Overlay {
             default:
                 break;
         }
+        return shape;
     }
 
-    private static void drawLabel(PointTransformation pointTransformer, Geometry geom, String label, Canvas canvas,
-                                  Paint dbTextPaint, Paint dbTextHaloPaint, float delta, ShapeWriter linesWriter) {
-
-        if (linesWriter == null) {
+    /**
+     * Add a label to the display list of the current frame.
+     *
+     * @param shape the already created shape of the geometry, used for lines. If <code>null</code>,
+     *              the label is placed at the centroid.
+     */
+    private void addLabel(PointTransformation pointTransformer, Geometry geom, DrawableShape shape, String label,
+                          Paint dbTextPaint, Paint dbTextHaloPaint, float delta) {
+        if (shape == null) {
             /*
              * for points and polygons for now just use the centroid
              */
@@ -895,21 +1048,44 @@ public abstract class GeopaparazziOverlay extends Overlay {
             Coordinate coordinate = centroid.getCoordinate();
             PointF dest = new PointF();
             pointTransformer.transform(coordinate, dest);
-            float x = dest.x + delta;
-            float y = dest.y - delta;
-            // if (doNotesTextHalo)
-            canvas.drawText(label, x, y, dbTextHaloPaint);
-            canvas.drawText(label, x, y, dbTextPaint);
-        } else {
-            DrawableShape shape = linesWriter.toShape(geom);
-            if (shape instanceof PathShape) {
-                PathShape lineShape = (PathShape) shape;
-                Path linePath = lineShape.getPath();
+            labelsDisplayList.add(new DisplayLabel(label, null, dest.x + delta, dest.y - delta, dbTextPaint, dbTextHaloPaint));
+        } else if (shape instanceof PathShape) {
+            Path linePath = ((PathShape) shape).getPath();
+            labelsDisplayList.add(new DisplayLabel(label, linePath, 0, 0, dbTextPaint, dbTextHaloPaint));
+        }
+    }
+
+    /**
+     * A label collected while drawing the spatialite geometries.
+     */
+    private static class DisplayLabel {
+        private final String text;
+        private final Path path;
+        private final float x;
+        private final float y;
+        private final Paint textPaint;
+        private final Paint haloPaint;
+
+        DisplayLabel(String text, Path path, float x, float y, Paint textPaint, Paint haloPaint) {
+            this.text = text;
+            this.path = path;
+            this.x = x;
+            this.y = y;
+            this.textPaint = textPaint;
+            this.haloPaint = haloPaint;
+        }
+
+        void draw(Canvas canvas) {
+            if (path == null) {
+                // if (doNotesTextHalo)
+                canvas.drawText(text, x, y, haloPaint);
+                canvas.drawText(text, x, y, textPaint);
+            } else {
                 // if (doNotesTextHalo)
                 int hOffset = 15;
                 int vOffset = -5;
-                canvas.drawTextOnPath(label, linePath, hOffset, vOffset, dbTextHaloPaint);
-                canvas.drawTextOnPath(label, linePath, hOffset, vOffset, dbTextPaint);
+                canvas.drawTextOnPath(text, path, hOffset, vOffset, haloPaint);
+                canvas.drawTextOnPath(text, path, hOffset, vOffset, textPaint);
             }
         }
     }
@@ -956,10 +1132,8 @@ public abstract class GeopaparazziOverlay extends Overlay {
         synchronized (this.visibleItems) {
             // iterate over all visible items
             for (int i = this.visibleItems.size() - 1; i >= 0; --i) {
-                Integer itemIndex = this.visibleItems.get(i);
-
                 // get the current item
-                OverlayItem checkOverlayItem = createItem(itemIndex);
+                OverlayItem checkOverlayItem = this.visibleItems.get(i);
                 if (checkOverlayItem == null) {
                     continue;
                 }
@@ -975,6 +1149,18 @@ public abstract class GeopaparazziOverlay extends Overlay {
                     continue;
                 }
 
+                if (checkOverlayItem instanceof ClusterOverlayItem) {
+                    int dx = checkItemPoint.x - eventPosition.x;
+                    int dy = checkItemPoint.y - eventPosition.y;
+                    if (eventType == EventType.TAP && dx * dx + dy * dy <= clusterRadius * clusterRadius * 4) {
+                        // zoom in on the clustered items
+                        mapView.getController().setCenter(checkOverlayItem.getPoint());
+                        mapView.getController().setZoom(mapView.getMapPosition().getZoomLevel() + 2);
+                        return true;
+                    }
+                    continue;
+                }
+
                 // select the correct marker for the item and get the position
                 Drawable marker = checkOverlayItem.getMarker();
                 if (marker == null) return false;
@@ -991,13 +1177,13 @@ public abstract class GeopaparazziOverlay extends Overlay {
                         && checkTop <= eventPosition.y) {
                     switch (eventType) {
                         case LONG_PRESS:
-                            if (onLongPress(itemIndex)) {
+                            if (onLongPress(checkOverlayItem)) {
                                 return true;
                             }
                             break;
 
                         case TAP:
-                            if (onTap(context, itemIndex)) {
+                            if (onTap(context, checkOverlayItem)) {
                                 return true;
                             }
                             break;
@@ -1015,10 +1201,10 @@ public abstract class GeopaparazziOverlay extends Overlay {
      * <p/>
      * The default implementation of this method does nothing and returns false.
      *
-     * @param index the index of the item that has been long pressed.
+     * @param item the item that has been long pressed.
      * @return true if the event was handled, false otherwise.
      */
-    protected boolean onLongPress(int index) {
+    protected boolean onLongPress(OverlayItem item) {
         return false;
     }
 
@@ -1027,11 +1213,10 @@ public abstract class GeopaparazziOverlay extends Overlay {
      * <p/>
      * The default implementation of this method does nothing and returns false.
      *
-     * @param index the index of the item that has been tapped.
+     * @param item the item that has been tapped.
      * @return true if the event was handled, false otherwise.
      */
-    protected boolean onTap(Context context, int index) {
-        OverlayItem item = createItem(index);
+    protected boolean onTap(Context context, OverlayItem item) {
         if (item != null) {
             String title = item.getTitle();
             String snippet = item.getSnippet();
@@ -1130,6 +1315,10 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
     @Override
     public void dispose() {
+        if (spatialiteTileRenderer != null) {
+            spatialiteTileRenderer.destroy();
+            spatialiteTileRenderer = null;
+        }
         super.dispose();
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.mapview.overlays;
+
+import android.graphics.Path;
+import android.graphics.Point;
+
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Append-only buffer of the positions of the gps log being recorded.
+ * <p/>
+ * <p>The positions are kept in primitive arrays. For each of the last drawn zoom levels the
+ * pixel positions are cached and only the positions added since the previous draw are projected.
+ * Positions closer than {@link #MIN_PIXEL_DISTANCE} pixels to the previous kept one are
+ * skipped, which thins out the track at low zoom levels.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsTrackBuffer {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CACHED_ZOOMLEVELS = 3;
+    private static final int MIN_PIXEL_DISTANCE = 2;
+
+    private double[] lons = new double[INITIAL_CAPACITY];
+    private double[] lats = new double[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /*
+     * the pixel positions by zoom level, in access order
+     */
+    private final LinkedHashMap<Byte, ProjectedTrack> projectedTracks = new LinkedHashMap<>(4, 0.75f, true);
+
+    /**
+     * Add a position at the end of the track.
+     *
+     * @param lon the longitude.
+     * @param lat the latitude.
+     */
+    public synchronized void add(double lon, double lat) {
+        if (size == lons.length) {
+            lons = Arrays.copyOf(lons, size * 2);
+            lats = Arrays.copyOf(lats, size * 2);
+        }
+        lons[size] = lon;
+        lats[size] = lat;
+        size++;
+    }
+
+    /**
+     * Remove all the positions.
+     */
+    public synchronized void clear() {
+        if (lons.length > INITIAL_CAPACITY) {
+            lons = new double[INITIAL_CAPACITY];
+            lats = new double[INITIAL_CAPACITY];
+        }
+        size = 0;
+        projectedTracks.clear();
+    }
+
+    /**
+     * @return the number of positions in the track.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Assemble the path of the track on the canvas.
+     * <p/>
+     * <p>Segments that are entirely outside of the canvas are left out.</p>
+     *
+     * @param path         the path to fill, it is reset first.
+     * @param zoomLevel    the zoom level that is drawn.
+     * @param drawPosition the absolute pixel position of the upper left corner of the canvas.
+     * @param width        the width of the canvas.
+     * @param height       the height of the canvas.
+     * @return <code>true</code> if anything has been added to the path.
+     */
+    public synchronized boolean assemblePath(Path path, byte zoomLevel, Point drawPosition, int width, int height) {
+        path.reset();
+        if (size < 2) {
+            return false;
+        }
+        ProjectedTrack track = getProjectedTrack(zoomLevel);
+
+        boolean isEmpty = true;
+        boolean isPenDown = false;
+        int prevX = track.xs[0] - drawPosition.x;
+        int prevY = track.ys[0] - drawPosition.y;
+        int count = track.count;
+        boolean hasTail = track.lastX != track.xs[count - 1] || track.lastY != track.ys[count - 1];
+        for (int i = 1; i < count + (hasTail ? 1 : 0); i++) {
+            int x;
+            int y;
+            if (i < count) {
+                x = track.xs[i] - drawPosition.x;
+                y = track.ys[i] - drawPosition.y;
+            } else {
+                x = track.lastX - drawPosition.x;
+                y = track.lastY - drawPosition.y;
+            }
+            boolean isOutside = (prevX < 0 && x < 0) || (prevX > width && x > width) || (prevY < 0 && y < 0)
+                    || (prevY > height && y > height);
+            if (isOutside) {
+                isPenDown = false;
+            } else {
+                if (!isPenDown) {
+                    path.moveTo(prevX, prevY);
+                    isPenDown = true;
+                }
+                path.lineTo(x, y);
+                isEmpty = false;
+            }
+            prevX = x;
+            prevY = y;
+        }
+        return !isEmpty;
+    }
+
+    private ProjectedTrack getProjectedTrack(byte zoomLevel) {
+        ProjectedTrack track = projectedTracks.get(zoomLevel);
+        if (track == null) {
+            track = new ProjectedTrack();
+            projectedTracks.put(zoomLevel, track);
+            Iterator<ProjectedTrack> iterator = projectedTracks.values().iterator();
+            while (projectedTracks.size() > MAX_CACHED_ZOOMLEVELS && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        // project only the positions added since the last time
+        for (int i = track.projectedSize; i < size; i++) {
+            int x = (int) MercatorProjection.longitudeToPixelX(lons[i], zoomLevel);
+            int y = (int) MercatorProjection.latitudeToPixelY(lats[i], zoomLevel);
+            if (track.count == 0 || Math.abs(x - track.xs[track.count - 1]) >= MIN_PIXEL_DISTANCE
+                    || Math.abs(y - track.ys[track.count - 1]) >= MIN_PIXEL_DISTANCE) {
+                track.append(x, y);
+            }
+            track.lastX = x;
+            track.lastY = y;
+        }
+        track.projectedSize = size;
+        return track;
+    }
+
+    private static class ProjectedTrack {
+        int[] xs = new int[INITIAL_CAPACITY];
+        int[] ys = new int[INITIAL_CAPACITY];
+        int count = 0;
+        /*
+         * the number of track positions already projected
+         */
+        int projectedSize = 0;
+        /*
+         * the last projected position, also if it was skipped
+         */
+        int lastX;
+        int lastY;
+
+        void append(int x, int y) {
+            if (count == xs.length) {
+                xs = Arrays.copyOf(xs, count * 2);
+                ys = Arrays.copyOf(ys, count * 2);
+            }
+            xs[count] = x;
+            ys[count] = y;
+            count++;
+        }
+    }
+}
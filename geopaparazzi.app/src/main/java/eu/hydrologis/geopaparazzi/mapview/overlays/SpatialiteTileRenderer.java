@@ -0,0 +1,398 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.hydrologis.geopaparazzi.mapview.overlays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+
+import com.vividsolutions.jts.android.PointTransformation;
+import com.vividsolutions.jts.android.ShapeWriter;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.mapsforge.android.maps.overlay.Overlay;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.style.Style;
+import eu.geopaparazzi.library.util.LibraryConstants;
+import eu.geopaparazzi.spatialite.database.spatial.core.daos.DaoSpatialite;
+import eu.geopaparazzi.spatialite.database.spatial.core.daos.IFeatureEditListener;
+import eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers.SpatialiteDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.geometry.GeometryIterator;
+import eu.geopaparazzi.spatialite.database.spatial.core.geometry.WKBShapeDecoder;
+import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
+
+/**
+ * Renders the geometries of the visible spatialite layers into tiles in the background.
+ * <p/>
+ * <p>The rendered tiles are kept in a bounded cache, so that panning over large layers
+ * does not query and draw them again. A tile is dropped from the cache when a geometry
+ * inside its bounds is edited through {@link DaoSpatialite}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialiteTileRenderer implements IFeatureEditListener {
+    /**
+     * Maximum number of rendered tiles kept in memory.
+     */
+    private static final int CACHE_SIZE = 64;
+    /**
+     * Number of threads rendering the tiles.
+     */
+    private static final int NUMBER_OF_WORKERS = 2;
+    /**
+     * Pixels rendered around each tile, so that symbols and strokes crossing its borders are not cut.
+     */
+    private static final int TILE_BUFFER = 32;
+    /**
+     * Minimum interval in milliseconds between two redraws requested by finished tiles.
+     */
+    private static final long REDRAW_INTERVAL = 300;
+
+    private final Overlay overlay;
+    private final ExecutorService executor;
+    /*
+     * rendered tiles, tiles without geometries are cached with a null bitmap
+     */
+    private final Map<Tile, Bitmap> tilesCache;
+    private final Set<Tile> pendingTiles = new HashSet<>();
+    private List<TileLayer> layers = Collections.emptyList();
+    private String layersSignature = "";
+    private volatile int generation;
+    private volatile byte zoomLevel = -1;
+    private long lastRedrawRequest;
+    private boolean isDestroyed;
+
+    /**
+     * A visible layer to render into the tiles.
+     */
+    public static class TileLayer {
+        private final SpatialVectorTable spatialTable;
+        private final SpatialiteDatabaseHandler spatialDatabaseHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param spatialTable           the table to render.
+         * @param spatialDatabaseHandler the handler of the database containing the table.
+         */
+        public TileLayer(SpatialVectorTable spatialTable, SpatialiteDatabaseHandler spatialDatabaseHandler) {
+            this.spatialTable = spatialTable;
+            this.spatialDatabaseHandler = spatialDatabaseHandler;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param overlay the overlay to redraw when new tiles are available.
+     */
+    public SpatialiteTileRenderer(Overlay overlay) {
+        this.overlay = overlay;
+        tilesCache = new LinkedHashMap<Tile, Bitmap>(CACHE_SIZE, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Tile, Bitmap> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+        executor = Executors.newFixedThreadPool(NUMBER_OF_WORKERS);
+        DaoSpatialite.addFeatureEditListener(this);
+    }
+
+    /**
+     * Draws the cached tiles covering the canvas and schedules the rendering of the missing ones.
+     *
+     * @param canvas        the canvas to draw on.
+     * @param drawPosition  the top-left position of the canvas relative to the world map.
+     * @param drawZoomLevel the zoom level of the map.
+     * @param visibleLayers the visible layers in drawing order.
+     */
+    public void drawTiles(Canvas canvas, Point drawPosition, byte drawZoomLevel, List<TileLayer> visibleLayers) {
+        String signature = getSignature(visibleLayers);
+        long tileLeft = MercatorProjection.pixelXToTileX(drawPosition.x, drawZoomLevel);
+        long tileTop = MercatorProjection.pixelYToTileY(drawPosition.y, drawZoomLevel);
+        long tileRight = MercatorProjection.pixelXToTileX(drawPosition.x + canvas.getWidth(), drawZoomLevel);
+        long tileBottom = MercatorProjection.pixelYToTileY(drawPosition.y + canvas.getHeight(), drawZoomLevel);
+
+        synchronized (this) {
+            if (isDestroyed) {
+                return;
+            }
+            if (!signature.equals(layersSignature)) {
+                // layers or styles have changed, nothing can be reused
+                layersSignature = signature;
+                layers = visibleLayers;
+                tilesCache.clear();
+                generation++;
+            }
+            zoomLevel = drawZoomLevel;
+
+            for (long tileY = tileTop; tileY <= tileBottom; tileY++) {
+                for (long tileX = tileLeft; tileX <= tileRight; tileX++) {
+                    Tile tile = new Tile(tileX, tileY, drawZoomLevel);
+                    if (tilesCache.containsKey(tile)) {
+                        Bitmap bitmap = tilesCache.get(tile);
+                        if (bitmap != null) {
+                            canvas.drawBitmap(bitmap, tile.getPixelX() - drawPosition.x, tile.getPixelY() - drawPosition.y,
+                                    null);
+                        }
+                    } else if (pendingTiles.add(tile)) {
+                        executor.execute(new TileRenderTask(tile, layers, generation));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onFeaturesEdited(SpatialVectorTable spatialVectorTable, Envelope bounds) {
+        String uniqueName = spatialVectorTable.getUniqueNameBasedOnDbFilePath();
+        synchronized (this) {
+            boolean isRendered = false;
+            for (TileLayer layer : layers) {
+                if (layer.spatialTable.getUniqueNameBasedOnDbFilePath().equals(uniqueName)) {
+                    isRendered = true;
+                    break;
+                }
+            }
+            if (!isRendered) {
+                return;
+            }
+            // tiles being rendered right now might not contain the edit
+            generation++;
+            Iterator<Tile> tilesIterator = tilesCache.keySet().iterator();
+            while (tilesIterator.hasNext()) {
+                Tile tile = tilesIterator.next();
+                if (getBufferedBounds(tile).intersects(bounds)) {
+                    tilesIterator.remove();
+                }
+            }
+        }
+        overlay.requestRedraw();
+    }
+
+    /**
+     * Stops the rendering threads and releases the cached tiles.
+     */
+    public void destroy() {
+        DaoSpatialite.removeFeatureEditListener(this);
+        synchronized (this) {
+            isDestroyed = true;
+            tilesCache.clear();
+            pendingTiles.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    private static String getSignature(List<TileLayer> layers) {
+        StringBuilder sb = new StringBuilder();
+        for (TileLayer layer : layers) {
+            sb.append(layer.spatialTable.getUniqueNameBasedOnDbFilePath());
+            sb.append(":");
+            sb.append(layer.spatialTable.getStyle().insertValuesString());
+            sb.append(";");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the WGS84 bounds of a tile including the rendering buffer.
+     *
+     * @param tile the tile.
+     * @return the bounds.
+     */
+    private static Envelope getBufferedBounds(Tile tile) {
+        long pixelX = tile.getPixelX();
+        long pixelY = tile.getPixelY();
+        double w = MercatorProjection.pixelXToLongitude(pixelX - TILE_BUFFER, tile.zoomLevel);
+        double e = MercatorProjection.pixelXToLongitude(pixelX + Tile.TILE_SIZE + TILE_BUFFER, tile.zoomLevel);
+        double n = MercatorProjection.pixelYToLatitude(pixelY - TILE_BUFFER, tile.zoomLevel);
+        double s = MercatorProjection.pixelYToLatitude(pixelY + Tile.TILE_SIZE + TILE_BUFFER, tile.zoomLevel);
+        return new Envelope(w, e, s, n);
+    }
+
+    private class TileRenderTask implements Runnable {
+        private final Tile tile;
+        private final List<TileLayer> tileLayers;
+        private final int tileGeneration;
+        private boolean isAborted;
+
+        TileRenderTask(Tile tile, List<TileLayer> tileLayers, int tileGeneration) {
+            this.tile = tile;
+            this.tileLayers = tileLayers;
+            this.tileGeneration = tileGeneration;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            try {
+                bitmap = renderTile();
+            } catch (java.lang.Exception e) {
+                GPLog.error(this, "Problems rendering the spatialite tile: " + tile, e); //$NON-NLS-1$
+                isAborted = true;
+            }
+
+            boolean doRedraw = false;
+            synchronized (SpatialiteTileRenderer.this) {
+                pendingTiles.remove(tile);
+                if (isDestroyed) {
+                    return;
+                }
+                if (!isAborted && tileGeneration == generation) {
+                    tilesCache.put(tile, bitmap);
+                }
+                long now = System.currentTimeMillis();
+                if (pendingTiles.isEmpty() || now - lastRedrawRequest > REDRAW_INTERVAL) {
+                    lastRedrawRequest = now;
+                    doRedraw = true;
+                }
+            }
+            if (doRedraw) {
+                overlay.requestRedraw();
+            }
+        }
+
+        private boolean isCurrent() {
+            return tileGeneration == generation && tile.zoomLevel == zoomLevel && !Thread.currentThread().isInterrupted();
+        }
+
+        private Bitmap renderTile() {
+            Envelope tileEnvelope = getBufferedBounds(tile);
+            PointTransformation pointTransformer = new TilePointTransformation(tile);
+            Bitmap bitmap = null;
+            Canvas canvas = null;
+            for (TileLayer tileLayer : tileLayers) {
+                SpatialVectorTable spatialTable = tileLayer.spatialTable;
+                SpatialiteDatabaseHandler spatialDatabaseHandler = tileLayer.spatialDatabaseHandler;
+                Style style = spatialTable.getStyle();
+                if (tile.zoomLevel < style.minZoom || tile.zoomLevel > style.maxZoom) {
+                    // we do not draw outside of the zoom levels
+                    continue;
+                }
+                if (!spatialDatabaseHandler.isOpen()) {
+                    continue;
+                }
+
+                Paint fill = null;
+                Paint stroke = null;
+                synchronized (spatialDatabaseHandler) {
+                    // the handler reuses its paints, copy them for this thread
+                    if (style.fillcolor != null && style.fillcolor.trim().length() > 0)
+                        fill = new Paint(spatialDatabaseHandler.getFillPaint4Style(style));
+                    if (style.strokecolor != null && style.strokecolor.trim().length() > 0)
+                        stroke = new Paint(spatialDatabaseHandler.getStrokePaint4Style(style));
+                }
+                ShapeWriter shapeWriter;
+                ShapeWriter shape_writer_point = null;
+                if (spatialTable.isPoint()) {
+                    shapeWriter = new ShapeWriter(pointTransformer, style.shape, style.size);
+                } else {
+                    shapeWriter = new ShapeWriter(pointTransformer);
+                    if (spatialTable.isGeometryCollection()) {
+                        shape_writer_point = new ShapeWriter(pointTransformer, style.shape, style.size);
+                    }
+                }
+                shapeWriter.setRemoveDuplicatePoints(true);
+                shapeWriter.setDecimation(style.decimationFactor);
+                WKBShapeDecoder shapeDecoder = null;
+                if (!spatialTable.isGeometryCollection()) {
+                    shapeDecoder = new WKBShapeDecoder(pointTransformer,
+                            spatialTable.isPoint() ? ShapeWriter.getShape(style.shape, style.size) : null);
+                    shapeDecoder.setDecimation(style.decimationFactor);
+                    shapeDecoder.setClip(-TILE_BUFFER, -TILE_BUFFER, Tile.TILE_SIZE + TILE_BUFFER, Tile.TILE_SIZE + TILE_BUFFER);
+                }
+
+                GeometryIterator geometryIterator = null;
+                try {
+                    geometryIterator = spatialDatabaseHandler.getGeometryIteratorInBounds(LibraryConstants.SRID_WGS84_4326,
+                            spatialTable, tileEnvelope.getMaxY(), tileEnvelope.getMinY(), tileEnvelope.getMaxX(),
+                            tileEnvelope.getMinX(), tile.zoomLevel);
+                    while (geometryIterator.hasNext()) {
+                        if (!isCurrent()) {
+                            // the tile is not needed anymore or has been invalidated
+                            isAborted = true;
+                            return null;
+                        }
+                        byte[] geomBytes = geometryIterator.nextBytes();
+                        if (geomBytes == null) {
+                            continue;
+                        }
+                        if (shapeDecoder != null && shapeDecoder.decode(geomBytes)) {
+                            // the geometry is drawn straight from the blob
+                            if (!shapeDecoder.isVisible()) {
+                                continue;
+                            }
+                            if (canvas == null) {
+                                bitmap = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Bitmap.Config.ARGB_8888);
+                                canvas = new Canvas(bitmap);
+                            }
+                            shapeDecoder.draw(canvas, fill, stroke);
+                            continue;
+                        }
+                        Geometry geom = geometryIterator.readGeometry(geomBytes);
+                        if (geom == null || !tileEnvelope.intersects(geom.getEnvelopeInternal())) {
+                            continue;
+                        }
+                        if (canvas == null) {
+                            bitmap = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Bitmap.Config.ARGB_8888);
+                            canvas = new Canvas(bitmap);
+                        }
+                        if (spatialTable.isGeometryCollection()) {
+                            int geometriesCount = geom.getNumGeometries();
+                            for (int j = 0; j < geometriesCount; j++) {
+                                Geometry geom_collect = geom.getGeometryN(j);
+                                if (geom_collect != null) {
+                                    String geometryType = geom_collect.getGeometryType();
+                                    if (geometryType.toUpperCase().contains("POINT")) {
+                                        GeopaparazziOverlay.drawGeometry(geom_collect, canvas, shape_writer_point, fill, stroke);
+                                    } else {
+                                        GeopaparazziOverlay.drawGeometry(geom_collect, canvas, shapeWriter, fill, stroke);
+                                    }
+                                }
+                            }
+                        } else {
+                            GeopaparazziOverlay.drawGeometry(geom, canvas, shapeWriter, fill, stroke);
+                        }
+                    }
+                } finally {
+                    if (geometryIterator != null)
+                        geometryIterator.close();
+                }
+            }
+            return bitmap;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.hydrologis.geopaparazzi.mapview.overlays;
+
+import android.graphics.PointF;
+
+import com.vividsolutions.jts.android.PointTransformation;
+import com.vividsolutions.jts.geom.Coordinate;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+/**
+ * Transformation from WGS84 coordinates to the pixels of a mapsforge {@link Tile}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TilePointTransformation implements PointTransformation {
+    private final byte zoomLevel;
+    private final long pixelX;
+    private final long pixelY;
+
+    /**
+     * Constructor.
+     *
+     * @param tile the tile to draw on.
+     */
+    public TilePointTransformation(Tile tile) {
+        this.zoomLevel = tile.zoomLevel;
+        this.pixelX = tile.getPixelX();
+        this.pixelY = tile.getPixelY();
+    }
+
+    public void transform(Coordinate model, PointF view) {
+        view.set((float) (MercatorProjection.longitudeToPixelX(model.x, zoomLevel) - pixelX),
+                (float) (MercatorProjection.latitudeToPixelY(model.y, zoomLevel) - pixelY));
+    }
+}
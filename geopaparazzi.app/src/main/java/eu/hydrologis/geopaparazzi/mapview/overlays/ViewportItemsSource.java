@@ -0,0 +1,257 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.mapview.overlays;
+
+import android.graphics.drawable.Drawable;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import org.mapsforge.android.maps.overlay.Overlay;
+import org.mapsforge.android.maps.overlay.OverlayItem;
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.model.Tile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.hydrologis.geopaparazzi.database.DaoImages;
+import eu.hydrologis.geopaparazzi.database.DaoNotes;
+import eu.hydrologis.geopaparazzi.database.objects.ClusterOverlayItem;
+
+/**
+ * Supplies the notes and images items of the current viewport.
+ * <p/>
+ * <p>The items are read from the database only for the area around the viewport and
+ * kept in a spatial index, which is queried at each redraw. The area is read again
+ * only once the viewport leaves it or the zoom level changes, so a source is replaced
+ * by a new one when notes or images change.</p>
+ * <p/>
+ * <p>Up to {@link #CLUSTER_MAX_ZOOM} the database groups the items in cells of about
+ * {@link #CLUSTER_CELL_SIZE} pixels, and returns a {@link ClusterOverlayItem} for each
+ * cell with more than one item. The cells of the notes and of the images are then merged.</p>
+ * <p/>
+ * <p>The database is read on a background thread: until the items are there, the draw shows
+ * the previous ones, then the overlay is redrawn.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ViewportItemsSource {
+    /**
+     * The highest zoom level at which items are clustered.
+     */
+    public static final byte CLUSTER_MAX_ZOOM = 14;
+    /**
+     * The size in pixels of the grid cells in which items are clustered.
+     */
+    public static final int CLUSTER_CELL_SIZE = 64;
+
+    private final Overlay overlay;
+    private final Drawable imagesMarker;
+    private final Drawable notesMarker;
+    private final ExecutorService executor;
+
+    private Envelope loadedEnvelope;
+    private byte loadedZoomLevel;
+    private Envelope pendingEnvelope;
+    private byte pendingZoomLevel;
+    private STRtree itemsIndex;
+    private boolean isDestroyed;
+
+    /**
+     * Constructor.
+     *
+     * @param overlay      the overlay to redraw when new items are available.
+     * @param imagesMarker the marker of the images, <code>null</code> to not show them.
+     * @param notesMarker  the marker of the notes, <code>null</code> to not show them.
+     */
+    public ViewportItemsSource(Overlay overlay, Drawable imagesMarker, Drawable notesMarker) {
+        this.overlay = overlay;
+        this.imagesMarker = imagesMarker;
+        this.notesMarker = notesMarker;
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Get the items to draw in a viewport.
+     * <p/>
+     * <p>If the items of the viewport are not loaded yet, they are read in the background
+     * and the last loaded ones are returned meanwhile.</p>
+     *
+     * @param viewport  the viewport bounds in lat/long.
+     * @param zoomLevel the zoom level that is drawn.
+     * @return the items, clustered if the zoom level is low enough.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<OverlayItem> getItems(Envelope viewport, byte zoomLevel) {
+        if (isDestroyed || (imagesMarker == null && notesMarker == null)) {
+            return Collections.emptyList();
+        }
+        // all the zoom levels above the clustered ones show the same items
+        byte itemsZoomLevel = zoomLevel > CLUSTER_MAX_ZOOM ? Byte.MAX_VALUE : zoomLevel;
+        if (!isLoaded(loadedEnvelope, loadedZoomLevel, viewport, itemsZoomLevel)
+                && !isLoaded(pendingEnvelope, pendingZoomLevel, viewport, itemsZoomLevel)) {
+            // read also one viewport around the current, so that small pans don't hit the database
+            Envelope envelope = new Envelope(viewport);
+            envelope.expandBy(viewport.getWidth(), viewport.getHeight());
+            pendingEnvelope = envelope.intersection(new Envelope(-180, 180, -90, 90));
+            pendingZoomLevel = itemsZoomLevel;
+            executor.execute(new LoadTask(pendingEnvelope, itemsZoomLevel));
+        }
+        if (itemsIndex == null) {
+            return Collections.emptyList();
+        }
+        return itemsIndex.query(viewport);
+    }
+
+    /**
+     * Stops the loading thread and releases the items.
+     */
+    public synchronized void destroy() {
+        isDestroyed = true;
+        executor.shutdownNow();
+        itemsIndex = null;
+    }
+
+    private static boolean isLoaded(Envelope envelope, byte envelopeZoomLevel, Envelope viewport, byte zoomLevel) {
+        return envelope != null && envelopeZoomLevel == zoomLevel && envelope.contains(viewport);
+    }
+
+    private class LoadTask implements Runnable {
+        private final Envelope envelope;
+        private final byte zoomLevel;
+
+        LoadTask(Envelope envelope, byte zoomLevel) {
+            this.envelope = envelope;
+            this.zoomLevel = zoomLevel;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ViewportItemsSource.this) {
+                // a later request replaced this one
+                if (isDestroyed || envelope != pendingEnvelope) {
+                    return;
+                }
+            }
+            float[] nswe = new float[]{(float) envelope.getMaxY(), (float) envelope.getMinY(), (float) envelope.getMinX(),
+                    (float) envelope.getMaxX()};
+            List<OverlayItem> items;
+            try {
+                if (zoomLevel > CLUSTER_MAX_ZOOM) {
+                    items = readItems(nswe);
+                } else {
+                    items = readClusters(nswe);
+                }
+            } catch (Exception e) {
+                GPLog.error(this, "Problems reading the items of the viewport", e); //$NON-NLS-1$
+                items = Collections.emptyList();
+            }
+
+            STRtree tree = new STRtree();
+            for (OverlayItem item : items) {
+                GeoPoint point = item.getPoint();
+                tree.insert(new Envelope(point.getLongitude(), point.getLongitude(), point.getLatitude(), point.getLatitude()), item);
+            }
+            tree.build();
+            synchronized (ViewportItemsSource.this) {
+                if (isDestroyed) {
+                    return;
+                }
+                itemsIndex = tree;
+                if (envelope == pendingEnvelope) {
+                    pendingEnvelope = null;
+                    loadedEnvelope = envelope;
+                    loadedZoomLevel = zoomLevel;
+                }
+            }
+            overlay.requestRedraw();
+        }
+
+        private List<OverlayItem> readItems(float[] nswe) throws Exception {
+            List<OverlayItem> items = new ArrayList<>();
+            if (imagesMarker != null) {
+                items.addAll(DaoImages.getImagesOverlayList(imagesMarker, true, nswe));
+            }
+            if (notesMarker != null) {
+                items.addAll(DaoNotes.getNoteOverlaysList(notesMarker, nswe));
+            }
+            return items;
+        }
+
+        private List<OverlayItem> readClusters(float[] nswe) throws Exception {
+            // the cell size at the equator, shrunk in height by the mercator scale of the area
+            double cellWidth = 360.0 / ((long) Tile.TILE_SIZE << zoomLevel) * CLUSTER_CELL_SIZE;
+            double cellHeight = cellWidth * Math.cos(Math.toRadians(envelope.centre().y));
+
+            List<OverlayItem> cellItems = new ArrayList<>();
+            if (imagesMarker != null) {
+                cellItems.addAll(DaoImages.getImagesOverlayClusters(imagesMarker, true, nswe, cellWidth, cellHeight));
+            }
+            if (notesMarker != null) {
+                cellItems.addAll(DaoNotes.getNoteOverlayClusters(notesMarker, nswe, cellWidth, cellHeight));
+            }
+
+            // notes and images of the same cell are merged, the centroid is always inside its cell
+            Map<Long, OverlayItem> cellsMap = new HashMap<>();
+            for (OverlayItem item : cellItems) {
+                GeoPoint point = item.getPoint();
+                long col = (long) ((point.getLongitude() + 180) / cellWidth);
+                long row = (long) ((point.getLatitude() + 90) / cellHeight);
+                Long cell = (row << 32) | col;
+                OverlayItem cellItem = cellsMap.get(cell);
+                cellsMap.put(cell, cellItem == null ? item : merge(cellItem, item));
+            }
+            return new ArrayList<>(cellsMap.values());
+        }
+
+        private OverlayItem merge(OverlayItem item1, OverlayItem item2) {
+            int count1 = getCount(item1);
+            int count2 = getCount(item2);
+            int count = count1 + count2;
+            GeoPoint point1 = item1.getPoint();
+            GeoPoint point2 = item2.getPoint();
+            double lon = (point1.getLongitude() * count1 + point2.getLongitude() * count2) / count;
+            double lat = (point1.getLatitude() * count1 + point2.getLatitude() * count2) / count;
+            Envelope bounds = new Envelope(getBounds(item1));
+            bounds.expandToInclude(getBounds(item2));
+            return new ClusterOverlayItem(new GeoPoint(lat, lon), count, bounds);
+        }
+
+        private int getCount(OverlayItem item) {
+            if (item instanceof ClusterOverlayItem) {
+                return ((ClusterOverlayItem) item).getCount();
+            }
+            return 1;
+        }
+
+        private Envelope getBounds(OverlayItem item) {
+            if (item instanceof ClusterOverlayItem) {
+                return ((ClusterOverlayItem) item).getBounds();
+            }
+            GeoPoint point = item.getPoint();
+            return new Envelope(point.getLongitude(), point.getLongitude(), point.getLatitude(), point.getLatitude());
+        }
+    }
+}
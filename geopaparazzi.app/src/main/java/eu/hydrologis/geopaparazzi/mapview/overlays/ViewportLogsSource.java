@@ -0,0 +1,279 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.mapview.overlays;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import org.mapsforge.android.maps.overlay.Overlay;
+import org.mapsforge.android.maps.overlay.OverlayWay;
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.model.Tile;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.hydrologis.geopaparazzi.database.DaoGpsLog;
+
+/**
+ * Supplies the gps logs of the current viewport.
+ * <p/>
+ * <p>Above {@link #SIMPLIFIED_MAX_ZOOM} only the log segments around the viewport are read,
+ * through the spatial index of the database, and read again only once the viewport leaves them.
+ * Up to {@link #SIMPLIFIED_MAX_ZOOM} the whole logs are shown, simplified to about a pixel of that
+ * zoom level. The simplified logs are kept in memory across {@link #invalidate()}s, each one until
+ * its log changes.</p>
+ * <p/>
+ * <p>The database is read on a background thread: until the logs are there, the draw shows
+ * the previous ones, then the overlay is redrawn.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ViewportLogsSource {
+    /**
+     * The highest zoom level at which the simplified logs are shown.
+     */
+    public static final byte SIMPLIFIED_MAX_ZOOM = 12;
+
+    private final ExecutorService executor;
+    private volatile Overlay overlay;
+
+    private Envelope loadedEnvelope;
+    private Envelope pendingEnvelope;
+    private List<OverlayWay> loadedWays = Collections.emptyList();
+    /*
+     * the simplified logs by log id
+     */
+    private Map<Long, SimplifiedLog> simplifiedLogs = new HashMap<>();
+    private STRtree simplifiedIndex;
+    private boolean isSimplifiedValid;
+    private boolean isSimplifiedPending;
+    private int generation;
+    private boolean isDestroyed;
+
+    private static class SimplifiedLog {
+        private final String version;
+        private final OverlayWay way;
+        private final Envelope bounds;
+
+        SimplifiedLog(String version, OverlayWay way, Envelope bounds) {
+            this.version = version;
+            this.way = way;
+            this.bounds = bounds;
+        }
+    }
+
+    /**
+     * Constructor.
+     */
+    public ViewportLogsSource() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Set the overlay to redraw when new logs are available.
+     *
+     * @param overlay the overlay that draws the logs.
+     */
+    public void setOverlay(Overlay overlay) {
+        this.overlay = overlay;
+    }
+
+    /**
+     * Get the logs to draw in a viewport.
+     * <p/>
+     * <p>If the logs of the viewport are not loaded yet, they are read in the background
+     * and the last loaded ones are returned meanwhile.</p>
+     *
+     * @param viewport  the viewport bounds in lat/long.
+     * @param zoomLevel the zoom level that is drawn.
+     * @return the logs, simplified if the zoom level is low enough.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<OverlayWay> getWays(Envelope viewport, byte zoomLevel) {
+        if (isDestroyed) {
+            return Collections.emptyList();
+        }
+        if (zoomLevel <= SIMPLIFIED_MAX_ZOOM) {
+            if (!isSimplifiedValid && !isSimplifiedPending) {
+                isSimplifiedPending = true;
+                executor.execute(new SimplifiedLoadTask(generation));
+            }
+            if (simplifiedIndex == null) {
+                return Collections.emptyList();
+            }
+            return simplifiedIndex.query(viewport);
+        }
+        if ((loadedEnvelope == null || !loadedEnvelope.contains(viewport))
+                && (pendingEnvelope == null || !pendingEnvelope.contains(viewport))) {
+            // read also one viewport around the current, so that small pans don't hit the database
+            Envelope envelope = new Envelope(viewport);
+            envelope.expandBy(viewport.getWidth(), viewport.getHeight());
+            pendingEnvelope = envelope.intersection(new Envelope(-180, 180, -90, 90));
+            executor.execute(new AreaLoadTask(pendingEnvelope, generation));
+        }
+        return loadedWays;
+    }
+
+    /**
+     * Force the logs to be read again from the database at the next request.
+     * <p/>
+     * <p>Only the simplified logs whose log has changed are built again.</p>
+     */
+    public synchronized void invalidate() {
+        generation++;
+        loadedEnvelope = null;
+        pendingEnvelope = null;
+        isSimplifiedValid = false;
+    }
+
+    /**
+     * Stops the loading thread and releases the logs.
+     */
+    public synchronized void destroy() {
+        isDestroyed = true;
+        executor.shutdownNow();
+        loadedWays = Collections.emptyList();
+        simplifiedLogs = new HashMap<>();
+        simplifiedIndex = null;
+    }
+
+    private void requestRedraw() {
+        Overlay redrawOverlay = overlay;
+        if (redrawOverlay != null) {
+            redrawOverlay.requestRedraw();
+        }
+    }
+
+    private class AreaLoadTask implements Runnable {
+        private final Envelope envelope;
+        private final int taskGeneration;
+
+        AreaLoadTask(Envelope envelope, int taskGeneration) {
+            this.envelope = envelope;
+            this.taskGeneration = taskGeneration;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ViewportLogsSource.this) {
+                // a later request replaced this one
+                if (isDestroyed || envelope != pendingEnvelope) {
+                    return;
+                }
+            }
+            List<OverlayWay> ways;
+            try {
+                ways = DaoGpsLog.getGpslogOverlays(envelope);
+            } catch (Exception e) {
+                GPLog.error(this, "Problems reading the gps logs of the viewport", e); //$NON-NLS-1$
+                ways = Collections.emptyList();
+            }
+            synchronized (ViewportLogsSource.this) {
+                if (isDestroyed) {
+                    return;
+                }
+                loadedWays = ways;
+                if (envelope == pendingEnvelope) {
+                    pendingEnvelope = null;
+                    if (taskGeneration == generation) {
+                        loadedEnvelope = envelope;
+                    }
+                }
+            }
+            requestRedraw();
+        }
+    }
+
+    private class SimplifiedLoadTask implements Runnable {
+        private final int taskGeneration;
+
+        SimplifiedLoadTask(int taskGeneration) {
+            this.taskGeneration = taskGeneration;
+        }
+
+        @Override
+        public void run() {
+            Map<Long, SimplifiedLog> previousLogs;
+            synchronized (ViewportLogsSource.this) {
+                previousLogs = simplifiedLogs;
+            }
+            // the size of a pixel at the highest simplified zoom level
+            double tolerance = 360.0 / ((long) Tile.TILE_SIZE << SIMPLIFIED_MAX_ZOOM);
+            Map<Long, SimplifiedLog> logs = new HashMap<>();
+            boolean isComplete = true;
+            try {
+                LinkedHashMap<Long, String> versions = DaoGpsLog.getVisibleGpslogVersions();
+                for (Map.Entry<Long, String> entry : versions.entrySet()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    SimplifiedLog log = previousLogs.get(entry.getKey());
+                    if (log == null || !log.version.equals(entry.getValue())) {
+                        log = createSimplifiedLog(entry.getKey(), entry.getValue(), tolerance);
+                    }
+                    logs.put(entry.getKey(), log);
+                }
+            } catch (Exception e) {
+                GPLog.error(this, "Problems reading the simplified gps logs", e); //$NON-NLS-1$
+                isComplete = false;
+            }
+
+            STRtree tree = new STRtree();
+            for (SimplifiedLog log : logs.values()) {
+                if (log.way != null) {
+                    tree.insert(log.bounds, log.way);
+                }
+            }
+            tree.build();
+            synchronized (ViewportLogsSource.this) {
+                if (isDestroyed) {
+                    return;
+                }
+                isSimplifiedPending = false;
+                isSimplifiedValid = taskGeneration == generation;
+                if (!isComplete) {
+                    // keep the logs that were there until the next invalidate
+                    return;
+                }
+                simplifiedLogs = logs;
+                simplifiedIndex = tree;
+            }
+            requestRedraw();
+        }
+
+        private SimplifiedLog createSimplifiedLog(long logId, String version, double tolerance) throws Exception {
+            OverlayWay way = DaoGpsLog.getGpslogSimplifiedOverlayById(logId, tolerance);
+            Envelope bounds = new Envelope();
+            if (way != null) {
+                for (GeoPoint[] nodes : way.wayNodes) {
+                    for (GeoPoint node : nodes) {
+                        bounds.expandToInclude(node.getLongitude(), node.getLatitude());
+                    }
+                }
+            }
+            return new SimplifiedLog(version, way, bounds);
+        }
+    }
+}
@@ -156,14 +156,12 @@ public class GpsDataListActivity extends AppCompatActivity implements
                     DynamicDoubleArray latList = logData.getLatList();
                     DynamicDoubleArray altimList = logData.getAltimList();
                     int size = dateList.size();
+                    long[] timestamps = new long[size];
                     for (int j = 0; j < size; j++) {
-                        double lon = lonList.get(j);
-                        double lat = latList.get(j);
-
-                        double altim = altimList.get(j);
-                        long time = Long.parseLong(dateList.get(j));
-                        daoGpsLog.addGpsLogDataPoint(sqliteDatabase, logId, lon, lat, altim, time);
+                        timestamps[j] = Long.parseLong(dateList.get(j));
                     }
+                    daoGpsLog.addGpsLogDataPoints(sqliteDatabase, logId, lonList.getInternalArray(), latList.getInternalArray(),
+                            altimList.getInternalArray(), timestamps, size);
                     sqliteDatabase.setTransactionSuccessful();
 
                     intent.removeExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
@@ -371,6 +369,8 @@ public class GpsDataListActivity extends AppCompatActivity implements
             } catch (IOException e) {
                 GPLog.error(this, e.getLocalizedMessage(), e);
             }
+        } else if (item.getItemId() == R.id.action_compact) {
+            compactSelected();
         } else if (item.getItemId() == R.id.action_notesproperties) {
             Intent intent = new Intent(GpsDataListActivity.this, NotesPropertiesActivity.class);
             startActivity(intent);
@@ -416,6 +416,33 @@ public class GpsDataListActivity extends AppCompatActivity implements
         }, null);
     }
 
+    private void compactSelected() {
+        final List<LogMapItem> selected = new ArrayList<>();
+        for (LogMapItem mapItem : gpslogItems) {
+            if (mapItem.isVisible()) {
+                selected.add(mapItem);
+            }
+        }
+
+        if (selected.size() == 0) {
+            return;
+        }
+
+        String message = selected.size() + " " + getString(R.string.logs_will_be_compacted);
+        GPDialogs.yesNoMessageDialog(this, message, new Runnable() {
+            @Override
+            public void run() {
+                for (LogMapItem mapItem : selected) {
+                    try {
+                        DaoGpsLog.compactGpslog(mapItem.getId());
+                    } catch (IOException e) {
+                        GPLog.error(this, null, e); //$NON-NLS-1$
+                    }
+                }
+            }
+        }, null);
+    }
+
     @Override
     protected void onPause() {
         try {
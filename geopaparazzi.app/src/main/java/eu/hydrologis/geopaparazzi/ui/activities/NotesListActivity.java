@@ -37,6 +37,7 @@ import android.view.SubMenu;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
@@ -86,9 +87,27 @@ import eu.hydrologis.geopaparazzi.ui.utils.ImageIntents;
  */
 public class NotesListActivity extends AppCompatActivity {
     public static final String CURRENT_NOTES_COMPARATOR_INDEX = "CURRENT_NOTES_COMPARATOR_INDEX";
+    /**
+     * The number of notes read from the database at a time.
+     */
+    private static final int PAGE_SIZE = 100;
+    /**
+     * The time in millis the filter waits for more typing before reading the notes.
+     */
+    private static final long FILTER_DELAY = 300;
     private String SHARE_NOTE_WITH = "";
-    private List<ANote> allNotesList = new ArrayList<>();
     private List<ANote> visibleNotesList = new ArrayList<>();
+    private List<Image> imagesList = new ArrayList<>();
+    /*
+     * all the images as read from the database, and sorted with the comparator of the given index
+     */
+    private List<Image> allImagesList;
+    private List<Image> sortedImagesList;
+    private int sortedImagesComparatorIndex = -1;
+    private int imagesIndex = 0;
+    private int notesOffset = 0;
+    private boolean allNotesLoaded = false;
+    private String currentFilter = "";
 //    private Comparator<ANote> notesSorter = new ItemComparators.NotesComparator(false);
 
     private ArrayAdapter<ANote> arrayAdapter;
@@ -107,7 +126,10 @@ public class NotesListActivity extends AppCompatActivity {
 
     private String[] checkItems;
     private Comparator<ANote>[] comparators;
+    private int[] sortModes;
     private int currentComparatorIndex = 0;
+    private double mapCenterLon;
+    private double mapCenterLat;
     private SharedPreferences mPreferences;
     private StringAsyncTask deletionTask;
 
@@ -127,6 +149,8 @@ public class NotesListActivity extends AppCompatActivity {
         double[] mapCenterFromPreferences = PositionUtilities.getMapCenterFromPreferences(mPreferences, true, true);
         double lon = mapCenterFromPreferences[0];
         double lat = mapCenterFromPreferences[1];
+        mapCenterLon = lon;
+        mapCenterLat = lat;
 
         currentComparatorIndex = mPreferences.getInt(CURRENT_NOTES_COMPARATOR_INDEX, 0);
 
@@ -144,8 +168,35 @@ public class NotesListActivity extends AppCompatActivity {
                 new ItemComparators.NotesDistanceFromPointComparator(lon, lat),//
                 new ItemComparators.NotesDistanceFromPointComparator(lon, lat, true),//
         };
+        // the same orders, as done by the database
+        sortModes = new int[]{//
+                DaoNotes.SORT_NONE, //
+                DaoNotes.SORT_TEXT,//
+                DaoNotes.SORT_TEXT_INVERSE,//
+                DaoNotes.SORT_DISTANCE,//
+                DaoNotes.SORT_DISTANCE_INVERSE,//
+        };
 
         listView = (ListView) findViewById(R.id.notesList);
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // ignore
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (arrayAdapter != null && !allNotesLoaded && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 4) {
+                    try {
+                        loadNextPage();
+                    } catch (IOException e) {
+                        GPLog.error(this, e.getLocalizedMessage(), e);
+                        allNotesLoaded = true;
+                    }
+                    arrayAdapter.notifyDataSetChanged();
+                }
+            }
+        });
 
         SHARE_NOTE_WITH = getString(eu.geopaparazzi.library.R.string.share_note_with);
         share = getString(R.string.share);
@@ -174,6 +225,7 @@ public class NotesListActivity extends AppCompatActivity {
     protected void onDestroy() {
         if (deletionTask != null) deletionTask.dispose();
         filterText.removeTextChangedListener(filterTextWatcher);
+        filterText.removeCallbacks(filterRunnable);
         super.onDestroy();
     }
 
@@ -205,7 +257,7 @@ public class NotesListActivity extends AppCompatActivity {
                 @Override
                 public void onCancel(DialogInterface dialogInterface) {
                     try {
-                        refreshList();
+                        showList();
                     } catch (Exception e) {
                         GPLog.error(this, null, e);
                     }
@@ -217,16 +269,26 @@ public class NotesListActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Read the list again, after notes or images might have changed.
+     */
     private void refreshList() {
         if (GPLog.LOG_HEAVY)
             GPLog.addLogEntry(this, "refreshing notes list"); //$NON-NLS-1$
+        allImagesList = null;
+        showList();
+    }
+
+    /**
+     * Show the list for the current filter and sort mode.
+     */
+    private void showList() {
         try {
             visibleNotesList.clear();
-            collectAllNotes();
-            visibleNotesList.addAll(allNotesList);
-            if (comparators[currentComparatorIndex] != null) {
-                Collections.sort(visibleNotesList, comparators[currentComparatorIndex]);
-            }
+            notesOffset = 0;
+            allNotesLoaded = false;
+            collectImages();
+            loadNextPage();
         } catch (IOException e) {
             GPLog.error(this, e.getLocalizedMessage(), e);
             e.printStackTrace();
@@ -235,34 +297,74 @@ public class NotesListActivity extends AppCompatActivity {
         redoAdapter();
     }
 
-    private void collectAllNotes() throws IOException {
-        allNotesList.clear();
-        List<Note> tmpNotesList = DaoNotes.getNotesList(null, false);
-        allNotesList.addAll(tmpNotesList);
-        List<Image> imagesList = DaoImages.getImagesList(false, true);
-        allNotesList.addAll(imagesList);
+    /**
+     * Collect the images that match the current filter, sorted.
+     * <p/>
+     * <p>The images are few and have no form, so they are kept in memory and
+     * merged with the pages of notes. They are read and sorted once per sort mode,
+     * the filter only picks them from the sorted list.</p>
+     */
+    private void collectImages() throws IOException {
+        if (allImagesList == null) {
+            allImagesList = DaoImages.getImagesList(false, true);
+            sortedImagesList = null;
+        }
+        if (sortedImagesList == null || sortedImagesComparatorIndex != currentComparatorIndex) {
+            sortedImagesList = new ArrayList<>(allImagesList);
+            if (comparators[currentComparatorIndex] != null) {
+                Collections.sort(sortedImagesList, comparators[currentComparatorIndex]);
+            }
+            sortedImagesComparatorIndex = currentComparatorIndex;
+        }
+        imagesList.clear();
+        imagesIndex = 0;
+        String filter = currentFilter.toLowerCase();
+        for (Image image : sortedImagesList) {
+            if (image.getName().toLowerCase().contains(filter)) {
+                imagesList.add(image);
+            }
+        }
     }
 
-    private void filterList(String filterText) {
-        if (GPLog.LOG_HEAVY)
-            GPLog.addLogEntry(this, "filter notes list"); //$NON-NLS-1$
+    /**
+     * Add the next page of notes to the list, together with the images that sort among them.
+     */
+    private void loadNextPage() throws IOException {
+        List<Note> notesPage = DaoNotes.getNotesPage(currentFilter, sortModes[currentComparatorIndex], mapCenterLon,
+                mapCenterLat, notesOffset, PAGE_SIZE);
+        notesOffset += notesPage.size();
+        allNotesLoaded = notesPage.size() < PAGE_SIZE;
+
+        Comparator<ANote> comparator = comparators[currentComparatorIndex];
+        for (Note note : notesPage) {
+            while (comparator != null && imagesIndex < imagesList.size()
+                    && comparator.compare(imagesList.get(imagesIndex), note) < 0) {
+                visibleNotesList.add(imagesList.get(imagesIndex++));
+            }
+            visibleNotesList.add(note);
+        }
+        if (allNotesLoaded) {
+            while (imagesIndex < imagesList.size()) {
+                visibleNotesList.add(imagesList.get(imagesIndex++));
+            }
+        }
+    }
+
+    private void loadAllPages() {
         try {
-            collectAllNotes();
-            visibleNotesList.clear();
-            filterText = filterText.toLowerCase();
-            for (ANote note : allNotesList) {
-                String name = note.getName();
-                String nameLower = name.toLowerCase();
-                if (nameLower.contains(filterText)) {
-                    visibleNotesList.add(note);
-                }
+            while (!allNotesLoaded) {
+                loadNextPage();
             }
         } catch (IOException e) {
             GPLog.error(this, e.getLocalizedMessage(), e);
-            e.printStackTrace();
         }
+    }
 
-        redoAdapter();
+    private void filterList(String filterText) {
+        if (GPLog.LOG_HEAVY)
+            GPLog.addLogEntry(this, "filter notes list"); //$NON-NLS-1$
+        currentFilter = filterText;
+        showList();
     }
 
     private void redoAdapter() {
@@ -336,7 +438,23 @@ public class NotesListActivity extends AppCompatActivity {
         listView.setAdapter(arrayAdapter);
     }
 
-    private void openMoreMenu(Button button, final ANote currentNote) {
+    private void openMoreMenu(Button button, ANote listNote) {
+        final ANote currentNote;
+        if (listNote instanceof Note) {
+            // the notes of the list come without form
+            try {
+                currentNote = DaoNotes.getNoteById(listNote.getId());
+            } catch (IOException e) {
+                GPLog.error(this, e.getLocalizedMessage(), e);
+                return;
+            }
+            if (currentNote == null) {
+                return;
+            }
+        } else {
+            currentNote = listNote;
+        }
+
         String editLabel = null;
         if (currentNote instanceof Note) {
             Note note = (Note) currentNote;
@@ -374,11 +492,13 @@ public class NotesListActivity extends AppCompatActivity {
                     String name = currentNote.getName();
                     filterText.setText(name);
                 } else if (actionName.equals(selectAll)) {
+                    loadAllPages();
                     for (ANote aNote : visibleNotesList) {
                         aNote.setChecked(true);
                     }
                     arrayAdapter.notifyDataSetChanged();
                 } else if (actionName.equals(invertSelection)) {
+                    loadAllPages();
                     for (ANote aNote : visibleNotesList) {
                         aNote.setChecked(!aNote.isChecked());
                     }
@@ -606,7 +726,15 @@ public class NotesListActivity extends AppCompatActivity {
 
         public void onTextChanged(CharSequence s, int start, int before, int count) {
             // arrayAdapter.getFilter().filter(s);
-            filterList(s.toString());
+            // the notes are read once the typing pauses
+            filterText.removeCallbacks(filterRunnable);
+            filterText.postDelayed(filterRunnable, FILTER_DELAY);
+        }
+    };
+
+    private Runnable filterRunnable = new Runnable() {
+        public void run() {
+            filterList(filterText.getText().toString());
         }
     };
 
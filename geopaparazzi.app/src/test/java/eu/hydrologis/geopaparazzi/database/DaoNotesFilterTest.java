@@ -0,0 +1,64 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the text filters of the notes in {@link DaoNotes}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class DaoNotesFilterTest {
+
+    @Test
+    public void testMatchQuery() throws Exception {
+        assertEquals("tree*", DaoNotes.toMatchQuery("tree"));
+        assertEquals("old* tree*", DaoNotes.toMatchQuery("  Old   TREE "));
+        assertEquals("über* straße*", DaoNotes.toMatchQuery("Über Straße"));
+        assertEquals("a1* 2b*", DaoNotes.toMatchQuery("a1, 2b"));
+    }
+
+    @Test
+    public void testMatchQueryOperators() throws Exception {
+        // the operators and the syntax of the full text search are taken as separators or words
+        assertEquals("tree* or* house*", DaoNotes.toMatchQuery("tree OR house"));
+        assertEquals("tree* near* house*", DaoNotes.toMatchQuery("tree NEAR house"));
+        assertEquals("tree* house*", DaoNotes.toMatchQuery("\"tree\" -house*"));
+        assertEquals("col* value*", DaoNotes.toMatchQuery("col:value"));
+    }
+
+    @Test
+    public void testMatchQueryWithoutWords() throws Exception {
+        assertNull(DaoNotes.toMatchQuery(""));
+        assertNull(DaoNotes.toMatchQuery("   "));
+        assertNull(DaoNotes.toMatchQuery("*-\"()"));
+    }
+
+    @Test
+    public void testEscapeLike() throws Exception {
+        assertEquals("tree", DaoNotes.escapeLike("tree"));
+        assertEquals("100\\%", DaoNotes.escapeLike("100%"));
+        assertEquals("a\\_b", DaoNotes.escapeLike("a_b"));
+        assertEquals("c:\\\\tmp", DaoNotes.escapeLike("c:\\tmp"));
+        // the backslash is escaped first, so that the escapes of the wildcards stay single
+        assertEquals("\\\\\\%", DaoNotes.escapeLike("\\%"));
+    }
+}
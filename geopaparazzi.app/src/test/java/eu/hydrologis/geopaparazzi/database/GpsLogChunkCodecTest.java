@@ -0,0 +1,150 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.database;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link GpsLogChunkCodec}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogChunkCodecTest {
+    private static final double DELTA = 1E-9;
+
+    @Test
+    public void testEmptyChunk() throws Exception {
+        byte[] chunk = GpsLogChunkCodec.encode(new double[0], new double[0], new double[0], new long[0], 0, 0);
+        assertEquals(0, chunk.length);
+
+        GpsLogChunkCodec.decode(chunk, 0, new double[0], new double[0], new double[0], new long[0], 0);
+    }
+
+    @Test
+    public void testSinglePoint() throws Exception {
+        double[] lons = {11.1234567};
+        double[] lats = {-46.7654321};
+        double[] altims = {1234.56};
+        long[] timestamps = {1477000000000L};
+        byte[] chunk = GpsLogChunkCodec.encode(lons, lats, altims, timestamps, 0, 1);
+
+        double[] decodedLons = new double[1];
+        double[] decodedLats = new double[1];
+        double[] decodedAltims = new double[1];
+        long[] decodedTimestamps = new long[1];
+        GpsLogChunkCodec.decode(chunk, 1, decodedLons, decodedLats, decodedAltims, decodedTimestamps, 0);
+        assertEquals(11.1234567, decodedLons[0], DELTA);
+        assertEquals(-46.7654321, decodedLats[0], DELTA);
+        assertEquals(1234.56, decodedAltims[0], DELTA);
+        assertEquals(1477000000000L, decodedTimestamps[0]);
+    }
+
+    @Test
+    public void testZigzagVarintBytes() throws Exception {
+        // -1 -> 1, 1 -> 2, 0 -> 0, 64 -> 128 which needs a continuation byte
+        byte[] chunk = GpsLogChunkCodec.encode(new double[]{-1E-7}, new double[]{1E-7}, new double[]{0}, new long[]{64}, 0, 1);
+        assertArrayEquals(new byte[]{1, 2, 0, (byte) 0x80, 1}, chunk);
+    }
+
+    @Test
+    public void testDeltasOfSmallStepsTakeOneByte() throws Exception {
+        double[] lons = {11.0, 11.0000001, 11.0};
+        double[] lats = {46.0, 45.9999999, 46.0};
+        double[] altims = {500.0, 500.01, 500.0};
+        long[] timestamps = {1477000000000L, 1477000001000L, 1477000002000L};
+        byte[] single = GpsLogChunkCodec.encode(lons, lats, altims, timestamps, 0, 1);
+        byte[] chunk = GpsLogChunkCodec.encode(lons, lats, altims, timestamps, 0, 3);
+        // each following point: one byte per coordinate and elevation, two for the second of time
+        assertEquals(single.length + 2 * (1 + 1 + 1 + 2), chunk.length);
+
+        double[] decodedLons = new double[3];
+        double[] decodedLats = new double[3];
+        double[] decodedAltims = new double[3];
+        long[] decodedTimestamps = new long[3];
+        GpsLogChunkCodec.decode(chunk, 3, decodedLons, decodedLats, decodedAltims, decodedTimestamps, 0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(lons[i], decodedLons[i], DELTA);
+            assertEquals(lats[i], decodedLats[i], DELTA);
+            assertEquals(altims[i], decodedAltims[i], DELTA);
+        }
+        assertArrayEquals(timestamps, decodedTimestamps);
+    }
+
+    @Test
+    public void testCoordinatesAreRoundedTo7Decimals() throws Exception {
+        double[] lons = {11.12345674, 11.12345676, -179.99999996};
+        double[] lats = {46.00000004, -89.99999996, 0.00000006};
+        double[] altims = {0, 0, 0};
+        long[] timestamps = {0, 1, 2};
+        byte[] chunk = GpsLogChunkCodec.encode(lons, lats, altims, timestamps, 0, 3);
+
+        double[] decodedLons = new double[3];
+        double[] decodedLats = new double[3];
+        GpsLogChunkCodec.decode(chunk, 3, decodedLons, decodedLats, new double[3], new long[3], 0);
+        assertEquals(11.1234567, decodedLons[0], DELTA);
+        assertEquals(11.1234568, decodedLons[1], DELTA);
+        assertEquals(-180.0, decodedLons[2], DELTA);
+        assertEquals(46.0, decodedLats[0], DELTA);
+        assertEquals(-90.0, decodedLats[1], DELTA);
+        assertEquals(0.0000001, decodedLats[2], DELTA);
+    }
+
+    @Test
+    public void testElevationsAreRoundedToCentimeters() throws Exception {
+        double[] altims = {100.004, 100.006, -12.346, 8848.8649};
+        byte[] chunk = GpsLogChunkCodec.encode(new double[4], new double[4], altims, new long[4], 0, 4);
+
+        double[] decodedAltims = new double[4];
+        GpsLogChunkCodec.decode(chunk, 4, new double[4], new double[4], decodedAltims, new long[4], 0);
+        assertEquals(100.0, decodedAltims[0], DELTA);
+        assertEquals(100.01, decodedAltims[1], DELTA);
+        assertEquals(-12.35, decodedAltims[2], DELTA);
+        assertEquals(8848.86, decodedAltims[3], DELTA);
+    }
+
+    @Test
+    public void testRangeAndOffset() throws Exception {
+        double[] lons = {1, 2, 3, 4};
+        double[] lats = {5, 6, 7, 8};
+        double[] altims = {9, 10, 11, 12};
+        long[] timestamps = {13, 14, 15, 16};
+        byte[] chunk = GpsLogChunkCodec.encode(lons, lats, altims, timestamps, 1, 2);
+
+        double[] decodedLons = new double[3];
+        double[] decodedLats = new double[3];
+        double[] decodedAltims = new double[3];
+        long[] decodedTimestamps = new long[3];
+        GpsLogChunkCodec.decode(chunk, 2, decodedLons, decodedLats, decodedAltims, decodedTimestamps, 1);
+        assertArrayEquals(new double[]{0, 2, 3}, decodedLons, DELTA);
+        assertArrayEquals(new double[]{0, 6, 7}, decodedLats, DELTA);
+        assertArrayEquals(new double[]{0, 10, 11}, decodedAltims, DELTA);
+        assertArrayEquals(new long[]{0, 14, 15}, decodedTimestamps);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedChunk() throws Exception {
+        byte[] chunk = GpsLogChunkCodec.encode(new double[]{11}, new double[]{46}, new double[]{500}, new long[]{1477000000000L}, 0, 1);
+        byte[] truncated = Arrays.copyOf(chunk, chunk.length - 1);
+        GpsLogChunkCodec.decode(truncated, 1, new double[1], new double[1], new double[1], new long[1], 0);
+    }
+}
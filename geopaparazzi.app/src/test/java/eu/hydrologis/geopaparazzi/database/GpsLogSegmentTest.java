@@ -0,0 +1,130 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.database;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link GpsLogSegment}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogSegmentTest {
+    private static final double DELTA = 1E-9;
+
+    @Test
+    public void testSplitNewLog() throws Exception {
+        int count = 10;
+        double[] lons = new double[count];
+        double[] lats = new double[count];
+        long[] timestamps = new long[count];
+        fill(lons, lats, timestamps, 0, count, 100);
+        // an invalid point is skipped
+        lons[5] = 200;
+
+        List<GpsLogSegment> segments = GpsLogSegment.append(null, lons, lats, timestamps, count, 4);
+        assertEquals(3, segments.size());
+        assertSegment(segments.get(0), 100, 103, 4);
+        // the next segments start from the last point of the previous
+        assertSegment(segments.get(1), 103, 107, 4);
+        assertSegment(segments.get(2), 107, 109, 3);
+
+        GpsLogSegment first = segments.get(0);
+        assertEquals(10.0, first.minLon, DELTA);
+        assertEquals(10.3, first.maxLon, DELTA);
+        assertEquals(40.0, first.minLat, DELTA);
+        assertEquals(40.3, first.maxLat, DELTA);
+        GpsLogSegment second = segments.get(1);
+        assertEquals(10.3, second.minLon, DELTA);
+        assertEquals(10.7, second.maxLon, DELTA);
+        assertEquals(10.7, second.endLon, DELTA);
+        assertEquals(40.7, second.endLat, DELTA);
+        for (GpsLogSegment segment : segments) {
+            assertEquals(-1, segment.id);
+        }
+    }
+
+    @Test
+    public void testAppendToLastSegment() throws Exception {
+        double[] lons = new double[6];
+        double[] lats = new double[6];
+        long[] timestamps = new long[6];
+        fill(lons, lats, timestamps, 0, 2, 100);
+        GpsLogSegment lastSegment = GpsLogSegment.append(null, lons, lats, timestamps, 2, 4).get(0);
+        lastSegment.id = 1;
+
+        // the last segment is filled up first, then a new one is started
+        fill(lons, lats, timestamps, 0, 3, 102);
+        List<GpsLogSegment> segments = GpsLogSegment.append(lastSegment, lons, lats, timestamps, 3, 4);
+        assertEquals(2, segments.size());
+        assertSame(lastSegment, segments.get(0));
+        assertSegment(lastSegment, 100, 103, 4);
+        assertEquals(1, lastSegment.id);
+        assertSegment(segments.get(1), 103, 104, 2);
+        assertEquals(-1, segments.get(1).id);
+    }
+
+    @Test
+    public void testAppendToFullSegment() throws Exception {
+        double[] lons = new double[4];
+        double[] lats = new double[4];
+        long[] timestamps = new long[4];
+        fill(lons, lats, timestamps, 0, 4, 100);
+        GpsLogSegment lastSegment = GpsLogSegment.append(null, lons, lats, timestamps, 4, 4).get(0);
+
+        // the full last segment does not change
+        fill(lons, lats, timestamps, 0, 1, 104);
+        List<GpsLogSegment> segments = GpsLogSegment.append(lastSegment, lons, lats, timestamps, 1, 4);
+        assertEquals(1, segments.size());
+        assertSegment(lastSegment, 100, 103, 4);
+        assertSegment(segments.get(0), 103, 104, 2);
+    }
+
+    @Test
+    public void testInvalidPointsOnly() throws Exception {
+        double[] lons = {200, 0};
+        double[] lats = {0, 100};
+        long[] timestamps = {100, 101};
+        assertTrue(GpsLogSegment.append(null, lons, lats, timestamps, 2, 4).isEmpty());
+
+        GpsLogSegment lastSegment = new GpsLogSegment();
+        assertTrue(GpsLogSegment.append(lastSegment, lons, lats, timestamps, 2, 4).isEmpty());
+    }
+
+    /**
+     * Fill the arrays with points which move by 0.1 degrees and 1 ms each.
+     */
+    private static void fill(double[] lons, double[] lats, long[] timestamps, int from, int count, long startTs) {
+        for (int i = from; i < from + count; i++) {
+            long ts = startTs + i - from;
+            lons[i] = 10 + (ts - 100) / 10.0;
+            lats[i] = 40 + (ts - 100) / 10.0;
+            timestamps[i] = ts;
+        }
+    }
+
+    private static void assertSegment(GpsLogSegment segment, long startTs, long endTs, int count) {
+        assertEquals(startTs, segment.startTs);
+        assertEquals(endTs, segment.endTs);
+        assertEquals(count, segment.count);
+    }
+}
@@ -69,6 +69,23 @@ public interface IGpsLogDbHelper {
     public void addGpsLogDataPoint(SQLiteDatabase sqliteDatabase, long gpslogId, double lon, double lat, double altim,
                                    long timestamp) throws IOException;
 
+    /**
+     * Adds several gps log points to a log.
+     * 
+     * <p>Transactions have to be opened and closed if necessary.</p>
+     * 
+     * @param sqliteDatabase the db to use.
+     * @param gpslogId the log id to which to add to.
+     * @param lons the lon coordinates.
+     * @param lats the lat coordinates.
+     * @param altims the elevations of the points.
+     * @param timestamps the timestamps of the points.
+     * @param count the number of points to take from the arrays.
+     * @throws IOException  if something goes wrong.
+     */
+    public void addGpsLogDataPoints(SQLiteDatabase sqliteDatabase, long gpslogId, double[] lons, double[] lats,
+                                    double[] altims, long[] timestamps, int count) throws IOException;
+
     /**
      * Deletes a gps log from the database. 
      * 
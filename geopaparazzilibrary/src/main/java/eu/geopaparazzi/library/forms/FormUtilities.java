@@ -675,6 +675,41 @@ public class FormUtilities {
         return sB.toString();
     }
 
+    /**
+     * Get the values of a form as a single text, for example to index it for searches.
+     * <p/>
+     * <p>Media, which are stored as image ids, and empty values are left out.</p>
+     *
+     * @param section the json form.
+     * @return the form values separated by new lines.
+     * @throws Exception if something goes wrong.
+     */
+    public static String formValuesToText(String section) throws Exception {
+        StringBuilder sB = new StringBuilder();
+        JSONObject sectionObject = new JSONObject(section);
+        List<String> formsNames = TagsManager.getFormNames4Section(sectionObject);
+        for (String formName : formsNames) {
+            JSONObject form4Name = TagsManager.getForm4Name(formName, sectionObject);
+            JSONArray formItems = TagsManager.getFormItems(form4Name);
+            for (int i = 0; i < formItems.length(); i++) {
+                JSONObject formItem = formItems.getJSONObject(i);
+                if (!formItem.has(FormUtilities.TAG_KEY) || !formItem.has(FormUtilities.TAG_VALUE)) {
+                    continue;
+                }
+                String type = formItem.optString(FormUtilities.TAG_TYPE);
+                if (type.equals(FormUtilities.TYPE_PICTURES) || type.equals(FormUtilities.TYPE_MAP)
+                        || type.equals(FormUtilities.TYPE_SKETCH)) {
+                    continue;
+                }
+                String value = formItem.getString(FormUtilities.TAG_VALUE).trim();
+                if (value.length() > 0) {
+                    sB.append(value).append("\n");
+                }
+            }
+        }
+        return sB.toString();
+    }
+
     /**
      * Get the images paths out of a form string.
      *
@@ -0,0 +1,90 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+/**
+ * A position fix as it flows through the {@link GpsLoggingPipeline}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsFix {
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    private final double lon;
+    private final double lat;
+    private final double altim;
+    private final long time;
+
+    /**
+     * Constructor.
+     *
+     * @param lon   the longitude.
+     * @param lat   the latitude.
+     * @param altim the elevation.
+     * @param time  the UTC time in milliseconds.
+     */
+    public GpsFix(double lon, double lat, double altim, long time) {
+        this.lon = lon;
+        this.lat = lat;
+        this.altim = altim;
+        this.time = time;
+    }
+
+    /**
+     * @return the longitude.
+     */
+    public double getLongitude() {
+        return lon;
+    }
+
+    /**
+     * @return the latitude.
+     */
+    public double getLatitude() {
+        return lat;
+    }
+
+    /**
+     * @return the elevation.
+     */
+    public double getAltitude() {
+        return altim;
+    }
+
+    /**
+     * @return the UTC time in milliseconds.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Get the great circle distance to another fix.
+     *
+     * @param other the other fix.
+     * @return the distance in meters.
+     */
+    public double distanceTo(GpsFix other) {
+        double lat1 = Math.toRadians(lat);
+        double lat2 = Math.toRadians(other.lat);
+        double sinDeltaLat = Math.sin((lat2 - lat1) / 2);
+        double sinDeltaLon = Math.sin(Math.toRadians(other.lon - lon) / 2);
+        double a = sinDeltaLat * sinDeltaLat + Math.cos(lat1) * Math.cos(lat2) * sinDeltaLon * sinDeltaLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
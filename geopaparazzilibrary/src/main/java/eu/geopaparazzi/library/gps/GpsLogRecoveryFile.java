@@ -0,0 +1,190 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The file in which the {@link GpsLogWriter} keeps the points that are not yet in the database.
+ * <p/>
+ * <p>The file starts with the id of the log, followed by one record per point. It is
+ * truncated to the log id after each commit, so it only holds the points of the
+ * transaction in progress. The first point of a log replaces a file left by a previous
+ * one, so that its points are never added to the wrong log.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+class GpsLogRecoveryFile {
+    /*
+     * log id
+     */
+    private static final int HEADER_SIZE = 8;
+    /*
+     * lon, lat, altim, timestamp
+     */
+    private static final int RECORD_SIZE = 32;
+
+    /**
+     * The points read back from a recovery file.
+     */
+    static class Points {
+        final long logId;
+        final int count;
+        final double[] lons;
+        final double[] lats;
+        final double[] altims;
+        final long[] timestamps;
+
+        Points(long logId, int count) {
+            this.logId = logId;
+            this.count = count;
+            lons = new double[count];
+            lats = new double[count];
+            altims = new double[count];
+            timestamps = new long[count];
+        }
+    }
+
+    private final File file;
+    private final long logId;
+    private FileOutputStream stream;
+    private boolean isStarted;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    /**
+     * Constructor. The file is created with the first point.
+     *
+     * @param file  the file.
+     * @param logId the log the points belong to.
+     */
+    GpsLogRecoveryFile(File file, long logId) {
+        this.file = file;
+        this.logId = logId;
+    }
+
+    /**
+     * Append a point.
+     *
+     * @param lon       the longitude.
+     * @param lat       the latitude.
+     * @param altim     the elevation.
+     * @param timestamp the timestamp.
+     * @throws IOException if something goes wrong.
+     */
+    void append(double lon, double lat, double altim, long timestamp) throws IOException {
+        if (stream == null) {
+            // the file is started again for the first point, after that it is reopened for this log
+            stream = new FileOutputStream(file, isStarted);
+            if (!isStarted) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(logId);
+                stream.write(header.array());
+                isStarted = true;
+            }
+        }
+        record.clear();
+        record.putDouble(lon);
+        record.putDouble(lat);
+        record.putDouble(altim);
+        record.putLong(timestamp);
+        stream.write(record.array());
+    }
+
+    /**
+     * Remove the points, once they are committed to the database.
+     *
+     * @throws IOException if something goes wrong.
+     */
+    void truncate() throws IOException {
+        if (stream != null) {
+            stream.getChannel().truncate(HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Close the file, keeping it.
+     *
+     * @throws IOException if something goes wrong.
+     */
+    void close() throws IOException {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    /**
+     * Close and remove the file.
+     *
+     * @throws IOException if the file can't be removed.
+     */
+    void delete() throws IOException {
+        close();
+        delete(file);
+    }
+
+    /**
+     * Read the points of a file left by a log that was not closed properly.
+     * <p/>
+     * <p>A partially written last record is left out.</p>
+     *
+     * @param file the file.
+     * @return the points or <code>null</code> if the file does not exist or holds no point.
+     * @throws IOException if something goes wrong.
+     */
+    static Points read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        int pointsCount = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+        if (pointsCount <= 0) {
+            return null;
+        }
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+        try {
+            Points points = new Points(inputStream.readLong(), pointsCount);
+            for (int i = 0; i < pointsCount; i++) {
+                points.lons[i] = inputStream.readDouble();
+                points.lats[i] = inputStream.readDouble();
+                points.altims[i] = inputStream.readDouble();
+                points.timestamps[i] = inputStream.readLong();
+            }
+            return points;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Remove a file if it exists.
+     *
+     * @param file the file.
+     * @throws IOException if the file can't be removed.
+     */
+    static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to remove the file: " + file);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.database.IGpsLogDbHelper;
+
+/**
+ * Writes the points of a gps log to the database in groups.
+ * <p/>
+ * <p>The points are kept in memory and written in a single transaction every
+ * {@link #FLUSH_POINTS} points or {@link #FLUSH_MILLIS} milliseconds. Until then each
+ * point is also appended to a small file next to the database, which is
+ * replayed by {@link #recover(IGpsLogDbHelper, SQLiteDatabase)} if the process dies
+ * before the points reach the database, and then sets the end of the log to the last
+ * recovered point.</p>
+ * <p/>
+ * <p>The file is emptied right after each commit, a crash just between the two can
+ * make the points of that group appear twice in the log.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpsLogWriter {
+    /**
+     * The number of points after which the points are written to the database.
+     */
+    public static final int FLUSH_POINTS = 30;
+    /**
+     * The time after which the points are written to the database.
+     */
+    public static final long FLUSH_MILLIS = 30000;
+
+    private static final String WAL_SUFFIX = "-gpslog.wal";
+    private static final String FAILED_SUFFIX = ".failed";
+
+    private final IGpsLogDbHelper dbHelper;
+    private final SQLiteDatabase database;
+    private final long logId;
+    private final GpsLogRecoveryFile walFile;
+
+    private double[] lons = new double[FLUSH_POINTS];
+    private double[] lats = new double[FLUSH_POINTS];
+    private double[] altims = new double[FLUSH_POINTS];
+    private long[] timestamps = new long[FLUSH_POINTS];
+    private int count = 0;
+    private long lastFlushMillis;
+
+    private double lastWrittenLon = Double.NaN;
+    private double lastWrittenLat = Double.NaN;
+
+    /**
+     * Constructor.
+     *
+     * @param dbHelper the helper that writes the points.
+     * @param database the database to write to.
+     * @param logId    the log to add the points to.
+     */
+    public GpsLogWriter(IGpsLogDbHelper dbHelper, SQLiteDatabase database, long logId) {
+        this.dbHelper = dbHelper;
+        this.database = database;
+        this.logId = logId;
+        walFile = new GpsLogRecoveryFile(getWalFile(database), logId);
+        lastFlushMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes to the database the points left by a log that was not closed properly and
+     * sets the end of the log to the last of them.
+     *
+     * @param dbHelper the helper that writes the points.
+     * @param database the database of the log.
+     * @return the number of recovered points.
+     * @throws IOException if something goes wrong.
+     */
+    public static int recover(IGpsLogDbHelper dbHelper, SQLiteDatabase database) throws IOException {
+        File walFile = getWalFile(database);
+        GpsLogRecoveryFile.Points points = GpsLogRecoveryFile.read(walFile);
+        if (points == null) {
+            GpsLogRecoveryFile.delete(walFile);
+            return 0;
+        }
+        database.beginTransaction();
+        try {
+            dbHelper.addGpsLogDataPoints(database, points.logId, points.lons, points.lats, points.altims,
+                    points.timestamps, points.count);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        GpsLogRecoveryFile.delete(walFile);
+        // the log was not closed, or its closing could not write these points
+        dbHelper.setEndTs(points.logId, points.timestamps[points.count - 1]);
+        GPLog.addLogEntry("GpsLogWriter", "Recovered " + points.count + " points of log: " + points.logId);
+        return points.count;
+    }
+
+    /**
+     * Move away the recovery file that {@link #recover(IGpsLogDbHelper, SQLiteDatabase)} could not
+     * write, so that a new log can start. The file is kept next to the database for a manual recovery.
+     *
+     * @param database the database of the log.
+     * @return the file the points were moved to, or <code>null</code> if there was no file.
+     * @throws IOException if the file can't be moved.
+     */
+    public static File setAsideRecoveryFile(SQLiteDatabase database) throws IOException {
+        File walFile = getWalFile(database);
+        if (!walFile.exists()) {
+            return null;
+        }
+        File asideFile = new File(walFile.getPath() + "." + System.currentTimeMillis() + FAILED_SUFFIX);
+        if (!walFile.renameTo(asideFile)) {
+            throw new IOException("Unable to move the file: " + walFile);
+        }
+        return asideFile;
+    }
+
+    /**
+     * Add a point to the log.
+     * <p/>
+     * <p>The point is written to the database together with the other pending points
+     * once {@link #FLUSH_POINTS} or {@link #FLUSH_MILLIS} are reached.</p>
+     *
+     * @param lon       the longitude.
+     * @param lat       the latitude.
+     * @param altim     the elevation.
+     * @param timestamp the timestamp.
+     * @throws IOException if something goes wrong.
+     */
+    public synchronized void add(double lon, double lat, double altim, long timestamp) throws IOException {
+        if (count == lons.length) {
+            // the database refused the previous flushes, keep all the points
+            int newLength = count * 2;
+            lons = Arrays.copyOf(lons, newLength);
+            lats = Arrays.copyOf(lats, newLength);
+            altims = Arrays.copyOf(altims, newLength);
+            timestamps = Arrays.copyOf(timestamps, newLength);
+        }
+        lons[count] = lon;
+        lats[count] = lat;
+        altims[count] = altim;
+        timestamps[count] = timestamp;
+        count++;
+
+        walFile.append(lon, lat, altim, timestamp);
+
+        flushIfDue();
+    }
+
+    /**
+     * Write the pending points to the database if enough points or time have passed.
+     *
+     * @throws IOException if something goes wrong.
+     */
+    public synchronized void flushIfDue() throws IOException {
+        if (count >= FLUSH_POINTS || (count > 0 && System.currentTimeMillis() - lastFlushMillis >= FLUSH_MILLIS)) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the pending points to the database.
+     *
+     * @throws IOException if something goes wrong.
+     */
+    public synchronized void flush() throws IOException {
+        lastFlushMillis = System.currentTimeMillis();
+        if (count == 0) {
+            return;
+        }
+        database.beginTransaction();
+        try {
+            dbHelper.addGpsLogDataPoints(database, logId, lons, lats, altims, timestamps, count);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        lastWrittenLon = lons[count - 1];
+        lastWrittenLat = lats[count - 1];
+        count = 0;
+        walFile.truncate();
+    }
+
+    /**
+     * Write the pending points and remove the recovery file.
+     * <p/>
+     * <p>If the points can't be written, the file is kept for {@link #recover(IGpsLogDbHelper, SQLiteDatabase)}.</p>
+     *
+     * @throws IOException if something goes wrong.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            walFile.close();
+        }
+        walFile.delete();
+    }
+
+    /**
+     * Drop the pending points and remove the recovery file, for a log that is deleted.
+     *
+     * @throws IOException if the file can't be removed.
+     */
+    public synchronized void discard() throws IOException {
+        count = 0;
+        walFile.delete();
+    }
+
+    /**
+     * Get the positions that are not yet in the database.
+     * <p/>
+     * <p>The last position that was written is prepended, so that the positions
+     * continue the log as read from the database.</p>
+     *
+     * @return the positions as [lons, lats].
+     */
+    public synchronized double[][] getPendingPositions() {
+        int offset = Double.isNaN(lastWrittenLon) ? 0 : 1;
+        double[] pendingLons = new double[count + offset];
+        double[] pendingLats = new double[count + offset];
+        if (offset == 1) {
+            pendingLons[0] = lastWrittenLon;
+            pendingLats[0] = lastWrittenLat;
+        }
+        System.arraycopy(lons, 0, pendingLons, offset, count);
+        System.arraycopy(lats, 0, pendingLats, offset, count);
+        return new double[][]{pendingLons, pendingLats};
+    }
+
+    private static File getWalFile(SQLiteDatabase database) {
+        return new File(database.getPath() + WAL_SUFFIX);
+    }
+}
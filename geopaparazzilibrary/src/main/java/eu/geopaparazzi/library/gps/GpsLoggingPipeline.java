@@ -0,0 +1,189 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Passes the gps fixes from the location updates to the logging thread.
+ * <p/>
+ * <p>The fixes are put in a bounded queue with {@link #offer(GpsFix)} and taken
+ * by the logger with {@link #take(long)}, which returns only the fixes that pass all the
+ * {@link IGpsFixFilter}s. The queue is lock-free and supports one thread putting
+ * and one thread taking the fixes. When it is full, new fixes are dropped.</p>
+ * <p>The filters compare each fix with the last accepted one, so the first fix of a log
+ * always passes them and is logged. The logger before the pipeline skipped it and
+ * started with the second fix, since it measured the distance from the previous fix.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLoggingPipeline {
+    /**
+     * The default number of fixes the queue holds.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final GpsFix[] queue;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile Thread consumerThread;
+
+    private final List<IGpsFixFilter> filters = new ArrayList<>();
+    private GpsFix lastAccepted;
+
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong filteredCount = new AtomicLong();
+    private final AtomicLong acceptedCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of fixes the queue holds, rounded up to a power of two.
+     */
+    public GpsLoggingPipeline(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        queue = new GpsFix[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add a filter stage. The filters are applied in the order they are added.
+     * <p/>
+     * <p>Filters must be added before the fixes start to flow.</p>
+     *
+     * @param filter the filter.
+     * @return this pipeline.
+     */
+    public GpsLoggingPipeline addFilter(IGpsFixFilter filter) {
+        filters.add(filter);
+        return this;
+    }
+
+    /**
+     * Put a fix in the queue, without blocking.
+     *
+     * @param fix the fix.
+     * @return <code>false</code> if the queue was full and the fix was dropped.
+     */
+    public boolean offer(GpsFix fix) {
+        receivedCount.incrementAndGet();
+        long currentTail = tail.get();
+        if (currentTail - head.get() >= queue.length) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        queue[(int) (currentTail & mask)] = fix;
+        tail.lazySet(currentTail + 1);
+        LockSupport.unpark(consumerThread);
+        return true;
+    }
+
+    /**
+     * Take the next fix that passes the filters, waiting for it if necessary.
+     *
+     * @param timeoutMillis the maximum time to wait.
+     * @return the fix or <code>null</code> if none arrived in time or {@link #wakeUp()} was called.
+     */
+    public GpsFix take(long timeoutMillis) {
+        consumerThread = Thread.currentThread();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            GpsFix fix = poll();
+            if (fix == null) {
+                long waitNanos = deadline - System.nanoTime();
+                if (waitNanos <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, waitNanos);
+                fix = poll();
+                if (fix == null) {
+                    // woken up or timed out
+                    return null;
+                }
+            }
+            if (isAccepted(fix)) {
+                lastAccepted = fix;
+                acceptedCount.incrementAndGet();
+                return fix;
+            }
+            filteredCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Make a waiting {@link #take(long)} return.
+     */
+    public void wakeUp() {
+        LockSupport.unpark(consumerThread);
+    }
+
+    private GpsFix poll() {
+        long currentHead = head.get();
+        if (currentHead >= tail.get()) {
+            return null;
+        }
+        int index = (int) (currentHead & mask);
+        GpsFix fix = queue[index];
+        queue[index] = null;
+        head.lazySet(currentHead + 1);
+        return fix;
+    }
+
+    private boolean isAccepted(GpsFix fix) {
+        for (IGpsFixFilter filter : filters) {
+            if (!filter.accept(fix, lastAccepted)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of fixes offered to the pipeline.
+     */
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * @return the number of fixes dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of fixes discarded by the filters.
+     */
+    public long getFilteredCount() {
+        return filteredCount.get();
+    }
+
+    /**
+     * @return the number of fixes that passed all the filters.
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+}
@@ -38,6 +38,8 @@ import android.preference.PreferenceManager;
 import android.support.v4.app.ActivityCompat;
 import android.widget.Toast;
 
+import java.io.File;
+
 import eu.geopaparazzi.library.R;
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.library.database.IGpsLogDbHelper;
@@ -173,8 +175,16 @@ public class GpsService extends Service implements LocationListener, Listener {
 
     private GpsStatus mStatus;
     private long currentRecordedLogId = -1;
+    /**
+     * The writer of the log being recorded, if any.
+     */
+    private static volatile GpsLogWriter currentGpsLogWriter;
+    /**
+     * The pipeline feeding the log being recorded, if any.
+     */
+    private static volatile GpsLoggingPipeline currentLoggingPipeline;
     private volatile boolean gotFix;
-    private boolean isDatabaseLogging = false;
+    private volatile boolean isDatabaseLogging = false;
     private boolean isListeningForUpdates = false;
     private boolean isProviderEnabled;
     private Handler toastHandler;
@@ -328,6 +338,24 @@ public class GpsService extends Service implements LocationListener, Listener {
 
                     SQLiteDatabase sqliteDatabase = dbHelper.getDatabase();
 
+                    // first write the points left by a log that was not stopped properly
+                    try {
+                        int recoveredPoints = GpsLogWriter.recover(dbHelper, sqliteDatabase);
+                        if (recoveredPoints > 0) {
+                            log("Recovered points of a previous log: " + recoveredPoints);
+                        }
+                    } catch (Exception e) {
+                        // the new log must start anyway, the points are kept aside
+                        GPLog.error(this, "Unable to recover the points of a previous log", e);
+                        try {
+                            File asideFile = GpsLogWriter.setAsideRecoveryFile(sqliteDatabase);
+                            log("Points of a previous log moved to: " + asideFile);
+                        } catch (Exception e1) {
+                            // the file is replaced by the new log
+                            GPLog.error(this, null, e1);
+                        }
+                    }
+
                     long gpsLogId = -1;
                     if (continueLastLog) {
                         try {
@@ -345,6 +373,8 @@ public class GpsService extends Service implements LocationListener, Listener {
                         log("Beginning a new log with log id: " + gpsLogId);
                     }
                     currentRecordedLogId = gpsLogId;
+                    GpsLogWriter gpsLogWriter = new GpsLogWriter(dbHelper, sqliteDatabase, gpsLogId);
+                    currentGpsLogWriter = gpsLogWriter;
                     log("GPS Start logging. Logid: " + gpsLogId);
 
                     // get preferences
@@ -369,108 +399,62 @@ public class GpsService extends Service implements LocationListener, Listener {
                         GPLog.addLogEntry(GpsService.this, "GPS min distance: " + minDistance);
                     }
 
-                    long previousGpsLocationTime = -1;
+                    GpsLoggingPipeline pipeline = new GpsLoggingPipeline(GpsLoggingPipeline.DEFAULT_CAPACITY)//
+                            .addFilter(new MinIntervalFixFilter(waitForSecs * 1000L))//
+                            .addFilter(new MinDistanceFixFilter(minDistance));
+                    currentLoggingPipeline = pipeline;
+
+                    GpsFix previousFix = null;
                     currentPointsNum = 0;
                     currentDistance = 0;
                     while (isDatabaseLogging) {
-                        if (gotFix || isMockMode) {
+                        // wait for the next fix that passes the filters
+                        GpsFix fix = pipeline.take(WAITSECONDS * 1000L);
+                        if (fix != null && isDatabaseLogging) {
                             if (DO_WHILE_LOOP_LOG)
-                                GPLog.addLogEntry(GpsService.this, "GPS DEBUG: loop while at: " + System.nanoTime());
-                            if (lastGpsLocation == null) {
-                                if (DO_WHILE_LOOP_LOG)
-                                    GPLog.addLogEntry(GpsService.this, "GPS JUMP POINT: lastGpsLocation == null");
-                                if (!holdABitAndCheckLogging(waitForSecs)) {
-                                    break;
-                                }
-                                continue;
-                            }
-                            long time = lastGpsLocation.getTime();
-                            if (previousGpsLocationTime == time) {
-                                if (DO_WHILE_LOOP_LOG)
-                                    GPLog.addLogEntry(GpsService.this,
-                                            "GPS JUMP POINT: lastGpsLocation == previous (no new point incoming)");
-                                if (!holdABitAndCheckLogging(waitForSecs)) {
-                                    break;
-                                }
-                                continue;
-                            }
-                            previousGpsLocationTime = time;
-                            if (lastGpsLocation.getPreviousLoc() == null) {
-                                if (DO_WHILE_LOOP_LOG)
-                                    GPLog.addLogEntry(GpsService.this,
-                                            "GPS JUMP POINT: waiting for second valid point to come in.");
-                                if (!holdABitAndCheckLogging(waitForSecs)) {
-                                    break;
-                                }
-                                continue;
-                            }
-                            double recLon = lastGpsLocation.getLongitude();
-                            double recLat = lastGpsLocation.getLatitude();
-                            double recAlt = lastGpsLocation.getAltitude();
-
-                            if (DO_WHILE_LOOP_LOG)
-                                GPLog.addLogEntry(GpsService.this, "GPS DEBUG: loop while 1: " + System.nanoTime());
-                            double lastDistance = lastGpsLocation.distanceToPrevious();
-                            if (DO_WHILE_LOOP_LOG) {
-                                StringBuilder sb = new StringBuilder();
-                                sb.append("GPS\ngpsloc: ");
-                                sb.append(lastGpsLocation.getLatitude());
-                                sb.append("/");
-                                sb.append(lastGpsLocation.getLongitude());
-                                sb.append("\n");
-                                if (lastGpsLocation.getPreviousLoc() != null) {
-                                    sb.append("previousLoc: ");
-                                    sb.append(lastGpsLocation.getPreviousLoc().getLatitude());
-                                    sb.append("/");
-                                    sb.append(lastGpsLocation.getPreviousLoc().getLongitude());
-                                    sb.append("\n");
-                                }
-                                sb.append("distance: ");
-                                sb.append(lastDistance);
-                                sb.append(" - mindistance: ");
-                                sb.append(minDistance);
-                                logABS(sb.toString());
-                            }
-                            if (DO_WHILE_LOOP_LOG)
-                                GPLog.addLogEntry(GpsService.this, "GPS DEBUG: loop while 2: " + System.nanoTime());
-                            // ignore near points
-                            if (lastDistance < minDistance) {
-                                if (DO_WHILE_LOOP_LOG)
-                                    GPLog.addLogEntry(GpsService.this, "GPS JUMP POINT: distance from previous");
-                                if (!holdABitAndCheckLogging(waitForSecs)) {
-                                    break;
-                                }
-                                continue;
-                            }
-                            if (DO_WHILE_LOOP_LOG)
-                                GPLog.addLogEntry(GpsService.this, "GPS DEBUG: loop while 3: " + System.nanoTime());
+                                logABS("GPS fix to log: " + fix.getLatitude() + "/" + fix.getLongitude() + " at " + fix.getTime());
                             try {
-                                if (isDatabaseLogging) {
-                                    dbHelper.addGpsLogDataPoint(sqliteDatabase, gpsLogId, recLon, recLat, recAlt,
-                                            lastGpsLocation.getTime());
-                                }
+                                gpsLogWriter.add(fix.getLongitude(), fix.getLatitude(), fix.getAltitude(), fix.getTime());
                             } catch (Exception e) {
                                 // we log the exception and try to go on
                                 GPLog.error(this, "Point in db writing error!", e);
                             }
-                            if (DO_WHILE_LOOP_LOG)
-                                GPLog.addLogEntry(GpsService.this, "GPS DEBUG: loop while 4: " + System.nanoTime());
                             currentPointsNum++;
-                            currentDistance = currentDistance + lastDistance;
+                            if (previousFix != null) {
+                                currentDistance = currentDistance + fix.distanceTo(previousFix);
+                            }
+                            previousFix = fix;
                         }
-                        if (!holdABitAndCheckLogging(waitForSecs)) {
-                            break;
+                        try {
+                            gpsLogWriter.flushIfDue();
+                        } catch (Exception e) {
+                            // the points are kept and written with the next ones
+                            GPLog.error(this, "Point in db writing error!", e);
                         }
                     }
+                    currentLoggingPipeline = null;
+                    if (DO_WHILE_LOOP_LOG)
+                        logABS("GPS fixes received: " + pipeline.getReceivedCount() + ", accepted: " + pipeline.getAcceptedCount()
+                                + ", filtered: " + pipeline.getFilteredCount() + ", dropped: " + pipeline.getDroppedCount());
 
+                    currentGpsLogWriter = null;
                     if (currentPointsNum < 4 && !continueLastLog) {
                         log("Removing gpslog, since too few points were added. Logid: " + gpsLogId);
-                        dbHelper.deleteGpslog(gpsLogId);
+                        try {
+                            gpsLogWriter.discard();
+                        } finally {
+                            dbHelper.deleteGpslog(gpsLogId);
+                        }
                     } else {
-                        // set the end time stamp and the total distance for the track
-                        long end = System.currentTimeMillis();
-                        dbHelper.setEndTs(gpsLogId, end);
-                        dbHelper.setTrackLengthm(gpsLogId, currentDistance);
+                        try {
+                            gpsLogWriter.close();
+                        } finally {
+                            // set the end time stamp and the total distance for the track, also if the last
+                            // points could not be written: they are recovered with the next log
+                            long end = System.currentTimeMillis();
+                            dbHelper.setEndTs(gpsLogId, end);
+                            dbHelper.setTrackLengthm(gpsLogId, currentDistance);
+                        }
                     }
 
                     currentPointsNum = 0;
@@ -487,32 +471,12 @@ public class GpsService extends Service implements LocationListener, Listener {
                     GPLog.error(this, msg, e);
                     toastHandler.post(new ToastRunnable(msg));
                 } finally {
+                    currentLoggingPipeline = null;
+                    currentGpsLogWriter = null;
                     isDatabaseLogging = false;
                 }
                 log("GPS Exit logging...");
             }
-
-            /**
-             * Waits a bit before next gps query.
-             *
-             * @param waitForSecs seconds to wait.
-             * @return <code>false</code> if the gps got interrupted, <code>true</code> else.
-             */
-            private boolean holdABitAndCheckLogging(int waitForSecs) {
-                try {
-                    for (int i = 0; i < waitForSecs; i++) {
-                        Thread.sleep(1000L);
-                        if (!isDatabaseLogging) {
-                            return false;
-                        }
-                    }
-                    return true;
-                } catch (InterruptedException e) {
-                    String msg = getResources().getString(R.string.cantwrite_gpslog);
-                    GPLog.error(this, msg, e);
-                    return true;
-                }
-            }
         };
         t.start();
 
@@ -521,6 +485,35 @@ public class GpsService extends Service implements LocationListener, Listener {
 
     private void stopDatabaseLogging() {
         isDatabaseLogging = false;
+        GpsLoggingPipeline pipeline = currentLoggingPipeline;
+        if (pipeline != null) {
+            pipeline.wakeUp();
+        }
+    }
+
+    /**
+     * Get the pipeline that passes the fixes to the log being recorded.
+     * <p/>
+     * <p>Its counters tell how many fixes were received, accepted and filtered.</p>
+     *
+     * @return the pipeline or <code>null</code> if no log is being recorded.
+     */
+    public static GpsLoggingPipeline getCurrentLoggingPipeline() {
+        return currentLoggingPipeline;
+    }
+
+    /**
+     * Get the positions of the log being recorded that are not yet in the database.
+     *
+     * @return the positions as [lons, lats], preceded by the last position in the database,
+     * or <code>null</code> if no log is being recorded.
+     */
+    public static double[][] getPendingLogPositions() {
+        GpsLogWriter gpsLogWriter = currentGpsLogWriter;
+        if (gpsLogWriter == null) {
+            return null;
+        }
+        return gpsLogWriter.getPendingPositions();
     }
 
     private static void log(String msg) {
@@ -579,6 +572,11 @@ public class GpsService extends Service implements LocationListener, Listener {
             PositionUtilities.putGpsLocationInPreferences(preferences, recLon, recLat, recAlt);
             previousLoc = loc;
 
+            GpsLoggingPipeline pipeline = currentLoggingPipeline;
+            if (pipeline != null) {
+                pipeline.offer(new GpsFix(recLon, recLat, recAlt, lastGpsLocation.getTime()));
+            }
+
             broadcast("triggered by onLocationChanged");
         }
     }
@@ -0,0 +1,37 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+/**
+ * A stage of the {@link GpsLoggingPipeline} that decides which fixes are logged.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface IGpsFixFilter {
+
+    /**
+     * Checks a fix.
+     *
+     * @param fix          the fix to check.
+     * @param lastAccepted the last fix that passed all the filters or <code>null</code> for the
+     *                     first fix, which filters should accept.
+     * @return <code>true</code> if the fix should be logged.
+     */
+    public boolean accept(GpsFix fix, GpsFix lastAccepted);
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+/**
+ * Filter that skips the fixes taken too soon after the last logged one.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class MinIntervalFixFilter implements IGpsFixFilter {
+
+    private final long minIntervalMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param minIntervalMillis the minimum interval in milliseconds.
+     */
+    public MinIntervalFixFilter(long minIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    @Override
+    public boolean accept(GpsFix fix, GpsFix lastAccepted) {
+        if (lastAccepted == null) {
+            return true;
+        }
+        long interval = fix.getTime() - lastAccepted.getTime();
+        // a clock that went back would otherwise block the log
+        return interval >= minIntervalMillis || interval < 0;
+    }
+}
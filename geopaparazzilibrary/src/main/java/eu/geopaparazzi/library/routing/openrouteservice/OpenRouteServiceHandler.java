@@ -248,20 +248,25 @@ public class OpenRouteServiceHandler {
                 String[] pairs = path.trim().split(" ");
 
                 try {
+                    int size = pairs.length - 1;
+                    double[] lons = new double[size];
+                    double[] lats = new double[size];
+                    double[] altims = new double[size];
+                    long[] timestamps = new long[size];
                     for( int i = 1; i < pairs.length; i++ ) // the last one would be crash
                     {
                         String[] lngLat = pairs[i].split(",");
-                        double lon = Double.parseDouble(lngLat[0]);
-                        double lat = Double.parseDouble(lngLat[1]);
-                        double altim = 0;
+                        lons[i - 1] = Double.parseDouble(lngLat[0]);
+                        lats[i - 1] = Double.parseDouble(lngLat[1]);
                         if (lngLat.length > 2) {
-                            altim = Double.parseDouble(lngLat[2]);
+                            altims[i - 1] = Double.parseDouble(lngLat[2]);
                         }
 
                         // dummy time increment
                         nowPlus10Secs = nowPlus10Secs + 10000;
-                        logDumper.addGpsLogDataPoint(sqliteDatabase, newLogId, lon, lat, altim, nowPlus10Secs);
+                        timestamps[i - 1] = nowPlus10Secs;
                     }
+                    logDumper.addGpsLogDataPoints(sqliteDatabase, newLogId, lons, lats, altims, timestamps, size);
                 } catch (NumberFormatException e) {
                     GPLog.error(this, "Cannot draw route.", e);
                 }
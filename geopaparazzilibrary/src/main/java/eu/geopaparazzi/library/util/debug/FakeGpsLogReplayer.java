@@ -0,0 +1,93 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.util.debug;
+
+import eu.geopaparazzi.library.gps.GpsFix;
+import eu.geopaparazzi.library.gps.GpsLoggingPipeline;
+
+/**
+ * Feeds the records of a {@link IFakeGpsLog} into a {@link GpsLoggingPipeline} at a fixed rate.
+ * <p/>
+ * <p>The fixes get timestamps spaced by the given rate, starting from the time of the first
+ * record, so the same log and rate always give the same fixes to the filters. The log
+ * is restarted when it ends, like {@link TestMock} does.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class FakeGpsLogReplayer {
+
+    private final IFakeGpsLog fakeGpsLog;
+
+    /**
+     * Constructor.
+     *
+     * @param fakeGpsLog the log to replay, {@link DefaultFakeGpsLog} if <code>null</code>.
+     */
+    public FakeGpsLogReplayer(IFakeGpsLog fakeGpsLog) {
+        if (fakeGpsLog == null) {
+            fakeGpsLog = new DefaultFakeGpsLog();
+        }
+        this.fakeGpsLog = fakeGpsLog;
+    }
+
+    /**
+     * Replay the log.
+     *
+     * @param pipeline  the pipeline to feed.
+     * @param rateHz    the number of fixes per second, usually between 10 and 50.
+     * @param fixesNum  the number of fixes to feed.
+     * @param realTime  if <code>true</code>, the fixes are fed at the given rate, else as fast as possible.
+     * @return the number of fixes the pipeline took in its queue.
+     * @throws InterruptedException if interrupted while waiting for the next fix.
+     */
+    public int replay(GpsLoggingPipeline pipeline, int rateHz, int fixesNum, boolean realTime) throws InterruptedException {
+        fakeGpsLog.reset();
+        long intervalNanos = 1000000000L / rateHz;
+        long startNanos = System.nanoTime();
+        long startTime = -1;
+        int queuedNum = 0;
+        for (int i = 0; i < fixesNum; i++) {
+            if (!fakeGpsLog.hasNext()) {
+                fakeGpsLog.reset();
+                if (!fakeGpsLog.hasNext()) {
+                    throw new IllegalArgumentException("The gps log is empty.");
+                }
+            }
+            String[] lineSplit = fakeGpsLog.next().split(",");
+            if (startTime < 0) {
+                startTime = Long.parseLong(lineSplit[0]);
+            }
+            long time = startTime + i * intervalNanos / 1000000L;
+            double lon = Double.parseDouble(lineSplit[1]);
+            double lat = Double.parseDouble(lineSplit[2]);
+            double alt = Double.parseDouble(lineSplit[3]);
+
+            if (realTime) {
+                long waitNanos = startNanos + i * intervalNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                }
+            }
+            if (pipeline.offer(new GpsFix(lon, lat, alt, time))) {
+                queuedNum++;
+            }
+        }
+        return queuedNum;
+    }
+}
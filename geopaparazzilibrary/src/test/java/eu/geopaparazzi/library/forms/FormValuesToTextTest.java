@@ -0,0 +1,60 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.library.forms;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The text of the form values that {@link FormUtilities#formValuesToText} indexes for the notes search.
+ */
+public class FormValuesToTextTest {
+
+    @Test
+    public void testValuesOfAllForms() throws Exception {
+        String section = "{\"sectionname\": \"trees\", \"forms\": ["
+                + "{\"formname\": \"tree\", \"formitems\": ["
+                + "{\"key\": \"species\", \"type\": \"string\", \"value\": \"Larix decidua\"},"
+                + "{\"key\": \"height\", \"type\": \"double\", \"value\": \"23.5\"}]},"
+                + "{\"formname\": \"notes\", \"formitems\": ["
+                + "{\"key\": \"remarks\", \"type\": \"string\", \"value\": \"  broken top  \"}]}]}";
+        assertEquals("Larix decidua\n23.5\nbroken top\n", FormUtilities.formValuesToText(section));
+    }
+
+    @Test
+    public void testSkippedItems() throws Exception {
+        String section = "{\"sectionname\": \"site\", \"forms\": ["
+                + "{\"formname\": \"site\", \"formitems\": ["
+                + "{\"key\": \"photos\", \"type\": \"pictures\", \"value\": \"12;13\"},"
+                + "{\"key\": \"map\", \"type\": \"map\", \"value\": \"14\"},"
+                + "{\"key\": \"drawing\", \"type\": \"sketch\", \"value\": \"15\"},"
+                + "{\"key\": \"empty\", \"type\": \"string\", \"value\": \"   \"},"
+                + "{\"key\": \"novalue\", \"type\": \"string\"},"
+                + "{\"type\": \"label\", \"value\": \"Site description\"},"
+                + "{\"key\": \"name\", \"type\": \"string\", \"value\": \"Ridge\"}]},"
+                + "{\"formname\": \"noitems\"}]}";
+        assertEquals("Ridge\n", FormUtilities.formValuesToText(section));
+    }
+
+    @Test
+    public void testNoForms() throws Exception {
+        assertEquals("", FormUtilities.formValuesToText("{\"sectionname\": \"empty\", \"forms\": []}"));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.library.gps;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * The write, truncate and replay cycle of the file that {@link GpsLogWriter#recover} reads.
+ */
+public class GpsLogRecoveryFileTest {
+    private static final long LOG_ID = 42;
+
+    private File file;
+
+    @Before
+    public void createFileName() throws Exception {
+        file = File.createTempFile("gpslog", ".wal");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testReplayOfUncommittedPoints() throws Exception {
+        GpsLogRecoveryFile recoveryFile = new GpsLogRecoveryFile(file, LOG_ID);
+        recoveryFile.append(11.1, 46.1, 100.1, 1000);
+        recoveryFile.append(11.2, 46.2, 100.2, 2000);
+        // committed
+        recoveryFile.truncate();
+        recoveryFile.append(11.3, 46.3, 100.3, 3000);
+        recoveryFile.append(11.4, 46.4, 100.4, 4000);
+        // the process dies here, the file is never closed
+
+        GpsLogRecoveryFile.Points points = GpsLogRecoveryFile.read(file);
+        assertEquals(LOG_ID, points.logId);
+        assertEquals(2, points.count);
+        assertArrayEquals(new double[]{11.3, 11.4}, points.lons, 0.0);
+        assertArrayEquals(new double[]{46.3, 46.4}, points.lats, 0.0);
+        assertArrayEquals(new double[]{100.3, 100.4}, points.altims, 0.0);
+        assertArrayEquals(new long[]{3000, 4000}, points.timestamps);
+        recoveryFile.close();
+    }
+
+    @Test
+    public void testPartialLastRecordIsLeftOut() throws Exception {
+        GpsLogRecoveryFile recoveryFile = new GpsLogRecoveryFile(file, LOG_ID);
+        recoveryFile.append(11.1, 46.1, 100.1, 1000);
+        recoveryFile.close();
+        // a record cut by the crash
+        FileOutputStream outputStream = new FileOutputStream(file, true);
+        outputStream.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+        outputStream.close();
+
+        GpsLogRecoveryFile.Points points = GpsLogRecoveryFile.read(file);
+        assertEquals(LOG_ID, points.logId);
+        assertEquals(1, points.count);
+        assertArrayEquals(new long[]{1000}, points.timestamps);
+    }
+
+    @Test
+    public void testNothingToReplayAfterCommit() throws Exception {
+        GpsLogRecoveryFile recoveryFile = new GpsLogRecoveryFile(file, LOG_ID);
+        recoveryFile.append(11.1, 46.1, 100.1, 1000);
+        recoveryFile.truncate();
+        recoveryFile.close();
+
+        assertTrue(file.exists());
+        assertNull(GpsLogRecoveryFile.read(file));
+    }
+
+    @Test
+    public void testAppendAfterReopenKeepsHeader() throws Exception {
+        GpsLogRecoveryFile recoveryFile = new GpsLogRecoveryFile(file, LOG_ID);
+        recoveryFile.append(11.1, 46.1, 100.1, 1000);
+        recoveryFile.close();
+        recoveryFile.append(11.2, 46.2, 100.2, 2000);
+        recoveryFile.close();
+
+        GpsLogRecoveryFile.Points points = GpsLogRecoveryFile.read(file);
+        assertEquals(LOG_ID, points.logId);
+        assertArrayEquals(new long[]{1000, 2000}, points.timestamps);
+    }
+
+    @Test
+    public void testNewLogReplacesStaleFile() throws Exception {
+        // left by a log whose points could not be recovered
+        GpsLogRecoveryFile staleFile = new GpsLogRecoveryFile(file, LOG_ID);
+        staleFile.append(11.1, 46.1, 100.1, 1000);
+        staleFile.close();
+
+        GpsLogRecoveryFile recoveryFile = new GpsLogRecoveryFile(file, LOG_ID + 1);
+        recoveryFile.append(11.2, 46.2, 100.2, 2000);
+        recoveryFile.close();
+
+        GpsLogRecoveryFile.Points points = GpsLogRecoveryFile.read(file);
+        assertEquals(LOG_ID + 1, points.logId);
+        assertArrayEquals(new long[]{2000}, points.timestamps);
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        assertNull(GpsLogRecoveryFile.read(file));
+
+        GpsLogRecoveryFile recoveryFile = new GpsLogRecoveryFile(file, LOG_ID);
+        recoveryFile.append(11.1, 46.1, 100.1, 1000);
+        recoveryFile.delete();
+
+        assertFalse(file.exists());
+        assertNull(GpsLogRecoveryFile.read(file));
+        // deleting a missing file is fine
+        GpsLogRecoveryFile.delete(file);
+    }
+}
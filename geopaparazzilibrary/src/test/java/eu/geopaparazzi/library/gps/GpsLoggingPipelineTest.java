@@ -0,0 +1,189 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.library.gps;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.geopaparazzi.library.util.debug.FakeGpsLogReplayer;
+import eu.geopaparazzi.library.util.debug.IFakeGpsLog;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays fake gps logs into a {@link GpsLoggingPipeline} and checks what its filters let through.
+ * <p/>
+ * <p>The replayer gives the fixes timestamps from the rate and the fixes are taken after the
+ * replay, so the results do not depend on the speed of the machine.</p>
+ */
+public class GpsLoggingPipelineTest {
+    /**
+     * First time of the {@link eu.geopaparazzi.library.util.debug.DefaultFakeGpsLog}.
+     */
+    private static final long DEFAULT_LOG_START = 1372168419086L;
+
+    @Test
+    public void testMinIntervalAt10Hz() throws Exception {
+        GpsLoggingPipeline pipeline = new GpsLoggingPipeline(GpsLoggingPipeline.DEFAULT_CAPACITY)//
+                .addFilter(new MinIntervalFixFilter(1000));
+        int queued = new FakeGpsLogReplayer(null).replay(pipeline, 10, 50, false);
+        List<GpsFix> accepted = takeAll(pipeline);
+
+        assertEquals(50, queued);
+        assertEquals(50, pipeline.getReceivedCount());
+        assertEquals(0, pipeline.getDroppedCount());
+        assertEquals(5, pipeline.getAcceptedCount());
+        assertEquals(45, pipeline.getFilteredCount());
+        assertEquals(5, accepted.size());
+        for (int i = 0; i < accepted.size(); i++) {
+            assertEquals(DEFAULT_LOG_START + i * 1000L, accepted.get(i).getTime());
+        }
+        // the first fix is logged, it is not skipped while waiting for a second one
+        assertEquals(11.330159935132981, accepted.get(0).getLongitude(), 0.0);
+        assertEquals(46.48170742269335, accepted.get(0).getLatitude(), 0.0);
+    }
+
+    @Test
+    public void testMinIntervalAt50Hz() throws Exception {
+        GpsLoggingPipeline pipeline = new GpsLoggingPipeline(GpsLoggingPipeline.DEFAULT_CAPACITY)//
+                .addFilter(new MinIntervalFixFilter(1000));
+        int queued = new FakeGpsLogReplayer(null).replay(pipeline, 50, 250, false);
+        List<GpsFix> accepted = takeAll(pipeline);
+
+        assertEquals(250, queued);
+        assertEquals(250, pipeline.getReceivedCount());
+        assertEquals(0, pipeline.getDroppedCount());
+        assertEquals(5, pipeline.getAcceptedCount());
+        assertEquals(245, pipeline.getFilteredCount());
+        for (int i = 0; i < accepted.size(); i++) {
+            assertEquals(DEFAULT_LOG_START + i * 1000L, accepted.get(i).getTime());
+        }
+    }
+
+    @Test
+    public void testFullQueueDropsNewFixes() throws Exception {
+        GpsLoggingPipeline pipeline = new GpsLoggingPipeline(16)//
+                .addFilter(new MinIntervalFixFilter(1000));
+        // nobody takes the fixes while they arrive
+        int queued = new FakeGpsLogReplayer(null).replay(pipeline, 50, 250, false);
+        List<GpsFix> accepted = takeAll(pipeline);
+
+        assertEquals(16, queued);
+        assertEquals(250, pipeline.getReceivedCount());
+        assertEquals(234, pipeline.getDroppedCount());
+        // the queued fixes span 300 milliseconds
+        assertEquals(1, pipeline.getAcceptedCount());
+        assertEquals(15, pipeline.getFilteredCount());
+        assertEquals(DEFAULT_LOG_START, accepted.get(0).getTime());
+    }
+
+    @Test
+    public void testMinDistanceFromLastLoggedFix() throws Exception {
+        GpsLoggingPipeline pipeline = new GpsLoggingPipeline(GpsLoggingPipeline.DEFAULT_CAPACITY)//
+                .addFilter(new MinDistanceFixFilter(5));
+        // about 1.1 meters between two fixes, each one is nearer than 5 meters to the previous
+        new FakeGpsLogReplayer(new LineFakeGpsLog(21)).replay(pipeline, 10, 21, false);
+        List<GpsFix> accepted = takeAll(pipeline);
+
+        assertEquals(21, pipeline.getReceivedCount());
+        assertEquals(5, pipeline.getAcceptedCount());
+        assertEquals(16, pipeline.getFilteredCount());
+        for (int i = 0; i < accepted.size(); i++) {
+            assertEquals(LineFakeGpsLog.getLatitude(i * 5), accepted.get(i).getLatitude(), 1E-12);
+        }
+    }
+
+    @Test
+    public void testMinIntervalAndDistanceAt10Hz() throws Exception {
+        GpsLoggingPipeline pipeline = new GpsLoggingPipeline(GpsLoggingPipeline.DEFAULT_CAPACITY)//
+                .addFilter(new MinIntervalFixFilter(1000))//
+                .addFilter(new MinDistanceFixFilter(20));
+        new FakeGpsLogReplayer(new LineFakeGpsLog(100)).replay(pipeline, 10, 100, false);
+        List<GpsFix> accepted = takeAll(pipeline);
+
+        // 1 second is 10 fixes, 20 meters are 18 fixes: the distance decides
+        assertEquals(100, pipeline.getReceivedCount());
+        assertEquals(0, pipeline.getDroppedCount());
+        assertEquals(6, pipeline.getAcceptedCount());
+        assertEquals(94, pipeline.getFilteredCount());
+        for (int i = 0; i < accepted.size(); i++) {
+            assertEquals(LineFakeGpsLog.getLatitude(i * 18), accepted.get(i).getLatitude(), 1E-12);
+        }
+    }
+
+    @Test
+    public void testMinIntervalAndDistanceAt50Hz() throws Exception {
+        GpsLoggingPipeline pipeline = new GpsLoggingPipeline(GpsLoggingPipeline.DEFAULT_CAPACITY)//
+                .addFilter(new MinIntervalFixFilter(1000))//
+                .addFilter(new MinDistanceFixFilter(20));
+        new FakeGpsLogReplayer(new LineFakeGpsLog(100)).replay(pipeline, 50, 100, false);
+        List<GpsFix> accepted = takeAll(pipeline);
+
+        // 1 second is 50 fixes, 20 meters are 18 fixes: the interval decides
+        assertEquals(100, pipeline.getReceivedCount());
+        assertEquals(0, pipeline.getDroppedCount());
+        assertEquals(2, pipeline.getAcceptedCount());
+        assertEquals(98, pipeline.getFilteredCount());
+        assertEquals(LineFakeGpsLog.getLatitude(0), accepted.get(0).getLatitude(), 1E-12);
+        assertEquals(LineFakeGpsLog.getLatitude(50), accepted.get(1).getLatitude(), 1E-12);
+    }
+
+    private static List<GpsFix> takeAll(GpsLoggingPipeline pipeline) {
+        List<GpsFix> accepted = new ArrayList<>();
+        GpsFix fix;
+        while ((fix = pipeline.take(0)) != null) {
+            accepted.add(fix);
+        }
+        return accepted;
+    }
+
+    /**
+     * A log going north along a meridian, about 1.1 meters per record.
+     */
+    private static class LineFakeGpsLog implements IFakeGpsLog {
+        private static final double LAT_STEP = 1E-5;
+
+        private final int recordsNum;
+        private int index = 0;
+
+        LineFakeGpsLog(int recordsNum) {
+            this.recordsNum = recordsNum;
+        }
+
+        static double getLatitude(int index) {
+            return 46.0 + index * LAT_STEP;
+        }
+
+        public boolean hasNext() {
+            return index < recordsNum;
+        }
+
+        public String next() {
+            String record = (DEFAULT_LOG_START + index * 1000L) + ",11.0," + getLatitude(index) + ",100.0,1.1,5";
+            index++;
+            return record;
+        }
+
+        public void reset() {
+            index = 0;
+        }
+    }
+}
@@ -40,6 +40,7 @@ import eu.geopaparazzi.library.network.NetworkUtilities;
 import eu.geopaparazzi.library.util.FileUtilities;
 import eu.geopaparazzi.library.util.MercatorUtils;
 import eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers.MbtilesDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesBulkWriter;
 
 /**
  * A MapGenerator that downloads tiles from the Mapnik server at OpenStreetMap.
@@ -117,6 +118,7 @@ public class CustomTileDownloader extends TileDownloader {
     private String format; // mbtiles specific
     private int i_force_unique = 0;
     private MbtilesDatabaseHandler mbtilesDatabase = null;
+    private MBTilesBulkWriter mbtilesWriter = null;
     private int i_tile_server = 0; // if no 'SSS' is found, server logic will not be called
     private GeoPoint centerPoint = new GeoPoint(0, 0);
 
@@ -812,9 +814,17 @@ public class CustomTileDownloader extends TileDownloader {
             if (decodedBitmap != null) {
                 if (mbtilesDatabase != null) {
                     // we have a valid image, store this to the active mbtiles.db
-                    // [this must be done before recycle() is called]
+                    // [this must be done before recycle() is called, the image is compressed here
+                    // and inserted together with other tiles by the writer thread]
                     // decodedBitmap == ARGB_8888 ; bitmap == RGB_565
-                    mbtilesDatabase.insertBitmapTile(tileX, tileYOsm, zoom, decodedBitmap, i_force_unique);
+                    if (mbtilesWriter == null)
+                        mbtilesWriter = mbtilesDatabase.createBulkWriter(i_force_unique, null);
+                    try {
+                        mbtilesWriter.addTile(mbtilesDatabase.createTileData(tileX, tileYOsm, zoom, decodedBitmap));
+                    } catch (InterruptedException e) {
+                        // the tile is not stored, the map worker is stopping
+                        Thread.currentThread().interrupt();
+                    }
                 }
                 // copy all pixels from the decoded bitmap to the color array
                 decodedBitmap.getPixels(this.pixels, 0, tileSize, 0, 0, tileSize, tileSize);
@@ -850,6 +860,10 @@ public class CustomTileDownloader extends TileDownloader {
     }
 
     public void cleanup() {
+        if (mbtilesWriter != null) {
+            mbtilesWriter.close();
+            mbtilesWriter = null;
+        }
         if (mbtilesDatabase != null) {
             try {
                 mbtilesDatabase.close();
@@ -113,6 +113,11 @@ public class GeopackageTileDownloader extends TileDownloader {
                 int tileY = (int) tile.tileY;
                 double[] tileBounds = MercatorUtils.tileLatLonBounds(tileX, tileY, zoomLevel, Tile.TILE_SIZE);
                 rasterBytes = SPL_Rasterlite.getRasterTileInBounds(spatialiteDatabase, rasterTable, tileBounds, tileSize);
+            } else if (spatialDatabaseHandler instanceof SpatialiteDatabaseHandler) {
+                // bind the tile to the reused query instead of building a new one for each tile
+                tileQuery = tilePart;
+                rasterBytes = ((SpatialiteDatabaseHandler) spatialDatabaseHandler).getRasterTile(tilePart, tile.zoomLevel,
+                        (int) tile.tileX, (int) tile.tileY);
             } else {
                 tileQuery = getTilePath(tile);
                 rasterBytes = spatialDatabaseHandler.getRasterTile(tileQuery);
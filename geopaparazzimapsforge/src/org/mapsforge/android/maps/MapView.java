@@ -41,7 +41,7 @@ import org.mapsforge.android.maps.mapgenerator.JobTheme;
 import org.mapsforge.android.maps.mapgenerator.MapGenerator;
 import org.mapsforge.android.maps.mapgenerator.MapGeneratorFactory;
 import org.mapsforge.android.maps.mapgenerator.MapGeneratorJob;
-import org.mapsforge.android.maps.mapgenerator.MapWorker;
+import org.mapsforge.android.maps.mapgenerator.MapWorkerPool;
 import org.mapsforge.android.maps.mapgenerator.TileCache;
 import org.mapsforge.android.maps.mapgenerator.databaserenderer.DatabaseRenderer;
 import org.mapsforge.android.maps.mapgenerator.databaserenderer.ExternalRenderTheme;
@@ -83,6 +83,10 @@ public class MapView extends ViewGroup {
     private static final float DEFAULT_TEXT_SCALE = 1;
     private static final int DEFAULT_TILE_CACHE_SIZE_FILE_SYSTEM = 100;
     private static final int DEFAULT_TILE_CACHE_SIZE_IN_MEMORY = 20;
+    /**
+     * Decode the blocks of the map file directly from memory, the map workers use the same setting.
+     */
+    private static final boolean MEMORY_MAPPED_MAP_FILE = true;
 
     private DebugSettings debugSettings;
     private TileCache fileSystemTileCache;
@@ -98,7 +102,7 @@ public class MapView extends ViewGroup {
     private final MapMover mapMover;
     private final MapScaleBar mapScaleBar;
     private final MapViewPosition mapViewPosition;
-    private final MapWorker mapWorker;
+    private final MapWorkerPool mapWorkerPool;
     private final MapZoomControls mapZoomControls;
     private final List<Overlay> overlays;
     private final Projection projection;
@@ -156,7 +160,7 @@ public class MapView extends ViewGroup {
         this.jobParameters = new JobParameters(DEFAULT_RENDER_THEME, DEFAULT_TEXT_SCALE);
         this.jobQueue = new JobQueue(this);
         this.mapController = new MapController(this);
-        this.mapDatabase = new MapDatabase();
+        this.mapDatabase = new MapDatabase(MEMORY_MAPPED_MAP_FILE);
         this.mapViewPosition = new MapViewPosition(this);
         this.mapScaleBar = new MapScaleBar(this);
         this.mapZoomControls = new MapZoomControls(mapActivity, this);
@@ -164,8 +168,8 @@ public class MapView extends ViewGroup {
         this.projection = new MapViewProjection(this);
         this.touchEventHandler = TouchEventHandler.getInstance(mapActivity, this);
 
-        this.mapWorker = new MapWorker(this);
-        this.mapWorker.start();
+        this.mapWorkerPool = new MapWorkerPool(this, MapWorkerPool.DEFAULT_NUMBER_OF_WORKERS);
+        this.mapWorkerPool.start();
 
         this.mapMover = new MapMover(this);
         this.mapMover.start();
@@ -274,6 +278,25 @@ public class MapView extends ViewGroup {
         return this.mapGenerator;
     }
 
+    /**
+     * @return the number of threads which generate map tiles for this MapView.
+     */
+    public int getNumberOfMapWorkers() {
+        return this.mapWorkerPool.getNumberOfWorkers();
+    }
+
+    /**
+     * Sets the number of threads which generate map tiles for this MapView. Only offline rendering makes use of more
+     * than one thread, each of them keeps its own map file handle and render theme.
+     *
+     * @param numberOfMapWorkers the number of threads, must be positive.
+     * @throws IllegalArgumentException if the number of threads is not positive.
+     */
+    public void setNumberOfMapWorkers(int numberOfMapWorkers) {
+        this.mapWorkerPool.setNumberOfWorkers(numberOfMapWorkers);
+        redrawTiles();
+    }
+
     /**
      * @return the MapMover which is used by this MapView.
      */
@@ -429,9 +452,7 @@ public class MapView extends ViewGroup {
         invalidateOnUiThread();
 
         this.jobQueue.requestSchedule();
-        synchronized (this.mapWorker) {
-            this.mapWorker.notify();
-        }
+        this.mapWorkerPool.notifyWorkers();
     }
 
     /**
@@ -481,18 +502,18 @@ public class MapView extends ViewGroup {
         }
 
         this.zoomAnimator.pause();
-        this.mapWorker.pause();
+        this.mapWorkerPool.pause();
         this.mapMover.pause();
 
         this.zoomAnimator.awaitPausing();
         this.mapMover.awaitPausing();
-        this.mapWorker.awaitPausing();
+        this.mapWorkerPool.awaitPausing();
 
         this.mapMover.stopMove();
         this.jobQueue.clear();
 
         this.zoomAnimator.proceed();
-        this.mapWorker.proceed();
+        this.mapWorkerPool.proceed();
         this.mapMover.proceed();
 
         this.mapDatabase.closeFile();
@@ -638,7 +659,7 @@ public class MapView extends ViewGroup {
             ((DatabaseRenderer) mapGenerator).setMapDatabase(this.mapDatabase);
         }
         this.mapGenerator = mapGenerator;
-        this.mapWorker.setMapGenerator(this.mapGenerator);
+        this.mapWorkerPool.setMapGenerator(this.mapGenerator);
     }
 
     @Override
@@ -707,15 +728,8 @@ public class MapView extends ViewGroup {
         this.overlays.clear();
 
         this.mapMover.interrupt();
-        this.mapWorker.interrupt();
         this.zoomAnimator.interrupt();
-
-        try {
-            this.mapWorker.join();
-        } catch (InterruptedException e) {
-            // restore the interrupted status
-            Thread.currentThread().interrupt();
-        }
+        this.mapWorkerPool.destroy();
 
         this.frameBuffer.destroy();
         this.touchEventHandler.destroy();
@@ -753,13 +767,13 @@ public class MapView extends ViewGroup {
     }
 
     void onPause() {
-        this.mapWorker.pause();
+        this.mapWorkerPool.pause();
         this.mapMover.pause();
         this.zoomAnimator.pause();
     }
 
     void onResume() {
-        this.mapWorker.proceed();
+        this.mapWorkerPool.proceed();
         this.mapMover.proceed();
         this.zoomAnimator.proceed();
     }
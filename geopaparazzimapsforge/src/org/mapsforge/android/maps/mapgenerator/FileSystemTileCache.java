@@ -14,66 +14,248 @@
  */
 package org.mapsforge.android.maps.mapgenerator;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import org.mapsforge.android.AndroidUtils;
+import org.mapsforge.android.maps.PausableThread;
+import org.mapsforge.android.maps.mapgenerator.TileDataFile.Record;
 import org.mapsforge.core.model.Tile;
 import org.mapsforge.core.util.IOUtils;
 
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
 import android.os.Environment;
 
 /**
  * A thread-safe cache for image files with a variable size and LRU policy.
+ * <p>
+ * All tiles are stored PNG compressed in a single append-only data file. The index of the cache is kept in memory and
+ * a persistent cache writes it as a snapshot to an index file every {@link #INDEX_SNAPSHOT_INTERVAL} tiles and when it
+ * is destroyed. The data file is synced before each snapshot and the snapshot carries a checksum, so a snapshot never
+ * refers to tiles which are not on the storage. When the cache is opened again, a valid snapshot is loaded and all
+ * records which were appended after it are recovered from the data file and verified with their checksums, so that
+ * only the tiles of an incomplete last write are lost after a crash. Tiles are evicted if either the number of tiles
+ * or their total size exceeds the limits, the data file is compacted once it consists mainly of evicted tiles.
+ * <p>
+ * Lookups do not block each other or the writes. {@link #put(MapGeneratorJob, Bitmap)} only copies the pixels of the
+ * tile into a pending buffer, compressing and writing is done by a background thread. Pending tiles are served from
+ * memory, a second put of a pending tile replaces its pixels instead of writing the tile twice. If more than
+ * {@link #MAXIMUM_PENDING_TILES} tiles are waiting, further tiles are not cached. These tiles are counted, see
+ * {@link #getDroppedTilesCount()}, and logged once the background thread has caught up.
  */
 public class FileSystemTileCache implements TileCache {
-	private static final class ImageFileNameFilter implements FilenameFilter {
-		static final FilenameFilter INSTANCE = new ImageFileNameFilter();
+	/**
+	 * An index entry with the position of a tile in the data file and the time of its last access.
+	 */
+	private static final class IndexEntry {
+		volatile long lastAccess;
+		final Record record;
+
+		IndexEntry(Record record, long lastAccess) {
+			this.record = record;
+			this.lastAccess = lastAccess;
+		}
+	}
 
-		private ImageFileNameFilter() {
+	private static final class LastAccessComparator implements Comparator<Map.Entry<MapGeneratorJob, IndexEntry>> {
+		static final LastAccessComparator INSTANCE = new LastAccessComparator();
+
+		private LastAccessComparator() {
+			// do nothing
+		}
+
+		@Override
+		public int compare(Map.Entry<MapGeneratorJob, IndexEntry> entry1, Map.Entry<MapGeneratorJob, IndexEntry> entry2) {
+			long lastAccess1 = entry1.getValue().lastAccess;
+			long lastAccess2 = entry2.getValue().lastAccess;
+			return lastAccess1 < lastAccess2 ? -1 : (lastAccess1 == lastAccess2 ? 0 : 1);
+		}
+	}
+
+	private static final class LegacyFileNameFilter implements FilenameFilter {
+		static final FilenameFilter INSTANCE = new LegacyFileNameFilter();
+
+		private LegacyFileNameFilter() {
 			// do nothing
 		}
 
 		@Override
 		public boolean accept(File directory, String fileName) {
-			return fileName.endsWith(IMAGE_FILE_NAME_EXTENSION);
+			return fileName.endsWith(LEGACY_IMAGE_FILE_NAME_EXTENSION)
+					|| fileName.equals(LEGACY_SERIALIZATION_FILE_NAME);
+		}
+	}
+
+	/**
+	 * The buffers which are used to decode tiles, one per reading thread.
+	 */
+	private static final class TileDecoder {
+		final Bitmap bitmap;
+		final BitmapFactory.Options bitmapOptions;
+		byte[] readBuffer;
+
+		TileDecoder() {
+			this.bitmap = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Config.RGB_565);
+			this.bitmapOptions = new BitmapFactory.Options();
+			this.bitmapOptions.inBitmap = this.bitmap;
+			this.bitmapOptions.inMutable = true;
+			this.bitmapOptions.inPreferredConfig = Config.RGB_565;
+			this.readBuffer = new byte[Tile.TILE_SIZE_IN_BYTES >> 2];
+		}
+	}
+
+	private class TileWriter extends PausableThread {
+		private static final String THREAD_NAME = "TileCacheWriter";
+
+		TileWriter() {
+			super();
+		}
+
+		@Override
+		protected void doWork() {
+			if (FileSystemTileCache.this.trimNeeded) {
+				FileSystemTileCache.this.trimNeeded = false;
+				trimToSize();
+			}
+
+			MapGeneratorJob mapGeneratorJob = FileSystemTileCache.this.writeQueue.poll();
+			if (mapGeneratorJob != null) {
+				writeTile(mapGeneratorJob);
+			}
+
+			if (FileSystemTileCache.this.writeQueue.isEmpty()) {
+				logDroppedTiles();
+				if (FileSystemTileCache.this.stopWriter) {
+					// all pending tiles are written, the index snapshot is the last write
+					if (FileSystemTileCache.this.persistent && FileSystemTileCache.this.dataFile != null) {
+						FileSystemTileCache.this.indexWritten = writeIndex();
+					}
+					interrupt();
+				}
+			}
+		}
+
+		@Override
+		protected String getThreadName() {
+			return THREAD_NAME;
+		}
+
+		@Override
+		protected int getThreadPriority() {
+			return Thread.MIN_PRIORITY;
+		}
+
+		@Override
+		protected boolean hasWork() {
+			return FileSystemTileCache.this.trimNeeded || !FileSystemTileCache.this.writeQueue.isEmpty()
+					|| FileSystemTileCache.this.stopWriter;
 		}
 	}
 
+	/**
+	 * Maximum number of tiles which are waiting to be written. Each pending tile occupies
+	 * {@link Tile#TILE_SIZE_IN_BYTES} bytes of memory.
+	 */
+	public static final int MAXIMUM_PENDING_TILES = 16;
+
+	/**
+	 * Default maximum size of all cached tiles in bytes.
+	 */
+	public static final long DEFAULT_MAXIMUM_SIZE_IN_BYTES = 64 * 1024 * 1024;
+
 	/**
 	 * Path to the caching folder on the external storage.
 	 */
 	private static final String CACHE_DIRECTORY = "/Android/data/org.mapsforge.android.maps/cache/";
 
 	/**
-	 * File name extension for cached images.
+	 * Minimum number of bytes occupied by evicted tiles before the data file is compacted.
+	 */
+	private static final long COMPACTION_THRESHOLD = 4 * 1024 * 1024;
+
+	/**
+	 * Name of the file which stores the compressed tiles.
+	 */
+	private static final String DATA_FILE_NAME = "tiles.dat";
+
+	/**
+	 * Fraction of the limits to which the cache is reduced when one of them is exceeded, so that the least recently
+	 * used tiles need not be searched for each new tile.
+	 */
+	private static final double EVICTION_RATIO = 0.9;
+
+	/**
+	 * Magic number at the beginning of the index file.
+	 */
+	private static final int INDEX_FILE_MAGIC = 0x4d464958;
+
+	/**
+	 * Name of the file which stores the index snapshot.
+	 */
+	private static final String INDEX_FILE_NAME = "tiles.idx";
+
+	/**
+	 * Version of the index file format.
+	 */
+	private static final int INDEX_FILE_VERSION = 2;
+
+	/**
+	 * Number of written tiles after which a persistent cache writes a new index snapshot.
+	 */
+	private static final int INDEX_SNAPSHOT_INTERVAL = 64;
+
+	/**
+	 * File name extension of the uncompressed images of previous versions.
 	 */
-	private static final String IMAGE_FILE_NAME_EXTENSION = ".tile";
+	private static final String LEGACY_IMAGE_FILE_NAME_EXTENSION = ".tile";
 
 	/**
-	 * Load factor of the internal HashMap.
+	 * Name of the serialized cache map of previous versions.
 	 */
-	private static final float LOAD_FACTOR = 0.6f;
+	private static final String LEGACY_SERIALIZATION_FILE_NAME = "cache.ser";
 
 	private static final Logger LOGGER = Logger.getLogger(FileSystemTileCache.class.getName());
 
 	/**
-	 * Name of the file used for serialization of the cache map.
+	 * File name extension of files which are written completely before they replace the actual file.
 	 */
-	private static final String SERIALIZATION_FILE_NAME = "cache.ser";
+	private static final String TEMPORARY_FILE_NAME_EXTENSION = ".tmp";
+
+	/**
+	 * Maximum time in milliseconds to wait for the background thread to write the pending tiles when the cache is
+	 * destroyed.
+	 */
+	private static final long WRITER_STOP_TIMEOUT = 2000;
 
 	private static File createDirectory(String pathName) {
 		File file = new File(pathName);
@@ -89,61 +271,37 @@ public class FileSystemTileCache implements TileCache {
 		return file;
 	}
 
-	private static Map<MapGeneratorJob, File> createMap(final int mapCapacity) {
-		int initialCapacity = (int) (mapCapacity / LOAD_FACTOR) + 2;
-
-		return new LinkedHashMap<MapGeneratorJob, File>(initialCapacity, LOAD_FACTOR, true) {
-			private static final long serialVersionUID = 1L;
-
-			@Override
-			protected boolean removeEldestEntry(Map.Entry<MapGeneratorJob, File> eldestEntry) {
-				if (size() > mapCapacity) {
-					remove(eldestEntry.getKey());
-					if (!eldestEntry.getValue().delete()) {
-						eldestEntry.getValue().deleteOnExit();
-					}
-				}
-				return false;
-			}
-		};
+	private static void deleteFile(File file) {
+		if (file.exists() && !file.delete()) {
+			file.deleteOnExit();
+		}
 	}
 
 	/**
-	 * Restores the serialized cache map if possible.
+	 * Deletes the files of previous versions of this cache.
 	 * 
 	 * @param directory
-	 *            the directory of the serialized map file.
-	 * @return the deserialized map or null, in case of an error.
+	 *            the cache directory.
 	 */
-	private static Map<MapGeneratorJob, File> deserializeMap(File directory) {
-		File serializedMapFile = new File(directory, SERIALIZATION_FILE_NAME);
-		if (!serializedMapFile.exists() || !serializedMapFile.isFile() || !serializedMapFile.canRead()) {
-			return null;
+	private static void deleteLegacyFiles(File directory) {
+		File[] filesToDelete = directory.listFiles(LegacyFileNameFilter.INSTANCE);
+		if (filesToDelete != null) {
+			for (File file : filesToDelete) {
+				deleteFile(file);
+			}
 		}
+	}
 
-		FileInputStream fileInputStream = null;
+	private static MapGeneratorJob deserializeKey(byte[] key) {
 		ObjectInputStream objectInputStream = null;
 		try {
-			fileInputStream = new FileInputStream(serializedMapFile);
-			objectInputStream = new ObjectInputStream(fileInputStream);
-
-			// the compiler warning in the following line cannot be avoided unfortunately
-			Map<MapGeneratorJob, File> map = (Map<MapGeneratorJob, File>) objectInputStream.readObject();
-
-			if (!serializedMapFile.delete()) {
-				serializedMapFile.deleteOnExit();
-			}
-
-			return map;
-		} catch (IOException e) {
-			LOGGER.log(Level.SEVERE, null, e);
-			return null;
-		} catch (ClassNotFoundException e) {
-			LOGGER.log(Level.SEVERE, null, e);
+			objectInputStream = new ObjectInputStream(new ByteArrayInputStream(key));
+			return (MapGeneratorJob) objectInputStream.readObject();
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			LOGGER.log(Level.WARNING, null, e);
 			return null;
 		} finally {
 			IOUtils.closeQuietly(objectInputStream);
-			IOUtils.closeQuietly(fileInputStream);
 		}
 	}
 
@@ -156,44 +314,45 @@ public class FileSystemTileCache implements TileCache {
 		return capacity;
 	}
 
-	/**
-	 * Serializes the cache map.
-	 * 
-	 * @param directory
-	 *            the directory of the serialized map file.
-	 * @param map
-	 *            the map to be serialized.
-	 * @return true if the map was serialized successfully, false otherwise.
-	 */
-	private static boolean serializeMap(File directory, Map<MapGeneratorJob, File> map) {
-		File serializedMapFile = new File(directory, SERIALIZATION_FILE_NAME);
-		if (serializedMapFile.exists() && !serializedMapFile.delete()) {
-			return false;
+	private static long getMaximumSizeInBytes(long maximumSizeInBytes) {
+		if (maximumSizeInBytes < 0) {
+			throw new IllegalArgumentException("maximum size must not be negative: " + maximumSizeInBytes);
 		}
+		return maximumSizeInBytes;
+	}
 
-		FileOutputStream fileOutputStream = null;
-		ObjectOutputStream objectOutputStream = null;
+	private static byte[] serializeKey(MapGeneratorJob mapGeneratorJob) throws IOException {
+		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(256);
+		ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
 		try {
-			fileOutputStream = new FileOutputStream(serializedMapFile);
-			objectOutputStream = new ObjectOutputStream(fileOutputStream);
-			objectOutputStream.writeObject(map);
-			return true;
-		} catch (IOException e) {
-			LOGGER.log(Level.SEVERE, null, e);
-			return false;
+			objectOutputStream.writeObject(mapGeneratorJob);
 		} finally {
 			IOUtils.closeQuietly(objectOutputStream);
-			IOUtils.closeQuietly(fileOutputStream);
 		}
+		return byteArrayOutputStream.toByteArray();
 	}
 
-	private final Bitmap bitmapGet;
-	private final ByteBuffer byteBuffer;
+	private final AtomicLong accessCounter;
 	private final File cacheDirectory;
-	private long cacheId;
-	private int capacity;
-	private Map<MapGeneratorJob, File> map;
-	private boolean persistent;
+	private volatile int capacity;
+	private final ByteArrayOutputStream compressBuffer;
+	private volatile TileDataFile dataFile;
+	private final ReentrantReadWriteLock dataFileLock;
+	private final AtomicLong droppedTiles;
+	private final ConcurrentHashMap<MapGeneratorJob, IndexEntry> index;
+	private volatile boolean indexWritten;
+	private long loggedDroppedTiles;
+	private volatile long maximumSizeInBytes;
+	private final ConcurrentHashMap<MapGeneratorJob, byte[]> pendingTiles;
+	private volatile boolean persistent;
+	private final AtomicLong sizeInBytes;
+	private volatile boolean stopWriter;
+	private final ThreadLocal<TileDecoder> tileDecoders;
+	private int tilesSinceSnapshot;
+	private TileWriter tileWriter;
+	private volatile boolean trimNeeded;
+	private Bitmap writeBitmap;
+	private final ConcurrentLinkedQueue<MapGeneratorJob> writeQueue;
 
 	/**
 	 * @param capacity
@@ -205,159 +364,562 @@ public class FileSystemTileCache implements TileCache {
 	 */
 	public FileSystemTileCache(int capacity, int mapViewId) {
 		this.capacity = getCapacity(capacity);
+		this.maximumSizeInBytes = DEFAULT_MAXIMUM_SIZE_IN_BYTES;
 
 		String externalStorageDirectory = Environment.getExternalStorageDirectory().getAbsolutePath();
 		String cacheDirectoryPath = externalStorageDirectory + CACHE_DIRECTORY + mapViewId;
 		this.cacheDirectory = createDirectory(cacheDirectoryPath);
+		deleteLegacyFiles(this.cacheDirectory);
+
+		this.accessCounter = new AtomicLong();
+		this.dataFileLock = new ReentrantReadWriteLock();
+		this.droppedTiles = new AtomicLong();
+		this.index = new ConcurrentHashMap<>();
+		this.pendingTiles = new ConcurrentHashMap<>();
+		this.sizeInBytes = new AtomicLong();
+		this.writeQueue = new ConcurrentLinkedQueue<>();
+		this.compressBuffer = new ByteArrayOutputStream(Tile.TILE_SIZE_IN_BYTES >> 2);
+		this.tileDecoders = new ThreadLocal<TileDecoder>() {
+			@Override
+			protected TileDecoder initialValue() {
+				return new TileDecoder();
+			}
+		};
 
-		Map<MapGeneratorJob, File> deserializedMap = deserializeMap(this.cacheDirectory);
-		if (deserializedMap == null) {
-			this.map = createMap(this.capacity);
-		} else {
-			this.map = deserializedMap;
+		if (this.capacity > 0) {
+			openDataFile();
 		}
-		this.byteBuffer = ByteBuffer.allocate(Tile.TILE_SIZE_IN_BYTES);
-		this.bitmapGet = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Config.RGB_565);
 	}
 
 	@Override
-	public synchronized boolean containsKey(MapGeneratorJob mapGeneratorJob) {
-		return this.map.containsKey(mapGeneratorJob);
+	public boolean containsKey(MapGeneratorJob mapGeneratorJob) {
+		return this.index.containsKey(mapGeneratorJob) || this.pendingTiles.containsKey(mapGeneratorJob);
 	}
 
+	/**
+	 * Lets the background thread write all pending tiles and the index snapshot of a persistent cache, waiting at most
+	 * {@link #WRITER_STOP_TIMEOUT} milliseconds for it, then closes the data file. If the cache is not persistent or
+	 * the index could not be written, all cached tiles are deleted. The cache can still be used afterwards, the data
+	 * file is opened again with the next tile.
+	 */
 	@Override
 	public synchronized void destroy() {
-		if (!this.persistent || !serializeMap(this.cacheDirectory, this.map)) {
-			for (File file : this.map.values()) {
-				if (!file.delete()) {
-					file.deleteOnExit();
-				}
-			}
-			this.map.clear();
+		if (!this.persistent) {
+			// the tiles are deleted anyway
+			this.writeQueue.clear();
+		}
+		boolean keepFiles = stopTileWriter();
 
-			File[] filesToDelete = this.cacheDirectory.listFiles(ImageFileNameFilter.INSTANCE);
-			if (filesToDelete != null) {
-				for (File file : filesToDelete) {
-					if (!file.delete()) {
-						file.deleteOnExit();
-					}
-				}
+		this.dataFileLock.writeLock().lock();
+		try {
+			if (this.dataFile != null) {
+				this.dataFile.close();
+				this.dataFile = null;
 			}
-
-			if (!this.cacheDirectory.delete()) {
-				this.cacheDirectory.deleteOnExit();
+			this.writeQueue.clear();
+			this.pendingTiles.clear();
+			this.index.clear();
+			this.sizeInBytes.set(0);
+
+			if (!keepFiles) {
+				deleteFile(new File(this.cacheDirectory, DATA_FILE_NAME));
+				deleteFile(new File(this.cacheDirectory, INDEX_FILE_NAME));
+				deleteFile(new File(this.cacheDirectory, DATA_FILE_NAME + TEMPORARY_FILE_NAME_EXTENSION));
+				deleteFile(new File(this.cacheDirectory, INDEX_FILE_NAME + TEMPORARY_FILE_NAME_EXTENSION));
+				deleteLegacyFiles(this.cacheDirectory);
+
+				if (!this.cacheDirectory.delete()) {
+					this.cacheDirectory.deleteOnExit();
+				}
 			}
+		} finally {
+			this.dataFileLock.writeLock().unlock();
 		}
 	}
 
 	@Override
-	public synchronized Bitmap get(MapGeneratorJob mapGeneratorJob) {
+	public Bitmap get(MapGeneratorJob mapGeneratorJob) {
 		if (this.capacity == 0) {
 			return null;
 		}
 
-		FileInputStream fileInputStream = null;
+		TileDecoder tileDecoder = this.tileDecoders.get();
+		byte[] pixels = this.pendingTiles.get(mapGeneratorJob);
+		if (pixels != null) {
+			tileDecoder.bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+			return tileDecoder.bitmap;
+		}
+
+		IndexEntry indexEntry;
+		int dataOffset;
+		this.dataFileLock.readLock().lock();
 		try {
-			File inputFile = this.map.get(mapGeneratorJob);
-            if (inputFile !=null) {
-                fileInputStream = new FileInputStream(inputFile);
-                byte[] array = this.byteBuffer.array();
-                int bytesRead = fileInputStream.read(array);
-
-                if (bytesRead == array.length) {
-                    this.byteBuffer.rewind();
-                    this.bitmapGet.copyPixelsFromBuffer(this.byteBuffer);
-                    return this.bitmapGet;
-                }
-            }else{
-                this.map.remove(mapGeneratorJob);
-                return null;
-            }
-			return null;
-		} catch (FileNotFoundException e) {
-			this.map.remove(mapGeneratorJob);
-			return null;
+			indexEntry = this.index.get(mapGeneratorJob);
+			if (indexEntry == null || this.dataFile == null) {
+				return null;
+			}
+
+			Record record = indexEntry.record;
+			if (tileDecoder.readBuffer.length < record.length) {
+				tileDecoder.readBuffer = new byte[record.length];
+			}
+			dataOffset = this.dataFile.read(record, tileDecoder.readBuffer);
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, null, e);
 			return null;
 		} finally {
-			try {
-				if (fileInputStream != null) {
-					fileInputStream.close();
-				}
-			} catch (IOException e) {
-				LOGGER.log(Level.SEVERE, null, e);
+			this.dataFileLock.readLock().unlock();
+		}
+
+		try {
+			Bitmap bitmap = BitmapFactory.decodeByteArray(tileDecoder.readBuffer, dataOffset,
+					indexEntry.record.length - dataOffset, tileDecoder.bitmapOptions);
+			if (bitmap != null) {
+				indexEntry.lastAccess = this.accessCounter.incrementAndGet();
+				return bitmap;
 			}
+		} catch (IllegalArgumentException e) {
+			LOGGER.log(Level.SEVERE, null, e);
+		}
+
+		LOGGER.warning("could not decode cached tile: " + mapGeneratorJob.tile);
+		if (this.index.remove(mapGeneratorJob, indexEntry)) {
+			this.sizeInBytes.addAndGet(-indexEntry.record.length);
 		}
+		return null;
 	}
 
 	@Override
-	public synchronized int getCapacity() {
+	public int getCapacity() {
 		return this.capacity;
 	}
 
+	/**
+	 * @return the maximum size of all cached tiles in bytes.
+	 */
+	public long getMaximumSizeInBytes() {
+		return this.maximumSizeInBytes;
+	}
+
+	/**
+	 * @return the size of all cached tiles in bytes, without the tiles which are not yet written.
+	 */
+	public long getSizeInBytes() {
+		return this.sizeInBytes.get();
+	}
+
+	/**
+	 * @return the number of tiles which were not cached because too many tiles were waiting to be written.
+	 */
+	public long getDroppedTilesCount() {
+		return this.droppedTiles.get();
+	}
+
 	@Override
-	public synchronized boolean isPersistent() {
+	public boolean isPersistent() {
 		return this.persistent;
 	}
 
 	@Override
-	public synchronized void put(MapGeneratorJob mapGeneratorJob, Bitmap bitmap) {
+	public void put(MapGeneratorJob mapGeneratorJob, Bitmap bitmap) {
 		if (this.capacity == 0) {
 			return;
+		} else if (this.pendingTiles.size() >= MAXIMUM_PENDING_TILES && !this.pendingTiles.containsKey(mapGeneratorJob)) {
+			// the background thread cannot keep up, do not use more memory
+			this.droppedTiles.incrementAndGet();
+			return;
+		}
+
+		byte[] pixels = new byte[Tile.TILE_SIZE_IN_BYTES];
+		bitmap.copyPixelsToBuffer(ByteBuffer.wrap(pixels));
+
+		// a tile which is still pending only gets its pixels replaced
+		if (this.pendingTiles.put(mapGeneratorJob, pixels) == null) {
+			this.writeQueue.offer(mapGeneratorJob);
+			notifyTileWriter();
+		}
+	}
+
+	@Override
+	public void setCapacity(int capacity) {
+		this.capacity = getCapacity(capacity);
+		this.trimNeeded = true;
+		notifyTileWriter();
+	}
+
+	/**
+	 * Sets the maximum size of all cached tiles. If the cache is larger, the least recently used tiles are removed.
+	 * 
+	 * @param maximumSizeInBytes
+	 *            the maximum size of all cached tiles in bytes.
+	 * @throws IllegalArgumentException
+	 *             if the maximum size is negative.
+	 */
+	public void setMaximumSizeInBytes(long maximumSizeInBytes) {
+		this.maximumSizeInBytes = getMaximumSizeInBytes(maximumSizeInBytes);
+		this.trimNeeded = true;
+		notifyTileWriter();
+	}
+
+	@Override
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+	}
+
+	private void addToIndex(MapGeneratorJob mapGeneratorJob, Record record) {
+		IndexEntry previousIndexEntry = this.index.put(mapGeneratorJob, new IndexEntry(record,
+				this.accessCounter.incrementAndGet()));
+		this.sizeInBytes.addAndGet(record.length);
+		if (previousIndexEntry != null) {
+			this.sizeInBytes.addAndGet(-previousIndexEntry.record.length);
+		}
+	}
+
+	/**
+	 * Rewrites the data file with the tiles which are still in the cache if most of the file is occupied by evicted
+	 * tiles. Must only be called by the thread which writes the tiles.
+	 */
+	private void compactIfNeeded() throws IOException {
+		TileDataFile oldDataFile = this.dataFile;
+		long garbage = oldDataFile.getLength() - TileDataFile.HEADER_LENGTH - this.sizeInBytes.get();
+		if (garbage < COMPACTION_THRESHOLD || garbage < this.sizeInBytes.get()) {
+			return;
+		}
+
+		File file = new File(this.cacheDirectory, DATA_FILE_NAME);
+		File temporaryFile = new File(this.cacheDirectory, DATA_FILE_NAME + TEMPORARY_FILE_NAME_EXTENSION);
+		deleteFile(temporaryFile);
+
+		// readers continue to use the old file while the remaining tiles are copied
+		Map<IndexEntry, Record> compactedRecords = new HashMap<>();
+		TileDataFile compactedDataFile = new TileDataFile(temporaryFile);
+		try {
+			byte[] buffer = new byte[Tile.TILE_SIZE_IN_BYTES >> 2];
+			for (IndexEntry indexEntry : this.index.values()) {
+				Record record = indexEntry.record;
+				if (buffer.length < record.length) {
+					buffer = new byte[record.length];
+				}
+				compactedRecords.put(indexEntry, compactedDataFile.transfer(oldDataFile, record, buffer));
+			}
+		} catch (IOException e) {
+			compactedDataFile.close();
+			deleteFile(temporaryFile);
+			throw e;
+		}
+		try {
+			compactedDataFile.sync();
+		} finally {
+			compactedDataFile.close();
+		}
+
+		this.dataFileLock.writeLock().lock();
+		try {
+			oldDataFile.close();
+
+			// the old index snapshot belongs to a different generation of the data file and will be ignored
+			if (temporaryFile.renameTo(file)) {
+				for (Map.Entry<MapGeneratorJob, IndexEntry> entry : this.index.entrySet()) {
+					IndexEntry indexEntry = entry.getValue();
+					Record record = compactedRecords.get(indexEntry);
+					if (record != null) {
+						entry.setValue(new IndexEntry(record, indexEntry.lastAccess));
+					} else {
+						this.index.remove(entry.getKey(), indexEntry);
+					}
+				}
+			} else {
+				LOGGER.warning("could not replace tile cache file: " + file);
+				deleteFile(temporaryFile);
+				deleteFile(file);
+				this.index.clear();
+			}
+			this.sizeInBytes.set(0);
+			for (IndexEntry indexEntry : this.index.values()) {
+				this.sizeInBytes.addAndGet(indexEntry.record.length);
+			}
+
+			this.dataFile = new TileDataFile(file);
+		} finally {
+			this.dataFileLock.writeLock().unlock();
+		}
+	}
+
+	private synchronized void notifyTileWriter() {
+		if (this.tileWriter == null) {
+			this.tileWriter = new TileWriter();
+			this.tileWriter.start();
+		}
+		synchronized (this.tileWriter) {
+			this.tileWriter.notify();
 		}
+	}
 
-		FileOutputStream fileOutputStream = null;
+	/**
+	 * Opens the data file and restores the index from the last snapshot and the records written after it.
+	 */
+	private void openDataFile() {
 		try {
-			File outputFile;
-			do {
-				++this.cacheId;
-				outputFile = new File(this.cacheDirectory, this.cacheId + IMAGE_FILE_NAME_EXTENSION);
-			} while (outputFile.exists());
-
-			this.byteBuffer.rewind();
-			bitmap.copyPixelsToBuffer(this.byteBuffer);
-			byte[] array = this.byteBuffer.array();
-
-			File parentFile = outputFile.getParentFile();
-			if (!parentFile.exists()) {
-				if (parentFile.mkdirs()) {
-					LOGGER.log(Level.INFO, "Created folder: " + parentFile);
+			createDirectory(this.cacheDirectory.getAbsolutePath());
+			this.dataFile = new TileDataFile(new File(this.cacheDirectory, DATA_FILE_NAME));
+
+			long indexedLength = readIndex();
+			this.dataFile.scan(indexedLength, new TileDataFile.RecordHandler() {
+				@Override
+				public void onRecord(byte[] key, Record record) {
+					MapGeneratorJob mapGeneratorJob = deserializeKey(key);
+					if (mapGeneratorJob != null) {
+						addToIndex(mapGeneratorJob, record);
+					}
 				}
+			});
+
+			trimToSize();
+		} catch (IOException | IllegalArgumentException e) {
+			LOGGER.log(Level.SEVERE, null, e);
+			if (this.dataFile != null) {
+				this.dataFile.close();
+				this.dataFile = null;
 			}
-			if (parentFile.exists()) {
-				fileOutputStream = new FileOutputStream(outputFile);
-				fileOutputStream.write(array, 0, array.length);
+			this.index.clear();
+			this.sizeInBytes.set(0);
+		}
+	}
+
+	/**
+	 * Restores the index from the snapshot file if it belongs to the current data file and its checksum matches.
+	 * 
+	 * @return the length of the data file which is covered by the snapshot.
+	 */
+	private long readIndex() {
+		File indexFile = new File(this.cacheDirectory, INDEX_FILE_NAME);
+		if (!indexFile.isFile()) {
+			return TileDataFile.HEADER_LENGTH;
+		}
 
-				this.map.put(mapGeneratorJob, outputFile);
+		DataInputStream dataInputStream = null;
+		try {
+			CheckedInputStream checkedInputStream = new CheckedInputStream(new BufferedInputStream(new FileInputStream(
+					indexFile)), new CRC32());
+			dataInputStream = new DataInputStream(checkedInputStream);
+			if (dataInputStream.readInt() != INDEX_FILE_MAGIC || dataInputStream.readInt() != INDEX_FILE_VERSION
+					|| dataInputStream.readLong() != this.dataFile.getGeneration()) {
+				return TileDataFile.HEADER_LENGTH;
 			}
+
+			long indexedLength = dataInputStream.readLong();
+			if (indexedLength < TileDataFile.HEADER_LENGTH || indexedLength > this.dataFile.getLength()) {
+				return TileDataFile.HEADER_LENGTH;
+			}
+
+			// the snapshot is written in LRU order
+			int entriesCount = dataInputStream.readInt();
+			List<byte[]> keys = new ArrayList<>();
+			List<Record> records = new ArrayList<>();
+			for (int i = entriesCount; i > 0; --i) {
+				long address = dataInputStream.readLong();
+				int length = dataInputStream.readInt();
+				byte[] key = new byte[dataInputStream.readInt()];
+				dataInputStream.readFully(key);
+				keys.add(key);
+				records.add(new Record(address, length));
+			}
+
+			int checksum = (int) checkedInputStream.getChecksum().getValue();
+			if (dataInputStream.readInt() != checksum) {
+				LOGGER.warning("invalid tile cache index: " + indexFile);
+				return TileDataFile.HEADER_LENGTH;
+			}
+
+			for (int i = 0; i < keys.size(); ++i) {
+				Record record = records.get(i);
+				MapGeneratorJob mapGeneratorJob = deserializeKey(keys.get(i));
+				if (mapGeneratorJob != null && record.address + record.length <= indexedLength) {
+					addToIndex(mapGeneratorJob, record);
+				}
+			}
+			return indexedLength;
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, null, e);
+			this.index.clear();
+			this.sizeInBytes.set(0);
+			return TileDataFile.HEADER_LENGTH;
 		} finally {
-			try {
-				if (fileOutputStream != null) {
-					fileOutputStream.close();
-				}
-			} catch (IOException e) {
-				LOGGER.log(Level.SEVERE, null, e);
+			IOUtils.closeQuietly(dataInputStream);
+		}
+	}
+
+	private List<Map.Entry<MapGeneratorJob, IndexEntry>> sortByLastAccess() {
+		List<Map.Entry<MapGeneratorJob, IndexEntry>> entries = new ArrayList<>(this.index.entrySet());
+		Collections.sort(entries, LastAccessComparator.INSTANCE);
+		return entries;
+	}
+
+	/**
+	 * Lets the background thread write the pending tiles and the index snapshot and waits for it to stop.
+	 * 
+	 * @return true if the index snapshot has been written, false otherwise.
+	 */
+	private synchronized boolean stopTileWriter() {
+		if (this.tileWriter == null && (!this.persistent || this.dataFile == null)) {
+			return false;
+		}
+
+		this.indexWritten = false;
+		this.stopWriter = true;
+		// also starts the thread if no tile has been written yet, to write the index snapshot
+		notifyTileWriter();
+		try {
+			this.tileWriter.join(WRITER_STOP_TIMEOUT);
+			if (this.tileWriter.isAlive()) {
+				LOGGER.warning("tile cache writer did not finish in time, pending tiles are lost");
+				this.tileWriter.interrupt();
+				this.tileWriter.join(WRITER_STOP_TIMEOUT);
 			}
+		} catch (InterruptedException e) {
+			// restore the interrupted status
+			Thread.currentThread().interrupt();
 		}
+		this.tileWriter = null;
+		this.stopWriter = false;
+		return this.indexWritten;
 	}
 
-	@Override
-	public synchronized void setCapacity(int capacity) {
-		if (this.capacity == capacity) {
+	/**
+	 * Logs the tiles which have been dropped since the last call. Must only be called by the thread which writes the
+	 * tiles.
+	 */
+	private void logDroppedTiles() {
+		long dropped = this.droppedTiles.get();
+		if (dropped > this.loggedDroppedTiles) {
+			LOGGER.warning("tile cache writer could not keep up, tiles not cached: " + (dropped - this.loggedDroppedTiles));
+			this.loggedDroppedTiles = dropped;
+		}
+	}
+
+	/**
+	 * Removes the least recently used tiles if the cache exceeds its capacity or maximum size. The cache is then
+	 * reduced a bit below its limits. Must only be called by the thread which writes the tiles.
+	 */
+	private void trimToSize() {
+		int maximumTiles = this.capacity;
+		long maximumSize = this.maximumSizeInBytes;
+		if (this.index.size() <= maximumTiles && this.sizeInBytes.get() <= maximumSize) {
 			return;
 		}
 
-		this.capacity = getCapacity(capacity);
-		Map<MapGeneratorJob, File> newMap = createMap(this.capacity);
-		newMap.putAll(this.map);
-		this.map = newMap;
+		int targetTiles = (int) (maximumTiles * EVICTION_RATIO);
+		long targetSize = (long) (maximumSize * EVICTION_RATIO);
+		for (Map.Entry<MapGeneratorJob, IndexEntry> entry : sortByLastAccess()) {
+			if (this.index.size() <= targetTiles && this.sizeInBytes.get() <= targetSize) {
+				break;
+			}
+			if (this.index.remove(entry.getKey(), entry.getValue())) {
+				this.sizeInBytes.addAndGet(-entry.getValue().record.length);
+			}
+		}
 	}
 
-	@Override
-	public synchronized void setPersistent(boolean persistent) {
-		this.persistent = persistent;
+	/**
+	 * Writes a snapshot of the index in LRU order, followed by its checksum. The data file is synced first and the
+	 * snapshot is written to a temporary file, which is synced and then replaces the old snapshot. Must only be called
+	 * by the thread which writes the tiles or while it is stopped.
+	 * 
+	 * @return true if the snapshot was written successfully, false otherwise.
+	 */
+	private boolean writeIndex() {
+		File indexFile = new File(this.cacheDirectory, INDEX_FILE_NAME);
+		File temporaryFile = new File(this.cacheDirectory, INDEX_FILE_NAME + TEMPORARY_FILE_NAME_EXTENSION);
+
+		DataOutputStream dataOutputStream = null;
+		try {
+			// the snapshot must not refer to tiles which are not yet on the storage
+			this.dataFile.sync();
+			List<Map.Entry<MapGeneratorJob, IndexEntry>> entries = sortByLastAccess();
+
+			FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+			CheckedOutputStream checkedOutputStream = new CheckedOutputStream(new BufferedOutputStream(
+					fileOutputStream), new CRC32());
+			dataOutputStream = new DataOutputStream(checkedOutputStream);
+			dataOutputStream.writeInt(INDEX_FILE_MAGIC);
+			dataOutputStream.writeInt(INDEX_FILE_VERSION);
+			dataOutputStream.writeLong(this.dataFile.getGeneration());
+			dataOutputStream.writeLong(this.dataFile.getLength());
+			dataOutputStream.writeInt(entries.size());
+
+			for (Map.Entry<MapGeneratorJob, IndexEntry> entry : entries) {
+				Record record = entry.getValue().record;
+				byte[] key = serializeKey(entry.getKey());
+				dataOutputStream.writeLong(record.address);
+				dataOutputStream.writeInt(record.length);
+				dataOutputStream.writeInt(key.length);
+				dataOutputStream.write(key);
+			}
+			dataOutputStream.flush();
+			dataOutputStream.writeInt((int) checkedOutputStream.getChecksum().getValue());
+			dataOutputStream.flush();
+			fileOutputStream.getFD().sync();
+			dataOutputStream.close();
+			dataOutputStream = null;
+
+			return temporaryFile.renameTo(indexFile);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, null, e);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(dataOutputStream);
+		}
+	}
+
+	/**
+	 * Compresses a pending tile and appends it to the data file. Must only be called by the thread which writes the
+	 * tiles.
+	 * 
+	 * @param mapGeneratorJob
+	 *            the key of the pending tile.
+	 */
+	private void writeTile(MapGeneratorJob mapGeneratorJob) {
+		byte[] pixels = this.pendingTiles.get(mapGeneratorJob);
+		if (pixels == null) {
+			return;
+		}
+
+		try {
+			if (this.dataFile == null) {
+				openDataFile();
+				if (this.dataFile == null) {
+					this.pendingTiles.remove(mapGeneratorJob, pixels);
+					return;
+				}
+			}
+
+			if (this.writeBitmap == null) {
+				this.writeBitmap = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Config.RGB_565);
+			}
+			this.writeBitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+
+			this.compressBuffer.reset();
+			if (this.writeBitmap.compress(CompressFormat.PNG, 100, this.compressBuffer)) {
+				byte[] key = serializeKey(mapGeneratorJob);
+				Record record = this.dataFile.append(key, this.compressBuffer.toByteArray(), this.compressBuffer.size());
+				addToIndex(mapGeneratorJob, record);
+
+				trimToSize();
+				compactIfNeeded();
+				if (this.persistent && ++this.tilesSinceSnapshot >= INDEX_SNAPSHOT_INTERVAL) {
+					this.tilesSinceSnapshot = 0;
+					writeIndex();
+				}
+			} else {
+				LOGGER.warning("could not compress tile: " + mapGeneratorJob.tile);
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, null, e);
+		}
+
+		// write the tile again if its pixels have been replaced in the meantime
+		if (!this.pendingTiles.remove(mapGeneratorJob, pixels)) {
+			this.writeQueue.offer(mapGeneratorJob);
+		}
 	}
 }
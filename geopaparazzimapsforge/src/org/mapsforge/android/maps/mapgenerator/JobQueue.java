@@ -14,19 +14,59 @@
  */
 package org.mapsforge.android.maps.mapgenerator;
 
-import java.util.PriorityQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.mapsforge.android.maps.MapView;
+import org.mapsforge.core.model.MapPosition;
 
 /**
  * A JobQueue keeps the list of pending jobs for a MapView and prioritizes them.
+ * <p>
+ * The queue is safe for concurrent use by one producer and several {@link MapWorker} threads without a global lock.
+ * Duplicate jobs are detected with a hash map, the order is kept in a skip list which is sorted by priority. A
+ * scheduling request only sets a flag, the next call to {@link #poll()} updates the priority of those jobs whose
+ * priority has changed and cancels the jobs whose tiles are no longer visible.
  */
 public class JobQueue {
-	private static final int INITIAL_CAPACITY = 128;
+	/**
+	 * A pending job together with the priority which was used to insert it into the skip list. Entries are
+	 * immutable, a new priority is applied by replacing the entry.
+	 */
+	private static final class QueueItem implements Comparable<QueueItem> {
+		final MapGeneratorJob mapGeneratorJob;
+		final double priority;
+		final long sequenceNumber;
+
+		QueueItem(MapGeneratorJob mapGeneratorJob, double priority, long sequenceNumber) {
+			this.mapGeneratorJob = mapGeneratorJob;
+			this.priority = priority;
+			this.sequenceNumber = sequenceNumber;
+		}
 
+		@Override
+		public int compareTo(QueueItem otherQueueItem) {
+			if (this.priority < otherQueueItem.priority) {
+				return -1;
+			} else if (this.priority > otherQueueItem.priority) {
+				return 1;
+			} else if (this.sequenceNumber < otherQueueItem.sequenceNumber) {
+				return -1;
+			} else if (this.sequenceNumber > otherQueueItem.sequenceNumber) {
+				return 1;
+			}
+			return 0;
+		}
+	}
+
+	private final ConcurrentHashMap<MapGeneratorJob, QueueItem> jobs;
 	private final MapView mapView;
-	private PriorityQueue<MapGeneratorJob> priorityQueue;
-	private boolean scheduleNeeded;
+	private final ConcurrentSkipListSet<QueueItem> queueItems;
+	private final AtomicBoolean scheduleNeeded;
+	private final AtomicLong sequenceNumber;
 
 	/**
 	 * @param mapView
@@ -34,7 +74,10 @@ public class JobQueue {
 	 */
 	public JobQueue(MapView mapView) {
 		this.mapView = mapView;
-		this.priorityQueue = new PriorityQueue<>(INITIAL_CAPACITY);
+		this.jobs = new ConcurrentHashMap<>();
+		this.queueItems = new ConcurrentSkipListSet<>();
+		this.scheduleNeeded = new AtomicBoolean();
+		this.sequenceNumber = new AtomicLong();
 	}
 
 	/**
@@ -43,57 +86,104 @@ public class JobQueue {
 	 * @param mapGeneratorJob
 	 *            the job to be added to this queue.
 	 */
-	public synchronized void addJob(MapGeneratorJob mapGeneratorJob) {
-		if (!this.priorityQueue.contains(mapGeneratorJob)) {
-			this.priorityQueue.offer(mapGeneratorJob);
+	public void addJob(MapGeneratorJob mapGeneratorJob) {
+		if (this.jobs.containsKey(mapGeneratorJob)) {
+			return;
+		}
+
+		MapPosition mapPosition = this.mapView.getMapPosition().getMapPosition();
+		double priority = mapPosition == null ? 0 : TileScheduler.getPriority(mapGeneratorJob.tile, mapPosition);
+		mapGeneratorJob.setPriority(priority);
+		QueueItem queueItem = new QueueItem(mapGeneratorJob, priority, this.sequenceNumber.getAndIncrement());
+		if (this.jobs.putIfAbsent(mapGeneratorJob, queueItem) == null) {
+			this.queueItems.add(queueItem);
 		}
 	}
 
 	/**
 	 * Removes all jobs from this queue.
 	 */
-	public synchronized void clear() {
-		this.priorityQueue.clear();
+	public void clear() {
+		this.jobs.clear();
+		this.queueItems.clear();
 	}
 
 	/**
 	 * @return true if this queue contains no jobs, false otherwise.
 	 */
-	public synchronized boolean isEmpty() {
-		return this.priorityQueue.isEmpty();
+	public boolean isEmpty() {
+		return this.jobs.isEmpty();
 	}
 
 	/**
+	 * Removes the most important job from this queue. If several threads call this method concurrently, each job is
+	 * returned to only one of them.
+	 * 
 	 * @return the most important job from this queue or null, if empty.
 	 */
-	public synchronized MapGeneratorJob poll() {
-		if (this.scheduleNeeded) {
-			this.scheduleNeeded = false;
+	public MapGeneratorJob poll() {
+		if (this.scheduleNeeded.compareAndSet(true, false)) {
 			schedule();
 		}
-		return this.priorityQueue.poll();
+
+		QueueItem queueItem;
+		while ((queueItem = this.queueItems.pollFirst()) != null) {
+			// the skip list may still contain an item of a job which has been cleared in the meantime
+			if (this.jobs.remove(queueItem.mapGeneratorJob, queueItem)) {
+				return queueItem.mapGeneratorJob;
+			}
+		}
+		return null;
 	}
 
 	/**
 	 * Request a scheduling of all jobs that are currently in this queue.
 	 */
-	public synchronized void requestSchedule() {
-		this.scheduleNeeded = true;
+	public void requestSchedule() {
+		this.scheduleNeeded.set(true);
+	}
+
+	/**
+	 * @return the number of jobs in this queue.
+	 */
+	public int size() {
+		return this.jobs.size();
 	}
 
 	/**
-	 * Schedules all jobs in this queue.
+	 * Updates the priorities of all jobs in this queue and removes the jobs whose tiles are no longer visible.
 	 */
 	private void schedule() {
-		PriorityQueue<MapGeneratorJob> tempJobQueue = new PriorityQueue<>(INITIAL_CAPACITY);
+		MapPosition mapPosition = this.mapView.getMapPosition().getMapPosition();
+		if (mapPosition == null) {
+			return;
+		}
+		int width = this.mapView.getWidth();
+		int height = this.mapView.getHeight();
+		boolean cancelInvisibleJobs = width > 0 && height > 0;
+
+		for (Map.Entry<MapGeneratorJob, QueueItem> entry : this.jobs.entrySet()) {
+			QueueItem queueItem = entry.getValue();
+			MapGeneratorJob mapGeneratorJob = queueItem.mapGeneratorJob;
+
+			if (cancelInvisibleJobs && !TileScheduler.isVisible(mapGeneratorJob.tile, mapPosition, width, height)) {
+				// a worker which has already taken the item from the skip list owns the job
+				if (this.queueItems.remove(queueItem)) {
+					this.jobs.remove(mapGeneratorJob, queueItem);
+				}
+				continue;
+			}
+
+			double priority = TileScheduler.getPriority(mapGeneratorJob.tile, mapPosition);
+			if (Double.compare(priority, queueItem.priority) == 0) {
+				continue;
+			}
 
-		while (!this.priorityQueue.isEmpty()) {
-			MapGeneratorJob mapGeneratorJob = this.priorityQueue.poll();
-			double priority = TileScheduler.getPriority(mapGeneratorJob.tile, this.mapView);
 			mapGeneratorJob.setPriority(priority);
-			tempJobQueue.offer(mapGeneratorJob);
+			QueueItem newQueueItem = new QueueItem(mapGeneratorJob, priority, queueItem.sequenceNumber);
+			if (this.queueItems.remove(queueItem) && this.jobs.replace(mapGeneratorJob, queueItem, newQueueItem)) {
+				this.queueItems.add(newQueueItem);
+			}
 		}
-
-		this.priorityQueue = tempJobQueue;
 	}
 }
@@ -14,9 +14,14 @@
  */
 package org.mapsforge.android.maps.mapgenerator;
 
+import java.io.File;
+
 import org.mapsforge.android.maps.MapView;
 import org.mapsforge.android.maps.PausableThread;
+import org.mapsforge.android.maps.mapgenerator.databaserenderer.DatabaseRenderer;
 import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.reader.MapDatabase;
+import org.mapsforge.map.reader.header.FileOpenResult;
 
 import android.graphics.Bitmap;
 import android.util.Log;
@@ -24,24 +29,44 @@ import android.util.Log;
 /**
  * A MapWorker uses a {@link MapGenerator} to generate map tiles. It runs in a separate thread to avoid blocking the UI
  * thread.
+ * <p>
+ * Several MapWorkers may drain the same {@link JobQueue}. The first worker uses the MapGenerator of the MapView
+ * directly, all other workers only take part in offline rendering and use their own {@link DatabaseRenderer} and
+ * {@link MapDatabase}, as neither of them is thread-safe.
  */
 public class MapWorker extends PausableThread {
 	private static final String THREAD_NAME = "MapWorker";
 
+	private DatabaseRenderer databaseRenderer;
 	private TileCache fileSystemTileCache;
 	private TileCache inMemoryTileCache;
 	private JobQueue jobQueue;
-	private MapGenerator mapGenerator;
+	private MapDatabase mapDatabase;
+	private File mapFile;
+	private volatile MapGenerator mapGenerator;
 	private MapView mapView;
+	private DatabaseRenderer sharedDatabaseRenderer;
 	private Bitmap tileBitmap;
+	private final int workerIndex;
 
 	/**
 	 * @param mapView
 	 *            the MapView for which this MapWorker generates map tiles.
 	 */
 	public MapWorker(MapView mapView) {
+		this(mapView, 0);
+	}
+
+	/**
+	 * @param mapView
+	 *            the MapView for which this MapWorker generates map tiles.
+	 * @param workerIndex
+	 *            the index of this MapWorker in its {@link MapWorkerPool}.
+	 */
+	public MapWorker(MapView mapView, int workerIndex) {
 		super();
 		this.mapView = mapView;
+		this.workerIndex = workerIndex;
 		this.jobQueue = mapView.getJobQueue();
 		this.inMemoryTileCache = mapView.getInMemoryTileCache();
 		this.fileSystemTileCache = mapView.getFileSystemTileCache();
@@ -56,20 +81,34 @@ public class MapWorker extends PausableThread {
 		this.mapGenerator = mapGenerator;
 	}
 
- 	@Override
- 	protected void afterRun() {
+	@Override
+	protected void afterRun() {
+		if (this.databaseRenderer != null) {
+			this.databaseRenderer.cleanup();
+			this.databaseRenderer = null;
+		}
+		if (this.mapDatabase != null) {
+			this.mapDatabase.closeFile();
+			this.mapDatabase = null;
+		}
+		this.mapFile = null;
 		this.mapView = null;
 		this.mapGenerator = null;
+		this.sharedDatabaseRenderer = null;
 		this.fileSystemTileCache = null;
 		this.inMemoryTileCache = null;
 		this.jobQueue = null;
 		this.tileBitmap.recycle();
 		this.tileBitmap = null;
- 	}
+	}
 
 	@Override
 	protected void doWork() {
 		MapGeneratorJob mapGeneratorJob = this.jobQueue.poll();
+		if (mapGeneratorJob == null) {
+			// another worker has taken the last job
+			return;
+		}
 
 		if (this.inMemoryTileCache.containsKey(mapGeneratorJob)) {
 			return;
@@ -79,7 +118,8 @@ public class MapWorker extends PausableThread {
 
 		boolean success;
 		try {
-			success = this.mapGenerator.executeJob(mapGeneratorJob, this.tileBitmap);
+			MapGenerator workerMapGenerator = getWorkerMapGenerator();
+			success = workerMapGenerator != null && workerMapGenerator.executeJob(mapGeneratorJob, this.tileBitmap);
 		} catch (Exception e) {
 			Log.e(THREAD_NAME, "Error with tile: " + this.tileBitmap + ": " + e.getLocalizedMessage());
 			success = false;
@@ -90,13 +130,15 @@ public class MapWorker extends PausableThread {
 				this.inMemoryTileCache.put(mapGeneratorJob, this.tileBitmap);
 			}
 			this.mapView.postInvalidate();
+
+			// only copies the pixels, the tile is written to the file system in the background
 			this.fileSystemTileCache.put(mapGeneratorJob, this.tileBitmap);
 		}
 	}
 
 	@Override
 	protected String getThreadName() {
-		return THREAD_NAME;
+		return THREAD_NAME + this.workerIndex;
 	}
 
 	@Override
@@ -106,6 +148,49 @@ public class MapWorker extends PausableThread {
 
 	@Override
 	protected boolean hasWork() {
-		return !this.jobQueue.isEmpty();
+		return isActive() && !this.jobQueue.isEmpty();
+	}
+
+	/**
+	 * @return the MapGenerator which executes the jobs of this worker (may be null).
+	 */
+	private MapGenerator getWorkerMapGenerator() {
+		MapGenerator sharedMapGenerator = this.mapGenerator;
+		if (this.workerIndex == 0 || !(sharedMapGenerator instanceof DatabaseRenderer)) {
+			return sharedMapGenerator;
+		}
+
+		if (this.databaseRenderer == null || this.sharedDatabaseRenderer != sharedMapGenerator) {
+			if (this.databaseRenderer != null) {
+				this.databaseRenderer.cleanup();
+			} else {
+				this.mapDatabase = new MapDatabase(this.mapView.getMapDatabase().isMemoryMapped());
+			}
+			// labels crossing tile borders are shared with the renderer of the MapView
+			this.sharedDatabaseRenderer = (DatabaseRenderer) sharedMapGenerator;
+			this.databaseRenderer = new DatabaseRenderer(this.sharedDatabaseRenderer);
+			this.databaseRenderer.setMapDatabase(this.mapDatabase);
+		}
+
+		File currentMapFile = this.mapView.getMapFile();
+		if (currentMapFile == null) {
+			return null;
+		} else if (!currentMapFile.equals(this.mapFile)) {
+			this.mapFile = null;
+			FileOpenResult fileOpenResult = this.mapDatabase.openFile(currentMapFile);
+			if (!fileOpenResult.isSuccess()) {
+				Log.e(THREAD_NAME, "Could not open map file: " + fileOpenResult.getErrorMessage());
+				return null;
+			}
+			this.mapFile = currentMapFile;
+		}
+		return this.databaseRenderer;
+	}
+
+	/**
+	 * @return true if this worker takes part in the execution of jobs with the current MapGenerator.
+	 */
+	private boolean isActive() {
+		return this.workerIndex == 0 || this.mapGenerator instanceof DatabaseRenderer;
 	}
 }
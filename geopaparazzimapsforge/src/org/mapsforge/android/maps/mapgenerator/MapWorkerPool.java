@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.mapgenerator;
+
+import org.mapsforge.android.maps.MapView;
+
+/**
+ * A MapWorkerPool manages a fixed number of {@link MapWorker} threads which share the {@link JobQueue} of a MapView.
+ * Offline rendering is spread across all workers, tiles of MapGenerators which download them are only generated by the
+ * first worker.
+ */
+public class MapWorkerPool {
+	/**
+	 * Default number of workers, one per available processor but not more than four to limit the memory usage.
+	 */
+	public static final int DEFAULT_NUMBER_OF_WORKERS = Math.max(1,
+			Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+	private static int getNumberOfWorkers(int numberOfWorkers) {
+		if (numberOfWorkers < 1) {
+			throw new IllegalArgumentException("number of workers must be positive: " + numberOfWorkers);
+		}
+		return numberOfWorkers;
+	}
+
+	private static void stopMapWorkers(MapWorker[] mapWorkers) {
+		for (MapWorker mapWorker : mapWorkers) {
+			mapWorker.interrupt();
+		}
+
+		for (MapWorker mapWorker : mapWorkers) {
+			try {
+				mapWorker.join();
+			} catch (InterruptedException e) {
+				// restore the interrupted status
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private MapGenerator mapGenerator;
+	private final MapView mapView;
+	private MapWorker[] mapWorkers;
+	private boolean paused;
+
+	/**
+	 * @param mapView
+	 *            the MapView for which the workers generate map tiles.
+	 * @param numberOfWorkers
+	 *            the number of worker threads.
+	 * @throws IllegalArgumentException
+	 *             if the number of workers is not positive.
+	 */
+	public MapWorkerPool(MapView mapView, int numberOfWorkers) {
+		this.mapView = mapView;
+		this.mapWorkers = createMapWorkers(getNumberOfWorkers(numberOfWorkers));
+	}
+
+	/**
+	 * Causes the current thread to wait until all workers are pausing.
+	 */
+	public synchronized void awaitPausing() {
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.awaitPausing();
+		}
+	}
+
+	/**
+	 * Stops all workers and waits for them to finish.
+	 */
+	public synchronized void destroy() {
+		stopMapWorkers(this.mapWorkers);
+	}
+
+	/**
+	 * @return the number of workers in this pool.
+	 */
+	public synchronized int getNumberOfWorkers() {
+		return this.mapWorkers.length;
+	}
+
+	/**
+	 * Wakes up all workers so that they check the JobQueue for new jobs.
+	 */
+	public synchronized void notifyWorkers() {
+		for (MapWorker mapWorker : this.mapWorkers) {
+			synchronized (mapWorker) {
+				mapWorker.notify();
+			}
+		}
+	}
+
+	/**
+	 * All workers should stop their work temporarily.
+	 */
+	public synchronized void pause() {
+		this.paused = true;
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.pause();
+		}
+	}
+
+	/**
+	 * The paused workers should continue with their work.
+	 */
+	public synchronized void proceed() {
+		this.paused = false;
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.proceed();
+		}
+	}
+
+	/**
+	 * @param mapGenerator
+	 *            the MapGenerator which the workers should use.
+	 */
+	public synchronized void setMapGenerator(MapGenerator mapGenerator) {
+		this.mapGenerator = mapGenerator;
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.setMapGenerator(mapGenerator);
+		}
+	}
+
+	/**
+	 * Replaces all workers of this pool by the given number of new workers. Jobs which are currently executed are
+	 * finished first. The new workers are paused if the pool is paused.
+	 *
+	 * @param numberOfWorkers
+	 *            the new number of worker threads.
+	 * @throws IllegalArgumentException
+	 *             if the number of workers is not positive.
+	 */
+	public synchronized void setNumberOfWorkers(int numberOfWorkers) {
+		getNumberOfWorkers(numberOfWorkers);
+		if (numberOfWorkers == this.mapWorkers.length) {
+			return;
+		}
+
+		stopMapWorkers(this.mapWorkers);
+		this.mapWorkers = createMapWorkers(numberOfWorkers);
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.setMapGenerator(this.mapGenerator);
+			if (this.paused) {
+				mapWorker.pause();
+			}
+			mapWorker.start();
+		}
+	}
+
+	/**
+	 * Starts all workers of this pool.
+	 */
+	public synchronized void start() {
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.start();
+		}
+	}
+
+	private MapWorker[] createMapWorkers(int numberOfWorkers) {
+		MapWorker[] newMapWorkers = new MapWorker[numberOfWorkers];
+		for (int i = 0; i < numberOfWorkers; ++i) {
+			newMapWorkers[i] = new MapWorker(this.mapView, i);
+		}
+		return newMapWorkers;
+	}
+}
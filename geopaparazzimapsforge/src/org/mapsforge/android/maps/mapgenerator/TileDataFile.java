@@ -0,0 +1,356 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.mapgenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file which stores the compressed images of a {@link FileSystemTileCache}.
+ * <p>
+ * The file starts with a header containing a random generation number which identifies this instance of the file.
+ * Each record consists of a magic number, the length of the key, the length of the image data, a CRC32 checksum over
+ * key and image data, the serialized key and the image data. Records are never modified, a record whose checksum does
+ * not match marks the end of the valid data after a crash. Records are only guaranteed to be on the storage after
+ * {@link #sync()}.
+ * <p>
+ * All reads and writes use absolute positions, so records may be read by several threads while a single thread
+ * appends new records. Scanning and closing the file must not happen concurrently with other operations.
+ */
+class TileDataFile {
+	/**
+	 * Position and length of a record in the data file.
+	 */
+	static final class Record {
+		/**
+		 * The position of the record in the data file.
+		 */
+		final long address;
+
+		/**
+		 * The total length of the record in bytes.
+		 */
+		final int length;
+
+		Record(long address, int length) {
+			this.address = address;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Callback for all valid records which are found while scanning the data file.
+	 */
+	interface RecordHandler {
+		/**
+		 * @param key
+		 *            the serialized key of the record.
+		 * @param record
+		 *            the position and length of the record.
+		 */
+		void onRecord(byte[] key, Record record);
+	}
+
+	/**
+	 * Magic number at the beginning of the data file.
+	 */
+	private static final int FILE_MAGIC = 0x4d465443;
+
+	/**
+	 * Length of the file header in bytes: magic number, version and generation.
+	 */
+	static final int HEADER_LENGTH = 16;
+
+	private static final Logger LOGGER = Logger.getLogger(TileDataFile.class.getName());
+
+	/**
+	 * Maximum length of a single record which is considered as valid.
+	 */
+	private static final int MAXIMUM_RECORD_LENGTH = 4 * 1024 * 1024;
+
+	private static final Random RANDOM = new Random();
+
+	/**
+	 * Length of the header of each record in bytes: magic number, key length, data length and checksum.
+	 */
+	static final int RECORD_HEADER_LENGTH = 16;
+
+	/**
+	 * Magic number at the beginning of each record.
+	 */
+	private static final int RECORD_MAGIC = 0x54494c45;
+
+	private static final String READ_WRITE_MODE = "rw";
+
+	/**
+	 * Version of the file format.
+	 */
+	private static final int VERSION = 1;
+
+	private static long createGeneration() {
+		long generation;
+		do {
+			generation = RANDOM.nextLong();
+		} while (generation == 0);
+		return generation;
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] << 24) | ((buffer[offset + 1] & 0xff) << 16) | ((buffer[offset + 2] & 0xff) << 8)
+				| (buffer[offset + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	private final CRC32 crc32;
+	private final File file;
+	private final FileChannel fileChannel;
+	private long generation;
+	private long length;
+	private final RandomAccessFile randomAccessFile;
+	private final byte[] recordHeader;
+
+	/**
+	 * Opens the given data file or creates a new one if it does not exist or has an invalid header.
+	 * 
+	 * @param file
+	 *            the data file.
+	 * @throws IOException
+	 *             if the file cannot be opened or created.
+	 */
+	TileDataFile(File file) throws IOException {
+		this.file = file;
+		this.crc32 = new CRC32();
+		this.recordHeader = new byte[RECORD_HEADER_LENGTH];
+		this.randomAccessFile = new RandomAccessFile(file, READ_WRITE_MODE);
+		this.fileChannel = this.randomAccessFile.getChannel();
+		this.length = this.randomAccessFile.length();
+
+		if (!readHeader()) {
+			if (this.length > 0) {
+				LOGGER.warning("invalid tile cache file: " + file);
+			}
+			this.generation = createGeneration();
+			this.randomAccessFile.setLength(0);
+			this.randomAccessFile.writeInt(FILE_MAGIC);
+			this.randomAccessFile.writeInt(VERSION);
+			this.randomAccessFile.writeLong(this.generation);
+			this.length = HEADER_LENGTH;
+		}
+	}
+
+	/**
+	 * Appends a new record to the end of this file.
+	 * 
+	 * @param key
+	 *            the serialized key.
+	 * @param data
+	 *            the image data.
+	 * @param dataLength
+	 *            the number of bytes of the image data.
+	 * @return the position and length of the new record.
+	 * @throws IOException
+	 *             if an error occurs while writing the record.
+	 */
+	Record append(byte[] key, byte[] data, int dataLength) throws IOException {
+		this.crc32.reset();
+		this.crc32.update(key, 0, key.length);
+		this.crc32.update(data, 0, dataLength);
+
+		writeInt(this.recordHeader, 0, RECORD_MAGIC);
+		writeInt(this.recordHeader, 4, key.length);
+		writeInt(this.recordHeader, 8, dataLength);
+		writeInt(this.recordHeader, 12, (int) this.crc32.getValue());
+
+		long address = this.length;
+		writeFully(address, this.recordHeader, RECORD_HEADER_LENGTH);
+		writeFully(address + RECORD_HEADER_LENGTH, key, key.length);
+		writeFully(address + RECORD_HEADER_LENGTH + key.length, data, dataLength);
+
+		int recordLength = RECORD_HEADER_LENGTH + key.length + dataLength;
+		this.length += recordLength;
+		return new Record(address, recordLength);
+	}
+
+	/**
+	 * Closes this file.
+	 */
+	void close() {
+		try {
+			this.randomAccessFile.close();
+		} catch (IOException e) {
+			LOGGER.warning(e.toString());
+		}
+	}
+
+	/**
+	 * Forces all records which have been appended so far to the storage device.
+	 * 
+	 * @throws IOException
+	 *             if an error occurs while writing the records.
+	 */
+	void sync() throws IOException {
+		this.fileChannel.force(false);
+	}
+
+	/**
+	 * @return the generation number which identifies this instance of the file.
+	 */
+	long getGeneration() {
+		return this.generation;
+	}
+
+	/**
+	 * @return the length of this file in bytes.
+	 */
+	long getLength() {
+		return this.length;
+	}
+
+	/**
+	 * Reads the complete record at the given position.
+	 * 
+	 * @param record
+	 *            the position and length of the record.
+	 * @param buffer
+	 *            the buffer for the record, must be at least as large as the record.
+	 * @return the number of bytes of the serialized key which precede the image data in the buffer.
+	 * @throws IOException
+	 *             if the record cannot be read or is invalid.
+	 */
+	int read(Record record, byte[] buffer) throws IOException {
+		readFully(record.address, buffer, record.length);
+
+		int keyLength = readInt(buffer, 4);
+		if (readInt(buffer, 0) != RECORD_MAGIC || RECORD_HEADER_LENGTH + keyLength > record.length) {
+			throw new IOException("invalid record at " + record.address);
+		}
+		return RECORD_HEADER_LENGTH + keyLength;
+	}
+
+	/**
+	 * Reads all records from the given position to the end of the file and verifies their checksums. The file is
+	 * truncated after the last valid record.
+	 * 
+	 * @param address
+	 *            the position of the first record.
+	 * @param recordHandler
+	 *            the callback for all valid records.
+	 * @throws IOException
+	 *             if an error occurs while reading the file.
+	 */
+	void scan(long address, RecordHandler recordHandler) throws IOException {
+		long position = address;
+		byte[] buffer = new byte[0];
+
+		while (position + RECORD_HEADER_LENGTH <= this.length) {
+			readFully(position, this.recordHeader, RECORD_HEADER_LENGTH);
+
+			int keyLength = readInt(this.recordHeader, 4);
+			int dataLength = readInt(this.recordHeader, 8);
+			if (readInt(this.recordHeader, 0) != RECORD_MAGIC || keyLength <= 0 || dataLength < 0
+					|| keyLength > MAXIMUM_RECORD_LENGTH || dataLength > MAXIMUM_RECORD_LENGTH
+					|| position + RECORD_HEADER_LENGTH + keyLength + dataLength > this.length) {
+				break;
+			}
+
+			int payloadLength = keyLength + dataLength;
+			if (buffer.length < payloadLength) {
+				buffer = new byte[payloadLength];
+			}
+			readFully(position + RECORD_HEADER_LENGTH, buffer, payloadLength);
+
+			this.crc32.reset();
+			this.crc32.update(buffer, 0, payloadLength);
+			if ((int) this.crc32.getValue() != readInt(this.recordHeader, 12)) {
+				break;
+			}
+
+			byte[] key = new byte[keyLength];
+			System.arraycopy(buffer, 0, key, 0, keyLength);
+			int recordLength = RECORD_HEADER_LENGTH + payloadLength;
+			recordHandler.onRecord(key, new Record(position, recordLength));
+			position += recordLength;
+		}
+
+		if (position < this.length) {
+			LOGGER.warning("truncating tile cache file " + this.file + " at " + position);
+			this.randomAccessFile.setLength(position);
+			this.length = position;
+		}
+	}
+
+	/**
+	 * Copies the given record of another data file to the end of this file.
+	 * 
+	 * @param source
+	 *            the data file which contains the record.
+	 * @param record
+	 *            the position and length of the record in the source file.
+	 * @param buffer
+	 *            a buffer which must be at least as large as the record.
+	 * @return the position and length of the copied record in this file.
+	 * @throws IOException
+	 *             if an error occurs while reading or writing.
+	 */
+	Record transfer(TileDataFile source, Record record, byte[] buffer) throws IOException {
+		source.readFully(record.address, buffer, record.length);
+
+		long address = this.length;
+		writeFully(address, buffer, record.length);
+		this.length += record.length;
+		return new Record(address, record.length);
+	}
+
+	private boolean readHeader() throws IOException {
+		if (this.length < HEADER_LENGTH) {
+			return false;
+		}
+
+		this.randomAccessFile.seek(0);
+		if (this.randomAccessFile.readInt() != FILE_MAGIC || this.randomAccessFile.readInt() != VERSION) {
+			return false;
+		}
+		this.generation = this.randomAccessFile.readLong();
+		return true;
+	}
+
+	private void readFully(long position, byte[] buffer, int length) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+		while (byteBuffer.hasRemaining()) {
+			if (this.fileChannel.read(byteBuffer, position + byteBuffer.position()) < 0) {
+				throw new IOException("unexpected end of file: " + this.file);
+			}
+		}
+	}
+
+	private void writeFully(long position, byte[] buffer, int length) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+		while (byteBuffer.hasRemaining()) {
+			this.fileChannel.write(byteBuffer, position + byteBuffer.position());
+		}
+	}
+}
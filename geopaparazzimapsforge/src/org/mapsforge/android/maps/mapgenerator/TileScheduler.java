@@ -14,28 +14,34 @@
  */
 package org.mapsforge.android.maps.mapgenerator;
 
-import org.mapsforge.android.maps.MapView;
 import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.model.MapPosition;
 import org.mapsforge.core.model.Tile;
 import org.mapsforge.core.util.MercatorProjection;
 
 final class TileScheduler {
-	private static final int ZOOM_LEVEL_PENALTY = 5;
+	/**
+	 * Number of tiles around the visible area of a MapView which are still considered as visible.
+	 */
+	private static final int VISIBLE_TILE_MARGIN = 1;
 
 	/**
-	 * Calculates the priority for the given tile based on the current position and zoom level of the supplied MapView.
-	 * The smaller the distance from the tile center to the MapView center, the higher its priority. If the zoom level
-	 * of a tile differs from the zoom level of the MapView, its priority decreases.
+	 * Calculates the priority for the given tile based on the current position and zoom level of a MapView.
+	 * The smaller the distance from the tile center to the MapView center, the higher its priority. Tiles with a
+	 * different zoom level than the MapView come after all other tiles, the JobQueue cancels them with the next
+	 * scheduling as they are never visible.
 	 * 
 	 * @param tile
 	 *            the tile whose priority should be calculated.
-	 * @param mapView
-	 *            the MapView whose current position and zoom level define the priority of the tile.
+	 * @param mapPosition
+	 *            the current position and zoom level of the MapView which define the priority of the tile.
 	 * @return the current priority of the tile. A smaller number means a higher priority.
 	 */
-	static double getPriority(Tile tile, MapView mapView) {
+	static double getPriority(Tile tile, MapPosition mapPosition) {
 		byte tileZoomLevel = tile.zoomLevel;
+		if (mapPosition.zoomLevel != tileZoomLevel) {
+			return Double.POSITIVE_INFINITY;
+		}
 
 		// calculate the center coordinates of the tile
 		long tileCenterPixelX = tile.getPixelX() + (Tile.TILE_SIZE >> 1);
@@ -44,28 +50,42 @@ final class TileScheduler {
 		double tileCenterLatitude = MercatorProjection.pixelYToLatitude(tileCenterPixelY, tileZoomLevel);
 
 		// calculate the Euclidian distance from the MapView center to the tile center
-		MapPosition mapPosition = mapView.getMapPosition().getMapPosition();
 		GeoPoint geoPoint = mapPosition.geoPoint;
 		double longitudeDiff = geoPoint.getLongitude() - tileCenterLongitude;
 		double latitudeDiff = geoPoint.getLatitude() - tileCenterLatitude;
-		double euclidianDistance = Math.sqrt(longitudeDiff * longitudeDiff + latitudeDiff * latitudeDiff);
+		return Math.sqrt(longitudeDiff * longitudeDiff + latitudeDiff * latitudeDiff);
+	}
 
-		if (mapPosition.zoomLevel == tileZoomLevel) {
-			return euclidianDistance;
+	/**
+	 * Checks if the given tile is visible in a MapView of the given size or adjacent to its visible area. Tiles with
+	 * a different zoom level than the map position are never visible.
+	 * 
+	 * @param tile
+	 *            the tile which should be checked.
+	 * @param mapPosition
+	 *            the current position and zoom level of the MapView.
+	 * @param width
+	 *            the width of the MapView in pixels.
+	 * @param height
+	 *            the height of the MapView in pixels.
+	 * @return true if the tile is visible, false otherwise.
+	 */
+	static boolean isVisible(Tile tile, MapPosition mapPosition, int width, int height) {
+		byte zoomLevel = mapPosition.zoomLevel;
+		if (tile.zoomLevel != zoomLevel) {
+			return false;
 		}
 
-		int zoomLevelDiff = Math.abs(mapPosition.zoomLevel - tileZoomLevel);
-		double scaleFactor = Math.pow(2, zoomLevelDiff);
+		GeoPoint geoPoint = mapPosition.geoPoint;
+		double pixelLeft = MercatorProjection.longitudeToPixelX(geoPoint.getLongitude(), zoomLevel) - (width >> 1);
+		double pixelTop = MercatorProjection.latitudeToPixelY(geoPoint.getLatitude(), zoomLevel) - (height >> 1);
 
-		double scaledEuclidianDistance;
-		if (mapPosition.zoomLevel < tileZoomLevel) {
-			scaledEuclidianDistance = euclidianDistance * scaleFactor;
-		} else {
-			scaledEuclidianDistance = euclidianDistance / scaleFactor;
-		}
+		long tileLeft = MercatorProjection.pixelXToTileX(pixelLeft, zoomLevel) - VISIBLE_TILE_MARGIN;
+		long tileTop = MercatorProjection.pixelYToTileY(pixelTop, zoomLevel) - VISIBLE_TILE_MARGIN;
+		long tileRight = MercatorProjection.pixelXToTileX(pixelLeft + width, zoomLevel) + VISIBLE_TILE_MARGIN;
+		long tileBottom = MercatorProjection.pixelYToTileY(pixelTop + height, zoomLevel) + VISIBLE_TILE_MARGIN;
 
-		double zoomLevelPenalty = zoomLevelDiff * ZOOM_LEVEL_PENALTY;
-		return scaledEuclidianDistance * zoomLevelPenalty;
+		return tile.tileX >= tileLeft && tile.tileX <= tileRight && tile.tileY >= tileTop && tile.tileY <= tileBottom;
 	}
 
 	private TileScheduler() {
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.mapgenerator.databaserenderer;
+
+import java.util.Arrays;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * A CollisionGrid stores rectangles in the cells of a uniform grid which covers a tile and half of its neighbours.
+ * Rectangles outside of this area are stored in the border cells. An intersection test only looks at the rectangles
+ * in the cells which are covered by the tested rectangle. All data is kept in primitive arrays, so the same grid can
+ * be reused for each tile.
+ * <p>
+ * Two rectangles intersect under the same condition as in {@link android.graphics.Rect#intersects(int, int, int, int)}.
+ */
+final class CollisionGrid {
+	private static final int CELL_SIZE = 32;
+	private static final int GRID_ORIGIN = -Tile.TILE_SIZE / 2;
+	private static final int GRID_SIZE = 2 * Tile.TILE_SIZE / CELL_SIZE;
+	private static final int INITIAL_CELL_CAPACITY = 4;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static int getCell(int coordinate) {
+		int cell = (coordinate - GRID_ORIGIN) / CELL_SIZE;
+		if (cell < 0) {
+			return 0;
+		} else if (cell >= GRID_SIZE) {
+			return GRID_SIZE - 1;
+		}
+		return cell;
+	}
+
+	private final int[][] cells;
+	private final int[] cellSizes;
+	private int numberOfRectangles;
+	private int[] rectangles;
+
+	CollisionGrid() {
+		this.cells = new int[GRID_SIZE * GRID_SIZE][];
+		this.cellSizes = new int[GRID_SIZE * GRID_SIZE];
+		this.rectangles = new int[INITIAL_CAPACITY * 4];
+	}
+
+	/**
+	 * Adds a rectangle to this grid.
+	 * 
+	 * @param left
+	 *            the left edge of the rectangle.
+	 * @param top
+	 *            the top edge of the rectangle.
+	 * @param right
+	 *            the right edge of the rectangle.
+	 * @param bottom
+	 *            the bottom edge of the rectangle.
+	 */
+	void add(int left, int top, int right, int bottom) {
+		if (this.numberOfRectangles * 4 == this.rectangles.length) {
+			this.rectangles = Arrays.copyOf(this.rectangles, this.rectangles.length * 2);
+		}
+		int rectangle = this.numberOfRectangles++;
+		this.rectangles[rectangle * 4] = left;
+		this.rectangles[rectangle * 4 + 1] = top;
+		this.rectangles[rectangle * 4 + 2] = right;
+		this.rectangles[rectangle * 4 + 3] = bottom;
+
+		for (int cellY = getCell(Math.min(top, bottom)), maxY = getCell(Math.max(top, bottom)); cellY <= maxY; ++cellY) {
+			for (int cellX = getCell(Math.min(left, right)), maxX = getCell(Math.max(left, right)); cellX <= maxX; ++cellX) {
+				int cell = cellY * GRID_SIZE + cellX;
+				int[] cellRectangles = this.cells[cell];
+				if (cellRectangles == null) {
+					cellRectangles = new int[INITIAL_CELL_CAPACITY];
+					this.cells[cell] = cellRectangles;
+				} else if (this.cellSizes[cell] == cellRectangles.length) {
+					cellRectangles = Arrays.copyOf(cellRectangles, cellRectangles.length * 2);
+					this.cells[cell] = cellRectangles;
+				}
+				cellRectangles[this.cellSizes[cell]++] = rectangle;
+			}
+		}
+	}
+
+	/**
+	 * Removes all rectangles from this grid.
+	 */
+	void clear() {
+		Arrays.fill(this.cellSizes, 0);
+		this.numberOfRectangles = 0;
+	}
+
+	/**
+	 * @param left
+	 *            the left edge of the rectangle.
+	 * @param top
+	 *            the top edge of the rectangle.
+	 * @param right
+	 *            the right edge of the rectangle.
+	 * @param bottom
+	 *            the bottom edge of the rectangle.
+	 * @return true if the given rectangle intersects any rectangle of this grid, false otherwise.
+	 */
+	boolean intersects(int left, int top, int right, int bottom) {
+		for (int cellY = getCell(Math.min(top, bottom)), maxY = getCell(Math.max(top, bottom)); cellY <= maxY; ++cellY) {
+			for (int cellX = getCell(Math.min(left, right)), maxX = getCell(Math.max(left, right)); cellX <= maxX; ++cellX) {
+				int cell = cellY * GRID_SIZE + cellX;
+				int[] cellRectangles = this.cells[cell];
+				for (int i = 0, n = this.cellSizes[cell]; i < n; ++i) {
+					int rectangle = cellRectangles[i] * 4;
+					if (left < this.rectangles[rectangle + 2] && this.rectangles[rectangle] < right
+							&& top < this.rectangles[rectangle + 3] && this.rectangles[rectangle + 1] < bottom) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+}
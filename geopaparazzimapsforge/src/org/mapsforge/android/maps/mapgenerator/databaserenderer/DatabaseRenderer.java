@@ -35,9 +35,7 @@ import org.mapsforge.core.model.Tag;
 import org.mapsforge.core.model.Tile;
 import org.mapsforge.core.util.MercatorProjection;
 import org.mapsforge.map.reader.MapDatabase;
-import org.mapsforge.map.reader.MapReadResult;
-import org.mapsforge.map.reader.PointOfInterest;
-import org.mapsforge.map.reader.Way;
+import org.mapsforge.map.reader.PrimitiveMapReadResult;
 import org.mapsforge.map.reader.header.MapFileInfo;
 import org.xml.sax.SAXException;
 
@@ -56,8 +54,10 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 	private static final double STROKE_INCREASE = 1.5;
 	private static final byte STROKE_MIN_ZOOM_LEVEL = 12;
 	private static final Tag TAG_NATURAL_WATER = new Tag("natural", "water");
-	private static final float[][] WATER_TILE_COORDINATES = new float[][] { { 0, 0, Tile.TILE_SIZE, 0, Tile.TILE_SIZE,
-			Tile.TILE_SIZE, 0, Tile.TILE_SIZE, 0, 0 } };
+	private static final float[] WATER_TILE_COORDINATES = new float[] { 0, 0, Tile.TILE_SIZE, 0, Tile.TILE_SIZE,
+			Tile.TILE_SIZE, 0, Tile.TILE_SIZE, 0, 0 };
+	private static final WayContainer WATER_TILE_WAY = new WayContainer(WATER_TILE_COORDINATES, new int[] { 0,
+			WATER_TILE_COORDINATES.length }, 0, 1);
 	private static final byte ZOOM_MAX = 22;
 
 	private static RenderTheme getRenderTheme(JobTheme jobTheme) {
@@ -81,11 +81,13 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 
 	private final List<PointTextContainer> areaLabels;
 	private final CanvasRasterer canvasRasterer;
-	private float[][] coordinates;
+	private float[] coordinates;
+	private int coordinatesLength;
 	private Tile currentTile;
 	private List<List<ShapePaintContainer>> drawingLayers;
 	private final LabelPlacement labelPlacement;
 	private MapDatabase mapDatabase;
+	private final PrimitiveMapReadResult mapReadResult;
 	private List<PointTextContainer> nodes;
 	private final List<SymbolContainer> pointSymbols;
 	private float poiX;
@@ -94,8 +96,12 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 	private float previousTextScale;
 	private byte previousZoomLevel;
 	private RenderTheme renderTheme;
-	private ShapeContainer shapeContainer;
+	private int[] segments;
+	private int segmentsLength;
+	private int[] tagIds;
+	private final List<Tag> tags;
 	private final List<WayTextContainer> wayNames;
+	private WayContainer way;
 	private final List<List<List<ShapePaintContainer>>> ways;
 	private final List<SymbolContainer> waySymbols;
 
@@ -103,8 +109,28 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 	 * Constructs a new DatabaseRenderer.
 	 */
 	public DatabaseRenderer() {
+		this(new LabelPlacement());
+	}
+
+	/**
+	 * Constructs a new DatabaseRenderer which shares the labels and symbols crossing tile borders with the given
+	 * DatabaseRenderer. Both renderers may then render neighbouring tiles concurrently.
+	 * 
+	 * @param databaseRenderer
+	 *            the DatabaseRenderer whose label dependencies should be shared.
+	 */
+	public DatabaseRenderer(DatabaseRenderer databaseRenderer) {
+		this(new LabelPlacement(databaseRenderer.labelPlacement.dependencyCache));
+	}
+
+	private DatabaseRenderer(LabelPlacement labelPlacement) {
 		this.canvasRasterer = new CanvasRasterer();
-		this.labelPlacement = new LabelPlacement();
+		this.labelPlacement = labelPlacement;
+		this.mapReadResult = new PrimitiveMapReadResult();
+		this.tags = new ArrayList<>(16);
+		this.tagIds = new int[16];
+		this.coordinates = new float[4096];
+		this.segments = new int[256];
 
 		this.ways = new ArrayList<>(LAYERS);
 		this.wayNames = new ArrayList<>(64);
@@ -155,9 +181,11 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 			this.previousTextScale = textScale;
 		}
 
-		if (this.mapDatabase != null) {
-			MapReadResult mapReadResult = this.mapDatabase.readMapData(this.currentTile);
-			processReadMapData(mapReadResult);
+		if (this.mapDatabase != null && this.mapDatabase.readMapData(this.currentTile, this.mapReadResult)) {
+			MapFileInfo mapFileInfo = this.mapDatabase.getMapFileInfo();
+			this.renderTheme.compile(mapFileInfo.poiTags, mapFileInfo.wayTags);
+			processReadMapData(this.mapReadResult);
+			this.mapReadResult.clear();
 		}
 
 		this.nodes = this.labelPlacement.placeLabels(this.nodes, this.pointSymbols, this.areaLabels, this.currentTile);
@@ -217,18 +245,20 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 
 	@Override
 	public void renderArea(Paint paint, int level) {
-		this.drawingLayers.get(level).add(new ShapePaintContainer(this.shapeContainer, paint));
+		this.drawingLayers.get(level).add(new ShapePaintContainer(this.way, paint));
 	}
 
 	@Override
 	public void renderAreaCaption(String caption, float verticalOffset, Paint paint, Paint stroke) {
-		float[] centerPosition = GeometryUtils.calculateCenterOfBoundingBox(this.coordinates[0]);
+		float[] centerPosition = GeometryUtils.calculateCenterOfBoundingBox(this.way.coordinates,
+				this.way.getSegmentStart(0), this.way.getSegmentEnd(0));
 		this.areaLabels.add(new PointTextContainer(caption, centerPosition[0], centerPosition[1], paint, stroke));
 	}
 
 	@Override
 	public void renderAreaSymbol(Bitmap symbol) {
-		float[] centerPosition = GeometryUtils.calculateCenterOfBoundingBox(this.coordinates[0]);
+		float[] centerPosition = GeometryUtils.calculateCenterOfBoundingBox(this.way.coordinates,
+				this.way.getSegmentStart(0), this.way.getSegmentEnd(0));
 		this.pointSymbols.add(new SymbolContainer(symbol, centerPosition[0] - (symbol.getWidth() >> 1),
 				centerPosition[1] - (symbol.getHeight() >> 1)));
 	}
@@ -252,17 +282,17 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 
 	@Override
 	public void renderWay(Paint paint, int level) {
-		this.drawingLayers.get(level).add(new ShapePaintContainer(this.shapeContainer, paint));
+		this.drawingLayers.get(level).add(new ShapePaintContainer(this.way, paint));
 	}
 
 	@Override
 	public void renderWaySymbol(Bitmap symbolBitmap, boolean alignCenter, boolean repeatSymbol) {
-		WayDecorator.renderSymbol(symbolBitmap, alignCenter, repeatSymbol, this.coordinates, this.waySymbols);
+		WayDecorator.renderSymbol(symbolBitmap, alignCenter, repeatSymbol, this.way, this.waySymbols);
 	}
 
 	@Override
 	public void renderWayText(String textKey, Paint paint, Paint outline) {
-		WayDecorator.renderText(textKey, paint, outline, this.coordinates, this.wayNames);
+		WayDecorator.renderText(textKey, paint, outline, this.way, this.wayNames);
 	}
 
 	@Override
@@ -291,6 +321,9 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 		this.pointSymbols.clear();
 		this.wayNames.clear();
 		this.waySymbols.clear();
+
+		this.coordinatesLength = 0;
+		this.segmentsLength = 0;
 	}
 
 	private void createWayLists() {
@@ -306,55 +339,92 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 		}
 	}
 
-	private void processReadMapData(MapReadResult mapReadResult) {
-		if (mapReadResult == null) {
-			return;
-		}
-
-		for (PointOfInterest pointOfInterest : mapReadResult.pointOfInterests) {
-			renderPointOfInterest(pointOfInterest);
+	private void processReadMapData(PrimitiveMapReadResult primitiveMapReadResult) {
+		for (int poi = 0, n = primitiveMapReadResult.getNumberOfPois(); poi < n; ++poi) {
+			renderPointOfInterest(primitiveMapReadResult, poi);
 		}
 
-		for (Way way : mapReadResult.ways) {
-			renderWay(way);
+		for (int way = 0, n = primitiveMapReadResult.getNumberOfWays(); way < n; ++way) {
+			renderWay(primitiveMapReadResult, way);
 		}
 
-		if (mapReadResult.isWater) {
+		if (primitiveMapReadResult.isWater()) {
 			renderWaterBackground();
 		}
 	}
 
-	private void renderPointOfInterest(PointOfInterest pointOfInterest) {
-		this.drawingLayers = this.ways.get(getValidLayer(pointOfInterest.layer));
-		this.poiX = scaleLongitude(pointOfInterest.position.longitudeE6);
-		this.poiY = scaleLatitude(pointOfInterest.position.latitudeE6);
-		this.renderTheme.matchNode(this, pointOfInterest.tags, this.currentTile.zoomLevel);
+	private void renderPointOfInterest(PrimitiveMapReadResult primitiveMapReadResult, int poi) {
+		this.drawingLayers = this.ways.get(getValidLayer(primitiveMapReadResult.getPoiLayer(poi)));
+		this.poiX = scaleLongitude(primitiveMapReadResult.getPoiLongitude(poi));
+		this.poiY = scaleLatitude(primitiveMapReadResult.getPoiLatitude(poi));
+
+		this.tags.clear();
+		primitiveMapReadResult.getPoiTags(poi, this.tags);
+		int numberOfTagIds = primitiveMapReadResult.getPoiTagIdCount(poi);
+		if (numberOfTagIds > this.tagIds.length) {
+			this.tagIds = new int[numberOfTagIds];
+		}
+		for (int i = 0; i < numberOfTagIds; ++i) {
+			this.tagIds[i] = primitiveMapReadResult.getPoiTagId(poi, i);
+		}
+		this.renderTheme.matchNode(this, this.tags, this.tagIds, numberOfTagIds, this.currentTile.zoomLevel);
 	}
 
 	private void renderWaterBackground() {
 		this.drawingLayers = this.ways.get(0);
-		this.coordinates = WATER_TILE_COORDINATES;
-		this.shapeContainer = new WayContainer(this.coordinates);
+		this.way = WATER_TILE_WAY;
 		this.renderTheme.matchClosedWay(this, Collections.singletonList(TAG_NATURAL_WATER), this.currentTile.zoomLevel);
 	}
 
-	private void renderWay(Way way) {
-		this.drawingLayers = this.ways.get(getValidLayer(way.layer));
+	private void renderWay(PrimitiveMapReadResult primitiveMapReadResult, int way) {
+		this.drawingLayers = this.ways.get(getValidLayer(primitiveMapReadResult.getWayLayer(way)));
 		// TODO what about the label position?
 
-		this.coordinates = way.wayNodes;
-		for (int i = 0; i < this.coordinates.length; ++i) {
-			for (int j = 0; j < this.coordinates[i].length; j += 2) {
-				this.coordinates[i][j] = scaleLongitude(this.coordinates[i][j]);
-				this.coordinates[i][j + 1] = scaleLatitude(this.coordinates[i][j + 1]);
-			}
+		// the segments of a way follow each other in the read result
+		float[] wayNodes = primitiveMapReadResult.getCoordinates();
+		int segmentCount = primitiveMapReadResult.getWaySegmentCount(way);
+		int wayNodesStart = primitiveMapReadResult.getWaySegmentStart(way, 0);
+		int wayNodesLength = primitiveMapReadResult.getWaySegmentEnd(way, segmentCount - 1) - wayNodesStart;
+
+		// the scaled coordinates of all ways are kept in shared buffers until the tile is drawn, a full buffer is
+		// replaced by a larger one and stays with the ways which are already in it
+		if (this.coordinatesLength + wayNodesLength > this.coordinates.length) {
+			this.coordinates = new float[Math.max(this.coordinates.length << 1, wayNodesLength)];
+			this.coordinatesLength = 0;
+		}
+		if (this.segmentsLength + segmentCount + 1 > this.segments.length) {
+			this.segments = new int[Math.max(this.segments.length << 1, segmentCount + 1)];
+			this.segmentsLength = 0;
 		}
-		this.shapeContainer = new WayContainer(this.coordinates);
 
-		if (GeometryUtils.isClosedWay(this.coordinates[0])) {
-			this.renderTheme.matchClosedWay(this, way.tags, this.currentTile.zoomLevel);
+		int offset = this.coordinatesLength - wayNodesStart;
+		for (int i = 0; i < segmentCount; ++i) {
+			int start = primitiveMapReadResult.getWaySegmentStart(way, i);
+			int end = primitiveMapReadResult.getWaySegmentEnd(way, i);
+			this.segments[this.segmentsLength + i] = start + offset;
+			for (int j = start; j < end; j += 2) {
+				this.coordinates[j + offset] = scaleLongitude(wayNodes[j]);
+				this.coordinates[j + offset + 1] = scaleLatitude(wayNodes[j + 1]);
+			}
+		}
+		this.segments[this.segmentsLength + segmentCount] = wayNodesLength + this.coordinatesLength;
+		this.way = new WayContainer(this.coordinates, this.segments, this.segmentsLength, segmentCount);
+		this.coordinatesLength += wayNodesLength;
+		this.segmentsLength += segmentCount + 1;
+
+		this.tags.clear();
+		primitiveMapReadResult.getWayTags(way, this.tags);
+		int numberOfTagIds = primitiveMapReadResult.getWayTagIdCount(way);
+		if (numberOfTagIds > this.tagIds.length) {
+			this.tagIds = new int[numberOfTagIds];
+		}
+		for (int i = 0; i < numberOfTagIds; ++i) {
+			this.tagIds[i] = primitiveMapReadResult.getWayTagId(way, i);
+		}
+		if (GeometryUtils.isClosedWay(this.way.coordinates, this.way.getSegmentStart(0), this.way.getSegmentEnd(0))) {
+			this.renderTheme.matchClosedWay(this, this.tags, this.tagIds, numberOfTagIds, this.currentTile.zoomLevel);
 		} else {
-			this.renderTheme.matchLinearWay(this, way.tags, this.currentTile.zoomLevel);
+			this.renderTheme.matchLinearWay(this, this.tags, this.tagIds, numberOfTagIds, this.currentTile.zoomLevel);
 		}
 	}
 
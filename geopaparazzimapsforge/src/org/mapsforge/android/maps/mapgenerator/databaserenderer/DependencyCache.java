@@ -15,12 +15,12 @@
 package org.mapsforge.android.maps.mapgenerator.databaserenderer;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.LRUCache;
 
 import android.graphics.Bitmap;
 import android.graphics.Paint;
@@ -30,8 +30,28 @@ import android.graphics.Rect;
  * This class process the methods for the Dependency Cache. It's connected with the LabelPlacement class. The main goal
  * is, to remove double labels and symbols that are already rendered, from the actual tile. Labels and symbols that,
  * would be rendered on an already drawn Tile, will be deleted too.
+ * <p>
+ * A DependencyCache may be shared by several renderers, all calls must then be synchronized on the DependencyCache.
  */
 class DependencyCache {
+	/**
+	 * Maximum number of tiles whose dependencies are kept. Tiles which have not been used for the longest time are
+	 * evicted first. At worst, a label at the border of an evicted tile is cut or drawn twice if the tile is rendered
+	 * again.
+	 */
+	private static final int DEPENDENCY_CACHE_SIZE = 256;
+
+	private static boolean hasSameStyle(Paint paint1, Paint paint2) {
+		if (paint1 == paint2) {
+			return true;
+		} else if (paint1 == null || paint2 == null) {
+			return false;
+		}
+		// the render themes of different renderers have their own paint objects
+		return paint1.getColor() == paint2.getColor() && paint1.getTextSize() == paint2.getTextSize()
+				&& paint1.getStrokeWidth() == paint2.getStrokeWidth();
+	}
+
 	/**
 	 * The class holds the data for a symbol with dependencies on other tiles.
 	 * 
@@ -162,7 +182,7 @@ class DependencyCache {
 	private Tile currentTile;
 
 	/**
-	 * Hash table, that connects the Tiles with their entries in the dependency cache.
+	 * Bounded table, that connects the Tiles with their entries in the dependency cache.
 	 */
 	final Map<Tile, DependencyOnTile> dependencyTable;
 	Dependency<DependencyText> depLabel;
@@ -172,10 +192,10 @@ class DependencyCache {
 	DependencyOnTile tmp;
 
 	/**
-	 * Constructor for this class, that creates a hashtable for the dependencies.
+	 * Constructor for this class, that creates a bounded table for the dependencies.
 	 */
 	DependencyCache() {
-		this.dependencyTable = new Hashtable<>(60);
+		this.dependencyTable = new LRUCache<>(DEPENDENCY_CACHE_SIZE);
 	}
 
 	private void addLabelsFromDependencyOnTile(List<PointTextContainer> labels) {
@@ -641,9 +661,9 @@ class DependencyCache {
 		for (int i = 0; i < this.currentDependencyOnTile.labels.size(); i++) {
 			for (int x = 0; x < labels.size(); x++) {
 				if ((labels.get(x).text.equals(this.currentDependencyOnTile.labels.get(i).value.text))
-						&& (labels.get(x).paintFront
-								.equals(this.currentDependencyOnTile.labels.get(i).value.paintFront))
-						&& (labels.get(x).paintBack.equals(this.currentDependencyOnTile.labels.get(i).value.paintBack))) {
+						&& hasSameStyle(labels.get(x).paintFront,
+								this.currentDependencyOnTile.labels.get(i).value.paintFront)
+						&& hasSameStyle(labels.get(x).paintBack, this.currentDependencyOnTile.labels.get(i).value.paintBack)) {
 					labels.remove(x);
 					i--;
 					break;
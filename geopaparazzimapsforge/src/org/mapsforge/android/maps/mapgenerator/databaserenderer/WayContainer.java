@@ -14,11 +14,39 @@
  */
 package org.mapsforge.android.maps.mapgenerator.databaserenderer;
 
+/**
+ * The coordinates of a way, stored in buffers which are shared by all ways of a tile. The segment {@code i} of the way
+ * is found in {@link #coordinates} between {@code segments[firstSegment + i]} and {@code segments[firstSegment + i + 1]}.
+ */
 class WayContainer implements ShapeContainer {
-	final float[][] coordinates;
+	final float[] coordinates;
+	final int firstSegment;
+	final int segmentCount;
+	final int[] segments;
 
-	WayContainer(float[][] coordinates) {
+	WayContainer(float[] coordinates, int[] segments, int firstSegment, int segmentCount) {
 		this.coordinates = coordinates;
+		this.segments = segments;
+		this.firstSegment = firstSegment;
+		this.segmentCount = segmentCount;
+	}
+
+	/**
+	 * @param segment
+	 *            the index of the segment within the way.
+	 * @return the end of the segment in the coordinates buffer (exclusive).
+	 */
+	int getSegmentEnd(int segment) {
+		return this.segments[this.firstSegment + segment + 1];
+	}
+
+	/**
+	 * @param segment
+	 *            the index of the segment within the way.
+	 * @return the start of the segment in the coordinates buffer.
+	 */
+	int getSegmentStart(int segment) {
+		return this.segments[this.firstSegment + segment];
 	}
 
 	@Override
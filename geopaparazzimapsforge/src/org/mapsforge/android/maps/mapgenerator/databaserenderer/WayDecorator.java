@@ -35,22 +35,25 @@ final class WayDecorator {
 	 */
 	private static final int SEGMENT_SAFETY_DISTANCE = 30;
 
-	static void renderSymbol(Bitmap symbolBitmap, boolean alignCenter, boolean repeatSymbol, float[][] coordinates,
+	static void renderSymbol(Bitmap symbolBitmap, boolean alignCenter, boolean repeatSymbol, WayContainer way,
 			List<SymbolContainer> waySymbols) {
+		float[] coordinates = way.coordinates;
+		int start = way.getSegmentStart(0);
+		int end = way.getSegmentEnd(0);
 		int skipPixels = SEGMENT_SAFETY_DISTANCE;
 
 		// get the first way point coordinates
-		float previousX = coordinates[0][0];
-		float previousY = coordinates[0][1];
+		float previousX = coordinates[start];
+		float previousY = coordinates[start + 1];
 
 		// draw the symbol on each way segment
 		float segmentLengthRemaining;
 		float segmentSkipPercentage;
 		float symbolAngle;
-		for (int i = 2; i < coordinates[0].length; i += 2) {
+		for (int i = start + 2; i < end; i += 2) {
 			// get the current way point coordinates
-			float currentX = coordinates[0][i];
-			float currentY = coordinates[0][i + 1];
+			float currentX = coordinates[i];
+			float currentY = coordinates[i + 1];
 
 			// calculate the length of the current segment (Euclidian distance)
 			float diffX = currentX - previousX;
@@ -96,22 +99,25 @@ final class WayDecorator {
 		}
 	}
 
-	static void renderText(String textKey, Paint paint, Paint outline, float[][] coordinates,
+	static void renderText(String textKey, Paint paint, Paint outline, WayContainer way,
 			List<WayTextContainer> wayNames) {
+		float[] coordinates = way.coordinates;
+		int start = way.getSegmentStart(0);
+		int end = way.getSegmentEnd(0);
 		// calculate the way name length plus some margin of safety
 		float wayNameWidth = paint.measureText(textKey) + 10;
 
 		int skipPixels = 0;
 
 		// get the first way point coordinates
-		float previousX = coordinates[0][0];
-		float previousY = coordinates[0][1];
+		float previousX = coordinates[start];
+		float previousY = coordinates[start + 1];
 
 		// find way segments long enough to draw the way name on them
-		for (int i = 2; i < coordinates[0].length; i += 2) {
+		for (int i = start + 2; i < end; i += 2) {
 			// get the current way point coordinates
-			float currentX = coordinates[0][i];
-			float currentY = coordinates[0][i + 1];
+			float currentX = coordinates[i];
+			float currentY = coordinates[i + 1];
 
 			// calculate the length of the current segment (Euclidian distance)
 			float diffX = currentX - previousX;
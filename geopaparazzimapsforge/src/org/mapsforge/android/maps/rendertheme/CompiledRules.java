@@ -0,0 +1,350 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.rendertheme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mapsforge.android.maps.rendertheme.renderinstruction.RenderInstruction;
+import org.mapsforge.core.model.Tag;
+
+/**
+ * CompiledRules are the rules of a {@link RenderTheme} compiled against the tag table of a map file. The rule tree is
+ * flattened in depth-first order and each attribute matcher is replaced by a bit set over the tag IDs, so that nodes and
+ * ways are matched by integer comparisons without creating any objects.
+ * <p>
+ * Tags which are not part of the tag table, like names and house numbers, get one additional ID per key which is used by
+ * the rules. If such a tag has a value which is used by the rules, the element is matched against the rule tree instead.
+ */
+final class CompiledRules {
+	private static final int MATCHING_CACHE_SIZE = 1024;
+
+	private static void collectKeysAndValues(AttributeMatcher attributeMatcher, Set<String> keys, Set<String> values) {
+		if (attributeMatcher instanceof SingleKeyMatcher) {
+			keys.add(((SingleKeyMatcher) attributeMatcher).key);
+		} else if (attributeMatcher instanceof MultiKeyMatcher) {
+			keys.addAll(((MultiKeyMatcher) attributeMatcher).keys);
+		} else if (attributeMatcher instanceof SingleValueMatcher) {
+			values.add(((SingleValueMatcher) attributeMatcher).value);
+		} else if (attributeMatcher instanceof MultiValueMatcher) {
+			values.addAll(((MultiValueMatcher) attributeMatcher).values);
+		} else if (attributeMatcher instanceof NegativeMatcher) {
+			keys.addAll(((NegativeMatcher) attributeMatcher).keyList);
+			values.addAll(((NegativeMatcher) attributeMatcher).valueList);
+		}
+	}
+
+	private static void collectKeysAndValues(List<Rule> rules, Set<String> keys, Set<String> values) {
+		for (int i = 0, n = rules.size(); i < n; ++i) {
+			Rule rule = rules.get(i);
+			if (rule instanceof NegativeRule) {
+				collectKeysAndValues(((NegativeRule) rule).attributeMatcher, keys, values);
+			} else {
+				collectKeysAndValues(((PositiveRule) rule).keyMatcher, keys, values);
+				collectKeysAndValues(((PositiveRule) rule).valueMatcher, keys, values);
+			}
+			collectKeysAndValues(rule.subRules, keys, values);
+		}
+	}
+
+	/**
+	 * @return a bit set with one bit per tag which is set if the attribute matcher accepts the tag, or null if the
+	 *         attribute matcher accepts any tags.
+	 */
+	private static long[] compileAttributeMatcher(AttributeMatcher attributeMatcher, Tag[] tags,
+			Map<AttributeMatcher, long[]> compiledMatchers) {
+		if (attributeMatcher instanceof AnyMatcher) {
+			return null;
+		}
+
+		long[] tagBits = compiledMatchers.get(attributeMatcher);
+		if (tagBits == null) {
+			tagBits = new long[(tags.length + 63) >>> 6];
+			List<Tag> singleTag = new ArrayList<>(1);
+			singleTag.add(null);
+			for (int tagId = 0; tagId < tags.length; ++tagId) {
+				singleTag.set(0, tags[tagId]);
+				if (attributeMatcher.matches(singleTag)) {
+					tagBits[tagId >>> 6] |= 1L << tagId;
+				}
+			}
+			compiledMatchers.put(attributeMatcher, tagBits);
+		}
+		return tagBits;
+	}
+
+	private static boolean containsAny(long[] tagBits, int[] tagIds, int numberOfTagIds) {
+		for (int i = 0; i < numberOfTagIds; ++i) {
+			int tagId = tagIds[i];
+			if ((tagBits[tagId >>> 6] & (1L << tagId)) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int countRules(List<Rule> rules) {
+		int numberOfRules = rules.size();
+		for (int i = 0, n = rules.size(); i < n; ++i) {
+			numberOfRules += countRules(rules.get(i).subRules);
+		}
+		return numberOfRules;
+	}
+
+	private final Map<String, Integer> extraTagIds;
+	private final long[][] keyBits;
+	private final ConcurrentHashMap<TagIdsCacheKey, RenderInstruction[]> matchingCache;
+	private final ThreadLocal<TagIdsCacheKey> matchingKey;
+	private final boolean[] matchesClosedWay;
+	private final boolean[] matchesLinearWay;
+	private final boolean[] matchesNode;
+	private final boolean[] matchesWay;
+	private final boolean[] negative;
+	private final int numberOfRules;
+	private final RenderInstruction[][] renderInstructions;
+	private final List<Rule> rulesList;
+	private final int[] subRulesEnd;
+	private final Set<String> usedValues;
+	private final long[][] valueBits;
+	private final byte[] zoomMax;
+	private final byte[] zoomMin;
+
+	final Tag[] tagTable;
+
+	/**
+	 * @param rulesList
+	 *            the completed rules of the RenderTheme.
+	 * @param tagTable
+	 *            the POI or way tags of the map file to which the tag IDs refer.
+	 */
+	CompiledRules(List<Rule> rulesList, Tag[] tagTable) {
+		this.rulesList = rulesList;
+		this.tagTable = tagTable;
+
+		Set<String> usedKeys = new HashSet<>();
+		this.usedValues = new HashSet<>();
+		collectKeysAndValues(rulesList, usedKeys, this.usedValues);
+
+		// tags which are not part of the tag table are identified by their key only
+		Tag[] tags = Arrays.copyOf(tagTable, tagTable.length + usedKeys.size());
+		this.extraTagIds = new HashMap<>();
+		int tagId = tagTable.length;
+		for (String key : usedKeys) {
+			tags[tagId] = new Tag(key, null);
+			this.extraTagIds.put(key, Integer.valueOf(tagId));
+			++tagId;
+		}
+
+		this.numberOfRules = countRules(rulesList);
+		this.keyBits = new long[this.numberOfRules][];
+		this.valueBits = new long[this.numberOfRules][];
+		this.negative = new boolean[this.numberOfRules];
+		this.matchesNode = new boolean[this.numberOfRules];
+		this.matchesWay = new boolean[this.numberOfRules];
+		this.matchesClosedWay = new boolean[this.numberOfRules];
+		this.matchesLinearWay = new boolean[this.numberOfRules];
+		this.zoomMin = new byte[this.numberOfRules];
+		this.zoomMax = new byte[this.numberOfRules];
+		this.renderInstructions = new RenderInstruction[this.numberOfRules][];
+		this.subRulesEnd = new int[this.numberOfRules];
+		compileRules(rulesList, 0, tags, new IdentityHashMap<AttributeMatcher, long[]>());
+
+		this.matchingCache = new ConcurrentHashMap<>();
+		this.matchingKey = new ThreadLocal<TagIdsCacheKey>() {
+			@Override
+			protected TagIdsCacheKey initialValue() {
+				return new TagIdsCacheKey();
+			}
+		};
+	}
+
+	/**
+	 * Matches a node against the compiled rules.
+	 * 
+	 * @param renderCallback
+	 *            the callback implementation which will be executed on each match.
+	 * @param tags
+	 *            the tags of the node, starting with the tags from the tag table.
+	 * @param tagIds
+	 *            the IDs of the tags from the tag table.
+	 * @param numberOfTagIds
+	 *            the number of tag IDs.
+	 * @param zoomLevel
+	 *            the zoom level at which the node should be matched.
+	 */
+	void matchNode(RenderCallback renderCallback, List<Tag> tags, int[] tagIds, int numberOfTagIds, byte zoomLevel) {
+		TagIdsCacheKey tagIdsKey = this.matchingKey.get();
+		tagIdsKey.reset(zoomLevel, null);
+		if (!collectTagIds(tagIdsKey, tags, tagIds, numberOfTagIds)) {
+			for (int i = 0, n = this.rulesList.size(); i < n; ++i) {
+				this.rulesList.get(i).matchNode(renderCallback, tags, zoomLevel);
+			}
+			return;
+		}
+
+		int rule = 0;
+		while (rule < this.numberOfRules) {
+			if (this.zoomMin[rule] <= zoomLevel && this.zoomMax[rule] >= zoomLevel && this.matchesNode[rule]
+					&& matchesTags(rule, tagIdsKey)) {
+				RenderInstruction[] ruleInstructions = this.renderInstructions[rule];
+				for (int i = 0; i < ruleInstructions.length; ++i) {
+					ruleInstructions[i].renderNode(renderCallback, tags);
+				}
+				++rule;
+			} else {
+				// the sub rules of a rule which does not match are skipped
+				rule = this.subRulesEnd[rule];
+			}
+		}
+	}
+
+	/**
+	 * Matches a way against the compiled rules. The matching render instructions are cached per zoom level, the cache
+	 * can be used by several threads concurrently.
+	 * 
+	 * @param renderCallback
+	 *            the callback implementation which will be executed on each match.
+	 * @param tags
+	 *            the tags of the way, starting with the tags from the tag table.
+	 * @param tagIds
+	 *            the IDs of the tags from the tag table.
+	 * @param numberOfTagIds
+	 *            the number of tag IDs.
+	 * @param zoomLevel
+	 *            the zoom level at which the way should be matched.
+	 * @param closed
+	 *            whether the way is closed.
+	 */
+	void matchWay(RenderCallback renderCallback, List<Tag> tags, int[] tagIds, int numberOfTagIds, byte zoomLevel,
+			Closed closed) {
+		TagIdsCacheKey tagIdsKey = this.matchingKey.get();
+		tagIdsKey.reset(zoomLevel, closed);
+		if (!collectTagIds(tagIdsKey, tags, tagIds, numberOfTagIds)) {
+			List<RenderInstruction> matchingList = new ArrayList<>();
+			for (int i = 0, n = this.rulesList.size(); i < n; ++i) {
+				this.rulesList.get(i).matchWay(renderCallback, tags, zoomLevel, closed, matchingList);
+			}
+			return;
+		}
+
+		RenderInstruction[] matchingInstructions = this.matchingCache.get(tagIdsKey);
+		if (matchingInstructions == null) {
+			// cache miss
+			matchingInstructions = matchWay(tagIdsKey);
+			if (this.matchingCache.size() >= MATCHING_CACHE_SIZE) {
+				// the entries are cheap to rebuild, so the whole cache is dropped instead of tracking their usage
+				this.matchingCache.clear();
+			}
+			this.matchingCache.put(tagIdsKey.copy(), matchingInstructions);
+		}
+
+		for (int i = 0; i < matchingInstructions.length; ++i) {
+			matchingInstructions[i].renderWay(renderCallback, tags);
+		}
+	}
+
+	/**
+	 * @return false if a tag which is not part of the tag table has a value which is used by the rules.
+	 */
+	private boolean collectTagIds(TagIdsCacheKey tagIdsKey, List<Tag> tags, int[] tagIds, int numberOfTagIds) {
+		for (int i = 0; i < numberOfTagIds; ++i) {
+			tagIdsKey.addTagId(tagIds[i]);
+		}
+
+		for (int i = numberOfTagIds, n = tags.size(); i < n; ++i) {
+			Tag tag = tags.get(i);
+			if (this.usedValues.contains(tag.value)) {
+				return false;
+			}
+			Integer tagId = this.extraTagIds.get(tag.key);
+			if (tagId != null) {
+				tagIdsKey.addTagId(tagId.intValue());
+			}
+		}
+		return true;
+	}
+
+	private int compileRules(List<Rule> rules, int firstIndex, Tag[] tags, Map<AttributeMatcher, long[]> compiledMatchers) {
+		int index = firstIndex;
+		for (int i = 0, n = rules.size(); i < n; ++i) {
+			Rule rule = rules.get(i);
+			int ruleIndex = index++;
+
+			this.zoomMin[ruleIndex] = rule.zoomMin;
+			this.zoomMax[ruleIndex] = rule.zoomMax;
+			this.matchesNode[ruleIndex] = rule.elementMatcher.matches(Element.NODE);
+			this.matchesWay[ruleIndex] = rule.elementMatcher.matches(Element.WAY);
+			this.matchesClosedWay[ruleIndex] = rule.closedMatcher.matches(Closed.YES);
+			this.matchesLinearWay[ruleIndex] = rule.closedMatcher.matches(Closed.NO);
+
+			if (rule instanceof NegativeRule) {
+				NegativeMatcher negativeMatcher = (NegativeMatcher) ((NegativeRule) rule).attributeMatcher;
+				this.negative[ruleIndex] = true;
+				this.keyBits[ruleIndex] = compileAttributeMatcher(new MultiKeyMatcher(negativeMatcher.keyList), tags,
+						compiledMatchers);
+				this.valueBits[ruleIndex] = compileAttributeMatcher(new MultiValueMatcher(negativeMatcher.valueList),
+						tags, compiledMatchers);
+			} else {
+				PositiveRule positiveRule = (PositiveRule) rule;
+				this.keyBits[ruleIndex] = compileAttributeMatcher(positiveRule.keyMatcher, tags, compiledMatchers);
+				this.valueBits[ruleIndex] = compileAttributeMatcher(positiveRule.valueMatcher, tags, compiledMatchers);
+			}
+
+			this.renderInstructions[ruleIndex] = rule.renderInstructions
+					.toArray(new RenderInstruction[rule.renderInstructions.size()]);
+
+			index = compileRules(rule.subRules, index, tags, compiledMatchers);
+			this.subRulesEnd[ruleIndex] = index;
+		}
+		return index;
+	}
+
+	private boolean matchesTags(int rule, TagIdsCacheKey tagIdsKey) {
+		long[] ruleKeyBits = this.keyBits[rule];
+		long[] ruleValueBits = this.valueBits[rule];
+		if (this.negative[rule]) {
+			return !containsAny(ruleKeyBits, tagIdsKey.tagIds, tagIdsKey.numberOfTagIds)
+					|| containsAny(ruleValueBits, tagIdsKey.tagIds, tagIdsKey.numberOfTagIds);
+		}
+		return (ruleKeyBits == null || containsAny(ruleKeyBits, tagIdsKey.tagIds, tagIdsKey.numberOfTagIds))
+				&& (ruleValueBits == null || containsAny(ruleValueBits, tagIdsKey.tagIds, tagIdsKey.numberOfTagIds));
+	}
+
+	private RenderInstruction[] matchWay(TagIdsCacheKey tagIdsKey) {
+		boolean[] matchesClosed = tagIdsKey.closed == Closed.YES ? this.matchesClosedWay : this.matchesLinearWay;
+		List<RenderInstruction> matchingList = new ArrayList<>();
+
+		int rule = 0;
+		while (rule < this.numberOfRules) {
+			if (this.zoomMin[rule] <= tagIdsKey.zoomLevel && this.zoomMax[rule] >= tagIdsKey.zoomLevel
+					&& this.matchesWay[rule] && matchesClosed[rule] && matchesTags(rule, tagIdsKey)) {
+				matchingList.addAll(Arrays.asList(this.renderInstructions[rule]));
+				++rule;
+			} else {
+				// the sub rules of a rule which does not match are skipped
+				rule = this.subRulesEnd[rule];
+			}
+		}
+
+		return matchingList.toArray(new RenderInstruction[matchingList.size()]);
+	}
+}
@@ -20,7 +20,7 @@ import java.util.List;
 import org.mapsforge.core.model.Tag;
 
 class MultiKeyMatcher implements AttributeMatcher {
-	private final List<String> keys;
+	final List<String> keys;
 
 	MultiKeyMatcher(List<String> keys) {
 		this.keys = keys;
@@ -15,7 +15,9 @@
 package org.mapsforge.android.maps.rendertheme;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.mapsforge.android.maps.rendertheme.renderinstruction.RenderInstruction;
 import org.mapsforge.core.model.Tag;
@@ -74,9 +76,11 @@ public class RenderTheme {
 
 	private final float baseStrokeWidth;
 	private final float baseTextSize;
+	private volatile CompiledRules compiledPoiRules;
+	private volatile CompiledRules compiledWayRules;
 	private int levels;
 	private final int mapBackground;
-	private final LRUCache<MatchingCacheKey, List<RenderInstruction>> matchingCache;
+	private final Map<MatchingCacheKey, List<RenderInstruction>> matchingCache;
 	private final ArrayList<Rule> rulesList;
 
 	RenderTheme(int mapBackground, float baseStrokeWidth, float baseTextSize) {
@@ -84,7 +88,26 @@ public class RenderTheme {
 		this.baseStrokeWidth = baseStrokeWidth;
 		this.baseTextSize = baseTextSize;
 		this.rulesList = new ArrayList<>();
-		this.matchingCache = new LRUCache<>(MATCHING_CACHE_SIZE);
+		this.matchingCache = Collections.synchronizedMap(new LRUCache<MatchingCacheKey, List<RenderInstruction>>(
+				MATCHING_CACHE_SIZE));
+	}
+
+	/**
+	 * Compiles the rules of this RenderTheme against the tag tables of a map file, so that nodes and ways can be matched
+	 * by their tag IDs. Nothing is done if the rules have already been compiled against the given tag tables.
+	 * 
+	 * @param poiTags
+	 *            the POI tags of the map file.
+	 * @param wayTags
+	 *            the way tags of the map file.
+	 */
+	public synchronized void compile(Tag[] poiTags, Tag[] wayTags) {
+		if (this.compiledPoiRules == null || this.compiledPoiRules.tagTable != poiTags) {
+			this.compiledPoiRules = new CompiledRules(this.rulesList, poiTags);
+		}
+		if (this.compiledWayRules == null || this.compiledWayRules.tagTable != wayTags) {
+			this.compiledWayRules = new CompiledRules(this.rulesList, wayTags);
+		}
 	}
 
 	/**
@@ -92,6 +115,8 @@ public class RenderTheme {
 	 */
 	public void destroy() {
 		this.matchingCache.clear();
+		this.compiledPoiRules = null;
+		this.compiledWayRules = null;
 		for (int i = 0, n = this.rulesList.size(); i < n; ++i) {
 			this.rulesList.get(i).onDestroy();
 		}
@@ -126,6 +151,25 @@ public class RenderTheme {
 		matchWay(renderCallback, tags, zoomLevel, Closed.YES);
 	}
 
+	/**
+	 * Matches a closed way with the given parameters against the rules compiled by {@link #compile(Tag[], Tag[])}.
+	 * 
+	 * @param renderCallback
+	 *            the callback implementation which will be executed on each match.
+	 * @param tags
+	 *            the tags of the way, starting with the tags from the tag table of the map file.
+	 * @param tagIds
+	 *            the IDs of the tags from the way tag table of the map file.
+	 * @param numberOfTagIds
+	 *            the number of tag IDs.
+	 * @param zoomLevel
+	 *            the zoom level at which the way should be matched.
+	 */
+	public void matchClosedWay(RenderCallback renderCallback, List<Tag> tags, int[] tagIds, int numberOfTagIds,
+			byte zoomLevel) {
+		matchWay(renderCallback, tags, tagIds, numberOfTagIds, zoomLevel, Closed.YES);
+	}
+
 	/**
 	 * Matches a linear way with the given parameters against this RenderTheme.
 	 * 
@@ -140,6 +184,25 @@ public class RenderTheme {
 		matchWay(renderCallback, tags, zoomLevel, Closed.NO);
 	}
 
+	/**
+	 * Matches a linear way with the given parameters against the rules compiled by {@link #compile(Tag[], Tag[])}.
+	 * 
+	 * @param renderCallback
+	 *            the callback implementation which will be executed on each match.
+	 * @param tags
+	 *            the tags of the way, starting with the tags from the tag table of the map file.
+	 * @param tagIds
+	 *            the IDs of the tags from the way tag table of the map file.
+	 * @param numberOfTagIds
+	 *            the number of tag IDs.
+	 * @param zoomLevel
+	 *            the zoom level at which the way should be matched.
+	 */
+	public void matchLinearWay(RenderCallback renderCallback, List<Tag> tags, int[] tagIds, int numberOfTagIds,
+			byte zoomLevel) {
+		matchWay(renderCallback, tags, tagIds, numberOfTagIds, zoomLevel, Closed.NO);
+	}
+
 	/**
 	 * Matches a node with the given parameters against this RenderTheme.
 	 * 
@@ -156,6 +219,30 @@ public class RenderTheme {
 		}
 	}
 
+	/**
+	 * Matches a node with the given parameters against the rules compiled by {@link #compile(Tag[], Tag[])}.
+	 * 
+	 * @param renderCallback
+	 *            the callback implementation which will be executed on each match.
+	 * @param tags
+	 *            the tags of the node, starting with the tags from the tag table of the map file.
+	 * @param tagIds
+	 *            the IDs of the tags from the POI tag table of the map file.
+	 * @param numberOfTagIds
+	 *            the number of tag IDs.
+	 * @param zoomLevel
+	 *            the zoom level at which the node should be matched.
+	 */
+	public void matchNode(RenderCallback renderCallback, List<Tag> tags, int[] tagIds, int numberOfTagIds,
+			byte zoomLevel) {
+		CompiledRules compiledRules = this.compiledPoiRules;
+		if (compiledRules == null) {
+			matchNode(renderCallback, tags, zoomLevel);
+			return;
+		}
+		compiledRules.matchNode(renderCallback, tags, tagIds, numberOfTagIds, zoomLevel);
+	}
+
 	/**
 	 * Scales the stroke width of this RenderTheme by the given factor.
 	 * 
@@ -198,7 +285,18 @@ public class RenderTheme {
 			this.rulesList.get(i).matchWay(renderCallback, tags, zoomLevel, closed, matchingList);
 		}
 
-		this.matchingCache.put(matchingCacheKey, matchingList);
+		// the tags may be reused by the caller for the next way, the cache key needs its own copy
+		this.matchingCache.put(new MatchingCacheKey(new ArrayList<>(tags), zoomLevel, closed), matchingList);
+	}
+
+	private void matchWay(RenderCallback renderCallback, List<Tag> tags, int[] tagIds, int numberOfTagIds,
+			byte zoomLevel, Closed closed) {
+		CompiledRules compiledRules = this.compiledWayRules;
+		if (compiledRules == null) {
+			matchWay(renderCallback, tags, zoomLevel, closed);
+			return;
+		}
+		compiledRules.matchWay(renderCallback, tags, tagIds, numberOfTagIds, zoomLevel, closed);
 	}
 
 	void addRule(Rule rule) {
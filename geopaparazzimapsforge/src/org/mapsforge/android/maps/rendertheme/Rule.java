@@ -169,11 +169,10 @@ abstract class Rule {
 		return createRule(ruleStack, element, keys, values, closed, zoomMin, zoomMax);
 	}
 
-	private final ArrayList<RenderInstruction> renderInstructions;
-	private final ArrayList<Rule> subRules;
-
 	final ClosedMatcher closedMatcher;
 	final ElementMatcher elementMatcher;
+	final ArrayList<RenderInstruction> renderInstructions;
+	final ArrayList<Rule> subRules;
 	final byte zoomMax;
 	final byte zoomMin;
 
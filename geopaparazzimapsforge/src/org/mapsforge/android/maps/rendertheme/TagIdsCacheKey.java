@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.rendertheme;
+
+import java.util.Arrays;
+
+/**
+ * A TagIdsCacheKey identifies the matching result of a way by the IDs of its tags. Each matching thread reuses one
+ * instance to collect the tag IDs and to look up the cache, only cache misses create an immutable copy.
+ */
+class TagIdsCacheKey {
+	private static final int INITIAL_CAPACITY = 16;
+
+	Closed closed;
+	int numberOfTagIds;
+	int[] tagIds;
+	byte zoomLevel;
+
+	TagIdsCacheKey() {
+		this.tagIds = new int[INITIAL_CAPACITY];
+	}
+
+	private TagIdsCacheKey(int[] tagIds, byte zoomLevel, Closed closed) {
+		this.tagIds = tagIds;
+		this.numberOfTagIds = tagIds.length;
+		this.zoomLevel = zoomLevel;
+		this.closed = closed;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		} else if (!(obj instanceof TagIdsCacheKey)) {
+			return false;
+		}
+		TagIdsCacheKey other = (TagIdsCacheKey) obj;
+		if (this.closed != other.closed) {
+			return false;
+		} else if (this.zoomLevel != other.zoomLevel) {
+			return false;
+		} else if (this.numberOfTagIds != other.numberOfTagIds) {
+			return false;
+		}
+		for (int i = 0; i < this.numberOfTagIds; ++i) {
+			if (this.tagIds[i] != other.tagIds[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = 7;
+		result = 31 * result + ((this.closed == null) ? 0 : this.closed.hashCode());
+		for (int i = 0; i < this.numberOfTagIds; ++i) {
+			result = 31 * result + this.tagIds[i];
+		}
+		result = 31 * result + this.zoomLevel;
+		return result;
+	}
+
+	void addTagId(int tagId) {
+		if (this.numberOfTagIds == this.tagIds.length) {
+			this.tagIds = Arrays.copyOf(this.tagIds, this.numberOfTagIds * 2);
+		}
+		this.tagIds[this.numberOfTagIds++] = tagId;
+	}
+
+	/**
+	 * @return an immutable copy of this key which can be stored in the cache.
+	 */
+	TagIdsCacheKey copy() {
+		return new TagIdsCacheKey(Arrays.copyOf(this.tagIds, this.numberOfTagIds), this.zoomLevel, this.closed);
+	}
+
+	void reset(byte newZoomLevel, Closed newClosed) {
+		this.numberOfTagIds = 0;
+		this.zoomLevel = newZoomLevel;
+		this.closed = newClosed;
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache for decoded map file blocks with a maximum size in bytes and LRU policy. The size of each block is estimated
+ * from the lengths of its arrays.
+ */
+class BlockCache {
+	private static final class CacheEntry {
+		final PrimitiveMapReadResult block;
+		final long size;
+
+		CacheEntry(PrimitiveMapReadResult block, long size) {
+			this.block = block;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Load factor of the internal HashMap.
+	 */
+	private static final float LOAD_FACTOR = 0.6f;
+
+	/**
+	 * Estimated size in bytes of a decoded block without its elements.
+	 */
+	private static final int RESULT_OVERHEAD = 512;
+
+	private static long estimateSize(PrimitiveMapReadResult block) {
+		return RESULT_OVERHEAD + block.estimateSize();
+	}
+
+	private static long getCapacity(long capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+		}
+		return capacity;
+	}
+
+	private long capacity;
+	private long hits;
+	private final LinkedHashMap<BlockCacheKey, CacheEntry> map;
+	private long misses;
+	private long sizeInBytes;
+
+	/**
+	 * @param capacity
+	 *            the maximum size of all cached blocks in bytes.
+	 * @throws IllegalArgumentException
+	 *             if the capacity is negative.
+	 */
+	BlockCache(long capacity) {
+		this.capacity = getCapacity(capacity);
+		this.map = new LinkedHashMap<>(16, LOAD_FACTOR, true);
+	}
+
+	/**
+	 * Removes all blocks from the cache. The hit and miss counters are not reset.
+	 */
+	void clear() {
+		this.map.clear();
+		this.sizeInBytes = 0;
+	}
+
+	/**
+	 * @param blockCacheKey
+	 *            the key of the requested block.
+	 * @return the cached block or null if the block is not in the cache.
+	 */
+	PrimitiveMapReadResult get(BlockCacheKey blockCacheKey) {
+		CacheEntry cacheEntry = this.map.get(blockCacheKey);
+		if (cacheEntry == null) {
+			++this.misses;
+			return null;
+		}
+		++this.hits;
+		return cacheEntry.block;
+	}
+
+	/**
+	 * @return the maximum size of all cached blocks in bytes.
+	 */
+	long getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return the number of requests which could be answered from the cache.
+	 */
+	long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * @return the number of requests for blocks which were not in the cache.
+	 */
+	long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * @return the estimated size of all cached blocks in bytes.
+	 */
+	long getSizeInBytes() {
+		return this.sizeInBytes;
+	}
+
+	/**
+	 * @return true if blocks are kept in this cache, false if its capacity is zero.
+	 */
+	boolean isEnabled() {
+		return this.capacity > 0;
+	}
+
+	/**
+	 * Adds the given block to the cache and removes the least recently used blocks if the capacity is exceeded.
+	 * 
+	 * @param blockCacheKey
+	 *            the key of the block.
+	 * @param block
+	 *            the decoded block, it must not be modified afterwards.
+	 */
+	void put(BlockCacheKey blockCacheKey, PrimitiveMapReadResult block) {
+		long size = estimateSize(block);
+		if (size > this.capacity) {
+			return;
+		}
+
+		remove(blockCacheKey);
+		this.map.put(blockCacheKey, new CacheEntry(block, size));
+		this.sizeInBytes += size;
+		trimToCapacity();
+	}
+
+	/**
+	 * @param capacity
+	 *            the new maximum size of all cached blocks in bytes.
+	 * @throws IllegalArgumentException
+	 *             if the capacity is negative.
+	 */
+	void setCapacity(long capacity) {
+		this.capacity = getCapacity(capacity);
+		trimToCapacity();
+	}
+
+	private void remove(BlockCacheKey blockCacheKey) {
+		CacheEntry cacheEntry = this.map.remove(blockCacheKey);
+		if (cacheEntry != null) {
+			this.sizeInBytes -= cacheEntry.size;
+		}
+	}
+
+	private void trimToCapacity() {
+		Iterator<CacheEntry> iterator = this.map.values().iterator();
+		while (this.sizeInBytes > this.capacity && iterator.hasNext()) {
+			this.sizeInBytes -= iterator.next().size;
+			iterator.remove();
+		}
+	}
+}
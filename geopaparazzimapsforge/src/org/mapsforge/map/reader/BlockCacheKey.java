@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import org.mapsforge.map.reader.header.SubFileParameter;
+
+/**
+ * An immutable container class which is the key for the block cache.
+ */
+class BlockCacheKey {
+	private final long blockNumber;
+	private final int hashCodeValue;
+	private final int queryZoomLevel;
+	private final SubFileParameter subFileParameter;
+
+	/**
+	 * Creates an immutable key to be stored in a map.
+	 * 
+	 * @param subFileParameter
+	 *            the parameters of the sub-file which contains the block.
+	 * @param blockNumber
+	 *            the number of the block in the sub-file.
+	 * @param queryZoomLevel
+	 *            the zoom level for which the block was decoded.
+	 */
+	BlockCacheKey(SubFileParameter subFileParameter, long blockNumber, int queryZoomLevel) {
+		this.subFileParameter = subFileParameter;
+		this.blockNumber = blockNumber;
+		this.queryZoomLevel = queryZoomLevel;
+		this.hashCodeValue = calculateHashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		} else if (!(obj instanceof BlockCacheKey)) {
+			return false;
+		}
+		BlockCacheKey other = (BlockCacheKey) obj;
+		if (this.subFileParameter == null && other.subFileParameter != null) {
+			return false;
+		} else if (this.subFileParameter != null && !this.subFileParameter.equals(other.subFileParameter)) {
+			return false;
+		} else if (this.blockNumber != other.blockNumber) {
+			return false;
+		} else if (this.queryZoomLevel != other.queryZoomLevel) {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hashCodeValue;
+	}
+
+	/**
+	 * @return the hash code of this object.
+	 */
+	private int calculateHashCode() {
+		int result = 7;
+		result = 31 * result + ((this.subFileParameter == null) ? 0 : this.subFileParameter.hashCode());
+		result = 31 * result + (int) (this.blockNumber ^ (this.blockNumber >>> 32));
+		result = 31 * result + this.queryZoomLevel;
+		return result;
+	}
+}
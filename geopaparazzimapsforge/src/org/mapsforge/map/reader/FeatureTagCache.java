@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import org.mapsforge.core.model.Tag;
+
+/**
+ * A cache for the tags of one key whose values are stored as strings in the map file, like the names of POIs and ways.
+ * A feature is read again for each tile and zoom level it covers, so the tags are looked up by the UTF-8 bytes of their
+ * value and no objects are created for a value which has been read before.
+ * <p>
+ * Each value has a single slot in the cache, a new value replaces the previous one of its slot. This class is not
+ * thread-safe.
+ */
+final class FeatureTagCache {
+	private static final String CHARSET_UTF8 = "UTF-8";
+
+	final String key;
+	private final int mask;
+	private final Tag[] tags;
+	private final byte[][] values;
+
+	/**
+	 * @param key
+	 *            the key of all tags in this cache.
+	 * @param size
+	 *            the number of slots, must be a power of two.
+	 */
+	FeatureTagCache(String key, int size) {
+		this.key = key;
+		this.mask = size - 1;
+		this.tags = new Tag[size];
+		this.values = new byte[size][];
+	}
+
+	/**
+	 * @param buffer
+	 *            the buffer with the UTF-8 encoded value.
+	 * @param offset
+	 *            the offset of the value in the buffer.
+	 * @param length
+	 *            the length of the value in bytes.
+	 * @return the tag with the key of this cache and the given value.
+	 */
+	Tag getTag(byte[] buffer, int offset, int length) {
+		int hashCode = 1;
+		for (int i = offset, n = offset + length; i < n; ++i) {
+			hashCode = 31 * hashCode + buffer[i];
+		}
+		int slot = (hashCode ^ (hashCode >>> 16)) & this.mask;
+
+		byte[] value = this.values[slot];
+		if (value != null && equals(value, buffer, offset, length)) {
+			return this.tags[slot];
+		}
+
+		Tag tag;
+		try {
+			tag = new Tag(this.key, new String(buffer, offset, length, CHARSET_UTF8));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		this.values[slot] = Arrays.copyOfRange(buffer, offset, offset + length);
+		this.tags[slot] = tag;
+		return tag;
+	}
+
+	private static boolean equals(byte[] value, byte[] buffer, int offset, int length) {
+		if (value.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; ++i) {
+			if (value[i] != buffer[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -17,12 +17,9 @@ package org.mapsforge.map.reader;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.model.Tag;
 import org.mapsforge.core.model.Tile;
 import org.mapsforge.core.util.MercatorProjection;
@@ -35,6 +32,10 @@ import org.mapsforge.map.reader.header.SubFileParameter;
  * A class for reading binary map files.
  * <p>
  * This class is not thread-safe. Each thread should use its own instance.
+ * <p>
+ * Blocks are either read from the file into a buffer or, if memory mapping is enabled, decoded directly from the
+ * memory mapped file. Memory mapping avoids a system call and a copy for each block; instances on different threads
+ * then share the same pages of the map file.
  * 
  * @see <a href="https://code.google.com/p/mapsforge/wiki/SpecificationBinaryMapFile">Specification</a>
  */
@@ -64,6 +65,11 @@ public class MapDatabase {
 	 */
 	private static final String DEBUG_SIGNATURE_WAY = "way signature: ";
 
+	/**
+	 * Default maximum size in bytes of all decoded blocks in the block cache.
+	 */
+	private static final long DEFAULT_BLOCK_CACHE_CAPACITY = 4 * 1024 * 1024;
+
 	/**
 	 * Amount of cache blocks that the index cache should store.
 	 */
@@ -133,6 +139,11 @@ public class MapDatabase {
 	 */
 	private static final byte SIGNATURE_LENGTH_WAY = 32;
 
+	/**
+	 * Number of slots of the caches for the name, house number and reference tags.
+	 */
+	private static final int FEATURE_TAG_CACHE_SIZE = 1024;
+
 	/**
 	 * The key of the elevation OpenStreetMap tag.
 	 */
@@ -198,16 +209,48 @@ public class MapDatabase {
 	 */
 	private static final int WAY_NUMBER_OF_TAGS_BITMASK = 0x0f;
 
+	private final BlockCache blockCache;
+	private final PrimitiveMapReadResult blockReadResult;
 	private IndexCache databaseIndexCache;
 	private long fileSize;
+	private final FeatureTagCache houseNumberTags;
 	private RandomAccessFile inputFile;
 	private MapFileHeader mapFileHeader;
+	private MappedReadBuffer mappedReadBuffer;
+	private final boolean memoryMapped;
+	private MemoryMappedFile memoryMappedFile;
+	private final FeatureTagCache nameTags;
+	private PrimitiveMapReadResult primitiveMapReadResult;
 	private ReadBuffer readBuffer;
+	private final FeatureTagCache refTags;
 	private String signatureBlock;
 	private String signaturePoi;
 	private String signatureWay;
 	private int tileLatitude;
 	private int tileLongitude;
+	private final int[] wayTagIds;
+
+	/**
+	 * Creates a MapDatabase which reads each block from the map file into a buffer.
+	 */
+	public MapDatabase() {
+		this(false);
+	}
+
+	/**
+	 * @param memoryMapped
+	 *            true if the blocks should be decoded directly from the memory mapped map file, false otherwise. All
+	 *            instances which open the same map file share one mapping.
+	 */
+	public MapDatabase(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+		this.blockCache = new BlockCache(DEFAULT_BLOCK_CACHE_CAPACITY);
+		this.blockReadResult = new PrimitiveMapReadResult();
+		this.nameTags = new FeatureTagCache(TAG_KEY_NAME, FEATURE_TAG_CACHE_SIZE);
+		this.houseNumberTags = new FeatureTagCache(TAG_KEY_HOUSE_NUMBER, FEATURE_TAG_CACHE_SIZE);
+		this.refTags = new FeatureTagCache(TAG_KEY_REF, FEATURE_TAG_CACHE_SIZE);
+		this.wayTagIds = new int[WAY_NUMBER_OF_TAGS_BITMASK];
+	}
 
 	/**
 	 * Closes the map file and destroys all internal caches. Has no effect if no map file is currently opened.
@@ -215,6 +258,7 @@ public class MapDatabase {
 	public void closeFile() {
 		try {
 			this.mapFileHeader = null;
+			this.blockCache.clear();
 
 			if (this.databaseIndexCache != null) {
 				this.databaseIndexCache.destroy();
@@ -226,12 +270,33 @@ public class MapDatabase {
 				this.inputFile = null;
 			}
 
+			if (this.memoryMappedFile != null) {
+				this.memoryMappedFile.close();
+				this.memoryMappedFile = null;
+			}
+
 			this.readBuffer = null;
+			this.mappedReadBuffer = null;
+			this.primitiveMapReadResult = null;
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, null, e);
 		}
 	}
 
+	/**
+	 * @return the number of blocks which were taken from the block cache.
+	 */
+	public long getBlockCacheHits() {
+		return this.blockCache.getHits();
+	}
+
+	/**
+	 * @return the number of blocks which were not found in the block cache and had to be read from the map file.
+	 */
+	public long getBlockCacheMisses() {
+		return this.blockCache.getMisses();
+	}
+
 	/**
 	 * @return the metadata for the current map file.
 	 * @throws IllegalStateException
@@ -251,6 +316,26 @@ public class MapDatabase {
 		return this.inputFile != null;
 	}
 
+	/**
+	 * @return true if the blocks are decoded directly from the memory mapped map file, false otherwise.
+	 */
+	public boolean isMemoryMapped() {
+		return this.memoryMapped;
+	}
+
+	/**
+	 * Sets the maximum size of the cache for decoded blocks. Neighbouring tiles on the same zoom level are then
+	 * filtered from the cached blocks instead of reading and decoding them again.
+	 * 
+	 * @param capacity
+	 *            the maximum size of all cached blocks in bytes, zero disables the cache.
+	 * @throws IllegalArgumentException
+	 *             if the capacity is negative.
+	 */
+	public void setBlockCacheCapacity(long capacity) {
+		this.blockCache.setCapacity(capacity);
+	}
+
 	/**
 	 * Opens the given map file, reads its header data and validates them.
 	 * 
@@ -290,6 +375,12 @@ public class MapDatabase {
 				return fileOpenResult;
 			}
 
+			if (this.memoryMapped) {
+				this.memoryMappedFile = MemoryMappedFile.open(mapFile);
+				this.mappedReadBuffer = new MappedReadBuffer(this.inputFile, this.memoryMappedFile);
+				this.readBuffer = this.mappedReadBuffer;
+			}
+
 			return FileOpenResult.SUCCESS;
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, null, e);
@@ -307,6 +398,33 @@ public class MapDatabase {
 	 * @return the read map data.
 	 */
 	public MapReadResult readMapData(Tile tile) {
+		if (this.primitiveMapReadResult == null) {
+			this.primitiveMapReadResult = new PrimitiveMapReadResult();
+		}
+
+		if (!readMapData(tile, this.primitiveMapReadResult)) {
+			return null;
+		}
+
+		MapReadResultBuilder mapReadResultBuilder = new MapReadResultBuilder();
+		mapReadResultBuilder.add(this.primitiveMapReadResult);
+		this.primitiveMapReadResult.clear();
+		return mapReadResultBuilder.build();
+	}
+
+	/**
+	 * Reads all map data for the area covered by the given tile at the tile zoom level into the given result. Unlike
+	 * {@link #readMapData(Tile)} no objects are created for the POIs and ways, the result can be reused for each
+	 * query.
+	 * 
+	 * @param tile
+	 *            defines area and zoom level of read map data.
+	 * @param primitiveMapReadResult
+	 *            the result which is cleared and then filled with the read map data.
+	 * @return true if the map data could be read, false otherwise.
+	 */
+	public boolean readMapData(Tile tile, PrimitiveMapReadResult primitiveMapReadResult) {
+		primitiveMapReadResult.clear();
 		try {
 			prepareExecution();
 			QueryParameters queryParameters = new QueryParameters();
@@ -316,20 +434,27 @@ public class MapDatabase {
 			SubFileParameter subFileParameter = this.mapFileHeader.getSubFileParameter(queryParameters.queryZoomLevel);
 			if (subFileParameter == null) {
 				LOGGER.warning("no sub-file for zoom level: " + queryParameters.queryZoomLevel);
-				return null;
+				return false;
 			}
 
 			QueryCalculations.calculateBaseTiles(queryParameters, tile, subFileParameter);
 			QueryCalculations.calculateBlocks(queryParameters, subFileParameter);
 
-			return processBlocks(queryParameters, subFileParameter);
+			MapFileInfo mapFileInfo = this.mapFileHeader.getMapFileInfo();
+			primitiveMapReadResult.setTags(mapFileInfo.poiTags, mapFileInfo.wayTags);
+			if (!processBlocks(queryParameters, subFileParameter, primitiveMapReadResult)) {
+				primitiveMapReadResult.clear();
+				return false;
+			}
+			return true;
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, null, e);
-			return null;
+			primitiveMapReadResult.clear();
+			return false;
 		}
 	}
 
-	private void decodeWayNodesDoubleDelta(float[] waySegment) {
+	private void decodeWayNodesDoubleDelta(float[] coordinates, int offset, int length) {
 		// get the first way node latitude offset (VBE-S)
 		int wayNodeLatitude = this.tileLatitude + this.readBuffer.readSignedInt();
 
@@ -337,13 +462,13 @@ public class MapDatabase {
 		int wayNodeLongitude = this.tileLongitude + this.readBuffer.readSignedInt();
 
 		// store the first way node
-		waySegment[1] = wayNodeLatitude;
-		waySegment[0] = wayNodeLongitude;
+		coordinates[offset + 1] = wayNodeLatitude;
+		coordinates[offset] = wayNodeLongitude;
 
 		int previousSingleDeltaLatitude = 0;
 		int previousSingleDeltaLongitude = 0;
 
-		for (int wayNodesIndex = 2; wayNodesIndex < waySegment.length; wayNodesIndex += 2) {
+		for (int wayNodesIndex = offset + 2, end = offset + length; wayNodesIndex < end; wayNodesIndex += 2) {
 			// get the way node latitude double-delta offset (VBE-S)
 			int doubleDeltaLatitude = this.readBuffer.readSignedInt();
 
@@ -356,15 +481,15 @@ public class MapDatabase {
 			wayNodeLatitude = wayNodeLatitude + singleDeltaLatitude;
 			wayNodeLongitude = wayNodeLongitude + singleDeltaLongitude;
 
-			waySegment[wayNodesIndex + 1] = wayNodeLatitude;
-			waySegment[wayNodesIndex] = wayNodeLongitude;
+			coordinates[wayNodesIndex + 1] = wayNodeLatitude;
+			coordinates[wayNodesIndex] = wayNodeLongitude;
 
 			previousSingleDeltaLatitude = singleDeltaLatitude;
 			previousSingleDeltaLongitude = singleDeltaLongitude;
 		}
 	}
 
-	private void decodeWayNodesSingleDelta(float[] waySegment) {
+	private void decodeWayNodesSingleDelta(float[] coordinates, int offset, int length) {
 		// get the first way node latitude single-delta offset (VBE-S)
 		int wayNodeLatitude = this.tileLatitude + this.readBuffer.readSignedInt();
 
@@ -372,18 +497,18 @@ public class MapDatabase {
 		int wayNodeLongitude = this.tileLongitude + this.readBuffer.readSignedInt();
 
 		// store the first way node
-		waySegment[1] = wayNodeLatitude;
-		waySegment[0] = wayNodeLongitude;
+		coordinates[offset + 1] = wayNodeLatitude;
+		coordinates[offset] = wayNodeLongitude;
 
-		for (int wayNodesIndex = 2; wayNodesIndex < waySegment.length; wayNodesIndex += 2) {
+		for (int wayNodesIndex = offset + 2, end = offset + length; wayNodesIndex < end; wayNodesIndex += 2) {
 			// get the way node latitude offset (VBE-S)
 			wayNodeLatitude = wayNodeLatitude + this.readBuffer.readSignedInt();
 
 			// get the way node longitude offset (VBE-S)
 			wayNodeLongitude = wayNodeLongitude + this.readBuffer.readSignedInt();
 
-			waySegment[wayNodesIndex + 1] = wayNodeLatitude;
-			waySegment[wayNodesIndex] = wayNodeLongitude;
+			coordinates[wayNodesIndex + 1] = wayNodeLatitude;
+			coordinates[wayNodesIndex] = wayNodeLongitude;
 		}
 	}
 
@@ -403,14 +528,15 @@ public class MapDatabase {
 		}
 	}
 
-	private PoiWayBundle processBlock(QueryParameters queryParameters, SubFileParameter subFileParameter) {
+	private boolean processBlock(QueryParameters queryParameters, SubFileParameter subFileParameter,
+			boolean filterWays, PrimitiveMapReadResult block) {
 		if (!processBlockSignature()) {
-			return null;
+			return false;
 		}
 
 		int[][] zoomTable = readZoomTable(subFileParameter);
 		if (zoomTable == null) {
-			return null;
+			return false;
 		}
 		int zoomTableRow = queryParameters.queryZoomLevel - subFileParameter.zoomLevelMin;
 		int poisOnQueryZoomLevel = zoomTable[zoomTableRow][0];
@@ -423,7 +549,7 @@ public class MapDatabase {
 			if (this.mapFileHeader.getMapFileInfo().debugFile) {
 				LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
 			}
-			return null;
+			return false;
 		}
 
 		// add the current buffer position to the relative first way offset
@@ -433,12 +559,11 @@ public class MapDatabase {
 			if (this.mapFileHeader.getMapFileInfo().debugFile) {
 				LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
 			}
-			return null;
+			return false;
 		}
 
-		List<PointOfInterest> pois = processPOIs(poisOnQueryZoomLevel);
-		if (pois == null) {
-			return null;
+		if (!processPOIs(poisOnQueryZoomLevel, block)) {
+			return false;
 		}
 
 		// finished reading POIs, check if the current buffer position is valid
@@ -447,26 +572,21 @@ public class MapDatabase {
 			if (this.mapFileHeader.getMapFileInfo().debugFile) {
 				LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
 			}
-			return null;
+			return false;
 		}
 
 		// move the pointer to the first way
 		this.readBuffer.setBufferPosition(firstWayOffset);
 
-		List<Way> ways = processWays(queryParameters, waysOnQueryZoomLevel);
-		if (ways == null) {
-			return null;
-		}
-
-		return new PoiWayBundle(pois, ways);
+		return processWays(queryParameters, waysOnQueryZoomLevel, filterWays, block);
 	}
 
-	private MapReadResult processBlocks(QueryParameters queryParameters, SubFileParameter subFileParameter)
-			throws IOException {
+	private boolean processBlocks(QueryParameters queryParameters, SubFileParameter subFileParameter,
+			PrimitiveMapReadResult primitiveMapReadResult) throws IOException {
 		boolean queryIsWater = true;
 		boolean queryReadWaterInfo = false;
 
-		MapReadResultBuilder mapReadResultBuilder = new MapReadResultBuilder();
+		boolean cacheBlocks = this.blockCache.isEnabled();
 
 		// read and process all blocks from top to bottom and from left to right
 		for (long row = queryParameters.fromBlockY; row <= queryParameters.toBlockY; ++row) {
@@ -485,12 +605,23 @@ public class MapDatabase {
 					queryReadWaterInfo = true;
 				}
 
+				// check if the decoded block is already cached
+				BlockCacheKey blockCacheKey = null;
+				if (cacheBlocks) {
+					blockCacheKey = new BlockCacheKey(subFileParameter, blockNumber, queryParameters.queryZoomLevel);
+					PrimitiveMapReadResult cachedBlock = this.blockCache.get(blockCacheKey);
+					if (cachedBlock != null) {
+						primitiveMapReadResult.add(cachedBlock, queryParameters);
+						continue;
+					}
+				}
+
 				// get and check the current block pointer
 				long currentBlockPointer = currentBlockIndexEntry & BITMASK_INDEX_OFFSET;
 				if (currentBlockPointer < 1 || currentBlockPointer > subFileParameter.subFileSize) {
 					LOGGER.warning("invalid current block pointer: " + currentBlockPointer);
 					LOGGER.warning("subFileSize: " + subFileParameter.subFileSize);
-					return null;
+					return false;
 				}
 
 				long nextBlockPointer;
@@ -505,7 +636,7 @@ public class MapDatabase {
 					if (nextBlockPointer < 1 || nextBlockPointer > subFileParameter.subFileSize) {
 						LOGGER.warning("invalid next block pointer: " + nextBlockPointer);
 						LOGGER.warning("sub-file size: " + subFileParameter.subFileSize);
-						return null;
+						return false;
 					}
 				}
 
@@ -513,7 +644,7 @@ public class MapDatabase {
 				int currentBlockSize = (int) (nextBlockPointer - currentBlockPointer);
 				if (currentBlockSize < 0) {
 					LOGGER.warning("current block size must not be negative: " + currentBlockSize);
-					return null;
+					return false;
 				} else if (currentBlockSize == 0) {
 					// the current block is empty, continue with the next block
 					continue;
@@ -523,17 +654,14 @@ public class MapDatabase {
 					continue;
 				} else if (currentBlockPointer + currentBlockSize > this.fileSize) {
 					LOGGER.warning("current block largher than file size: " + currentBlockSize);
-					return null;
+					return false;
 				}
 
-				// seek to the current block in the map file
-				this.inputFile.seek(subFileParameter.startAddress + currentBlockPointer);
-
 				// read the current block into the buffer
-				if (!this.readBuffer.readFromFile(currentBlockSize)) {
+				if (!readBlock(subFileParameter.startAddress + currentBlockPointer, currentBlockSize)) {
 					// skip the current block
 					LOGGER.warning("reading current block has failed: " + currentBlockSize);
-					return null;
+					return false;
 				}
 
 				// calculate the top-left coordinates of the underlying tile
@@ -544,9 +672,17 @@ public class MapDatabase {
 				this.tileLatitude = (int) (tileLatitudeDeg * 1000000);
 				this.tileLongitude = (int) (tileLongitudeDeg * 1000000);
 
+				// cached blocks must contain all ways, they are filtered for each tile later
+				PrimitiveMapReadResult block = cacheBlocks ? new PrimitiveMapReadResult() : this.blockReadResult;
+				block.clear();
 				try {
-					PoiWayBundle poiWayBundle = processBlock(queryParameters, subFileParameter);
-					mapReadResultBuilder.add(poiWayBundle);
+					if (processBlock(queryParameters, subFileParameter, !cacheBlocks, block)) {
+						if (cacheBlocks) {
+							block.trimToSize();
+							this.blockCache.put(blockCacheKey, block);
+						}
+						primitiveMapReadResult.add(block, queryParameters);
+					}
 				} catch (ArrayIndexOutOfBoundsException e) {
 					LOGGER.log(Level.SEVERE, null, e);
 				}
@@ -555,10 +691,10 @@ public class MapDatabase {
 
 		// the query is finished, was the water flag set for all blocks?
 		if (queryIsWater && queryReadWaterInfo) {
-			mapReadResultBuilder.isWater = true;
+			primitiveMapReadResult.setWater(true);
 		}
 
-		return mapReadResultBuilder.build();
+		return true;
 	}
 
 	/**
@@ -578,8 +714,7 @@ public class MapDatabase {
 		return true;
 	}
 
-	private List<PointOfInterest> processPOIs(int numberOfPois) {
-		List<PointOfInterest> pois = new ArrayList<>();
+	private boolean processPOIs(int numberOfPois, PrimitiveMapReadResult block) {
 		Tag[] poiTags = this.mapFileHeader.getMapFileInfo().poiTags;
 
 		for (int elementCounter = numberOfPois; elementCounter != 0; --elementCounter) {
@@ -589,7 +724,7 @@ public class MapDatabase {
 				if (!this.signaturePoi.startsWith("***POIStart")) {
 					LOGGER.warning("invalid POI signature: " + this.signaturePoi);
 					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
-					return null;
+					return false;
 				}
 			}
 
@@ -607,7 +742,7 @@ public class MapDatabase {
 			// bit 5-8 represent the number of tag IDs
 			byte numberOfTags = (byte) (specialByte & POI_NUMBER_OF_TAGS_BITMASK);
 
-			List<Tag> tags = new ArrayList<>();
+			block.addPoi(layer, latitude, longitude);
 
 			// get the tag IDs (VBE-U)
 			for (byte tagIndex = numberOfTags; tagIndex != 0; --tagIndex) {
@@ -618,9 +753,9 @@ public class MapDatabase {
 						LOGGER.warning(DEBUG_SIGNATURE_POI + this.signaturePoi);
 						LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
 					}
-					return null;
+					return false;
 				}
-				tags.add(poiTags[tagId]);
+				block.addPoiTagId(tagId);
 			}
 
 			// get the feature bitmask (1 byte)
@@ -633,37 +768,32 @@ public class MapDatabase {
 
 			// check if the POI has a name
 			if (featureName) {
-				tags.add(new Tag(TAG_KEY_NAME, this.readBuffer.readUTF8EncodedString()));
+				block.addPoiFeatureTag(this.readBuffer.readUTF8EncodedTag(this.nameTags));
 			}
 
 			// check if the POI has a house number
 			if (featureHouseNumber) {
-				tags.add(new Tag(TAG_KEY_HOUSE_NUMBER, this.readBuffer.readUTF8EncodedString()));
+				block.addPoiFeatureTag(this.readBuffer.readUTF8EncodedTag(this.houseNumberTags));
 			}
 
 			// check if the POI has an elevation
 			if (featureElevation) {
-				tags.add(new Tag(TAG_KEY_ELE, Integer.toString(this.readBuffer.readSignedInt())));
+				block.addPoiFeatureTag(new Tag(TAG_KEY_ELE, Integer.toString(this.readBuffer.readSignedInt())));
 			}
-
-			pois.add(new PointOfInterest(layer, tags, new GeoPoint(latitude, longitude)));
 		}
 
-		return pois;
+		return true;
 	}
 
-	private float[][] processWayDataBlock(boolean doubleDeltaEncoding) {
+	private boolean processWayDataBlock(boolean doubleDeltaEncoding, PrimitiveMapReadResult block) {
 		// get and check the number of way coordinate blocks (VBE-U)
 		int numberOfWayCoordinateBlocks = this.readBuffer.readUnsignedInt();
 		if (numberOfWayCoordinateBlocks < 1 || numberOfWayCoordinateBlocks > Short.MAX_VALUE) {
 			LOGGER.warning("invalid number of way coordinate blocks: " + numberOfWayCoordinateBlocks);
 			logDebugSignatures();
-			return null;
+			return false;
 		}
 
-		// create the array which will store the different way coordinate blocks
-		float[][] wayCoordinates = new float[numberOfWayCoordinateBlocks][];
-
 		// read the way coordinate blocks
 		for (int coordinateBlock = 0; coordinateBlock < numberOfWayCoordinateBlocks; ++coordinateBlock) {
 			// get and check the number of way nodes (VBE-U)
@@ -671,29 +801,27 @@ public class MapDatabase {
 			if (numberOfWayNodes < 2 || numberOfWayNodes > MAXIMUM_WAY_NODES_SEQUENCE_LENGTH) {
 				LOGGER.warning("invalid number of way nodes: " + numberOfWayNodes);
 				logDebugSignatures();
-				return null;
+				return false;
 			}
 
 			// each way node consists of latitude and longitude
 			int wayNodesSequenceLength = numberOfWayNodes * 2;
 
-			// create the array which will store the current way segment
-			float[] waySegment = new float[wayNodesSequenceLength];
+			// reserve the space for the current way segment in the coordinates array
+			int offset = block.addWaySegment(wayNodesSequenceLength);
 
 			if (doubleDeltaEncoding) {
-				decodeWayNodesDoubleDelta(waySegment);
+				decodeWayNodesDoubleDelta(block.coordinates, offset, wayNodesSequenceLength);
 			} else {
-				decodeWayNodesSingleDelta(waySegment);
+				decodeWayNodesSingleDelta(block.coordinates, offset, wayNodesSequenceLength);
 			}
-
-			wayCoordinates[coordinateBlock] = waySegment;
 		}
 
-		return wayCoordinates;
+		return true;
 	}
 
-	private List<Way> processWays(QueryParameters queryParameters, int numberOfWays) {
-		List<Way> ways = new ArrayList<>();
+	private boolean processWays(QueryParameters queryParameters, int numberOfWays, boolean filterWays,
+			PrimitiveMapReadResult block) {
 		Tag[] wayTags = this.mapFileHeader.getMapFileInfo().wayTags;
 
 		for (int elementCounter = numberOfWays; elementCounter != 0; --elementCounter) {
@@ -703,7 +831,7 @@ public class MapDatabase {
 				if (!this.signatureWay.startsWith("---WayStart")) {
 					LOGGER.warning("invalid way signature: " + this.signatureWay);
 					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
-					return null;
+					return false;
 				}
 			}
 
@@ -714,21 +842,16 @@ public class MapDatabase {
 				if (this.mapFileHeader.getMapFileInfo().debugFile) {
 					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
 				}
-				return null;
+				return false;
 			}
 
-			if (queryParameters.useTileBitmask) {
-				// get the way tile bitmask (2 bytes)
-				int tileBitmask = this.readBuffer.readShort();
-				// check if the way is inside the requested tile
-				if ((queryParameters.queryTileBitmask & tileBitmask) == 0) {
-					// skip the rest of the way and continue with the next way
-					this.readBuffer.skipBytes(wayDataSize - 2);
-					continue;
-				}
-			} else {
-				// ignore the way tile bitmask (2 bytes)
-				this.readBuffer.skipBytes(2);
+			// get the way tile bitmask (2 bytes)
+			int tileBitmask = this.readBuffer.readShort();
+			// check if the way is inside the requested tile
+			if (filterWays && queryParameters.useTileBitmask && (queryParameters.queryTileBitmask & tileBitmask) == 0) {
+				// skip the rest of the way and continue with the next way
+				this.readBuffer.skipBytes(wayDataSize - 2);
+				continue;
 			}
 
 			// get the special byte which encodes multiple flags
@@ -739,16 +862,14 @@ public class MapDatabase {
 			// bit 5-8 represent the number of tag IDs
 			byte numberOfTags = (byte) (specialByte & WAY_NUMBER_OF_TAGS_BITMASK);
 
-			List<Tag> tags = new ArrayList<>();
-
-			for (byte tagIndex = numberOfTags; tagIndex != 0; --tagIndex) {
+			for (byte tagIndex = 0; tagIndex < numberOfTags; ++tagIndex) {
 				int tagId = this.readBuffer.readUnsignedInt();
 				if (tagId < 0 || tagId >= wayTags.length) {
 					LOGGER.warning("invalid way tag ID: " + tagId);
 					logDebugSignatures();
-					return null;
+					return false;
 				}
-				tags.add(wayTags[tagId]);
+				this.wayTagIds[tagIndex] = tagId;
 			}
 
 			// get the feature bitmask (1 byte)
@@ -763,54 +884,63 @@ public class MapDatabase {
 			boolean featureWayDoubleDeltaEncoding = (featureByte & WAY_FEATURE_DOUBLE_DELTA_ENCODING) != 0;
 
 			// check if the way has a name
+			Tag nameTag = null;
 			if (featureName) {
-				tags.add(new Tag(TAG_KEY_NAME, this.readBuffer.readUTF8EncodedString()));
+				nameTag = this.readBuffer.readUTF8EncodedTag(this.nameTags);
 			}
 
 			// check if the way has a house number
+			Tag houseNumberTag = null;
 			if (featureHouseNumber) {
-				tags.add(new Tag(TAG_KEY_HOUSE_NUMBER, this.readBuffer.readUTF8EncodedString()));
+				houseNumberTag = this.readBuffer.readUTF8EncodedTag(this.houseNumberTags);
 			}
 
 			// check if the way has a reference
+			Tag refTag = null;
 			if (featureRef) {
-				tags.add(new Tag(TAG_KEY_REF, this.readBuffer.readUTF8EncodedString()));
+				refTag = this.readBuffer.readUTF8EncodedTag(this.refTags);
 			}
 
-			GeoPoint labelPosition = readOptionalLabelPosition(featureLabelPosition);
+			int labelLatitude = PrimitiveMapReadResult.NO_LABEL_POSITION;
+			int labelLongitude = PrimitiveMapReadResult.NO_LABEL_POSITION;
+			if (featureLabelPosition) {
+				// get the label position latitude offset (VBE-S)
+				labelLatitude = this.tileLatitude + this.readBuffer.readSignedInt();
+
+				// get the label position longitude offset (VBE-S)
+				labelLongitude = this.tileLongitude + this.readBuffer.readSignedInt();
+			}
 
 			int wayDataBlocks = readOptionalWayDataBlocksByte(featureWayDataBlocksByte);
 			if (wayDataBlocks < 1) {
 				LOGGER.warning("invalid number of way data blocks: " + wayDataBlocks);
 				logDebugSignatures();
-				return null;
+				return false;
 			}
 
+			// all way data blocks share the tags of the way
 			for (int wayDataBlock = 0; wayDataBlock < wayDataBlocks; ++wayDataBlock) {
-				float[][] wayNodes = processWayDataBlock(featureWayDoubleDeltaEncoding);
-				if (wayNodes == null) {
-					return null;
+				block.addWay(layer, tileBitmask, labelLatitude, labelLongitude);
+				for (byte tagIndex = 0; tagIndex < numberOfTags; ++tagIndex) {
+					block.addWayTagId(this.wayTagIds[tagIndex]);
+				}
+				if (nameTag != null) {
+					block.addWayFeatureTag(nameTag);
+				}
+				if (houseNumberTag != null) {
+					block.addWayFeatureTag(houseNumberTag);
+				}
+				if (refTag != null) {
+					block.addWayFeatureTag(refTag);
 				}
 
-				ways.add(new Way(layer, tags, wayNodes, labelPosition));
+				if (!processWayDataBlock(featureWayDoubleDeltaEncoding, block)) {
+					return false;
+				}
 			}
 		}
 
-		return ways;
-	}
-
-	private GeoPoint readOptionalLabelPosition(boolean featureLabelPosition) {
-		if (featureLabelPosition) {
-			// get the label position latitude offset (VBE-S)
-			float latitude = this.tileLatitude + this.readBuffer.readSignedInt();
-
-			// get the label position longitude offset (VBE-S)
-			float longitude = this.tileLongitude + this.readBuffer.readSignedInt();
-
-			return new GeoPoint(latitude, longitude);
-		}
-
-		return null;
+		return true;
 	}
 
 	private int readOptionalWayDataBlocksByte(boolean featureWayDataBlocksByte) {
@@ -822,6 +952,34 @@ public class MapDatabase {
 		return 1;
 	}
 
+	/**
+	 * Makes the given block of the map file available in the read buffer.
+	 * 
+	 * @param blockAddress
+	 *            the absolute address of the block in the map file.
+	 * @param blockSize
+	 *            the size of the block in bytes.
+	 * @return true if the whole block could be read, false otherwise.
+	 * @throws IOException
+	 *             if an error occurs while reading the file.
+	 */
+	private boolean readBlock(long blockAddress, int blockSize) throws IOException {
+		if (this.mappedReadBuffer != null) {
+			try {
+				return this.mappedReadBuffer.readFromMappedFile(blockAddress, blockSize);
+			} catch (IOException e) {
+				// the address space of 32 bit devices can be too small to map all regions of a large file
+				LOGGER.log(Level.WARNING, "cannot map the block, reading the map file into a buffer from now on", e);
+				this.mappedReadBuffer = null;
+				this.readBuffer = new ReadBuffer(this.inputFile);
+			}
+		}
+
+		// seek to the current block in the map file
+		this.inputFile.seek(blockAddress);
+		return this.readBuffer.readFromFile(blockSize);
+	}
+
 	private int[][] readZoomTable(SubFileParameter subFileParameter) {
 		int rows = subFileParameter.zoomLevelMax - subFileParameter.zoomLevelMin + 1;
 		int[][] zoomTable = new int[rows][2];
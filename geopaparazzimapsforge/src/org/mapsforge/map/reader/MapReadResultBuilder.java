@@ -15,8 +15,12 @@
 package org.mapsforge.map.reader;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.model.Tag;
+
 class MapReadResultBuilder {
 	boolean isWater;
 	final List<PointOfInterest> pointOfInterests;
@@ -27,9 +31,37 @@ class MapReadResultBuilder {
 		this.ways = new ArrayList<>();
 	}
 
-	void add(PoiWayBundle poiWayBundle) {
-		this.pointOfInterests.addAll(poiWayBundle.pois);
-		this.ways.addAll(poiWayBundle.ways);
+	void add(PrimitiveMapReadResult primitiveMapReadResult) {
+		this.isWater = primitiveMapReadResult.isWater();
+
+		for (int poi = 0, n = primitiveMapReadResult.getNumberOfPois(); poi < n; ++poi) {
+			List<Tag> tags = new ArrayList<>();
+			primitiveMapReadResult.getPoiTags(poi, tags);
+			GeoPoint position = new GeoPoint(primitiveMapReadResult.getPoiLatitude(poi),
+					primitiveMapReadResult.getPoiLongitude(poi));
+			this.pointOfInterests.add(new PointOfInterest(primitiveMapReadResult.getPoiLayer(poi), tags, position));
+		}
+
+		float[] coordinates = primitiveMapReadResult.getCoordinates();
+		for (int way = 0, n = primitiveMapReadResult.getNumberOfWays(); way < n; ++way) {
+			List<Tag> tags = new ArrayList<>();
+			primitiveMapReadResult.getWayTags(way, tags);
+
+			float[][] wayNodes = new float[primitiveMapReadResult.getWaySegmentCount(way)][];
+			for (int segment = 0; segment < wayNodes.length; ++segment) {
+				wayNodes[segment] = Arrays.copyOfRange(coordinates,
+						primitiveMapReadResult.getWaySegmentStart(way, segment),
+						primitiveMapReadResult.getWaySegmentEnd(way, segment));
+			}
+
+			GeoPoint labelPosition = null;
+			if (primitiveMapReadResult.hasWayLabelPosition(way)) {
+				labelPosition = new GeoPoint(primitiveMapReadResult.getWayLabelLatitude(way),
+						primitiveMapReadResult.getWayLabelLongitude(way));
+			}
+
+			this.ways.add(new Way(primitiveMapReadResult.getWayLayer(way), tags, wayNodes, labelPosition));
+		}
 	}
 
 	MapReadResult build() {
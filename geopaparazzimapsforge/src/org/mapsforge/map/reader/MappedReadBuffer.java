@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import org.mapsforge.core.model.Tag;
+
+/**
+ * A {@link ReadBuffer} which decodes the data directly from a {@link MemoryMappedFile} instead of copying each block
+ * into a byte array first.
+ */
+class MappedReadBuffer extends ReadBuffer {
+	private static final String CHARSET_UTF8 = "UTF-8";
+	private static final Logger LOGGER = Logger.getLogger(MappedReadBuffer.class.getName());
+
+	private ByteBuffer bufferData;
+	private int bufferOffset;
+	private int bufferPosition;
+	private int bufferSize;
+	private final RandomAccessFile inputFile;
+	private final MemoryMappedFile memoryMappedFile;
+	private byte[] stringBuffer;
+
+	/**
+	 * @param inputFile
+	 *            the opened map file, its file pointer is used by {@link #readFromFile(int)}.
+	 * @param memoryMappedFile
+	 *            the mapped map file from which the data should be decoded.
+	 */
+	MappedReadBuffer(RandomAccessFile inputFile, MemoryMappedFile memoryMappedFile) {
+		super(inputFile);
+		this.inputFile = inputFile;
+		this.memoryMappedFile = memoryMappedFile;
+		this.stringBuffer = new byte[0];
+	}
+
+	@Override
+	public byte readByte() {
+		return this.bufferData.get(this.bufferOffset + this.bufferPosition++);
+	}
+
+	/**
+	 * Makes the given amount of bytes at the file pointer of the map file accessible, resets the internal buffer
+	 * position and moves the file pointer behind them. No data is copied.
+	 * 
+	 * @param length
+	 *            the amount of bytes which should be accessible.
+	 * @return true if the whole data could be mapped, false otherwise.
+	 * @throws IOException
+	 *             if an error occurs while mapping the file.
+	 */
+	@Override
+	public boolean readFromFile(int length) throws IOException {
+		long address = this.inputFile.getFilePointer();
+		if (!readFromMappedFile(address, length)) {
+			return false;
+		}
+		this.inputFile.seek(address + length);
+		return true;
+	}
+
+	/**
+	 * Moves the read buffer to the given area of the map file and resets the internal buffer position. No data is
+	 * copied.
+	 * 
+	 * @param address
+	 *            the absolute address of the first byte in the map file.
+	 * @param length
+	 *            the amount of bytes which should be accessible.
+	 * @return true if the area could be mapped, false otherwise.
+	 * @throws IOException
+	 *             if an error occurs while mapping the file.
+	 */
+	boolean readFromMappedFile(long address, int length) throws IOException {
+		if (length > MAXIMUM_BUFFER_SIZE) {
+			LOGGER.warning("invalid read length: " + length);
+			return false;
+		}
+
+		ByteBuffer region = this.memoryMappedFile.getRegion(address);
+		int regionOffset = MemoryMappedFile.getRegionOffset(address);
+		if (regionOffset + length > region.capacity()) {
+			LOGGER.warning("invalid read length: " + length);
+			return false;
+		}
+
+		this.bufferData = region;
+		this.bufferOffset = regionOffset;
+		this.bufferSize = length;
+		this.bufferPosition = 0;
+		return true;
+	}
+
+	@Override
+	public int readInt() {
+		this.bufferPosition += 4;
+		return this.bufferData.getInt(this.bufferOffset + this.bufferPosition - 4);
+	}
+
+	@Override
+	public long readLong() {
+		this.bufferPosition += 8;
+		return this.bufferData.getLong(this.bufferOffset + this.bufferPosition - 8);
+	}
+
+	@Override
+	public int readShort() {
+		this.bufferPosition += 2;
+		return this.bufferData.getShort(this.bufferOffset + this.bufferPosition - 2);
+	}
+
+	@Override
+	public int readSignedInt() {
+		int variableByteDecode = 0;
+		byte variableByteShift = 0;
+		int index = this.bufferOffset + this.bufferPosition;
+
+		// check if the continuation bit is set
+		byte currentByte = this.bufferData.get(index++);
+		while ((currentByte & 0x80) != 0) {
+			variableByteDecode |= (currentByte & 0x7f) << variableByteShift;
+			variableByteShift += 7;
+			currentByte = this.bufferData.get(index++);
+		}
+		this.bufferPosition = index - this.bufferOffset;
+
+		// read the six data bits from the last byte
+		if ((currentByte & 0x40) != 0) {
+			// negative
+			return -(variableByteDecode | ((currentByte & 0x3f) << variableByteShift));
+		}
+		// positive
+		return variableByteDecode | ((currentByte & 0x3f) << variableByteShift);
+	}
+
+	@Override
+	public int readUnsignedInt() {
+		int variableByteDecode = 0;
+		byte variableByteShift = 0;
+		int index = this.bufferOffset + this.bufferPosition;
+
+		// check if the continuation bit is set
+		byte currentByte = this.bufferData.get(index++);
+		while ((currentByte & 0x80) != 0) {
+			variableByteDecode |= (currentByte & 0x7f) << variableByteShift;
+			variableByteShift += 7;
+			currentByte = this.bufferData.get(index++);
+		}
+		this.bufferPosition = index - this.bufferOffset;
+
+		// read the seven data bits from the last byte
+		return variableByteDecode | (currentByte << variableByteShift);
+	}
+
+	@Override
+	public String readUTF8EncodedString(int stringLength) {
+		if (readStringBytes(stringLength)) {
+			try {
+				return new String(this.stringBuffer, 0, stringLength, CHARSET_UTF8);
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		LOGGER.warning("invalid string length: " + stringLength);
+		return null;
+	}
+
+	@Override
+	Tag readUTF8EncodedTag(FeatureTagCache featureTagCache) {
+		int stringLength = readUnsignedInt();
+		if (readStringBytes(stringLength)) {
+			return featureTagCache.getTag(this.stringBuffer, 0, stringLength);
+		}
+		LOGGER.warning("invalid string length: " + stringLength);
+		return new Tag(featureTagCache.key, null);
+	}
+
+	/**
+	 * Copies the bytes of a string from the mapped region into the string buffer.
+	 * 
+	 * @param stringLength
+	 *            the length of the string in bytes.
+	 * @return true if the string is within the current block, false otherwise.
+	 */
+	private boolean readStringBytes(int stringLength) {
+		if (stringLength <= 0 || this.bufferPosition + stringLength > this.bufferSize) {
+			return false;
+		}
+		if (this.stringBuffer.length < stringLength) {
+			this.stringBuffer = new byte[stringLength];
+		}
+		int index = this.bufferOffset + this.bufferPosition;
+		for (int i = 0; i < stringLength; ++i) {
+			this.stringBuffer[i] = this.bufferData.get(index + i);
+		}
+		this.bufferPosition += stringLength;
+		return true;
+	}
+
+	@Override
+	int getBufferPosition() {
+		return this.bufferPosition;
+	}
+
+	@Override
+	int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	@Override
+	void setBufferPosition(int bufferPosition) {
+		this.bufferPosition = bufferPosition;
+	}
+
+	@Override
+	void skipBytes(int bytes) {
+		this.bufferPosition += bytes;
+	}
+}
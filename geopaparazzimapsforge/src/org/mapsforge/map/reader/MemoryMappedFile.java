@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read-only map file which is mapped into memory in regions of a fixed size. The regions are mapped lazily on first
+ * access and consecutive regions overlap by {@link ReadBuffer#MAXIMUM_BUFFER_SIZE} bytes, so that each block of the
+ * map file lies completely inside one region. This allows map files larger than the 2 GB limit of a single mapping.
+ * <p>
+ * The mapped regions are only accessed with absolute reads, so one instance can be used by several threads without
+ * locking. Each map file is mapped only once: all {@link MapDatabase} instances which open the same file, like those
+ * of the map workers, share the instance returned by {@link #open(File)} until the last one calls {@link #close()}.
+ */
+class MemoryMappedFile {
+	/**
+	 * Distance in bytes between the start addresses of two consecutive regions.
+	 */
+	private static final long REGION_STEP = 64 * 1024 * 1024;
+
+	private static final Map<String, MemoryMappedFile> OPEN_FILES = new HashMap<>();
+
+	/**
+	 * @param address
+	 *            the absolute address in the map file.
+	 * @return the offset of the given address inside its region.
+	 */
+	static int getRegionOffset(long address) {
+		return (int) (address % REGION_STEP);
+	}
+
+	/**
+	 * Returns the shared mapping of the given map file, the caller has to {@link #close()} it when done.
+	 * 
+	 * @param mapFile
+	 *            the map file.
+	 * @return the mapping of the map file.
+	 * @throws IOException
+	 *             if the map file cannot be opened.
+	 */
+	static MemoryMappedFile open(File mapFile) throws IOException {
+		String key = mapFile.getCanonicalPath();
+		synchronized (OPEN_FILES) {
+			MemoryMappedFile memoryMappedFile = OPEN_FILES.get(key);
+			// a file which was replaced in the meantime is mapped again
+			if (memoryMappedFile == null || memoryMappedFile.fileSize != mapFile.length()
+					|| memoryMappedFile.lastModified != mapFile.lastModified()) {
+				memoryMappedFile = new MemoryMappedFile(key, mapFile);
+				OPEN_FILES.put(key, memoryMappedFile);
+			}
+			memoryMappedFile.referenceCount++;
+			return memoryMappedFile;
+		}
+	}
+
+	private final RandomAccessFile inputFile;
+	private final FileChannel fileChannel;
+	private final long fileSize;
+	private final String key;
+	private final long lastModified;
+	private int referenceCount;
+	private final AtomicReferenceArray<MappedByteBuffer> regions;
+
+	private MemoryMappedFile(String key, File mapFile) throws IOException {
+		this.key = key;
+		this.lastModified = mapFile.lastModified();
+		this.inputFile = new RandomAccessFile(mapFile, "r");
+		this.fileChannel = this.inputFile.getChannel();
+		this.fileSize = this.inputFile.length();
+		this.regions = new AtomicReferenceArray<>((int) (this.fileSize / REGION_STEP) + 1);
+	}
+
+	/**
+	 * Releases this mapping. The map file is closed when the last user has released it, the mapped regions are then
+	 * unmapped by the garbage collector.
+	 * 
+	 * @throws IOException
+	 *             if the map file cannot be closed.
+	 */
+	void close() throws IOException {
+		synchronized (OPEN_FILES) {
+			if (--this.referenceCount > 0) {
+				return;
+			}
+			if (OPEN_FILES.get(this.key) == this) {
+				OPEN_FILES.remove(this.key);
+			}
+		}
+		this.inputFile.close();
+	}
+
+	/**
+	 * @param address
+	 *            the absolute address in the map file.
+	 * @return the mapped region which contains the given address and at least the following
+	 *         {@link ReadBuffer#MAXIMUM_BUFFER_SIZE} bytes (or the rest of the file).
+	 * @throws IOException
+	 *             if the region cannot be mapped.
+	 */
+	MappedByteBuffer getRegion(long address) throws IOException {
+		int regionIndex = (int) (address / REGION_STEP);
+		MappedByteBuffer region = this.regions.get(regionIndex);
+		if (region == null) {
+			region = mapRegion(regionIndex);
+		}
+		return region;
+	}
+
+	private synchronized MappedByteBuffer mapRegion(int regionIndex) throws IOException {
+		// another thread might have mapped the region in the meantime
+		MappedByteBuffer region = this.regions.get(regionIndex);
+		if (region == null) {
+			long regionStart = regionIndex * REGION_STEP;
+			long regionSize = Math.min(REGION_STEP + ReadBuffer.MAXIMUM_BUFFER_SIZE, this.fileSize - regionStart);
+			region = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionSize);
+			this.regions.set(regionIndex, region);
+		}
+		return region;
+	}
+}
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.mapsforge.core.model.Tag;
+
+/**
+ * A PrimitiveMapReadResult stores the POIs and ways of a query in primitive arrays instead of one object per map
+ * element. An instance can be reused for many queries, its arrays only grow and are never released.
+ * <p>
+ * The tags of each element consist of tag IDs, which refer to the tags in the header of the map file, and of the
+ * optional tags for name, house number, reference and elevation. The way nodes of all ways are stored in a single
+ * coordinates array in the order longitude/latitude. Each way consists of one or more segments, the coordinates of
+ * a segment are found between {@link #getWaySegmentStart(int, int)} and {@link #getWaySegmentEnd(int, int)}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class PrimitiveMapReadResult {
+	/**
+	 * Value of the label position coordinates of a way without label position.
+	 */
+	public static final int NO_LABEL_POSITION = Integer.MIN_VALUE;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static float[] ensureCapacity(float[] array, int minimumLength) {
+		if (array.length >= minimumLength) {
+			return array;
+		}
+		return Arrays.copyOf(array, getNewLength(array.length, minimumLength));
+	}
+
+	private static int[] ensureCapacity(int[] array, int minimumLength) {
+		if (array.length >= minimumLength) {
+			return array;
+		}
+		return Arrays.copyOf(array, getNewLength(array.length, minimumLength));
+	}
+
+	private static Tag[] ensureCapacity(Tag[] array, int minimumLength) {
+		if (array.length >= minimumLength) {
+			return array;
+		}
+		return Arrays.copyOf(array, getNewLength(array.length, minimumLength));
+	}
+
+	private static int getNewLength(int length, int minimumLength) {
+		return Math.max(length + (length >> 1), minimumLength);
+	}
+
+	float[] coordinates;
+	private int coordinatesLength;
+	private boolean isWater;
+	private int numberOfPois;
+	private int numberOfSegments;
+	private int numberOfWays;
+	private int[] poiFeatureTagStarts;
+	private Tag[] poiFeatureTags;
+	private int poiFeatureTagsLength;
+	private int[] poiLatitudes;
+	private byte[] poiLayers;
+	private int[] poiLongitudes;
+	private int[] poiTagIds;
+	private int poiTagIdsLength;
+	private int[] poiTagStarts;
+	private Tag[] poiTags;
+	private int[] segmentStarts;
+	private int[] wayFeatureTagStarts;
+	private Tag[] wayFeatureTags;
+	private int wayFeatureTagsLength;
+	private int[] wayLabelLatitudes;
+	private int[] wayLabelLongitudes;
+	private byte[] wayLayers;
+	private int[] waySegmentStarts;
+	private int[] wayTagIds;
+	private int wayTagIdsLength;
+	private int[] wayTagStarts;
+	private Tag[] wayTags;
+	private int[] wayTileBitmasks;
+
+	/**
+	 * Creates an empty PrimitiveMapReadResult.
+	 */
+	public PrimitiveMapReadResult() {
+		this.coordinates = new float[INITIAL_CAPACITY * 8];
+
+		this.poiLayers = new byte[INITIAL_CAPACITY];
+		this.poiLatitudes = new int[INITIAL_CAPACITY];
+		this.poiLongitudes = new int[INITIAL_CAPACITY];
+		this.poiTagStarts = new int[INITIAL_CAPACITY + 1];
+		this.poiFeatureTagStarts = new int[INITIAL_CAPACITY + 1];
+		this.poiTagIds = new int[INITIAL_CAPACITY];
+		this.poiFeatureTags = new Tag[INITIAL_CAPACITY];
+
+		this.wayLayers = new byte[INITIAL_CAPACITY];
+		this.wayTileBitmasks = new int[INITIAL_CAPACITY];
+		this.wayLabelLatitudes = new int[INITIAL_CAPACITY];
+		this.wayLabelLongitudes = new int[INITIAL_CAPACITY];
+		this.wayTagStarts = new int[INITIAL_CAPACITY + 1];
+		this.wayFeatureTagStarts = new int[INITIAL_CAPACITY + 1];
+		this.waySegmentStarts = new int[INITIAL_CAPACITY + 1];
+		this.segmentStarts = new int[INITIAL_CAPACITY + 1];
+		this.wayTagIds = new int[INITIAL_CAPACITY * 2];
+		this.wayFeatureTags = new Tag[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Removes all POIs and ways from this result, the allocated arrays are kept for the next query.
+	 */
+	public void clear() {
+		this.isWater = false;
+		this.numberOfPois = 0;
+		this.numberOfWays = 0;
+		this.numberOfSegments = 0;
+		this.coordinatesLength = 0;
+		this.poiTagIdsLength = 0;
+		this.wayTagIdsLength = 0;
+		Arrays.fill(this.poiFeatureTags, 0, this.poiFeatureTagsLength, null);
+		this.poiFeatureTagsLength = 0;
+		Arrays.fill(this.wayFeatureTags, 0, this.wayFeatureTagsLength, null);
+		this.wayFeatureTagsLength = 0;
+	}
+
+	/**
+	 * @return the geographical coordinates of all way nodes in microdegrees in the order longitude/latitude.
+	 */
+	public float[] getCoordinates() {
+		return this.coordinates;
+	}
+
+	/**
+	 * @return the number of POIs in this result.
+	 */
+	public int getNumberOfPois() {
+		return this.numberOfPois;
+	}
+
+	/**
+	 * @return the number of ways in this result.
+	 */
+	public int getNumberOfWays() {
+		return this.numberOfWays;
+	}
+
+	/**
+	 * @param poi
+	 *            the index of the POI.
+	 * @return the latitude of the POI in microdegrees.
+	 */
+	public int getPoiLatitude(int poi) {
+		return this.poiLatitudes[poi];
+	}
+
+	/**
+	 * @param poi
+	 *            the index of the POI.
+	 * @return the layer of the POI + 5 (to avoid negative values).
+	 */
+	public byte getPoiLayer(int poi) {
+		return this.poiLayers[poi];
+	}
+
+	/**
+	 * @param poi
+	 *            the index of the POI.
+	 * @return the longitude of the POI in microdegrees.
+	 */
+	public int getPoiLongitude(int poi) {
+		return this.poiLongitudes[poi];
+	}
+
+	/**
+	 * @param poi
+	 *            the index of the POI.
+	 * @param index
+	 *            the index of the tag ID, must be smaller than {@link #getPoiTagIdCount(int)}.
+	 * @return the tag ID which refers to the POI tags of the map file.
+	 */
+	public int getPoiTagId(int poi, int index) {
+		return this.poiTagIds[this.poiTagStarts[poi] + index];
+	}
+
+	/**
+	 * @param poi
+	 *            the index of the POI.
+	 * @return the number of tag IDs of the POI.
+	 */
+	public int getPoiTagIdCount(int poi) {
+		return this.poiTagStarts[poi + 1] - this.poiTagStarts[poi];
+	}
+
+	/**
+	 * Adds all tags of a POI to the given list. No objects are created, the list can be reused for each POI.
+	 * 
+	 * @param poi
+	 *            the index of the POI.
+	 * @param tags
+	 *            the list to which the tags are added.
+	 */
+	public void getPoiTags(int poi, List<Tag> tags) {
+		for (int i = this.poiTagStarts[poi], n = this.poiTagStarts[poi + 1]; i < n; ++i) {
+			tags.add(this.poiTags[this.poiTagIds[i]]);
+		}
+		for (int i = this.poiFeatureTagStarts[poi], n = this.poiFeatureTagStarts[poi + 1]; i < n; ++i) {
+			tags.add(this.poiFeatureTags[i]);
+		}
+	}
+
+	/**
+	 * @param way
+	 *            the index of the way.
+	 * @return the latitude of the label position in microdegrees or {@link #NO_LABEL_POSITION}.
+	 */
+	public int getWayLabelLatitude(int way) {
+		return this.wayLabelLatitudes[way];
+	}
+
+	/**
+	 * @param way
+	 *            the index of the way.
+	 * @return the longitude of the label position in microdegrees or {@link #NO_LABEL_POSITION}.
+	 */
+	public int getWayLabelLongitude(int way) {
+		return this.wayLabelLongitudes[way];
+	}
+
+	/**
+	 * @param way
+	 *            the index of the way.
+	 * @return the layer of the way + 5 (to avoid negative values).
+	 */
+	public byte getWayLayer(int way) {
+		return this.wayLayers[way];
+	}
+
+	/**
+	 * @param way
+	 *            the index of the way.
+	 * @return the number of segments of the way.
+	 */
+	public int getWaySegmentCount(int way) {
+		return this.waySegmentStarts[way + 1] - this.waySegmentStarts[way];
+	}
+
+	/**
+	 * @param way
+	 *            the index of the way.
+	 * @param segment
+	 *            the index of the segment within the way.
+	 * @return the exclusive end index of the segment in the coordinates array.
+	 */
+	public int getWaySegmentEnd(int way, int segment) {
+		return this.segmentStarts[this.waySegmentStarts[way] + segment + 1];
+	}
+
+	/**
+	 * @param way
+	 *            the index of the way.
+	 * @param segment
+	 *            the index of the segment within the way.
+	 * @return the start index of the segment in the coordinates array.
+	 */
+	public int getWaySegmentStart(int way, int segment) {
+		return this.segmentStarts[this.waySegmentStarts[way] + segment];
+	}
+
+	/**
+	 * @param way
+	 *            the index of the way.
+	 * @param index
+	 *            the index of the tag ID, must be smaller than {@link #getWayTagIdCount(int)}.
+	 * @return the tag ID which refers to the way tags of the map file.
+	 */
+	public int getWayTagId(int way, int index) {
+		return this.wayTagIds[this.wayTagStarts[way] + index];
+	}
+
+	/**
+	 * @param way
+	 *            the index of the way.
+	 * @return the number of tag IDs of the way.
+	 */
+	public int getWayTagIdCount(int way) {
+		return this.wayTagStarts[way + 1] - this.wayTagStarts[way];
+	}
+
+	/**
+	 * Adds all tags of a way to the given list. No objects are created, the list can be reused for each way.
+	 * 
+	 * @param way
+	 *            the index of the way.
+	 * @param tags
+	 *            the list to which the tags are added.
+	 */
+	public void getWayTags(int way, List<Tag> tags) {
+		for (int i = this.wayTagStarts[way], n = this.wayTagStarts[way + 1]; i < n; ++i) {
+			tags.add(this.wayTags[this.wayTagIds[i]]);
+		}
+		for (int i = this.wayFeatureTagStarts[way], n = this.wayFeatureTagStarts[way + 1]; i < n; ++i) {
+			tags.add(this.wayFeatureTags[i]);
+		}
+	}
+
+	/**
+	 * @param way
+	 *            the index of the way.
+	 * @return true if the way has a label position, false otherwise.
+	 */
+	public boolean hasWayLabelPosition(int way) {
+		return this.wayLabelLatitudes[way] != NO_LABEL_POSITION;
+	}
+
+	/**
+	 * @return true if the read area is completely covered by water, false otherwise.
+	 */
+	public boolean isWater() {
+		return this.isWater;
+	}
+
+	/**
+	 * Appends all POIs and those ways of the given block which are inside the requested tile.
+	 * 
+	 * @param block
+	 *            the decoded block.
+	 * @param queryParameters
+	 *            the parameters of the current query.
+	 */
+	void add(PrimitiveMapReadResult block, QueryParameters queryParameters) {
+		for (int poi = 0; poi < block.numberOfPois; ++poi) {
+			addPoi(block.poiLayers[poi], block.poiLatitudes[poi], block.poiLongitudes[poi]);
+			for (int i = block.poiTagStarts[poi], n = block.poiTagStarts[poi + 1]; i < n; ++i) {
+				addPoiTagId(block.poiTagIds[i]);
+			}
+			for (int i = block.poiFeatureTagStarts[poi], n = block.poiFeatureTagStarts[poi + 1]; i < n; ++i) {
+				addPoiFeatureTag(block.poiFeatureTags[i]);
+			}
+		}
+
+		for (int way = 0; way < block.numberOfWays; ++way) {
+			int tileBitmask = block.wayTileBitmasks[way];
+			if (queryParameters.useTileBitmask && (queryParameters.queryTileBitmask & tileBitmask) == 0) {
+				continue;
+			}
+
+			addWay(block.wayLayers[way], tileBitmask, block.wayLabelLatitudes[way], block.wayLabelLongitudes[way]);
+			for (int i = block.wayTagStarts[way], n = block.wayTagStarts[way + 1]; i < n; ++i) {
+				addWayTagId(block.wayTagIds[i]);
+			}
+			for (int i = block.wayFeatureTagStarts[way], n = block.wayFeatureTagStarts[way + 1]; i < n; ++i) {
+				addWayFeatureTag(block.wayFeatureTags[i]);
+			}
+			for (int i = block.waySegmentStarts[way], n = block.waySegmentStarts[way + 1]; i < n; ++i) {
+				int start = block.segmentStarts[i];
+				int length = block.segmentStarts[i + 1] - start;
+				int offset = addWaySegment(length);
+				System.arraycopy(block.coordinates, start, this.coordinates, offset, length);
+			}
+		}
+	}
+
+	/**
+	 * Starts a new POI, its tags must be added before the next POI is started.
+	 */
+	void addPoi(byte layer, int latitude, int longitude) {
+		int poi = this.numberOfPois;
+		if (poi == this.poiLayers.length) {
+			int length = getNewLength(poi, poi + 1);
+			this.poiLayers = Arrays.copyOf(this.poiLayers, length);
+			this.poiLatitudes = Arrays.copyOf(this.poiLatitudes, length);
+			this.poiLongitudes = Arrays.copyOf(this.poiLongitudes, length);
+			this.poiTagStarts = Arrays.copyOf(this.poiTagStarts, length + 1);
+			this.poiFeatureTagStarts = Arrays.copyOf(this.poiFeatureTagStarts, length + 1);
+		}
+
+		this.poiLayers[poi] = layer;
+		this.poiLatitudes[poi] = latitude;
+		this.poiLongitudes[poi] = longitude;
+		this.poiTagStarts[poi] = this.poiTagIdsLength;
+		this.poiTagStarts[poi + 1] = this.poiTagIdsLength;
+		this.poiFeatureTagStarts[poi] = this.poiFeatureTagsLength;
+		this.poiFeatureTagStarts[poi + 1] = this.poiFeatureTagsLength;
+		this.numberOfPois = poi + 1;
+	}
+
+	void addPoiFeatureTag(Tag tag) {
+		this.poiFeatureTags = ensureCapacity(this.poiFeatureTags, this.poiFeatureTagsLength + 1);
+		this.poiFeatureTags[this.poiFeatureTagsLength++] = tag;
+		this.poiFeatureTagStarts[this.numberOfPois] = this.poiFeatureTagsLength;
+	}
+
+	void addPoiTagId(int tagId) {
+		this.poiTagIds = ensureCapacity(this.poiTagIds, this.poiTagIdsLength + 1);
+		this.poiTagIds[this.poiTagIdsLength++] = tagId;
+		this.poiTagStarts[this.numberOfPois] = this.poiTagIdsLength;
+	}
+
+	/**
+	 * Starts a new way, its tags and segments must be added before the next way is started.
+	 */
+	void addWay(byte layer, int tileBitmask, int labelLatitude, int labelLongitude) {
+		int way = this.numberOfWays;
+		if (way == this.wayLayers.length) {
+			int length = getNewLength(way, way + 1);
+			this.wayLayers = Arrays.copyOf(this.wayLayers, length);
+			this.wayTileBitmasks = Arrays.copyOf(this.wayTileBitmasks, length);
+			this.wayLabelLatitudes = Arrays.copyOf(this.wayLabelLatitudes, length);
+			this.wayLabelLongitudes = Arrays.copyOf(this.wayLabelLongitudes, length);
+			this.wayTagStarts = Arrays.copyOf(this.wayTagStarts, length + 1);
+			this.wayFeatureTagStarts = Arrays.copyOf(this.wayFeatureTagStarts, length + 1);
+			this.waySegmentStarts = Arrays.copyOf(this.waySegmentStarts, length + 1);
+		}
+
+		this.wayLayers[way] = layer;
+		this.wayTileBitmasks[way] = tileBitmask;
+		this.wayLabelLatitudes[way] = labelLatitude;
+		this.wayLabelLongitudes[way] = labelLongitude;
+		this.wayTagStarts[way] = this.wayTagIdsLength;
+		this.wayTagStarts[way + 1] = this.wayTagIdsLength;
+		this.wayFeatureTagStarts[way] = this.wayFeatureTagsLength;
+		this.wayFeatureTagStarts[way + 1] = this.wayFeatureTagsLength;
+		this.waySegmentStarts[way] = this.numberOfSegments;
+		this.waySegmentStarts[way + 1] = this.numberOfSegments;
+		this.numberOfWays = way + 1;
+	}
+
+	void addWayFeatureTag(Tag tag) {
+		this.wayFeatureTags = ensureCapacity(this.wayFeatureTags, this.wayFeatureTagsLength + 1);
+		this.wayFeatureTags[this.wayFeatureTagsLength++] = tag;
+		this.wayFeatureTagStarts[this.numberOfWays] = this.wayFeatureTagsLength;
+	}
+
+	/**
+	 * Adds a segment to the current way and reserves space for its coordinates.
+	 * 
+	 * @param length
+	 *            the number of coordinates of the segment.
+	 * @return the index in the {@link #coordinates} array at which the coordinates of the segment must be stored.
+	 */
+	int addWaySegment(int length) {
+		int offset = this.coordinatesLength;
+		this.coordinates = ensureCapacity(this.coordinates, offset + length);
+		this.coordinatesLength = offset + length;
+
+		this.segmentStarts = ensureCapacity(this.segmentStarts, this.numberOfSegments + 2);
+		this.segmentStarts[this.numberOfSegments] = offset;
+		this.segmentStarts[this.numberOfSegments + 1] = this.coordinatesLength;
+		++this.numberOfSegments;
+		this.waySegmentStarts[this.numberOfWays] = this.numberOfSegments;
+		return offset;
+	}
+
+	void addWayTagId(int tagId) {
+		this.wayTagIds = ensureCapacity(this.wayTagIds, this.wayTagIdsLength + 1);
+		this.wayTagIds[this.wayTagIdsLength++] = tagId;
+		this.wayTagStarts[this.numberOfWays] = this.wayTagIdsLength;
+	}
+
+	/**
+	 * @return an estimation of the memory used by this result in bytes.
+	 */
+	long estimateSize() {
+		return this.coordinatesLength * 4L + (this.poiTagIdsLength + this.wayTagIdsLength) * 4L
+				+ (this.poiFeatureTagsLength + this.wayFeatureTagsLength) * 8L + this.numberOfPois * 21L
+				+ this.numberOfWays * 37L + this.numberOfSegments * 4L;
+	}
+
+	int getWayTileBitmask(int way) {
+		return this.wayTileBitmasks[way];
+	}
+
+	void setTags(Tag[] poiTags, Tag[] wayTags) {
+		this.poiTags = poiTags;
+		this.wayTags = wayTags;
+	}
+
+	void setWater(boolean isWater) {
+		this.isWater = isWater;
+	}
+
+	/**
+	 * Shrinks all arrays to the stored elements. Used for results which are kept in the block cache.
+	 */
+	void trimToSize() {
+		this.coordinates = Arrays.copyOf(this.coordinates, this.coordinatesLength);
+		this.segmentStarts = Arrays.copyOf(this.segmentStarts, this.numberOfSegments + 1);
+
+		this.poiLayers = Arrays.copyOf(this.poiLayers, this.numberOfPois);
+		this.poiLatitudes = Arrays.copyOf(this.poiLatitudes, this.numberOfPois);
+		this.poiLongitudes = Arrays.copyOf(this.poiLongitudes, this.numberOfPois);
+		this.poiTagStarts = Arrays.copyOf(this.poiTagStarts, this.numberOfPois + 1);
+		this.poiFeatureTagStarts = Arrays.copyOf(this.poiFeatureTagStarts, this.numberOfPois + 1);
+		this.poiTagIds = Arrays.copyOf(this.poiTagIds, this.poiTagIdsLength);
+		this.poiFeatureTags = Arrays.copyOf(this.poiFeatureTags, this.poiFeatureTagsLength);
+
+		this.wayLayers = Arrays.copyOf(this.wayLayers, this.numberOfWays);
+		this.wayTileBitmasks = Arrays.copyOf(this.wayTileBitmasks, this.numberOfWays);
+		this.wayLabelLatitudes = Arrays.copyOf(this.wayLabelLatitudes, this.numberOfWays);
+		this.wayLabelLongitudes = Arrays.copyOf(this.wayLabelLongitudes, this.numberOfWays);
+		this.wayTagStarts = Arrays.copyOf(this.wayTagStarts, this.numberOfWays + 1);
+		this.wayFeatureTagStarts = Arrays.copyOf(this.wayFeatureTagStarts, this.numberOfWays + 1);
+		this.waySegmentStarts = Arrays.copyOf(this.waySegmentStarts, this.numberOfWays + 1);
+		this.wayTagIds = Arrays.copyOf(this.wayTagIds, this.wayTagIdsLength);
+		this.wayFeatureTags = Arrays.copyOf(this.wayFeatureTags, this.wayFeatureTagsLength);
+	}
+}
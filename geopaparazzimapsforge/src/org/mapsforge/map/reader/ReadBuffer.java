@@ -19,6 +19,8 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.logging.Logger;
 
+import org.mapsforge.core.model.Tag;
+
 /**
  * Reads from a {@link RandomAccessFile} into a buffer and decodes the data.
  */
@@ -187,6 +189,24 @@ public class ReadBuffer {
 		return null;
 	}
 
+	/**
+	 * Decodes a variable amount of bytes from the read buffer to the value of a tag. A value which has been read before
+	 * is not decoded again, its tag is taken from the given cache.
+	 * 
+	 * @param featureTagCache
+	 *            the cache for the key of the tag.
+	 * @return the tag, its value is null if the string is invalid.
+	 */
+	Tag readUTF8EncodedTag(FeatureTagCache featureTagCache) {
+		int stringLength = readUnsignedInt();
+		if (stringLength > 0 && this.bufferPosition + stringLength <= this.bufferData.length) {
+			this.bufferPosition += stringLength;
+			return featureTagCache.getTag(this.bufferData, this.bufferPosition - stringLength, stringLength);
+		}
+		LOGGER.warning("invalid string length: " + stringLength);
+		return new Tag(featureTagCache.key, null);
+	}
+
 	/**
 	 * @return the current buffer position.
 	 */
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.mapgenerator.databaserenderer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the intersections of the {@link CollisionGrid}, inside of single cells, across the cell boundaries and outside
+ * of the grid area.
+ */
+public class CollisionGridTest {
+	@Test
+	public void clear() {
+		CollisionGrid collisionGrid = new CollisionGrid();
+		collisionGrid.add(10, 10, 20, 20);
+		Assert.assertTrue(collisionGrid.intersects(15, 15, 25, 25));
+
+		collisionGrid.clear();
+		Assert.assertFalse(collisionGrid.intersects(15, 15, 25, 25));
+
+		collisionGrid.add(100, 100, 110, 110);
+		Assert.assertFalse(collisionGrid.intersects(15, 15, 25, 25));
+		Assert.assertTrue(collisionGrid.intersects(105, 105, 106, 106));
+	}
+
+	@Test
+	public void intersectsAcrossCellBoundaries() {
+		CollisionGrid collisionGrid = new CollisionGrid();
+		// the cells are 32 pixels wide and start at -128, so 0 and 32 are cell boundaries
+		collisionGrid.add(-5, -5, 5, 5);
+		Assert.assertTrue(collisionGrid.intersects(4, 4, 10, 10));
+		Assert.assertTrue(collisionGrid.intersects(-10, -10, -4, -4));
+		Assert.assertTrue(collisionGrid.intersects(-10, 4, -4, 10));
+
+		// a rectangle spanning many cells is found from any of its cells
+		collisionGrid.add(40, 40, 200, 200);
+		Assert.assertTrue(collisionGrid.intersects(190, 190, 195, 195));
+		Assert.assertTrue(collisionGrid.intersects(30, 30, 41, 41));
+		Assert.assertFalse(collisionGrid.intersects(30, 30, 40, 40));
+
+		// a rectangle around both
+		Assert.assertTrue(collisionGrid.intersects(-100, -100, 300, 300));
+	}
+
+	@Test
+	public void intersectsInCell() {
+		CollisionGrid collisionGrid = new CollisionGrid();
+		collisionGrid.add(10, 10, 20, 20);
+
+		Assert.assertTrue(collisionGrid.intersects(10, 10, 20, 20));
+		Assert.assertTrue(collisionGrid.intersects(12, 12, 18, 18));
+		Assert.assertTrue(collisionGrid.intersects(5, 5, 11, 11));
+		Assert.assertTrue(collisionGrid.intersects(19, 5, 25, 11));
+
+		// touching edges do not intersect
+		Assert.assertFalse(collisionGrid.intersects(20, 10, 30, 20));
+		Assert.assertFalse(collisionGrid.intersects(0, 10, 10, 20));
+		Assert.assertFalse(collisionGrid.intersects(10, 20, 20, 30));
+		Assert.assertFalse(collisionGrid.intersects(10, 0, 20, 10));
+		Assert.assertFalse(collisionGrid.intersects(21, 21, 25, 25));
+	}
+
+	@Test
+	public void intersectsManyRectangles() {
+		CollisionGrid collisionGrid = new CollisionGrid();
+		// more rectangles than the initial capacities, all in the same cell
+		for (int i = 0; i < 100; ++i) {
+			collisionGrid.add(i, 0, i + 1, 1);
+		}
+		for (int i = 0; i < 100; ++i) {
+			Assert.assertTrue(collisionGrid.intersects(i, 0, i + 1, 1));
+		}
+		Assert.assertFalse(collisionGrid.intersects(100, 0, 101, 1));
+		Assert.assertFalse(collisionGrid.intersects(0, 1, 100, 2));
+	}
+
+	@Test
+	public void intersectsOutsideOfGrid() {
+		CollisionGrid collisionGrid = new CollisionGrid();
+		// the grid covers -128 to 384, outside rectangles are kept in the border cells
+		collisionGrid.add(-1000, -1000, -900, -900);
+		collisionGrid.add(1000, 500, 1100, 600);
+
+		Assert.assertTrue(collisionGrid.intersects(-950, -950, -940, -940));
+		Assert.assertTrue(collisionGrid.intersects(1050, 550, 1060, 560));
+		Assert.assertFalse(collisionGrid.intersects(-500, -500, -400, -400));
+		Assert.assertFalse(collisionGrid.intersects(-130, -130, -120, -120));
+		Assert.assertFalse(collisionGrid.intersects(1200, 550, 1300, 560));
+
+		// a rectangle reaching from inside of the grid to outside
+		collisionGrid.add(300, 0, 500, 10);
+		Assert.assertTrue(collisionGrid.intersects(450, 5, 460, 6));
+		Assert.assertTrue(collisionGrid.intersects(310, 5, 320, 6));
+	}
+}
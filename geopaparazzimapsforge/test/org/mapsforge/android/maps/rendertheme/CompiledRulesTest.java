@@ -0,0 +1,252 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.rendertheme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Stack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mapsforge.android.maps.rendertheme.renderinstruction.RenderInstruction;
+import org.mapsforge.core.model.Tag;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Matches random nodes and ways against the {@link CompiledRules} and against the original rule tree, both have to
+ * render the same instructions in the same order.
+ */
+public class CompiledRulesTest {
+	/**
+	 * Records the ID of each instruction which is rendered.
+	 */
+	private static final class RecordingInstruction implements RenderInstruction {
+		private final int id;
+		private final List<Integer> rendered;
+
+		RecordingInstruction(int id, List<Integer> rendered) {
+			this.id = id;
+			this.rendered = rendered;
+		}
+
+		@Override
+		public void destroy() {
+			// do nothing
+		}
+
+		@Override
+		public void renderNode(RenderCallback renderCallback, List<Tag> tags) {
+			this.rendered.add(Integer.valueOf(this.id));
+		}
+
+		@Override
+		public void renderWay(RenderCallback renderCallback, List<Tag> tags) {
+			this.rendered.add(Integer.valueOf(this.id));
+		}
+
+		@Override
+		public void scaleStrokeWidth(float scaleFactor) {
+			// do nothing
+		}
+
+		@Override
+		public void scaleTextSize(float scaleFactor) {
+			// do nothing
+		}
+	}
+
+	private static final Tag[] EXTRA_TAGS = { new Tag("name", "Main Street"), new Tag("name", "water"),
+			new Tag("addr:housenumber", "12"), new Tag("ref", "A1") };
+	private static final int ITERATIONS = 5000;
+	private static final Tag[] TAG_TABLE = { new Tag("highway", "primary"), new Tag("highway", "secondary"),
+			new Tag("highway", "residential"), new Tag("building", "yes"), new Tag("natural", "water"),
+			new Tag("landuse", "forest"), new Tag("amenity", "parking"), new Tag("tunnel", "yes"),
+			new Tag("tunnel", "no"), new Tag("bridge", "yes"), new Tag("leisure", "park"), new Tag("area", "yes") };
+
+	private final List<Integer> rendered = new ArrayList<>();
+	private final List<Rule> rulesList = new ArrayList<>();
+	private final Stack<Rule> ruleStack = new Stack<>();
+	private int instructionId;
+
+	/**
+	 * Matches nodes with random tags at random zoom levels.
+	 */
+	@Test
+	public void matchNode() {
+		createRules();
+		CompiledRules compiledRules = new CompiledRules(this.rulesList, TAG_TABLE);
+
+		Random random = new Random(1);
+		int[] tagIds = new int[TAG_TABLE.length];
+		for (int i = 0; i < ITERATIONS; ++i) {
+			List<Tag> tags = new ArrayList<>();
+			int numberOfTagIds = createTags(random, tags, tagIds);
+			byte zoomLevel = (byte) random.nextInt(21);
+
+			this.rendered.clear();
+			for (Rule rule : this.rulesList) {
+				rule.matchNode(null, tags, zoomLevel);
+			}
+			List<Integer> expected = new ArrayList<>(this.rendered);
+
+			this.rendered.clear();
+			compiledRules.matchNode(null, tags, tagIds, numberOfTagIds, zoomLevel);
+			Assert.assertEquals(tags + " at zoom level " + zoomLevel, expected, this.rendered);
+		}
+	}
+
+	/**
+	 * Matches closed and linear ways with random tags at random zoom levels, each way twice to also match the cached
+	 * instructions.
+	 */
+	@Test
+	public void matchWay() {
+		createRules();
+		CompiledRules compiledRules = new CompiledRules(this.rulesList, TAG_TABLE);
+
+		Random random = new Random(2);
+		int[] tagIds = new int[TAG_TABLE.length];
+		for (int i = 0; i < ITERATIONS; ++i) {
+			List<Tag> tags = new ArrayList<>();
+			int numberOfTagIds = createTags(random, tags, tagIds);
+			byte zoomLevel = (byte) random.nextInt(21);
+			Closed closed = random.nextBoolean() ? Closed.YES : Closed.NO;
+
+			this.rendered.clear();
+			List<RenderInstruction> matchingList = new ArrayList<>();
+			for (Rule rule : this.rulesList) {
+				rule.matchWay(null, tags, zoomLevel, closed, matchingList);
+			}
+			List<Integer> expected = new ArrayList<>(this.rendered);
+
+			for (int j = 0; j < 2; ++j) {
+				this.rendered.clear();
+				compiledRules.matchWay(null, tags, tagIds, numberOfTagIds, zoomLevel, closed);
+				Assert.assertEquals(tags + " at zoom level " + zoomLevel + ", closed " + closed, expected,
+						this.rendered);
+			}
+		}
+	}
+
+	/**
+	 * Tags of the tag table and tags which are not part of it, whose value may be used by the rules.
+	 */
+	@Test
+	public void matchExtraTags() {
+		createRules();
+		CompiledRules compiledRules = new CompiledRules(this.rulesList, TAG_TABLE);
+
+		int[] tagIds = { 4 };
+		for (Tag extraTag : EXTRA_TAGS) {
+			List<Tag> tags = Arrays.asList(TAG_TABLE[4], extraTag);
+
+			this.rendered.clear();
+			List<RenderInstruction> matchingList = new ArrayList<>();
+			for (Rule rule : this.rulesList) {
+				rule.matchWay(null, tags, (byte) 16, Closed.YES, matchingList);
+			}
+			List<Integer> expected = new ArrayList<>(this.rendered);
+
+			this.rendered.clear();
+			compiledRules.matchWay(null, tags, tagIds, 1, (byte) 16, Closed.YES);
+			Assert.assertEquals(tags.toString(), expected, this.rendered);
+		}
+	}
+
+	private void addRule(String... attributes) {
+		AttributesImpl attributesImpl = new AttributesImpl();
+		for (int i = 0; i < attributes.length; i += 2) {
+			attributesImpl.addAttribute("", attributes[i], attributes[i], "CDATA", attributes[i + 1]);
+		}
+		Rule rule = Rule.create("rule", attributesImpl, this.ruleStack);
+		if (this.ruleStack.empty()) {
+			this.rulesList.add(rule);
+		} else {
+			this.ruleStack.peek().addSubRule(rule);
+		}
+		this.ruleStack.push(rule);
+		rule.addRenderingInstruction(new RecordingInstruction(++this.instructionId, this.rendered));
+		rule.addRenderingInstruction(new RecordingInstruction(++this.instructionId, this.rendered));
+	}
+
+	private void endRule() {
+		this.ruleStack.pop();
+	}
+
+	/**
+	 * Creates rules with all kinds of matchers, nested like in the internal render theme.
+	 */
+	private void createRules() {
+		addRule("e", "way", "k", "highway", "v", "*", "zoom-min", "10");
+		addRule("e", "way", "k", "highway", "v", "primary|secondary");
+		endRule();
+		addRule("e", "way", "k", "highway", "v", "residential", "zoom-min", "14");
+		endRule();
+		addRule("e", "way", "k", "tunnel|bridge", "v", "~|no");
+		endRule();
+		addRule("e", "way", "k", "name", "v", "*");
+		endRule();
+		endRule();
+
+		addRule("e", "way", "k", "building", "v", "*", "closed", "yes");
+		endRule();
+		addRule("e", "way", "k", "natural|landuse", "v", "water|forest");
+		addRule("e", "way", "k", "*", "v", "water", "closed", "no");
+		endRule();
+		endRule();
+		addRule("e", "way", "k", "area", "v", "~", "closed", "yes");
+		endRule();
+
+		addRule("e", "node", "k", "amenity", "v", "parking");
+		addRule("e", "node", "k", "name", "v", "*", "zoom-min", "15");
+		endRule();
+		endRule();
+		addRule("e", "any", "k", "*", "v", "water|park");
+		addRule("e", "any", "k", "name", "v", "water");
+		endRule();
+		endRule();
+		addRule("e", "any", "k", "ref|addr:housenumber", "v", "*", "zoom-max", "12");
+		endRule();
+		addRule("e", "any", "k", "name", "v", "Main Street");
+		endRule();
+
+		for (Rule rule : this.rulesList) {
+			rule.onComplete();
+		}
+	}
+
+	/**
+	 * Adds some random tags of the tag table and maybe some tags which are not part of it.
+	 * 
+	 * @return the number of tags of the tag table.
+	 */
+	private static int createTags(Random random, List<Tag> tags, int[] tagIds) {
+		int numberOfTagIds = 0;
+		for (int tagId = 0; tagId < TAG_TABLE.length; ++tagId) {
+			if (random.nextInt(4) == 0) {
+				tagIds[numberOfTagIds++] = tagId;
+				tags.add(TAG_TABLE[tagId]);
+			}
+		}
+		for (Tag extraTag : EXTRA_TAGS) {
+			if (random.nextInt(4) == 0) {
+				tags.add(extraTag);
+			}
+		}
+		return numberOfTagIds;
+	}
+}
@@ -132,7 +132,14 @@ public class ShapeWriter {
         this(pointTransformer, getShape(shapeName, size));
     }
 
-    private static PointShapeFactory getShape( String shapeName, float size ) {
+    /**
+     * Get the point shape factory for a style shape name.
+     * 
+     * @param shapeName the name of the shape, as in the style.
+     * @param size the size of the points.
+     * @return the factory, the default one if the name is unknown.
+     */
+    public static PointShapeFactory getShape( String shapeName, float size ) {
         if (shapeName.equals("circle")) {
             return new PointShapeFactory.Circle(size);
         } else if (shapeName.equals("cross")) {
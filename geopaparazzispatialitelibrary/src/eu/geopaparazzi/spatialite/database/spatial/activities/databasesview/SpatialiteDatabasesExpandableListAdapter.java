@@ -64,6 +64,7 @@ import eu.geopaparazzi.library.util.LibraryConstants;
 import eu.geopaparazzi.spatialite.R;
 import eu.geopaparazzi.spatialite.database.spatial.SpatialiteSourcesManager;
 import eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers.SpatialiteDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.geometry.ReprojectedGeometryCache;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
 import eu.geopaparazzi.library.style.Style;
 import jsqlite.Exception;
@@ -276,7 +277,7 @@ public class SpatialiteDatabasesExpandableListAdapter extends BaseExpandableList
 
     private void extras(final SpatialiteMap spatialiteMap) {
 
-        String[] items = new String[]{"Stroke Dash", "Zoomlevel visibility"};//, "Decimation"};
+        String[] items = new String[]{"Stroke Dash", "Zoomlevel visibility", "Geometry cache"};//, "Decimation"};
 
         new AlertDialog.Builder(activity).setSingleChoiceItems(items, 0, null)
                 .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
@@ -304,6 +305,8 @@ public class SpatialiteDatabasesExpandableListAdapter extends BaseExpandableList
                             ZoomlevelDialogFragment zoomlevelDialogFragment = ZoomlevelDialogFragment.newInstance(minMaxZoomlevel);
                             zoomlevelDialogFragment.show(((AppCompatActivity) activity).getSupportFragmentManager(), "Zoomlevel Dialog");
                         } else if (selectedPosition == 2) {
+                            toggleGeometryCache(spatialVectorTable);
+                        } else if (selectedPosition == 3) {
                             // TODO  decimation
                         }
 
@@ -313,6 +316,40 @@ public class SpatialiteDatabasesExpandableListAdapter extends BaseExpandableList
 
     }
 
+    private void toggleGeometryCache(final SpatialVectorTable spatialVectorTable) {
+        if (!ReprojectedGeometryCache.isSupported(spatialVectorTable)) {
+            GPDialogs.infoDialog(activity, "The geometry cache is available only for spatial tables with lines or polygons or not in EPSG:"
+                    + LibraryConstants.SRID_WGS84_4326 + ".", null);
+            return;
+        }
+        SpatialiteDatabaseHandler spatialiteDatabaseHandler = SpatialiteSourcesManager.INSTANCE.getExistingDatabaseHandlerByTable(spatialVectorTable);
+        if (spatialiteDatabaseHandler == null || spatialiteDatabaseHandler.getReprojectedGeometryCache() == null) {
+            return;
+        }
+        final ReprojectedGeometryCache reprojectedGeometryCache = spatialiteDatabaseHandler.getReprojectedGeometryCache();
+        final boolean isEnabled = reprojectedGeometryCache.isEnabled(spatialVectorTable);
+        String msg;
+        if (isEnabled) {
+            msg = "The geometry cache of this layer is enabled. Do you want to remove it?";
+        } else {
+            msg = "Do you want to keep a reprojected and simplified copy of this layer's geometries for faster drawing? It is built in the background.";
+        }
+        GPDialogs.yesNoMessageDialog(activity, msg, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (isEnabled) {
+                        reprojectedGeometryCache.disable(spatialVectorTable);
+                    } else {
+                        reprojectedGeometryCache.enable(spatialVectorTable);
+                    }
+                } catch (Exception e) {
+                    GPLog.error(this, null, e);
+                }
+            }
+        }, null);
+    }
+
     private void properties(SpatialiteMap spatialiteMap) {
         currentPropertiesEditedSpatialiteMap = spatialiteMap;
         SpatialVectorTable spatialVectorTable = SpatialiteSourcesManager.INSTANCE.getSpatialiteMaps2TablesMap().get(spatialiteMap);
@@ -17,19 +17,24 @@
  */
 package eu.geopaparazzi.spatialite.database.spatial.core.daos;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.library.features.Feature;
+import eu.geopaparazzi.library.util.LibraryConstants;
 import eu.geopaparazzi.library.util.types.EDataType;
 import eu.geopaparazzi.spatialite.database.spatial.SpatialiteSourcesManager;
 import eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers.SpatialiteDatabaseHandler;
 import eu.geopaparazzi.spatialite.database.spatial.core.enums.GeometryType;
+import eu.geopaparazzi.spatialite.database.spatial.core.geometry.ReprojectedGeometryCache;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
 import eu.geopaparazzi.spatialite.database.spatial.util.SpatialiteUtilities;
 import jsqlite.Database;
@@ -47,6 +52,77 @@ import jsqlite.Stmt;
 @SuppressWarnings("nls")
 public class DaoSpatialite implements ISpatialiteTableAndFieldsNames {
 
+    private static final List<IFeatureEditListener> featureEditListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Add a listener that is notified when geometries are edited through this class.
+     *
+     * @param listener the listener to add.
+     */
+    public static void addFeatureEditListener(IFeatureEditListener listener) {
+        if (!featureEditListeners.contains(listener))
+            featureEditListeners.add(listener);
+    }
+
+    /**
+     * Remove a previously added edit listener.
+     *
+     * @param listener the listener to remove.
+     */
+    public static void removeFeatureEditListener(IFeatureEditListener listener) {
+        featureEditListeners.remove(listener);
+    }
+
+    private static void notifyFeaturesEdited(SpatialVectorTable spatialVectorTable, Envelope bounds) {
+        if (spatialVectorTable == null || bounds == null || bounds.isNull())
+            return;
+        for (IFeatureEditListener listener : featureEditListeners) {
+            listener.onFeaturesEdited(spatialVectorTable, bounds);
+        }
+    }
+
+    /**
+     * Get the bounds in {@link LibraryConstants#SRID_WGS84_4326} of the geometries matching a where clause.
+     *
+     * @param database           the database to use.
+     * @param spatialVectorTable the table to query.
+     * @param whereClause        the where clause, without the where keyword.
+     * @return the bounds or <code>null</code> if no geometry matched.
+     */
+    private static Envelope getGeometriesBounds4326(Database database, SpatialVectorTable spatialVectorTable, String whereClause) {
+        String geomName = spatialVectorTable.getGeomName();
+        String geometry = geomName;
+        if (!LibraryConstants.SRID_WGS84_4326.equals(spatialVectorTable.getSrid())) {
+            geometry = "ST_Transform(" + geomName + "," + LibraryConstants.SRID_WGS84_4326 + ")";
+        }
+        StringBuilder sbQ = new StringBuilder();
+        sbQ.append("SELECT Min(MbrMinX(g)), Min(MbrMinY(g)), Max(MbrMaxX(g)), Max(MbrMaxY(g)) FROM (SELECT ");
+        sbQ.append(geometry);
+        sbQ.append(" AS g FROM \"").append(spatialVectorTable.getTableName());
+        sbQ.append("\" WHERE ");
+        sbQ.append(whereClause);
+        sbQ.append(")");
+        String selectQuery = sbQ.toString();
+        Stmt statement = null;
+        try {
+            statement = database.prepare(selectQuery);
+            if (statement.step() && statement.column_string(0) != null) {
+                double minX = statement.column_double(0);
+                double minY = statement.column_double(1);
+                double maxX = statement.column_double(2);
+                double maxY = statement.column_double(3);
+                return new Envelope(minX, maxX, minY, maxY);
+            }
+        } catch (jsqlite.Exception e_stmt) {
+            GPLog.error("DAOSPATIALIE", "getGeometriesBounds4326 sql[" + selectQuery + "] db[" + database.getFilename() + "]",
+                    e_stmt);
+        } finally {
+            if (statement != null)
+                statement.close();
+        }
+        return null;
+    }
+
     /**
      * Collects the fields of a given table.
      * <p/>
@@ -205,17 +281,33 @@ public class DaoSpatialite implements ISpatialiteTableAndFieldsNames {
         sbIn.append("\" where ");
 
         StringBuilder sb = new StringBuilder();
+        List<String> ids = new ArrayList<>();
         for (Feature feature : features) {
             sb.append(" OR ");
             sb.append(SpatialiteUtilities.SPATIALTABLE_ID_FIELD).append("=");
             sb.append(feature.getId());
+            ids.add(feature.getId());
         }
         String valuesPart = sb.substring(4);
 
         sbIn.append(valuesPart);
 
+        SpatialVectorTable spatialVectorTable = null;
+        Envelope bounds = null;
+        if (!featureEditListeners.isEmpty()) {
+            spatialVectorTable = SpatialiteSourcesManager.INSTANCE.getTableFromFeature(firstFeature);
+            if (spatialVectorTable != null)
+                bounds = getGeometriesBounds4326(database, spatialVectorTable, valuesPart);
+        }
+
         String updateQuery = sbIn.toString();
         database.exec(updateQuery, null);
+
+        ReprojectedGeometryCache reprojectedGeometryCache = databaseHandler.getReprojectedGeometryCache();
+        if (reprojectedGeometryCache != null)
+            reprojectedGeometryCache.removeFeatures(tableName, ids);
+
+        notifyFeaturesEdited(spatialVectorTable, bounds);
     }
 
     /**
@@ -304,6 +396,16 @@ public class DaoSpatialite implements ISpatialiteTableAndFieldsNames {
         String insertQuery = sbIn.toString();
 
         database.exec(insertQuery, null);
+
+        String idWhere = SpatialiteUtilities.SPATIALTABLE_ID_FIELD + "=" + database.last_insert_rowid();
+        ReprojectedGeometryCache reprojectedGeometryCache = databaseHandler.getReprojectedGeometryCache();
+        if (reprojectedGeometryCache != null)
+            reprojectedGeometryCache.updateFeatures(spatialVectorTable, idWhere);
+
+        if (!featureEditListeners.isEmpty()) {
+            Envelope bounds = getGeometriesBounds4326(database, spatialVectorTable, idWhere);
+            notifyFeaturesEdited(spatialVectorTable, bounds);
+        }
     }
 
     protected static void createImageField(SpatialVectorTable table) {
@@ -454,7 +556,28 @@ public class DaoSpatialite implements ISpatialiteTableAndFieldsNames {
         sbIn.append(SpatialiteUtilities.SPATIALTABLE_ID_FIELD).append("=");
         sbIn.append(id);
         String insertQuery = sbIn.toString();
+
+        String idWhere = SpatialiteUtilities.SPATIALTABLE_ID_FIELD + "=" + id;
+        Envelope bounds = null;
+        if (!featureEditListeners.isEmpty())
+            bounds = getGeometriesBounds4326(database, spatialVectorTable, idWhere);
+
         database.exec(insertQuery, null);
+
+        ReprojectedGeometryCache reprojectedGeometryCache = databaseHandler.getReprojectedGeometryCache();
+        if (reprojectedGeometryCache != null)
+            reprojectedGeometryCache.updateFeatures(spatialVectorTable, idWhere);
+
+        if (!featureEditListeners.isEmpty()) {
+            // the affected area is the union of the old and the new geometry
+            Envelope newBounds = getGeometriesBounds4326(database, spatialVectorTable, idWhere);
+            if (bounds == null) {
+                bounds = newBounds;
+            } else if (newBounds != null) {
+                bounds.expandToInclude(newBounds);
+            }
+            notifyFeaturesEdited(spatialVectorTable, bounds);
+        }
     }
 
     /**
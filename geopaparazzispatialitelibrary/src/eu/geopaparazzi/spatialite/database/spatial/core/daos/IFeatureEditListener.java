@@ -0,0 +1,40 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.spatialite.database.spatial.core.daos;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
+
+/**
+ * Listener notified by {@link DaoSpatialite} when the geometries of a table are changed.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface IFeatureEditListener {
+
+    /**
+     * Called after features have been inserted, deleted or had their geometry changed.
+     *
+     * @param spatialVectorTable the table that has been edited.
+     * @param bounds             the bounds in {@link eu.geopaparazzi.library.util.LibraryConstants#SRID_WGS84_4326}
+     *                           covering the affected geometries, both before and after the edit.
+     */
+    void onFeaturesEdited(SpatialVectorTable spatialVectorTable, Envelope bounds);
+}
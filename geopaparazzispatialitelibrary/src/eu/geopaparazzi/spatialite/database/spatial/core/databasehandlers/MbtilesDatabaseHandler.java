@@ -33,7 +33,9 @@ import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.AbstractSpatialTable;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialRasterTable;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesBulkWriter;
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesDroidSpitter;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesPrefetcher;
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBtilesAsync;
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesMetadata;
 import eu.geopaparazzi.library.util.types.ESpatialDataSources;
@@ -46,7 +48,7 @@ import jsqlite.Exception;
  * adapted to create and fill mbtiles databases Mark Johnson (www.mj10777.de)
  */
 @SuppressWarnings("nls")
-public class MbtilesDatabaseHandler extends AbstractSpatialDatabaseHandler {
+public class MbtilesDatabaseHandler extends AbstractSpatialDatabaseHandler implements MBTilesPrefetcher.TileStore {
 
     private List<SpatialRasterTable> rasterTableList;
     private MBTilesDroidSpitter mbtilesSplitter;
@@ -264,6 +266,50 @@ public class MbtilesDatabaseHandler extends AbstractSpatialDatabaseHandler {
         }
     }
 
+    /**
+     * Compress a tile Bitmap for the mbtiles database, to be inserted with a {@link MBTilesBulkWriter}.
+     *
+     * @param i_x         the value for tile_column field in the map,tiles Tables.
+     * @param i_y_osm     the value for tile_row field in the map,tiles Tables [Open-Street-Map 'Slippy Map' notation].
+     * @param i_z         the value for zoom_level field in the map,tiles Tables.
+     * @param tile_bitmap the Bitmap to store [can be recycled when this method returns].
+     * @return the tile to insert.
+     */
+    public MBTilesDroidSpitter.TileData createTileData(int i_x, int i_y_osm, int i_z, Bitmap tile_bitmap) {
+        return mbtilesSplitter.createTileData(i_x, i_y_osm, i_z, tile_bitmap);
+    }
+
+    @Override
+    public MBTilesDroidSpitter.TileData createTileData(int i_x, int i_y_osm, int i_z, byte[] ba_image_data) {
+        Bitmap tile_bitmap = BitmapFactory.decodeByteArray(ba_image_data, 0, ba_image_data.length);
+        if (tile_bitmap == null) {
+            return null;
+        }
+        try {
+            return mbtilesSplitter.createTileData(i_x, i_y_osm, i_z, tile_bitmap);
+        } finally {
+            tile_bitmap.recycle();
+        }
+    }
+
+    /**
+     * Create a writer that inserts many tiles in batched transactions.
+     * <p/>
+     * <p>The writer must be closed before this database is closed.
+     *
+     * @param forceUnique if 1, it check if image is unique in Database [may be slow if used]
+     * @param listener    notified of each written batch (can be <code>null</code>).
+     * @return the writer, with its thread started.
+     */
+    @Override
+    public MBTilesBulkWriter createBulkWriter(int forceUnique, MBTilesBulkWriter.TilesInsertedListener listener) {
+        if (mbtilesSplitter.getmbtiles() == null) { // in case .'open' was forgotten
+            open(); // "" : default value will be used '1.1'
+        }
+        return new MBTilesBulkWriter(mbtilesSplitter, forceUnique, MBTilesBulkWriter.DEFAULT_BATCH_SIZE,
+                MBTilesBulkWriter.DEFAULT_BATCH_MILLIS, listener);
+    }
+
     public void open() {
         if (mbtilesSplitter.getmbtiles() == null) {
             mbtilesSplitter.open(true, ""); // "" : default value will be used '1.1'
@@ -313,7 +359,7 @@ public class MbtilesDatabaseHandler extends AbstractSpatialDatabaseHandler {
         isOpen = false;
         if (mbtiles_async != null) {
             if (mbtiles_async.getStatus() == AsyncTask.Status.RUNNING) {
-                mbtiles_async.cancel(true);
+                mbtiles_async.cancelTask();
             }
         }
         if (mbtilesSplitter != null) {
@@ -537,6 +583,21 @@ public class MbtilesDatabaseHandler extends AbstractSpatialDatabaseHandler {
         return new LinkedHashMap<String, String>();
     }
 
+    /**
+     * Returns a page of the collected urls mapped to their tile id, sorted by tile id.
+     *
+     * @param limit       amount of records to retrieve.
+     * @param afterTileId only larger tile ids are retrieved [first page: ""].
+     * @return the map of ids, urls.
+     */
+    @Override
+    public HashMap<String, String> getRequestUrlsMap(int limit, String afterTileId) {
+        if (mbtilesSplitter != null) {
+            return mbtilesSplitter.retrieve_request_url(limit, afterTileId);
+        }
+        return new LinkedHashMap<String, String>();
+    }
+
     /**
      * Bulk insert of record in table.
      * <p/>
@@ -588,6 +649,20 @@ public class MbtilesDatabaseHandler extends AbstractSpatialDatabaseHandler {
         return -1;
     }
 
+    /**
+     * Delete the records of retrieved tiles in table: request_url, in one transaction.
+     *
+     * @param tileIds the tile ids to delete.
+     * @return if< 0: table does not exist; 0=exist but is empty ; > 0 open requests
+     */
+    @Override
+    public int deleteRequestUrls(List<String> tileIds) {
+        if (mbtilesSplitter != null) {
+            return mbtilesSplitter.delete_list_request_url(tileIds);
+        }
+        return -1;
+    }
+
     /**
      * Retrieves a list of tile id requested, based on bounds and zoom-level.
      * <p/>
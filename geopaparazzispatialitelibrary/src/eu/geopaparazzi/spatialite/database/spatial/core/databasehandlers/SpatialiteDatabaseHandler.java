@@ -38,6 +38,7 @@ import eu.geopaparazzi.spatialite.database.spatial.core.tables.AbstractSpatialTa
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialRasterTable;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
 import eu.geopaparazzi.spatialite.database.spatial.core.geometry.GeometryIterator;
+import eu.geopaparazzi.spatialite.database.spatial.core.geometry.ReprojectedGeometryCache;
 import eu.geopaparazzi.spatialite.database.spatial.core.enums.GeometryType;
 import eu.geopaparazzi.spatialite.database.spatial.core.daos.DaoSpatialite;
 import eu.geopaparazzi.spatialite.database.spatial.core.daos.DatabaseCreationAndProperties;
@@ -65,6 +66,11 @@ import static eu.geopaparazzi.spatialite.database.spatial.core.daos.Geopaparazzi
  */
 @SuppressWarnings("nls")
 public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
+    /**
+     * The number of read only connections opened next to the one of the handler.
+     */
+    private static final int READ_CONNECTIONS_COUNT = 2;
+    private static final int BUSY_TIMEOUT = 5000;
 
     private String uniqueDbName4DataProperties = "";
 
@@ -86,6 +92,13 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
 
     private volatile boolean isOpen = false;
 
+    private ReprojectedGeometryCache reprojectedGeometryCache;
+
+    private StatementPool statementPool;
+    private final List<ReadConnection> readConnections = new ArrayList<ReadConnection>();
+    private final List<ReadConnection> idleReadConnections = new ArrayList<ReadConnection>();
+    private boolean readConnectionsFailed = false;
+
     /**
      * Constructor.
      *
@@ -109,6 +122,7 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
             dbJava = new jsqlite.Database();
             try {
                 dbJava.open(databasePath, jsqlite.Constants.SQLITE_OPEN_READWRITE | jsqlite.Constants.SQLITE_OPEN_CREATE);
+                statementPool = new StatementPool(dbJava);
                 isOpen = true;
                 isDatabaseValid = true;
             } catch (Exception e) {
@@ -147,6 +161,8 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
                 close();
             } else { // avoid call for invalid databases [SpatialiteDatabaseType.UNKNOWN]
                 checkAndUpdatePropertiesUniqueNames();
+                reprojectedGeometryCache = new ReprojectedGeometryCache(dbJava, databasePath);
+                reprojectedGeometryCache.open();
             }
         } catch (Exception e) {
             GPLog.error(this, "SpatialiteDatabaseHandler[" + databaseFile.getAbsolutePath() + "]", e);
@@ -319,15 +335,14 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
      */
     public List<byte[]> getWKBFromTableInBounds(String destSrid, SpatialVectorTable table, double n, double s, double e, double w) {
         List<byte[]> list = new ArrayList<byte[]>();
-        String query = SpatialiteUtilities.buildGeometriesInBoundsQuery(destSrid, false, table, n, s, e, w);
+        GeometryIterator geometryIterator = getGeometryIteratorInBounds(destSrid, table, n, s, e, w, -1);
         try {
-            Stmt stmt = dbJava.prepare(query);
             try {
-                while (stmt.step()) {
-                    list.add(stmt.column_bytes(0));
+                while (geometryIterator.hasNext()) {
+                    list.add(geometryIterator.nextBytes());
                 }
             } finally {
-                stmt.close();
+                geometryIterator.close();
             }
             return list;
         } catch (Exception ex) {
@@ -353,6 +368,42 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
         return null;
     }
 
+    /**
+     * Get a raster tile through a tile query with the zoom level, column and row as parameters.
+     * <p/>
+     * <p>Unlike {@link #getRasterTile(String)}, the query is prepared once and reused
+     * for all the tiles and is run on a read connection if one is available.</p>
+     *
+     * @param tileQuery the tile query, as in {@link SpatialRasterTable#getTileQuery()}.
+     * @param zoomLevel the zoom level.
+     * @param tileX     the tile column.
+     * @param tileY     the tile row.
+     * @return the tile image bytes or <code>null</code>.
+     */
+    public byte[] getRasterTile(String tileQuery, int zoomLevel, int tileX, int tileY) {
+        ReadConnection readConnection = acquireReadConnection();
+        StatementPool pool = readConnection != null ? readConnection.statementPool : statementPool;
+        try {
+            Stmt stmt = pool.acquire(tileQuery);
+            try {
+                stmt.bind(1, zoomLevel);
+                stmt.bind(2, tileX);
+                stmt.bind(3, tileY);
+                if (stmt.step()) {
+                    return stmt.column_bytes(0);
+                }
+            } finally {
+                pool.release(tileQuery, stmt);
+            }
+        } catch (Exception ex) {
+            GPLog.error(this, null, ex);
+        } finally {
+            if (readConnection != null)
+                releaseReadConnection(readConnection);
+        }
+        return null;
+    }
+
     /**
      * Get the {@link GeometryIterator} of a table in a given bound.
      *
@@ -366,14 +417,172 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
      */
     public GeometryIterator getGeometryIteratorInBounds(String destSrid, SpatialVectorTable table, double n, double s, double e,
                                                         double w) {
-        String query = SpatialiteUtilities.buildGeometriesInBoundsQuery(destSrid, false, table, n, s, e, w);
-        // GPLog.androidLog(-1,"GeopaparazziOverlay.getGeometryIteratorInBounds query["+query+"]");
-        return new GeometryIterator(dbJava, query);
+        return getGeometryIteratorInBounds(destSrid, table, n, s, e, w, -1);
+    }
+
+    /**
+     * Get the {@link GeometryIterator} of a table in a given bound, simplified for the zoom level they are drawn at.
+     * <p/>
+     * <p>The query is prepared once per table and reused. It runs on a read connection if one is
+     * available, so that concurrent readers don't queue on the connection of the handler.</p>
+     *
+     * @param destSrid  the srid to which to transform to.
+     * @param table     the table to use.
+     * @param n         north bound.
+     * @param s         south bound.
+     * @param e         east bound.
+     * @param w         west bound.
+     * @param zoomLevel the zoom level the geometries are drawn at or <code>-1</code> for the full resolution.
+     * @return the geometries iterator.
+     */
+    public GeometryIterator getGeometryIteratorInBounds(String destSrid, SpatialVectorTable table, double n, double s, double e,
+                                                        double w, int zoomLevel) {
+        String query = null;
+        if (reprojectedGeometryCache != null) {
+            query = reprojectedGeometryCache.buildGeometriesInBoundsQueryTemplate(destSrid, false, table, zoomLevel);
+        }
+        boolean usesCache = query != null;
+        if (!usesCache) {
+            query = SpatialiteUtilities.buildGeometriesInBoundsQueryTemplate(destSrid, false, table);
+        }
+
+        ReadConnection readConnection = acquireReadConnection();
+        if (readConnection != null && usesCache && !readConnection.isCacheAttached) {
+            try {
+                readConnection.isCacheAttached = reprojectedGeometryCache.attachTo(readConnection.database);
+            } catch (Exception ex) {
+                GPLog.error(this, null, ex);
+            }
+            if (!readConnection.isCacheAttached) {
+                releaseReadConnection(readConnection);
+                readConnection = null;
+            }
+        }
+        final ReadConnection finalReadConnection = readConnection;
+        final StatementPool pool = readConnection != null ? readConnection.statementPool : statementPool;
+        final String finalQuery = query;
+        Stmt stmt = null;
+        try {
+            stmt = pool.acquire(query);
+            // the bounds are parameters in the order w, n, e, s, repeated as needed
+            double[] bounds = new double[]{w, n, e, s};
+            int parametersCount = stmt.bind_parameter_count();
+            for (int i = 0; i < parametersCount; i++) {
+                stmt.bind(i + 1, bounds[i % 4]);
+            }
+        } catch (Exception ex) {
+            GPLog.error(this, "GeometryIterator.creation sql[" + query + "]", ex);
+            if (stmt != null) {
+                pool.release(query, stmt);
+                stmt = null;
+            }
+        }
+        final Stmt finalStmt = stmt;
+        return new GeometryIterator(stmt, new Runnable() {
+            @Override
+            public void run() {
+                if (finalStmt != null)
+                    pool.release(finalQuery, finalStmt);
+                if (finalReadConnection != null)
+                    releaseReadConnection(finalReadConnection);
+            }
+        });
+    }
+
+    /**
+     * @return the cache of reprojected geometries of this database or <code>null</code>, if the database is not valid.
+     */
+    public ReprojectedGeometryCache getReprojectedGeometryCache() {
+        return reprojectedGeometryCache;
+    }
+
+    /**
+     * Get an idle read connection, opening a new one if less than {@link #READ_CONNECTIONS_COUNT} are open.
+     *
+     * @return the connection or <code>null</code>, if all are busy or they can't be opened.
+     */
+    private ReadConnection acquireReadConnection() {
+        synchronized (readConnections) {
+            if (!isOpen) {
+                return null;
+            }
+            if (!idleReadConnections.isEmpty()) {
+                return idleReadConnections.remove(idleReadConnections.size() - 1);
+            }
+            if (readConnectionsFailed || readConnections.size() >= READ_CONNECTIONS_COUNT) {
+                return null;
+            }
+            try {
+                Database database = new jsqlite.Database();
+                database.open(databasePath, jsqlite.Constants.SQLITE_OPEN_READONLY);
+                database.busy_timeout(BUSY_TIMEOUT);
+                // the handler connection writes while the readers read
+                dbJava.busy_timeout(BUSY_TIMEOUT);
+                ReadConnection readConnection = new ReadConnection(database);
+                readConnections.add(readConnection);
+                return readConnection;
+            } catch (Exception e) {
+                GPLog.error(this, "Unable to open a read connection: " + databasePath, e);
+                // don't try again
+                readConnectionsFailed = true;
+                return null;
+            }
+        }
+    }
+
+    private void releaseReadConnection(ReadConnection readConnection) {
+        synchronized (readConnections) {
+            if (isOpen) {
+                idleReadConnections.add(readConnection);
+                return;
+            }
+        }
+        readConnection.close();
+    }
+
+    /**
+     * A read only connection to the database, with its own statements.
+     */
+    private static class ReadConnection {
+        final Database database;
+        final StatementPool statementPool;
+        boolean isCacheAttached = false;
+
+        ReadConnection(Database database) {
+            this.database = database;
+            this.statementPool = new StatementPool(database);
+        }
+
+        void close() {
+            statementPool.close();
+            try {
+                database.close();
+            } catch (Exception e) {
+                GPLog.error(this, null, e);
+            }
+        }
     }
 
     public void close() throws Exception {
         if (isOpen) {
-            isOpen = false;
+            List<ReadConnection> idleConnections;
+            synchronized (readConnections) {
+                isOpen = false;
+                idleConnections = new ArrayList<ReadConnection>(idleReadConnections);
+                idleReadConnections.clear();
+                readConnections.clear();
+            }
+            // the busy ones are closed when released
+            for (ReadConnection readConnection : idleConnections) {
+                readConnection.close();
+            }
+            if (statementPool != null) {
+                statementPool.close();
+            }
+            if (reprojectedGeometryCache != null) {
+                reprojectedGeometryCache.close();
+                reprojectedGeometryCache = null;
+            }
             if (dbJava != null) {
                 dbJava.close();
             }
@@ -395,9 +604,14 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
      */
     public void intersectionToStringBBOX(String boundsSrid, SpatialVectorTable spatialTable, double n, double s, double e,
                                          double w, StringBuilder resultStringBuilder, String indentStr) throws Exception {
-        String query = getIntersectionQueryBBOX(boundsSrid, spatialTable, n, s, e, w);
-        Stmt stmt = dbJava.prepare(query);
+        // the bounds are parameters, so that the query is prepared once per table
+        String query = getIntersectionQueryBBOX(boundsSrid, spatialTable, "?", "?", "?", "?");
+        Stmt stmt = statementPool.acquire(query);
         try {
+            stmt.bind(1, w);
+            stmt.bind(2, s);
+            stmt.bind(3, e);
+            stmt.bind(4, n);
             while (stmt.step()) {
                 int column_count = stmt.column_count();
                 for (int i = 0; i < column_count; i++) {
@@ -408,7 +622,7 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
                 resultStringBuilder.append("\n");
             }
         } finally {
-            stmt.close();
+            statementPool.release(query, stmt);
         }
     }
 
@@ -428,6 +642,12 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
      */
     public static String getIntersectionQueryBBOX(String boundsSrid, SpatialVectorTable spatialTable, double n, double s,
                                                   double e, double w) {
+        return getIntersectionQueryBBOX(boundsSrid, spatialTable, String.valueOf(n), String.valueOf(s), String.valueOf(e),
+                String.valueOf(w));
+    }
+
+    private static String getIntersectionQueryBBOX(String boundsSrid, SpatialVectorTable spatialTable, String n, String s,
+                                                   String e, String w) {
         boolean doTransform = false;
         String fieldNamesList = SpatialiteUtilities.SPATIALTABLE_ID_FIELD;
         // List of non-blob fields
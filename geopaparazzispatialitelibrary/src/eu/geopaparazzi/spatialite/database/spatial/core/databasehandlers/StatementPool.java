@@ -0,0 +1,146 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.geopaparazzi.library.database.GPLog;
+import jsqlite.Database;
+import jsqlite.Exception;
+import jsqlite.Stmt;
+
+/**
+ * Keeps the prepared statements of a connection, so that queries run often with
+ * different parameters are parsed and planned only once.
+ * <p/>
+ * <p>A statement is used by one thread at a time: it is taken with {@link #acquire(String)}
+ * and given back, reset, with {@link #release(String, Stmt)}. The least recently used
+ * queries are finalized when more than {@link #MAX_QUERIES} are kept.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class StatementPool {
+    private static final int MAX_QUERIES = 32;
+    private static final int MAX_IDLE_STATEMENTS = 4;
+
+    private final Database database;
+    private boolean isClosed = false;
+
+    /*
+     * the idle statements by query, in access order
+     */
+    private final LinkedHashMap<String, List<Stmt>> idleStatements = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor.
+     *
+     * @param database the connection the statements belong to.
+     */
+    public StatementPool(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Get a statement for a query, preparing it only if no idle one is available.
+     *
+     * @param query the query, usually with parameters.
+     * @return the statement, to be given back through {@link #release(String, Stmt)}.
+     * @throws Exception if the query can't be prepared.
+     */
+    public Stmt acquire(String query) throws Exception {
+        synchronized (this) {
+            if (isClosed) {
+                throw new Exception("The statement pool is closed.");
+            }
+            List<Stmt> statements = idleStatements.get(query);
+            if (statements != null && statements.size() > 0) {
+                return statements.remove(statements.size() - 1);
+            }
+        }
+        return database.prepare(query);
+    }
+
+    /**
+     * Give back a statement taken with {@link #acquire(String)}.
+     *
+     * @param query     the query of the statement.
+     * @param statement the statement.
+     */
+    public void release(String query, Stmt statement) {
+        try {
+            statement.reset();
+            statement.clear_bindings();
+        } catch (Exception e) {
+            GPLog.error(this, null, e);
+            close(statement);
+            return;
+        }
+        synchronized (this) {
+            if (!isClosed) {
+                List<Stmt> statements = idleStatements.get(query);
+                if (statements == null) {
+                    statements = new ArrayList<>(MAX_IDLE_STATEMENTS);
+                    idleStatements.put(query, statements);
+                    trim();
+                }
+                if (statements.size() < MAX_IDLE_STATEMENTS) {
+                    statements.add(statement);
+                    return;
+                }
+            }
+        }
+        close(statement);
+    }
+
+    /**
+     * Finalize all the idle statements. Statements released later are finalized right away.
+     */
+    public synchronized void close() {
+        isClosed = true;
+        for (List<Stmt> statements : idleStatements.values()) {
+            for (Stmt statement : statements) {
+                close(statement);
+            }
+        }
+        idleStatements.clear();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, List<Stmt>>> iterator = idleStatements.entrySet().iterator();
+        while (idleStatements.size() > MAX_QUERIES && iterator.hasNext()) {
+            Map.Entry<String, List<Stmt>> eldest = iterator.next();
+            for (Stmt statement : eldest.getValue()) {
+                close(statement);
+            }
+            iterator.remove();
+        }
+    }
+
+    private void close(Stmt statement) {
+        try {
+            statement.close();
+        } catch (Exception e) {
+            GPLog.error(this, null, e);
+        }
+    }
+}
@@ -37,6 +37,7 @@ import jsqlite.Stmt;
 public class GeometryIterator implements Iterator<Geometry> {
     private WKBReader wkbReader = new WKBReader();
     private Stmt stmt;
+    private Runnable closeAction;
     private String labelText = "";
     /**
      * Returns Label String (if any)
@@ -107,6 +108,17 @@ public class GeometryIterator implements Iterator<Geometry> {
         }
     }
 
+    /**
+     * Constructor for an already prepared and bound statement.
+     *
+     * @param stmt the statement to step through.
+     * @param closeAction what to do with the statement on {@link #close()}, instead of closing it.
+     */
+    public GeometryIterator( Stmt stmt, Runnable closeAction ) {
+        this.stmt = stmt;
+        this.closeAction = closeAction;
+    }
+
     @Override
     public boolean hasNext() {
         if (stmt == null) {
@@ -137,6 +149,43 @@ public class GeometryIterator implements Iterator<Geometry> {
         return null;
     }
 
+    /**
+     * Get the next geometry as it comes from the database, without parsing it.
+     * 
+     * <p>To be used instead of {@link #next()} with a {@link WKBShapeDecoder}.
+     * 
+     * @return the geometry bytes or <code>null</code>.
+     */
+    public byte[] nextBytes() {
+        if (stmt == null) {
+            GPLog.androidLog(4, "GeometryIterator.nextBytes() [stmt=null]");
+            return null;
+        }
+        try {
+            byte[] geomBytes = stmt.column_bytes(0);
+            setLabelText(stmt);
+            return geomBytes;
+        } catch (java.lang.Exception e) {
+            GPLog.error(this, "GeometryIterator.nextBytes()[column_bytes() failed]", e);
+        }
+        return null;
+    }
+
+    /**
+     * Parse geometry bytes obtained through {@link #nextBytes()}.
+     * 
+     * @param geomBytes the WKB geometry.
+     * @return the geometry or <code>null</code>.
+     */
+    public Geometry readGeometry( byte[] geomBytes ) {
+        try {
+            return wkbReader.read(geomBytes);
+        } catch (java.lang.Exception e) {
+            GPLog.error(this, "GeometryIterator.readGeometry()[wkbReader.read() failed]", e);
+        }
+        return null;
+    }
+
     @Override
     public void remove() {
         throw new UnsupportedOperationException();
@@ -158,7 +207,11 @@ public class GeometryIterator implements Iterator<Geometry> {
      * @throws Exception  if something goes wrong.
      */
     public void close() throws Exception {
-        if (stmt != null)
+        if (closeAction != null) {
+            closeAction.run();
+            closeAction = null;
+        } else if (stmt != null)
             stmt.close();
+        stmt = null;
     }
 }
@@ -0,0 +1,689 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core.geometry;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.util.LibraryConstants;
+import eu.geopaparazzi.spatialite.database.spatial.core.enums.TableTypes;
+import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
+import eu.geopaparazzi.spatialite.database.spatial.util.SpatialiteUtilities;
+import jsqlite.Database;
+import jsqlite.Exception;
+import jsqlite.Stmt;
+
+/**
+ * A sidecar database that keeps the geometries of tables not in {@link LibraryConstants#SRID_WGS84_4326}
+ * already reprojected, together with an R*Tree on their bounds.
+ * <p/>
+ * <p>For lines and polygons it also keeps a pyramid of simplified geometries, one level per
+ * zoom band in {@link #LOD_MAX_ZOOMLEVELS}, each with its own R*Tree. Zoomed out views read
+ * the level of their zoom band instead of the full resolution geometries.</p>
+ * <p/>
+ * <p>The sidecar lives next to the database as <code>databasefile-geomcache</code> and is attached
+ * to the connection of the database handler, so that the drawing queries can read the cached
+ * geometries instead of running <code>ST_Transform</code> on everything in view.</p>
+ * <p/>
+ * <p>Tables have to be enabled explicitly. The cache of a table is built incrementally in a
+ * background thread on its own connection and used only once complete. Edits done through
+ * {@link eu.geopaparazzi.spatialite.database.spatial.core.daos.DaoSpatialite} keep it in sync.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ReprojectedGeometryCache {
+    /**
+     * The suffix added to the database file name to get the sidecar database.
+     */
+    public static final String CACHE_FILE_SUFFIX = "-geomcache";
+
+    private static final String SCHEMA = "geomcache";
+    private static final String TABLES_TABLE = "geomcache_tables";
+    private static final String PK_FIELD = "gc_pkid";
+    private static final String GEOMETRY_FIELD = "gc_geometry";
+    private static final int BUILD_BATCH_SIZE = 500;
+    private static final int BUSY_TIMEOUT = 5000;
+    /**
+     * The highest zoom level of each simplified level, from the coarsest. Above the last one the full
+     * resolution geometries are used.
+     */
+    private static final byte[] LOD_MAX_ZOOMLEVELS = {6, 9, 12};
+    /**
+     * The size in pixels of a map tile.
+     */
+    private static final int TILE_SIZE = 256;
+
+    private final Database database;
+    private final String databasePath;
+    private final File cacheFile;
+    private boolean isAttached = false;
+    private boolean isClosed = false;
+    private Thread builderThread;
+
+    /*
+     * the enabled tables by their cache key
+     */
+    private final LinkedHashMap<String, CachedTable> cachedTables = new LinkedHashMap<>();
+
+    private static class CachedTable {
+        String tableName;
+        String geometryColumn;
+        String srid;
+        long lastRowid;
+        boolean isComplete;
+        boolean hasLevels;
+
+        boolean isReprojected() {
+            return !LibraryConstants.SRID_WGS84_4326.equals(srid);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param database     the connection of the database handler.
+     * @param databasePath the path of the database.
+     */
+    public ReprojectedGeometryCache(Database database, String databasePath) {
+        this.database = database;
+        this.databasePath = databasePath;
+        this.cacheFile = new File(databasePath + CACHE_FILE_SUFFIX);
+    }
+
+    /**
+     * Attaches an existing sidecar and resumes building the incomplete tables.
+     * <p/>
+     * <p>If no table has ever been enabled, nothing is done and no file is created.</p>
+     */
+    public synchronized void open() {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        try {
+            attach();
+            Stmt stmt = database.prepare("SELECT tablekey, tablename, geometrycolumn, srid, lastrowid, complete, levels FROM " + SCHEMA
+                    + "." + TABLES_TABLE);
+            try {
+                while (stmt.step()) {
+                    CachedTable cachedTable = new CachedTable();
+                    cachedTable.tableName = stmt.column_string(1);
+                    cachedTable.geometryColumn = stmt.column_string(2);
+                    cachedTable.srid = stmt.column_string(3);
+                    cachedTable.lastRowid = stmt.column_long(4);
+                    cachedTable.isComplete = stmt.column_int(5) == 1;
+                    cachedTable.hasLevels = stmt.column_int(6) == 1;
+                    cachedTables.put(stmt.column_string(0), cachedTable);
+                }
+            } finally {
+                stmt.close();
+            }
+            startBuilder();
+        } catch (java.lang.Exception e) {
+            GPLog.error(this, "Unable to open the geometry cache: " + cacheFile, e);
+        }
+    }
+
+    /**
+     * Stops the background building and detaches the sidecar.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            isClosed = true;
+            thread = builderThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (isAttached) {
+                try {
+                    database.exec("DETACH DATABASE " + SCHEMA, null);
+                } catch (Exception e) {
+                    GPLog.error(this, null, e);
+                }
+                isAttached = false;
+            }
+            cachedTables.clear();
+        }
+    }
+
+    /**
+     * Checks if a table can use the cache.
+     *
+     * @param table the table to check.
+     * @return <code>true</code> for spatial tables that are not in {@link LibraryConstants#SRID_WGS84_4326}
+     * or that can be simplified.
+     */
+    public static boolean isSupported(SpatialVectorTable table) {
+        return (!LibraryConstants.SRID_WGS84_4326.equals(table.getSrid()) || !table.isPoint())
+                && TableTypes.SPATIALTABLE.getDescription().equals(table.getTableTypeDescription());
+    }
+
+    /**
+     * @param table the table to check.
+     * @return <code>true</code> if the cache is enabled for the table.
+     */
+    public synchronized boolean isEnabled(SpatialVectorTable table) {
+        return cachedTables.containsKey(getTableKey(table));
+    }
+
+    /**
+     * Enable the cache for a table and start building it in the background.
+     *
+     * @param table the table to cache.
+     * @throws Exception if something goes wrong.
+     */
+    public synchronized void enable(SpatialVectorTable table) throws Exception {
+        if (!isSupported(table) || isClosed) {
+            return;
+        }
+        String tableKey = getTableKey(table);
+        if (cachedTables.containsKey(tableKey)) {
+            return;
+        }
+        CachedTable cachedTable = new CachedTable();
+        cachedTable.tableName = table.getTableName();
+        cachedTable.geometryColumn = table.getGeomName();
+        cachedTable.srid = table.getSrid();
+        cachedTable.hasLevels = !table.isPoint();
+
+        attach();
+        database.exec("CREATE TABLE IF NOT EXISTS " + SCHEMA + "." + TABLES_TABLE
+                + " (tablekey TEXT PRIMARY KEY, tablename TEXT, geometrycolumn TEXT, srid TEXT, lastrowid INTEGER, complete INTEGER,"
+                + " levels INTEGER)", null);
+        for (String levelTable : getLevelTables(tableKey, cachedTable)) {
+            database.exec("DROP TABLE IF EXISTS " + SCHEMA + ".\"" + levelTable + "\"", null);
+            database.exec("DROP TABLE IF EXISTS " + SCHEMA + ".\"" + levelTable + "_rtree\"", null);
+            database.exec("CREATE TABLE " + SCHEMA + ".\"" + levelTable + "\" (" + PK_FIELD + " INTEGER PRIMARY KEY, "
+                    + GEOMETRY_FIELD + " BLOB)", null);
+            database.exec("CREATE VIRTUAL TABLE " + SCHEMA + ".\"" + levelTable + "_rtree\" USING rtree(" + PK_FIELD
+                    + ", minx, maxx, miny, maxy)", null);
+        }
+        database.exec("INSERT OR REPLACE INTO " + SCHEMA + "." + TABLES_TABLE + " VALUES ('" + tableKey + "', '"
+                + table.getTableName() + "', '" + table.getGeomName() + "', '" + table.getSrid() + "', 0, 0, "
+                + (cachedTable.hasLevels ? 1 : 0) + ")", null);
+
+        cachedTables.put(tableKey, cachedTable);
+        startBuilder();
+    }
+
+    /**
+     * Disable the cache for a table and remove its data.
+     *
+     * @param table the table.
+     * @throws Exception if something goes wrong.
+     */
+    public synchronized void disable(SpatialVectorTable table) throws Exception {
+        String tableKey = getTableKey(table);
+        CachedTable cachedTable = cachedTables.remove(tableKey);
+        if (cachedTable == null) {
+            return;
+        }
+        database.exec("DELETE FROM " + SCHEMA + "." + TABLES_TABLE + " WHERE tablekey='" + tableKey + "'", null);
+        for (String levelTable : getLevelTables(tableKey, cachedTable)) {
+            database.exec("DROP TABLE IF EXISTS " + SCHEMA + ".\"" + levelTable + "\"", null);
+            database.exec("DROP TABLE IF EXISTS " + SCHEMA + ".\"" + levelTable + "_rtree\"", null);
+        }
+    }
+
+    /**
+     * Get the query reading the cached geometries, with the bounds as parameters.
+     * <p/>
+     * <p>The result has the same columns as
+     * {@link SpatialiteUtilities#buildGeometriesInBoundsQueryTemplate(String, boolean, SpatialVectorTable)}.
+     * The bounds have to be bound in the order w, n, e, s.</p>
+     * <p/>
+     * <p>Connections other than the one of the handler have to {@link #attachTo(Database)} the
+     * sidecar before running the query.</p>
+     *
+     * @param destSrid  the requested srid.
+     * @param withRowId if <code>true</code>, the id is returned as first column.
+     * @param table     the table to use.
+     * @param zoomLevel the zoom level the geometries are drawn at, used to pick the simplified level.
+     *                  If negative, the full resolution is requested.
+     * @return the query or <code>null</code>, if the cache can't be used for the table.
+     */
+    public synchronized String buildGeometriesInBoundsQueryTemplate(String destSrid, boolean withRowId, SpatialVectorTable table,
+                                                                   int zoomLevel) {
+        if (!LibraryConstants.SRID_WGS84_4326.equals(destSrid) || cachedTables.isEmpty()) {
+            return null;
+        }
+        String tableKey = getTableKey(table);
+        CachedTable cachedTable = cachedTables.get(tableKey);
+        if (cachedTable == null || !cachedTable.isComplete || !cachedTable.srid.equals(table.getSrid())) {
+            return null;
+        }
+        String levelTable = null;
+        if (cachedTable.hasLevels && zoomLevel >= 0) {
+            for (int i = 0; i < LOD_MAX_ZOOMLEVELS.length; i++) {
+                if (zoomLevel <= LOD_MAX_ZOOMLEVELS[i]) {
+                    levelTable = getLevelTable(tableKey, i);
+                    break;
+                }
+            }
+        }
+        if (levelTable == null) {
+            if (!cachedTable.isReprojected()) {
+                // the table itself is the full resolution level
+                return null;
+            }
+            levelTable = tableKey;
+        }
+        boolean withLabel = table.getStyle().labelvisible == 1;
+        StringBuilder qSb = new StringBuilder();
+        qSb.append("SELECT ");
+        if (withRowId) {
+            qSb.append("c.").append(PK_FIELD).append(",");
+        }
+        qSb.append("c.").append(GEOMETRY_FIELD);
+        if (withLabel) {
+            qSb.append(",");
+            qSb.append(table.getStyle().labelfield);
+        }
+        qSb.append(" FROM ").append(SCHEMA).append(".\"").append(levelTable).append("\" c");
+        if (withLabel) {
+            qSb.append(" JOIN \"").append(table.getTableName()).append("\" ON ");
+            qSb.append("\"").append(table.getTableName()).append("\".").append(SpatialiteUtilities.SPATIALTABLE_ID_FIELD);
+            qSb.append(" = c.").append(PK_FIELD);
+        }
+        qSb.append(" WHERE c.").append(PK_FIELD).append(" IN (SELECT ").append(PK_FIELD);
+        qSb.append(" FROM ").append(SCHEMA).append(".\"").append(levelTable).append("_rtree\"");
+        qSb.append(" WHERE maxx >= ?");
+        qSb.append(" AND miny <= ?");
+        qSb.append(" AND minx <= ?");
+        qSb.append(" AND maxy >= ?");
+        qSb.append(");");
+        return qSb.toString();
+    }
+
+    /**
+     * Reproject and simplify again the geometries of inserted or modified features.
+     *
+     * @param table       the edited table.
+     * @param whereClause the where clause selecting the features in the table, without the where keyword.
+     * @throws Exception if something goes wrong.
+     */
+    public synchronized void updateFeatures(SpatialVectorTable table, String whereClause) throws Exception {
+        String tableKey = getTableKey(table);
+        CachedTable cachedTable = cachedTables.get(tableKey);
+        if (cachedTable == null) {
+            return;
+        }
+        String idsQuery = "SELECT " + SpatialiteUtilities.SPATIALTABLE_ID_FIELD + " FROM \"" + cachedTable.tableName + "\" WHERE "
+                + whereClause;
+        for (String levelTable : getLevelTables(tableKey, cachedTable)) {
+            database.exec("DELETE FROM " + SCHEMA + ".\"" + levelTable + "\" WHERE " + PK_FIELD + " IN (" + idsQuery + ")", null);
+            database.exec("DELETE FROM " + SCHEMA + ".\"" + levelTable + "_rtree\" WHERE " + PK_FIELD + " IN (" + idsQuery + ")",
+                    null);
+        }
+        if (cachedTable.isReprojected())
+            insertReprojected(database, tableKey, cachedTable, whereClause);
+        if (cachedTable.hasLevels)
+            insertLevels(database, tableKey, cachedTable, whereClause);
+    }
+
+    /**
+     * Remove deleted features from the cache.
+     *
+     * @param tableName the name of the edited table.
+     * @param ids       the ids of the deleted features.
+     * @throws Exception if something goes wrong.
+     */
+    public synchronized void removeFeatures(String tableName, List<String> ids) throws Exception {
+        if (ids.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String id : ids) {
+            sb.append(",").append(id);
+        }
+        String idsList = sb.substring(1);
+        // all the geometry columns of the table are affected
+        for (Map.Entry<String, CachedTable> entry : cachedTables.entrySet()) {
+            if (entry.getValue().tableName.equals(tableName)) {
+                for (String levelTable : getLevelTables(entry.getKey(), entry.getValue())) {
+                    database.exec("DELETE FROM " + SCHEMA + ".\"" + levelTable + "\" WHERE " + PK_FIELD + " IN (" + idsList + ")",
+                            null);
+                    database.exec("DELETE FROM " + SCHEMA + ".\"" + levelTable + "_rtree\" WHERE " + PK_FIELD + " IN (" + idsList
+                            + ")", null);
+                }
+            }
+        }
+    }
+
+    private static String getTableKey(SpatialVectorTable table) {
+        return table.getTableName() + "_" + table.getGeomName();
+    }
+
+    private static String getLevelTable(String tableKey, int level) {
+        return tableKey + "_lod" + level;
+    }
+
+    /**
+     * @return the names of the sidecar tables holding the geometries of a cached table.
+     */
+    private static List<String> getLevelTables(String tableKey, CachedTable cachedTable) {
+        List<String> levelTables = new ArrayList<>();
+        if (cachedTable.isReprojected())
+            levelTables.add(tableKey);
+        if (cachedTable.hasLevels) {
+            for (int i = 0; i < LOD_MAX_ZOOMLEVELS.length; i++) {
+                levelTables.add(getLevelTable(tableKey, i));
+            }
+        }
+        return levelTables;
+    }
+
+    /**
+     * Get the simplification tolerance of a level, which is the size in degrees of a pixel at
+     * the equator at the highest zoom level of the band.
+     *
+     * @param level the level.
+     * @return the tolerance in degrees.
+     */
+    private static double getTolerance(int level) {
+        return 360.0 / ((long) TILE_SIZE << LOD_MAX_ZOOMLEVELS[level]);
+    }
+
+    /**
+     * Attach the sidecar to another connection to the database, so that it can run the cache queries.
+     *
+     * @param db the connection.
+     * @return <code>false</code> if there is no sidecar to attach.
+     * @throws Exception if something goes wrong.
+     */
+    public boolean attachTo(Database db) throws Exception {
+        if (!cacheFile.exists()) {
+            return false;
+        }
+        db.exec("ATTACH DATABASE '" + cacheFile.getAbsolutePath().replaceAll("'", "''") + "' AS " + SCHEMA, null);
+        db.busy_timeout(BUSY_TIMEOUT);
+        return true;
+    }
+
+    private void attach() throws Exception {
+        if (isAttached) {
+            return;
+        }
+        database.exec("ATTACH DATABASE '" + cacheFile.getAbsolutePath().replaceAll("'", "''") + "' AS " + SCHEMA, null);
+        // the sidecar is also written by the builder connection
+        database.busy_timeout(BUSY_TIMEOUT);
+        isAttached = true;
+    }
+
+    /**
+     * Insert the reprojected geometries and their bounds for the features selected by a where clause.
+     */
+    private static void insertReprojected(Database db, String tableKey, CachedTable cachedTable, String whereClause)
+            throws Exception {
+        String geometryColumn = cachedTable.geometryColumn;
+        StringBuilder sb = new StringBuilder();
+        sb.append("INSERT OR REPLACE INTO ").append(SCHEMA).append(".\"").append(tableKey).append("\" (");
+        sb.append(PK_FIELD).append(", ").append(GEOMETRY_FIELD).append(") SELECT ");
+        sb.append(SpatialiteUtilities.SPATIALTABLE_ID_FIELD).append(", ST_AsBinary(CastToXY(ST_Transform(");
+        sb.append(geometryColumn).append(", ").append(LibraryConstants.SRID_WGS84_4326).append(")))");
+        sb.append(" FROM \"").append(cachedTable.tableName).append("\" WHERE ").append(geometryColumn);
+        sb.append(" IS NOT NULL AND (").append(whereClause).append(")");
+        db.exec(sb.toString(), null);
+
+        // the bounds are taken from the already reprojected geometries
+        sb = new StringBuilder();
+        sb.append("INSERT INTO ").append(SCHEMA).append(".\"").append(tableKey).append("_rtree\" SELECT ");
+        sb.append(PK_FIELD).append(", MbrMinX(g), MbrMaxX(g), MbrMinY(g), MbrMaxY(g) FROM (SELECT ");
+        sb.append(PK_FIELD).append(", GeomFromWKB(").append(GEOMETRY_FIELD).append(") AS g FROM ");
+        sb.append(SCHEMA).append(".\"").append(tableKey).append("\" WHERE ").append(PK_FIELD).append(" IN (SELECT ");
+        sb.append(SpatialiteUtilities.SPATIALTABLE_ID_FIELD).append(" FROM \"").append(cachedTable.tableName);
+        sb.append("\" WHERE ").append(whereClause).append("))");
+        db.exec(sb.toString(), null);
+    }
+
+    /**
+     * Insert the simplified geometries and their bounds in all levels for the features selected by a where clause.
+     * <p/>
+     * <p>Each level is simplified from the next finer one, which is cheaper than starting
+     * every time from the full resolution.</p>
+     */
+    private static void insertLevels(Database db, String tableKey, CachedTable cachedTable, String whereClause)
+            throws Exception {
+        String idField = SpatialiteUtilities.SPATIALTABLE_ID_FIELD;
+        String query;
+        if (cachedTable.isReprojected()) {
+            // the reprojected geometries are already there
+            query = "SELECT " + PK_FIELD + ", " + GEOMETRY_FIELD + " FROM " + SCHEMA + ".\"" + tableKey + "\" WHERE " + PK_FIELD
+                    + " IN (SELECT " + idField + " FROM \"" + cachedTable.tableName + "\" WHERE " + whereClause + ")";
+        } else {
+            query = "SELECT " + idField + ", ST_AsBinary(CastToXY(" + cachedTable.geometryColumn + ")) FROM \""
+                    + cachedTable.tableName + "\" WHERE " + cachedTable.geometryColumn + " IS NOT NULL AND (" + whereClause + ")";
+        }
+
+        int levelsCount = LOD_MAX_ZOOMLEVELS.length;
+        Stmt[] geometryStmts = new Stmt[levelsCount];
+        Stmt[] rtreeStmts = new Stmt[levelsCount];
+        Stmt stmt = null;
+        try {
+            for (int i = 0; i < levelsCount; i++) {
+                String levelTable = getLevelTable(tableKey, i);
+                geometryStmts[i] = db.prepare("INSERT OR REPLACE INTO " + SCHEMA + ".\"" + levelTable + "\" (" + PK_FIELD + ", "
+                        + GEOMETRY_FIELD + ") VALUES (?, ?)");
+                rtreeStmts[i] = db.prepare("INSERT INTO " + SCHEMA + ".\"" + levelTable + "_rtree\" VALUES (?, ?, ?, ?, ?)");
+            }
+            WKBReader wkbReader = new WKBReader();
+            WKBWriter wkbWriter = new WKBWriter();
+            stmt = db.prepare(query);
+            while (stmt.step()) {
+                long id = stmt.column_long(0);
+                byte[] geometryBytes = stmt.column_bytes(1);
+                if (geometryBytes == null) {
+                    continue;
+                }
+                Geometry geometry;
+                try {
+                    geometry = wkbReader.read(geometryBytes);
+                } catch (java.lang.Exception e) {
+                    GPLog.error("ReprojectedGeometryCache", "Unable to read geometry " + id + " of " + cachedTable.tableName, e);
+                    continue;
+                }
+                for (int i = levelsCount - 1; i >= 0; i--) {
+                    double tolerance = getTolerance(i);
+                    Geometry simplified;
+                    if (geometry.getDimension() == 2) {
+                        // keep polygons from collapsing
+                        simplified = TopologyPreservingSimplifier.simplify(geometry, tolerance);
+                    } else {
+                        simplified = DouglasPeuckerSimplifier.simplify(geometry, tolerance);
+                    }
+                    if (!simplified.isEmpty()) {
+                        geometry = simplified;
+                    }
+                    Envelope envelope = geometry.getEnvelopeInternal();
+
+                    geometryStmts[i].bind(1, id);
+                    geometryStmts[i].bind(2, wkbWriter.write(geometry));
+                    geometryStmts[i].step();
+                    geometryStmts[i].reset();
+
+                    rtreeStmts[i].bind(1, id);
+                    rtreeStmts[i].bind(2, envelope.getMinX());
+                    rtreeStmts[i].bind(3, envelope.getMaxX());
+                    rtreeStmts[i].bind(4, envelope.getMinY());
+                    rtreeStmts[i].bind(5, envelope.getMaxY());
+                    rtreeStmts[i].step();
+                    rtreeStmts[i].reset();
+                }
+            }
+        } finally {
+            if (stmt != null)
+                stmt.close();
+            for (int i = 0; i < levelsCount; i++) {
+                if (geometryStmts[i] != null)
+                    geometryStmts[i].close();
+                if (rtreeStmts[i] != null)
+                    rtreeStmts[i].close();
+            }
+        }
+    }
+
+    private void startBuilder() {
+        if (builderThread != null || isClosed) {
+            return;
+        }
+        boolean hasWork = false;
+        for (CachedTable cachedTable : cachedTables.values()) {
+            if (!cachedTable.isComplete) {
+                hasWork = true;
+                break;
+            }
+        }
+        if (!hasWork) {
+            return;
+        }
+        builderThread = new Thread(new Runnable() {
+            public void run() {
+                build();
+            }
+        }, "ReprojectedGeometryCache");
+        builderThread.setPriority(Thread.MIN_PRIORITY);
+        builderThread.start();
+    }
+
+    /**
+     * Builds the incomplete tables in batches of {@link #BUILD_BATCH_SIZE} features.
+     * <p/>
+     * <p>Each batch is committed together with its progress, so an interrupted build resumes
+     * where it stopped.</p>
+     */
+    private void build() {
+        Database buildDatabase = new Database();
+        try {
+            buildDatabase.open(databasePath, jsqlite.Constants.SQLITE_OPEN_READWRITE);
+            buildDatabase.busy_timeout(BUSY_TIMEOUT);
+            buildDatabase.exec("ATTACH DATABASE '" + cacheFile.getAbsolutePath().replaceAll("'", "''") + "' AS " + SCHEMA, null);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                String tableKey = null;
+                CachedTable cachedTable = null;
+                synchronized (this) {
+                    for (String key : cachedTables.keySet()) {
+                        CachedTable table = cachedTables.get(key);
+                        if (!table.isComplete) {
+                            tableKey = key;
+                            cachedTable = table;
+                            break;
+                        }
+                    }
+                }
+                if (cachedTable == null) {
+                    break;
+                }
+                try {
+                    buildBatch(buildDatabase, tableKey, cachedTable);
+                } catch (Exception e) {
+                    synchronized (this) {
+                        if (cachedTables.get(tableKey) == cachedTable) {
+                            throw e;
+                        }
+                    }
+                    // the table has been disabled meanwhile
+                }
+            }
+        } catch (java.lang.Exception e) {
+            GPLog.error(this, "Error building the geometry cache of: " + databasePath, e);
+        } finally {
+            try {
+                buildDatabase.close();
+            } catch (Exception e) {
+                GPLog.error(this, null, e);
+            }
+            synchronized (this) {
+                builderThread = null;
+            }
+        }
+    }
+
+    private void buildBatch(Database buildDatabase, String tableKey, CachedTable cachedTable) throws Exception {
+        long lastRowid;
+        synchronized (this) {
+            lastRowid = cachedTable.lastRowid;
+        }
+        String idField = SpatialiteUtilities.SPATIALTABLE_ID_FIELD;
+        long batchEnd = -1;
+        Stmt stmt = buildDatabase.prepare("SELECT max(r) FROM (SELECT " + idField + " AS r FROM \"" + cachedTable.tableName
+                + "\" WHERE " + idField + " > " + lastRowid + " ORDER BY " + idField + " LIMIT " + BUILD_BATCH_SIZE + ")");
+        try {
+            if (stmt.step() && stmt.column_string(0) != null) {
+                batchEnd = stmt.column_long(0);
+            }
+        } finally {
+            stmt.close();
+        }
+
+        // no lock on this object is taken inside the transaction, edits wait on the sidecar instead
+        buildDatabase.exec("BEGIN", null);
+        boolean isCommitted = false;
+        try {
+            if (batchEnd < 0) {
+                buildDatabase.exec("UPDATE " + SCHEMA + "." + TABLES_TABLE + " SET complete=1 WHERE tablekey='" + tableKey + "'",
+                        null);
+            } else {
+                for (String levelTable : getLevelTables(tableKey, cachedTable)) {
+                    buildDatabase.exec("DELETE FROM " + SCHEMA + ".\"" + levelTable + "_rtree\" WHERE " + PK_FIELD + " > "
+                            + lastRowid + " AND " + PK_FIELD + " <= " + batchEnd, null);
+                }
+                String range = idField + " > " + lastRowid + " AND " + idField + " <= " + batchEnd;
+                if (cachedTable.isReprojected())
+                    insertReprojected(buildDatabase, tableKey, cachedTable, range);
+                if (cachedTable.hasLevels)
+                    insertLevels(buildDatabase, tableKey, cachedTable, range);
+                buildDatabase.exec("UPDATE " + SCHEMA + "." + TABLES_TABLE + " SET lastrowid=" + batchEnd + " WHERE tablekey='"
+                        + tableKey + "'", null);
+            }
+            buildDatabase.exec("COMMIT", null);
+            isCommitted = true;
+        } finally {
+            if (!isCommitted) {
+                buildDatabase.exec("ROLLBACK", null);
+            }
+        }
+
+        synchronized (this) {
+            if (batchEnd < 0) {
+                cachedTable.isComplete = true;
+            } else {
+                cachedTable.lastRowid = batchEnd;
+            }
+        }
+    }
+}
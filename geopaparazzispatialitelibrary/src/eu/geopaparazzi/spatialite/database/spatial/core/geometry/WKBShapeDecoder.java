@@ -0,0 +1,572 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core.geometry;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PointF;
+
+import com.vividsolutions.jts.android.PointShapeFactory;
+import com.vividsolutions.jts.android.PointTransformation;
+import com.vividsolutions.jts.android.geom.DrawableShape;
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Decodes WKB and spatialite BLOB geometries straight into a reusable {@link Path}.
+ * <p/>
+ * <p>This is the cheap alternative to reading a JTS geometry and converting it with the
+ * {@link com.vividsolutions.jts.android.ShapeWriter}: the coordinates are read from the blob
+ * one by one, transformed and added to the path, without creating geometry or coordinate
+ * objects. Decimation and duplicate removal work as in the shape writer.</p>
+ * <p/>
+ * <p>If a clip rectangle is set, the parts that are certainly outside of it are left out of
+ * the path, which keeps the path small when zoomed in on large geometries.</p>
+ * <p/>
+ * <p>Points, lines, polygons and their multi versions are supported, with any dimension.
+ * Geometry collections and compressed spatialite geometries are not: {@link #decode(byte[])}
+ * returns <code>false</code> for them and the caller has to use the JTS way.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class WKBShapeDecoder {
+    /**
+     * Nothing has been decoded.
+     */
+    public static final int TYPE_NONE = 0;
+    /**
+     * The decoded geometry is a point or multipoint.
+     */
+    public static final int TYPE_POINT = 1;
+    /**
+     * The decoded geometry is a linestring or multilinestring.
+     */
+    public static final int TYPE_LINE = 2;
+    /**
+     * The decoded geometry is a polygon or multipolygon.
+     */
+    public static final int TYPE_POLYGON = 3;
+
+    private static final int WKB_POINT = 1;
+    private static final int WKB_LINESTRING = 2;
+    private static final int WKB_POLYGON = 3;
+    private static final int WKB_MULTIPOINT = 4;
+    private static final int WKB_MULTILINESTRING = 5;
+    private static final int WKB_MULTIPOLYGON = 6;
+
+    private static final int EWKB_Z_FLAG = 0x80000000;
+    private static final int EWKB_M_FLAG = 0x40000000;
+    private static final int EWKB_SRID_FLAG = 0x20000000;
+
+    private static final byte SPATIALITE_START = 0x00;
+    private static final byte SPATIALITE_MBR_END = 0x7C;
+    private static final byte SPATIALITE_ENTITY = 0x69;
+    private static final int SPATIALITE_HEADER_SIZE = 39;
+
+    private static final int OUT_LEFT = 1;
+    private static final int OUT_RIGHT = 2;
+    private static final int OUT_TOP = 4;
+    private static final int OUT_BOTTOM = 8;
+
+    private final PointTransformation pointTransformer;
+    private final PointShapeFactory pointFactory;
+    private final Coordinate coordinate = new Coordinate();
+    private final PointF transPoint = new PointF();
+    private final Path path = new Path();
+    private double decimationDistance = 0;
+
+    private boolean doClip = false;
+    private float clipMinX;
+    private float clipMinY;
+    private float clipMaxX;
+    private float clipMaxY;
+
+    private byte[] buffer;
+    private int position;
+    private boolean isSpatialite;
+    private boolean isLittleEndian;
+
+    private int type = TYPE_NONE;
+    private boolean isVisible;
+    private double minX;
+    private double minY;
+    private double maxX;
+    private double maxY;
+    /*
+     * transformed points of points geometries and of the ring being read, as x,y pairs
+     */
+    private float[] points = new float[64];
+    private int pointsCount;
+    private int[] outcodes = new int[32];
+
+    /**
+     * Constructor.
+     *
+     * @param pointTransformer the transformation from model to view space.
+     * @param pointFactory     the factory for the symbols of points. Can be <code>null</code> if no points are drawn.
+     */
+    public WKBShapeDecoder(PointTransformation pointTransformer, PointShapeFactory pointFactory) {
+        this.pointTransformer = pointTransformer;
+        this.pointFactory = pointFactory;
+    }
+
+    /**
+     * Sets the decimation distance, as in {@link com.vividsolutions.jts.android.ShapeWriter#setDecimation(double)}.
+     *
+     * @param decimationDistance the distance in model units below which vertices are considered duplicates.
+     */
+    public void setDecimation(double decimationDistance) {
+        this.decimationDistance = decimationDistance;
+    }
+
+    /**
+     * Sets the rectangle in view space outside of which nothing needs to be drawn.
+     * <p/>
+     * <p>It should include a buffer for strokes and symbols crossing the border.</p>
+     *
+     * @param minX the left side.
+     * @param minY the top side.
+     * @param maxX the right side.
+     * @param maxY the bottom side.
+     */
+    public void setClip(float minX, float minY, float maxX, float maxY) {
+        clipMinX = minX;
+        clipMinY = minY;
+        clipMaxX = maxX;
+        clipMaxY = maxY;
+        doClip = true;
+    }
+
+    /**
+     * Decode a geometry.
+     *
+     * @param geometryBytes the WKB or spatialite BLOB geometry.
+     * @return <code>false</code> if the geometry is not supported or not valid and has to be read through JTS.
+     */
+    public boolean decode(byte[] geometryBytes) {
+        path.rewind();
+        type = TYPE_NONE;
+        isVisible = false;
+        pointsCount = 0;
+        minX = Double.POSITIVE_INFINITY;
+        minY = Double.POSITIVE_INFINITY;
+        maxX = Double.NEGATIVE_INFINITY;
+        maxY = Double.NEGATIVE_INFINITY;
+        if (geometryBytes == null || geometryBytes.length < 5) {
+            return false;
+        }
+        buffer = geometryBytes;
+        try {
+            isSpatialite = geometryBytes.length > SPATIALITE_HEADER_SIZE + 4 && geometryBytes[0] == SPATIALITE_START
+                    && geometryBytes[SPATIALITE_HEADER_SIZE - 1] == SPATIALITE_MBR_END;
+            if (isSpatialite) {
+                // start, endianness, srid and mbr come before the class type
+                isLittleEndian = geometryBytes[1] == 0x01;
+                position = SPATIALITE_HEADER_SIZE;
+            } else {
+                position = 0;
+            }
+            return readGeometry(false);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            path.rewind();
+            type = TYPE_NONE;
+            return false;
+        } finally {
+            buffer = null;
+        }
+    }
+
+    /**
+     * @return the type of the decoded geometry, one of {@link #TYPE_POINT}, {@link #TYPE_LINE} or {@link #TYPE_POLYGON}.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return <code>true</code> if some part of the decoded geometry is inside the clip.
+     */
+    public boolean isVisible() {
+        return isVisible;
+    }
+
+    /**
+     * The path of the decoded lines or polygons.
+     * <p/>
+     * <p>It is reused by the next decoding, copy it to keep it.</p>
+     *
+     * @return the path.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Get the position for the label of the decoded geometry: the first point
+     * for points and the center of the bounds otherwise.
+     *
+     * @param dest the point to set.
+     */
+    public void getLabelPosition(PointF dest) {
+        if (type == TYPE_POINT && pointsCount > 0) {
+            dest.set(points[0], points[1]);
+        } else {
+            coordinate.x = (minX + maxX) / 2.0;
+            coordinate.y = (minY + maxY) / 2.0;
+            pointTransformer.transform(coordinate, dest);
+        }
+    }
+
+    /**
+     * Draw the decoded geometry with the given paints.
+     *
+     * @param canvas the canvas to draw on.
+     * @param fill   the fill paint or <code>null</code>.
+     * @param stroke the stroke paint or <code>null</code>.
+     */
+    public void draw(Canvas canvas, Paint fill, Paint stroke) {
+        if (!isVisible) {
+            return;
+        }
+        switch (type) {
+            case TYPE_POINT: {
+                if (pointFactory == null) {
+                    return;
+                }
+                for (int i = 0; i < pointsCount; i++) {
+                    transPoint.set(points[i * 2], points[i * 2 + 1]);
+                    DrawableShape shape = pointFactory.createPoint(transPoint);
+                    if (fill != null)
+                        shape.fill(canvas, fill);
+                    if (stroke != null)
+                        shape.draw(canvas, stroke);
+                }
+            }
+            break;
+            case TYPE_LINE: {
+                if (stroke != null) {
+                    stroke.setStyle(Paint.Style.STROKE);
+                    canvas.drawPath(path, stroke);
+                }
+            }
+            break;
+            case TYPE_POLYGON: {
+                if (fill != null) {
+                    fill.setStyle(Paint.Style.FILL);
+                    canvas.drawPath(path, fill);
+                }
+                if (stroke != null) {
+                    stroke.setStyle(Paint.Style.STROKE);
+                    canvas.drawPath(path, stroke);
+                }
+            }
+            break;
+            default:
+                break;
+        }
+    }
+
+    private boolean readGeometry(boolean isEntity) {
+        int geometryType;
+        if (isSpatialite) {
+            if (isEntity && buffer[position++] != SPATIALITE_ENTITY) {
+                return false;
+            }
+            geometryType = readInt();
+        } else {
+            isLittleEndian = buffer[position++] == 0x01;
+            geometryType = readInt();
+        }
+
+        int dimensions = 2;
+        if (!isSpatialite) {
+            // extended WKB flags
+            if ((geometryType & EWKB_Z_FLAG) != 0)
+                dimensions++;
+            if ((geometryType & EWKB_M_FLAG) != 0)
+                dimensions++;
+            if ((geometryType & EWKB_SRID_FLAG) != 0)
+                position += 4;
+            geometryType = geometryType & 0x0FFFFFFF;
+        }
+        if (geometryType >= 1000000) {
+            // compressed spatialite geometries
+            return false;
+        }
+        switch (geometryType / 1000) {
+            case 0:
+                break;
+            case 1:
+            case 2:
+                dimensions++;
+                break;
+            case 3:
+                dimensions += 2;
+                break;
+            default:
+                return false;
+        }
+        geometryType = geometryType % 1000;
+
+        switch (geometryType) {
+            case WKB_POINT:
+                return setType(TYPE_POINT) && readPoint(dimensions);
+            case WKB_LINESTRING:
+                return setType(TYPE_LINE) && readLine(dimensions);
+            case WKB_POLYGON:
+                return setType(TYPE_POLYGON) && readPolygon(dimensions);
+            case WKB_MULTIPOINT:
+            case WKB_MULTILINESTRING:
+            case WKB_MULTIPOLYGON: {
+                int count = readInt();
+                for (int i = 0; i < count; i++) {
+                    if (!readGeometry(true)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private boolean setType(int newType) {
+        if (type != TYPE_NONE && type != newType) {
+            return false;
+        }
+        type = newType;
+        return true;
+    }
+
+    private boolean readPoint(int dimensions) {
+        double x = readDouble();
+        double y = readDouble();
+        position += (dimensions - 2) * 8;
+        if (Double.isNaN(x)) {
+            // empty point
+            return true;
+        }
+        transform(x, y);
+        if (outcode(transPoint.x, transPoint.y) == 0) {
+            addPoint(transPoint.x, transPoint.y);
+            isVisible = true;
+        }
+        return true;
+    }
+
+    private boolean readLine(int dimensions) {
+        int n = readInt();
+        boolean isPenDown = false;
+        boolean hasLast = false;
+        float lastX = 0;
+        float lastY = 0;
+        int lastOutcode = 0;
+        double prevX = 0;
+        double prevY = 0;
+        for (int i = 0; i < n; i++) {
+            double x = readDouble();
+            double y = readDouble();
+            position += (dimensions - 2) * 8;
+            boolean isLast = i == n - 1;
+            if (decimationDistance > 0.0) {
+                boolean isDecimated = i > 0 && Math.abs(x - prevX) < decimationDistance
+                        && Math.abs(y - prevY) < decimationDistance;
+                if (!isLast && isDecimated)
+                    continue;
+                prevX = x;
+                prevY = y;
+            }
+            transform(x, y);
+            float tx = transPoint.x;
+            float ty = transPoint.y;
+            if (hasLast && !isLast && tx == lastX && ty == lastY) {
+                // skip duplicate points (except the last point)
+                continue;
+            }
+            int outcode = outcode(tx, ty);
+            if (hasLast) {
+                if ((lastOutcode & outcode) != 0) {
+                    // the segment is entirely on the outer side of the clip
+                    isPenDown = false;
+                } else {
+                    if (!isPenDown) {
+                        path.moveTo(lastX, lastY);
+                        isPenDown = true;
+                    }
+                    path.lineTo(tx, ty);
+                    isVisible = true;
+                }
+            }
+            lastX = tx;
+            lastY = ty;
+            lastOutcode = outcode;
+            hasLast = true;
+        }
+        return true;
+    }
+
+    private boolean readPolygon(int dimensions) {
+        path.setFillType(Path.FillType.EVEN_ODD);
+        int rings = readInt();
+        for (int r = 0; r < rings; r++) {
+            int n = readInt();
+            pointsCount = 0;
+            double prevX = 0;
+            double prevY = 0;
+            float lastX = Float.NaN;
+            float lastY = Float.NaN;
+            /*
+             * Don't include closing point.
+             * Ring path will be closed explicitly.
+             */
+            for (int i = 0; i < n; i++) {
+                double x = readDouble();
+                double y = readDouble();
+                position += (dimensions - 2) * 8;
+                if (i == n - 1) {
+                    continue;
+                }
+                if (decimationDistance > 0.0) {
+                    boolean isDecimated = i > 0 && Math.abs(x - prevX) < decimationDistance
+                            && Math.abs(y - prevY) < decimationDistance;
+                    if (isDecimated)
+                        continue;
+                    prevX = x;
+                    prevY = y;
+                }
+                transform(x, y);
+                if (transPoint.x == lastX && transPoint.y == lastY) {
+                    continue;
+                }
+                lastX = transPoint.x;
+                lastY = transPoint.y;
+                addPoint(lastX, lastY);
+            }
+            appendRing();
+        }
+        pointsCount = 0;
+        return true;
+    }
+
+    /**
+     * Add the ring in the points buffer to the path, dropping the vertices that
+     * form with their neighbours a triangle entirely on the outer side of the clip.
+     * Removing those doesn't change the filled area inside the clip.
+     */
+    private void appendRing() {
+        int count = pointsCount;
+        if (count < 2) {
+            return;
+        }
+        if (outcodes.length < count) {
+            outcodes = new int[count * 2];
+        }
+        int allOutcodes = -1;
+        for (int i = 0; i < count; i++) {
+            outcodes[i] = outcode(points[i * 2], points[i * 2 + 1]);
+            allOutcodes &= outcodes[i];
+        }
+        if (allOutcodes != 0) {
+            // the ring is entirely on the outer side of the clip
+            return;
+        }
+        isVisible = true;
+        int lastOutcode = outcodes[0];
+        path.moveTo(points[0], points[1]);
+        for (int i = 1; i < count; i++) {
+            int nextOutcode = outcodes[(i + 1) % count];
+            if ((lastOutcode & outcodes[i] & nextOutcode) != 0) {
+                continue;
+            }
+            path.lineTo(points[i * 2], points[i * 2 + 1]);
+            lastOutcode = outcodes[i];
+        }
+        path.close();
+    }
+
+    private void addPoint(float x, float y) {
+        if (points.length < (pointsCount + 1) * 2) {
+            float[] newPoints = new float[points.length * 2];
+            System.arraycopy(points, 0, newPoints, 0, pointsCount * 2);
+            points = newPoints;
+        }
+        points[pointsCount * 2] = x;
+        points[pointsCount * 2 + 1] = y;
+        pointsCount++;
+    }
+
+    private void transform(double x, double y) {
+        if (x < minX)
+            minX = x;
+        if (x > maxX)
+            maxX = x;
+        if (y < minY)
+            minY = y;
+        if (y > maxY)
+            maxY = y;
+        coordinate.x = x;
+        coordinate.y = y;
+        pointTransformer.transform(coordinate, transPoint);
+    }
+
+    private int outcode(float x, float y) {
+        if (!doClip) {
+            return 0;
+        }
+        int outcode = 0;
+        if (x < clipMinX) {
+            outcode |= OUT_LEFT;
+        } else if (x > clipMaxX) {
+            outcode |= OUT_RIGHT;
+        }
+        if (y < clipMinY) {
+            outcode |= OUT_TOP;
+        } else if (y > clipMaxY) {
+            outcode |= OUT_BOTTOM;
+        }
+        return outcode;
+    }
+
+    private int readInt() {
+        int b0 = buffer[position] & 0xFF;
+        int b1 = buffer[position + 1] & 0xFF;
+        int b2 = buffer[position + 2] & 0xFF;
+        int b3 = buffer[position + 3] & 0xFF;
+        position += 4;
+        if (isLittleEndian) {
+            return (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+        }
+        return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+
+    private double readDouble() {
+        long value = 0;
+        if (isLittleEndian) {
+            for (int i = 7; i >= 0; i--) {
+                value = (value << 8) | (buffer[position + i] & 0xFF);
+            }
+        } else {
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position + i] & 0xFF);
+            }
+        }
+        position += 8;
+        return Double.longBitsToDouble(value);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesDroidSpitter.TileData;
+
+/**
+ * Inserts a stream of tiles into an mbtiles database in batches.
+ * <p/>
+ * <p>Tiles are compressed by the thread that adds them and queued. A single writer
+ * thread inserts the queued tiles with {@link TileInserter#insertTiles(List, int, List)},
+ * one transaction for each batch of up to <code>batchSize</code> tiles or the tiles
+ * collected within <code>batchMillis</code>, whichever comes first.
+ * <p>If the writer thread falls behind, adding a tile blocks until there is space in the queue.
+ * <p>Tiles can be added from several threads. Once {@link #close()} is called no more tiles are accepted,
+ * all tiles added before are inserted.
+ */
+public class MBTilesBulkWriter {
+    /**
+     * The database the tiles are inserted into, usually a {@link MBTilesDroidSpitter}.
+     */
+    public interface TileInserter {
+        /**
+         * @return the name of the database.
+         */
+        String getName();
+
+        /**
+         * @return <code>true</code> if tiles can be inserted.
+         */
+        boolean isValid();
+
+        /**
+         * Inserts tiles in one transaction.
+         *
+         * @param tiles          the tiles to insert.
+         * @param i_force_unique 1=check if image is unique in Database.
+         * @param failedTiles    the tiles that could not be inserted are added to this list.
+         * @return the amount of tiles that could not be inserted.
+         * @throws IOException if the transaction failed and no tile was inserted.
+         */
+        int insertTiles(List<TileData> tiles, int i_force_unique, List<TileData> failedTiles) throws IOException;
+    }
+
+    /**
+     * Listener for committed tiles.
+     */
+    public interface TilesInsertedListener {
+        /**
+         * Called by the writer thread after a batch of tiles has been written.
+         *
+         * @param insertedTiles the tiles of the batch that have been committed [must not be kept].
+         * @param failedTiles   the tiles of the batch that could not be inserted [must not be kept].
+         */
+        void onTilesInserted(List<TileData> insertedTiles, List<TileData> failedTiles);
+    }
+
+    /**
+     * Default maximum amount of tiles of one transaction.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 250;
+    /**
+     * Default maximum time a tile waits for its transaction.
+     */
+    public static final long DEFAULT_BATCH_MILLIS = 2000;
+
+    private final TileInserter mbtilesSplitter;
+    private final int forceUnique;
+    private final int batchSize;
+    private final long batchMillis;
+    private final BlockingQueue<TileData> tilesQueue;
+    private final AtomicInteger failedTilesCount = new AtomicInteger();
+    private final Thread writerThread;
+    private final TilesInsertedListener tilesInsertedListener;
+    private volatile boolean isClosed = false;
+    /*
+     * read lock: adding tiles, write lock: closing
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+    /**
+     * Constructor. The writer thread is started immediately.
+     *
+     * @param mbtilesSplitter the opened mbtiles database.
+     * @param forceUnique     if 1, it check if image is unique in Database.
+     * @param batchSize       the maximum amount of tiles of one transaction.
+     * @param batchMillis     the maximum time in milliseconds a tile waits for its transaction.
+     * @param listener        notified of each committed batch [can be <code>null</code>].
+     */
+    public MBTilesBulkWriter(TileInserter mbtilesSplitter, int forceUnique, int batchSize, long batchMillis,
+                             TilesInsertedListener listener) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+        }
+        this.mbtilesSplitter = mbtilesSplitter;
+        this.forceUnique = forceUnique;
+        this.batchSize = batchSize;
+        this.batchMillis = batchMillis;
+        this.tilesInsertedListener = listener;
+        tilesQueue = new ArrayBlockingQueue<TileData>(2 * batchSize);
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeTiles();
+            }
+        }, "MBTilesBulkWriter[" + mbtilesSplitter.getName() + "]");
+        writerThread.start();
+    }
+
+    /**
+     * Queues an already compressed tile for insertion.
+     *
+     * @param i_x          the value for tile_column field in the map,tiles Tables.
+     * @param i_y_osm      the value for tile_row field in the map,tiles Tables.
+     * @param i_z          the value for zoom_level field in the map,tiles Tables.
+     * @param ba_tile_data the image-data in the format of the mbtiles database.
+     * @throws InterruptedException if interrupted while waiting for space in the queue.
+     */
+    public void addTile(int i_x, int i_y_osm, int i_z, byte[] ba_tile_data) throws InterruptedException {
+        addTile(new TileData(i_x, i_y_osm, i_z, "", ba_tile_data));
+    }
+
+    /**
+     * Queues a tile for insertion.
+     * <p/>
+     * <p>Tiles from a Bitmap are created with {@link MBTilesDroidSpitter#createTileData}, in the calling thread.
+     *
+     * @param tile the tile.
+     * @throws InterruptedException if interrupted while waiting for space in the queue.
+     */
+    public void addTile(TileData tile) throws InterruptedException {
+        // the writer thread is only stopped after the tiles being added are in the queue
+        closeLock.readLock().lockInterruptibly();
+        try {
+            if (isClosed) {
+                throw new IllegalStateException("MBTilesBulkWriter is closed");
+            }
+            tilesQueue.put(tile);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts all queued tiles and stops the writer thread.
+     */
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            isClosed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        writerThread.interrupt();
+        // the caller may close the database right after, so wait for the writer thread even if interrupted
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                writerThread.join();
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the amount of tiles that could not be inserted.
+     */
+    public int getFailedTilesCount() {
+        return failedTilesCount.get();
+    }
+
+    private void writeTiles() {
+        List<TileData> batch = new ArrayList<TileData>(batchSize);
+        try {
+            while (!isClosed) {
+                TileData tile = tilesQueue.poll(batchMillis, TimeUnit.MILLISECONDS);
+                if (tile == null) {
+                    continue;
+                }
+                batch.add(tile);
+                long deadline = System.currentTimeMillis() + batchMillis;
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0 || (tile = tilesQueue.poll(wait, TimeUnit.MILLISECONDS)) == null) {
+                        break;
+                    }
+                    batch.add(tile);
+                }
+                insertTiles(batch);
+            }
+        } catch (InterruptedException e) {
+            // closed, insert what is left
+        }
+        while (tilesQueue.drainTo(batch, batchSize - batch.size()) > 0 || !batch.isEmpty()) {
+            insertTiles(batch);
+        }
+    }
+
+    private void insertTiles(List<TileData> batch) {
+        List<TileData> insertedTiles = new ArrayList<TileData>(batch);
+        List<TileData> failedTiles = new ArrayList<TileData>();
+        try {
+            if (mbtilesSplitter.isValid()) {
+                mbtilesSplitter.insertTiles(batch, forceUnique, failedTiles);
+            } else { // insertTiles returns 100
+                failedTiles.addAll(batch);
+            }
+        } catch (Exception e) {
+            failedTiles.clear();
+            failedTiles.addAll(batch);
+            GPLog.error(this, "MBTilesBulkWriter[" + mbtilesSplitter.getName() + "] tiles[" + batch.size() + "]", e);
+        }
+        failedTilesCount.addAndGet(failedTiles.size());
+        if (!failedTiles.isEmpty()) {
+            insertedTiles.removeAll(failedTiles);
+        }
+        if (tilesInsertedListener != null) {
+            try {
+                tilesInsertedListener.onTilesInserted(insertedTiles, failedTiles);
+            } catch (Exception e) {
+                GPLog.error(this, "MBTilesBulkWriter[" + mbtilesSplitter.getName() + "] listener", e);
+            }
+        }
+        batch.clear();
+    }
+}
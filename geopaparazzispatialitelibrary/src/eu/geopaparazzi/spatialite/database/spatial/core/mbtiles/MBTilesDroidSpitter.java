@@ -6,7 +6,9 @@ package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
@@ -16,6 +18,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -28,7 +31,35 @@ import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesMetadata.MetadataParseException;
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesMetadata.MetadataValidator;
 
-public class MBTilesDroidSpitter {
+public class MBTilesDroidSpitter implements MBTilesBulkWriter.TileInserter {
+    /**
+     * A compressed tile to be inserted into the mbtiles Database
+     * - i_y_osm is in Open-Street-Map 'Slippy Map' notation
+     * - s_tile_id is 'ff-ee-dd.rgb' for blank images, otherwise empty [the tile_id will be created from z/x/y]
+     */
+    public static class TileData {
+        public final int i_x;
+        public final int i_y_osm;
+        public final int i_z;
+        public final String s_tile_id;
+        public final byte[] ba_tile_data;
+
+        /**
+         * @param i_x          the value for tile_column field in the map,tiles Tables
+         * @param i_y_osm      the value for tile_row field in the map,tiles Tables [Open-Street-Map 'Slippy Map' notation]
+         * @param i_z          the value for zoom_level field in the map,tiles Tables
+         * @param s_tile_id    'ff-ee-dd.rgb' for blank images, otherwise empty
+         * @param ba_tile_data the image-data [JPG or PNG]
+         */
+        public TileData(int i_x, int i_y_osm, int i_z, String s_tile_id, byte[] ba_tile_data) {
+            this.i_x = i_x;
+            this.i_y_osm = i_y_osm;
+            this.i_z = i_z;
+            this.s_tile_id = s_tile_id;
+            this.ba_tile_data = ba_tile_data;
+        }
+    }
+
     private SQLiteDatabase db_mbtiles = null;
     private File file_mbtiles;
     String s_mbtiles_file;
@@ -40,6 +71,8 @@ public class MBTilesDroidSpitter {
     private int i_type_tiles = -1; // mbtiles is only valid if 'i_type_tiles' == 0 or 1 [table or
     // view]
     private boolean b_grid_id = false;
+    private boolean b_images_hash_column = false; // true if the 'images' table has the 'tile_hash' field
+    private boolean b_images_hash = false; // true once all 'images' are hashed and indexed: searches may use 'tile_hash'
     private int i_request_url_count = -1; // > 0 table 'request_url' exists
     public static final int i_request_url_count_read_value = 0;
     public static final int i_request_url_count_read_db = 1;
@@ -52,6 +85,11 @@ public class MBTilesDroidSpitter {
     HashMap<String, String> bounds_lat_long = null;
     // avoid SpatialiteLockException's - multiple read/writes will be queued
     private ReentrantReadWriteLock db_lock = new ReentrantReadWriteLock();
+    // insert statements of insertTile, compiled once [guarded by db_lock]
+    private SQLiteStatement stmt_insert_images = null;
+    private SQLiteStatement stmt_insert_map = null;
+    private SQLiteStatement stmt_insert_tiles = null;
+    private boolean b_stmt_images_hash = false;
     // -----------------------------------------------
 
     /**
@@ -116,6 +154,9 @@ public class MBTilesDroidSpitter {
         } catch (MetadataParseException e) {
             GPLog.androidLog(4, "MBTilesDroidSpitter[" + file_mbtiles.getAbsolutePath() + "]", e);
         }
+        if ((isValid()) && (!b_images_hash)) { // existing 'images' are hashed before any tile is inserted
+            create_images_hash();
+        }
 //        if (!isValid()) { // this mbtiles file is invalid
 //        }
     }
@@ -127,6 +168,7 @@ public class MBTilesDroidSpitter {
      * @return void
      */
     public void close() {
+        close_insert_statements();
         if (db_mbtiles != null)
             db_mbtiles.close();
     }
@@ -280,6 +322,7 @@ public class MBTilesDroidSpitter {
      * Function to insert a new Tile Bitmap to the mbtiles Database
      * - i_y_osm must be in is Open-Street-Map 'Slippy Map' notation [will be converted to 'tms' notation if needed]
      * - checking will be done to determin if the Bitmap is blank [i.e. all pixels have the same RGB]
+     * - many tiles should be inserted with a MBTilesBulkWriter, which stores them in one transaction
      *
      * @param i_x            the value for tile_column field in the map,tiles Tables and part of the tile_id when image is not blank
      * @param i_y_osm        the value for tile_row field in the map,tiles Tables and part of the tile_id when image is not blank
@@ -291,19 +334,10 @@ public class MBTilesDroidSpitter {
      */
     public int insertBitmapTile(int i_x, int i_y_osm, int i_z, Bitmap tile_bitmap, int i_force_unique) throws IOException {
         int i_rc = 0;
-        // i_parm=1: 'ff-ee-dd.rgb' [to be used as tile_id], blank if image is not Blank (all pixels
-        // use one RGB value)
-        String s_tile_id = get_pixel_rgb_toString(tile_bitmap, 1);
-        ByteArrayOutputStream ba_stream = new ByteArrayOutputStream();
         try {
-            if (this.mbtiles_metadata.get("format") == "png") { // 'png' should be avoided, can
-                // create very big databases
-                tile_bitmap.compress(Bitmap.CompressFormat.PNG, 100, ba_stream);
-            } else { // 'jpg' should be used where possible
-                tile_bitmap.compress(Bitmap.CompressFormat.JPEG, 75, ba_stream);
-            }
-            byte[] ba_tile_data = ba_stream.toByteArray();
-            i_rc = insertTile(s_tile_id, i_x, i_y_osm, i_z, ba_tile_data, i_force_unique);
+            List<TileData> tiles = new ArrayList<TileData>(1);
+            tiles.add(createTileData(i_x, i_y_osm, i_z, tile_bitmap));
+            i_rc = insertTiles(tiles, i_force_unique);
         } catch (Exception e) {
             i_rc = 1;
             GPLog.error(this, "MBTilesDroidSpitter[" + file_mbtiles.getAbsolutePath() + "]", e);
@@ -314,66 +348,150 @@ public class MBTilesDroidSpitter {
     // -----------------------------------------------
 
     /**
-     * Function to insert a new Tile byte-data to the mbtiles Database
-     * - i_y_osm must be in is Open-Street-Map 'Slippy Map' notation [will be converted to 'tms' notation if needed]
+     * Function to compress a Tile Bitmap for the mbtiles Database
+     * - does not use the Database, so that the compression can be done outside of the thread that inserts the tiles
+     * - checking will be done to determin if the Bitmap is blank [i.e. all pixels have the same RGB]
+     *
+     * @param i_x         the value for tile_column field in the map,tiles Tables
+     * @param i_y_osm     the value for tile_row field in the map,tiles Tables [Open-Street-Map 'Slippy Map' notation]
+     * @param i_z         the value for zoom_level field in the map,tiles Tables
+     * @param tile_bitmap the Bitmap to extract image-data extracted from. [Will be converted to JPG or PNG depending on metdata setting]
+     * @return the tile to insert
+     */
+    public TileData createTileData(int i_x, int i_y_osm, int i_z, Bitmap tile_bitmap) {
+        // i_parm=1: 'ff-ee-dd.rgb' [to be used as tile_id], blank if image is not Blank (all pixels
+        // use one RGB value)
+        String s_tile_id = get_pixel_rgb_toString(tile_bitmap, 1);
+        ByteArrayOutputStream ba_stream = new ByteArrayOutputStream();
+        if (this.mbtiles_metadata.get("format") == "png") { // 'png' should be avoided, can
+            // create very big databases
+            tile_bitmap.compress(Bitmap.CompressFormat.PNG, 100, ba_stream);
+        } else { // 'jpg' should be used where possible
+            tile_bitmap.compress(Bitmap.CompressFormat.JPEG, 75, ba_stream);
+        }
+        return new TileData(i_x, i_y_osm, i_z, s_tile_id, ba_stream.toByteArray());
+    }
+    // -----------------------------------------------
+
+    /**
+     * Function to insert new Tiles to the mbtiles Database in one transaction
      * - second of two function that use the 'tms' numbering for the y/tile_row value
      * - blank [i.e. all pixels have the same RGB] image will only be saved once in the'images' table and reference in the 'map' table
+     * - the insert statements are compiled once and reused for all following tiles
+     * - a tile that allready exists is not considered an error
+     * - bounds and min/max zoom are checked after the transaction [see checkBounds]
      *
-     * @param s_tile_id      for images/map tables tile_id field [only filled when Bitmap is blank [all pixels haves ame rgb]
-     * @param i_x            the value for tile_column field in the map,tiles Tables and part of the tile_id when image is not blank
-     * @param i_y_osm        the value for tile_row field in the map,tiles Tables and part of the tile_id when image is not blank
-     * @param i_z            the value for zoom_level field in the map,tiles Tables and part of the tile_id when image is not blank
-     * @param ba_tile_data   the image-data extracted from the Bitmap.
+     * @param tiles          the tiles to insert [created with createTileData or TileData with image-data]
      * @param i_force_unique 1=check if image is unique in Database [may be slow if used]
-     * @return 0: no error
+     * @return 0: no error, 100: invalid mbtiles, otherwise the amount of tiles that could not be inserted
+     * @throws IOException if the transaction could not be compleated.
      */
-    private int insertTile(String s_tile_id, int i_x, int i_y_osm, int i_z, byte[] ba_tile_data, int i_force_unique)
-            throws IOException { // i_rc=0: correct, otherwise error
+    public int insertTiles(List<TileData> tiles, int i_force_unique) throws IOException { // i_rc=0: correct, otherwise error
+        return insertTiles(tiles, i_force_unique, null);
+    }
+    // -----------------------------------------------
+
+    /**
+     * Function to insert new Tiles to the mbtiles Database in one transaction, collecting the tiles that failed
+     * - see insertTiles(List, int)
+     * - when an IOException is thrown, no tile of the list has been inserted
+     *
+     * @param tiles          the tiles to insert [created with createTileData or TileData with image-data]
+     * @param i_force_unique 1=check if image is unique in Database [may be slow if used]
+     * @param failedTiles    the tiles that could not be inserted are added to this list [can be <code>null</code>]
+     * @return 0: no error, 100: invalid mbtiles, otherwise the amount of tiles that could not be inserted
+     * @throws IOException if the transaction could not be compleated.
+     */
+    public int insertTiles(List<TileData> tiles, int i_force_unique, List<TileData> failedTiles) throws IOException {
         int i_rc = 0;
         if (!isValid()) { // this mbtiles file is invalid
+            if (failedTiles != null)
+                failedTiles.addAll(tiles);
             return 100; // invalid mbtiles
         }
+        if (i_force_unique > 1)
+            i_force_unique = 0;
+        // The Database may have been closed in the meantime, we just don't know that yet - should
+        // bail out gracefully
+        // - avoid 'IllegalStateException' '(conn# x): already closed'
+        if (!db_mbtiles.isOpen()) { // You cannot lock the Database if the connection is not open
+            if (failedTiles != null)
+                failedTiles.addAll(tiles);
+            return tiles.size();
+        }
+        db_lock.writeLock().lock();
+        try {
+            db_mbtiles.beginTransaction();
+            try {
+                for (TileData tile : tiles) {
+                    try {
+                        insertTile(tile, i_force_unique);
+                    } catch (Exception e) {
+                        i_rc++;
+                        if (failedTiles != null)
+                            failedTiles.add(tile);
+                        GPLog.error(this, "MBTilesDroidSpitter:insertTiles[" + tile.i_z + "/" + tile.i_x + "/" + tile.i_y_osm
+                                + "]", e);
+                    }
+                }
+                db_mbtiles.setTransactionSuccessful();
+            } finally {
+                db_mbtiles.endTransaction();
+            }
+        } catch (Exception e) {
+            throw new IOException("MBTilesDroidSpitter:insertTiles error[" + e.getLocalizedMessage() + "] rc=" + i_rc);
+        } finally {
+            db_lock.writeLock().unlock();
+        }
+        int i_update = 1;
+        for (TileData tile : tiles) {
+            try { // if the bounds or min/max zoom have changed, update changed values and
+                // reload metadata
+                checkBounds(tile.i_x, tile.i_y_osm, tile.i_z, i_update);
+                // i_update=0: inside bounds ; othewise bounds and metadata have changed - not
+                // used
+            } catch (Exception e) {
+                GPLog.error(this, null, e);
+            }
+        }
+        // GPLog.androidLog(-1,"MBTilesDroidSpitter.insertTiles: inserted["+tiles.size()+"] rc=["+i_rc+"]");
+        return i_rc;
+    }
+    // -----------------------------------------------
+
+    /**
+     * Function to insert a new Tile byte-data to the mbtiles Database
+     * - i_y_osm must be in is Open-Street-Map 'Slippy Map' notation [will be converted to 'tms' notation if needed]
+     * - must be called inside of the transaction of insertTiles
+     * - when 'tiles' is a view, the 'map' record is inserted first, so that no image is stored for an existing tile
+     *
+     * @param tile           the tile to insert
+     * @param i_force_unique 1=check if image is unique in Database [may be slow if used]
+     */
+    private void insertTile(TileData tile, int i_force_unique) throws IOException {
+        String s_tile_id = tile.s_tile_id;
         boolean b_unique = true;
         if (s_tile_id.equals("")) {
-            s_tile_id = get_tile_id_from_zxy(i_z, i_x, i_y_osm);
+            s_tile_id = get_tile_id_from_zxy(tile.i_z, tile.i_x, tile.i_y_osm);
         } else { // This should be a 'Blank' Image :'ff-ee-dd.rgb', check if allready stored in
             // 'images' table
             b_unique = search_blank_image(s_tile_id);
         }
-        int i_y = i_y_osm;
+        int i_y = tile.i_y_osm;
         if (s_tile_row_type.equals("tms")) {
-            int[] tmsTileXY = MBTilesDroidSpitter.googleTile2TmsTile(i_x, i_y_osm, i_z);
+            int[] tmsTileXY = MBTilesDroidSpitter.googleTile2TmsTile(tile.i_x, tile.i_y_osm, tile.i_z);
             i_y = tmsTileXY[1];
         }
-        if (i_force_unique > 1)
-            i_force_unique = 0;
-        String s_images_tablename = "images";
-        String s_map_tablename = "map";
-        String s_tiles_tablename = "tiles";
-        String s_mbtiles_field_tile_id = "tile_id";
-        String s_mbtiles_field_grid_id = "grid_id";
-        String s_mbtiles_field_tile_data = "tile_data";
-        String s_mbtiles_field_zoom_level = "zoom_level";
-        String s_mbtiles_field_tile_column = "tile_column";
-        String s_mbtiles_field_tile_row = "tile_row";
-        String s_grid_id = "";
-        // The use of 'i_force_unique == 1' will probely slow things down to a craw
+        // 'i_force_unique == 1' searches the indexed 'images.tile_hash' and compares only the images with the same hash
         // GPLog.androidLog(1,"insertTile  tile_id["+s_tile_id+"] force_unique["+i_force_unique+"] unique["+b_unique+"]");
         if ((i_force_unique == 1) && (b_unique)) {
-            // mj10777: not yet properly tested:
             // - query the images table, searching for
             // 'ba_tile_data'
             // -- if found:
             // --- set 'b_unique=false;'
             // --- replace 's_tile_id' with images.tile_id of
             // found record
-            String s_tile_id_query = "";
-            try {
-                s_tile_id_query = search_tile_image(ba_tile_data);
-            } catch (Exception e) {
-                GPLog.error(this, null, e);
-                i_rc = 1;
-            }
+            String s_tile_id_query = search_tile_image(tile.ba_tile_data);
             if (s_tile_id_query != "") { // We have this image, do not add again
                 b_unique = false;
                 // replace the present tile_id with the found referenced tile_id
@@ -381,88 +499,101 @@ public class MBTilesDroidSpitter {
                 s_tile_id = s_tile_id_query;
             }
         }
-        // The Database may have been closed in the meantime, we just don't know that yet - should
-        // bail out gracefully
-        // - avoid 'IllegalStateException' '(conn# x): already closed'
-        if (db_mbtiles.isOpen()) { // You cannot lock the Database if the connection is not open
-            db_lock.writeLock().lock();
-            db_mbtiles.beginTransaction();
-            try {
+        compile_insert_statements();
+        try {
+            if (i_type_tiles == 1) { // 'tiles' is a view
+                // Note: the 'map' table will/should only reference an
+                // existing image in the 'images'.
+                // table
+                // - it is possible that there is more than one reference
+                // to an existing image
+                // -- sample: an area has 15 tiles of one color (all pixels
+                // of the tile have the same
+                // RGB)
+                // --- this image will be stored 1 time in 'images', but
+                // will be used 15 times in 'map'
+                stmt_insert_map.bindLong(1, tile.i_z);
+                stmt_insert_map.bindLong(2, tile.i_x);
+                stmt_insert_map.bindLong(3, i_y);
+                stmt_insert_map.bindString(4, s_tile_id);
+                stmt_insert_map.executeInsert();
                 if (b_unique) { // We do not have this image, add it
-                    if (i_type_tiles == 1) {
-                        ContentValues image_values = new ContentValues();
-                        image_values.put(s_mbtiles_field_tile_data, ba_tile_data);
-                        image_values.put(s_mbtiles_field_tile_id, s_tile_id);
-                        db_mbtiles.insertOrThrow(s_images_tablename, null, image_values);
-                    }
-                }
-                if (i_type_tiles == 1) { // 'tiles' is a view
-                    // Note: the 'map' table will/should only reference an
-                    // existing image in the 'images'.
-                    // table
-                    // - it is possible that there is more than one reference
-                    // to an existing image
-                    // -- sample: an area has 15 tiles of one color (all pixels
-                    // of the tile have the same
-                    // RGB)
-                    // --- this image will be stored 1 time in 'images', but
-                    // will be used 15 times in 'map'
-                    ContentValues map_values = new ContentValues();
-                    map_values.put(s_mbtiles_field_zoom_level, i_z);
-                    map_values.put(s_mbtiles_field_tile_column, i_x);
-                    map_values.put(s_mbtiles_field_tile_row, i_y);
-                    map_values.put(s_mbtiles_field_tile_id, s_tile_id);
-                    if (b_grid_id)
-                        map_values.put(s_mbtiles_field_grid_id, s_grid_id);
-                    db_mbtiles.insertOrThrow(s_map_tablename, null, map_values);
+                    stmt_insert_images.bindBlob(1, tile.ba_tile_data);
+                    stmt_insert_images.bindString(2, s_tile_id);
+                    if (b_images_hash_column)
+                        stmt_insert_images.bindLong(3, get_tile_hash(tile.ba_tile_data));
+                    stmt_insert_images.executeInsert();
                 }
-                if (i_type_tiles == 0) { // 'tiles' is a table
-                    ContentValues tiles_values = new ContentValues();
-                    tiles_values.put(s_mbtiles_field_zoom_level, i_z);
-                    tiles_values.put(s_mbtiles_field_tile_column, i_x);
-                    tiles_values.put(s_mbtiles_field_tile_row, i_y);
-                    tiles_values.put(s_mbtiles_field_tile_data, ba_tile_data);
-                    db_mbtiles.insertOrThrow(s_tiles_tablename, null, tiles_values);
-                }
-                db_mbtiles.setTransactionSuccessful();
-            } catch (Exception e) {
-                int i_catch_rc = 0;
-                if (e.getMessage() != null) {
-                    String s_message = e.getMessage();
-                    if (s_message.contains("code 19")) { // When the tile
-                        // allready exists:
-                        // not to be
-                        // considered an
-                        // error
-                        i_rc = 0; // this will delete the request_url entry
-                        i_catch_rc = 19;
-                    }
-                }
-                if (i_catch_rc == 0) {
-                    throw new IOException("MBTilesDroidSpitter:insertTile error[" + e.getLocalizedMessage() + "] rc=" + i_rc);
+            }
+            if (i_type_tiles == 0) { // 'tiles' is a table
+                stmt_insert_tiles.bindLong(1, tile.i_z);
+                stmt_insert_tiles.bindLong(2, tile.i_x);
+                stmt_insert_tiles.bindLong(3, i_y);
+                stmt_insert_tiles.bindBlob(4, tile.ba_tile_data);
+                stmt_insert_tiles.executeInsert();
+            }
+        } catch (SQLiteConstraintException e) {
+            // When the tile allready exists: not to be considered an error
+            // [the request_url entry will be deleted]
+        }
+    }
+    // -----------------------------------------------
+
+    /**
+     * Compiles the insert statements of the tables used by insertTile
+     * - the statements are reused until the Database is closed
+     * - the 'images' statement is compiled again when the 'tile_hash' field has been added
+     */
+    private void compile_insert_statements() {
+        if ((stmt_insert_images != null) && (b_stmt_images_hash != b_images_hash_column)) {
+            stmt_insert_images.close();
+            stmt_insert_images = null;
+        }
+        if (i_type_tiles == 1) {
+            if (stmt_insert_map == null) {
+                if (b_grid_id) { // not all mbtiles map tables have a 'grid_id': avoid insert error
+                    stmt_insert_map = db_mbtiles
+                            .compileStatement("INSERT INTO map (zoom_level,tile_column,tile_row,tile_id,grid_id) VALUES (?,?,?,?,'')");
+                } else {
+                    stmt_insert_map = db_mbtiles
+                            .compileStatement("INSERT INTO map (zoom_level,tile_column,tile_row,tile_id) VALUES (?,?,?,?)");
                 }
-            } finally {
-                db_mbtiles.endTransaction();
-                db_lock.writeLock().unlock();
-                int i_update = 1;
-                try { // if the bounds or min/max zoom have changed, update changed values and
-                    // reload
-                    // metadata
-                    i_update = checkBounds(i_x, i_y_osm, i_z, i_update);
-                    // i_update=0: inside bounds ; othewise bounds and metadata have changed - not
-                    // used
-                } catch (Exception e) {
-                    GPLog.error(this, null, e);
-                    i_rc = 1;
+            }
+            if (stmt_insert_images == null) {
+                if (b_images_hash_column) {
+                    stmt_insert_images = db_mbtiles
+                            .compileStatement("INSERT INTO images (tile_data,tile_id,tile_hash) VALUES (?,?,?)");
+                } else {
+                    stmt_insert_images = db_mbtiles.compileStatement("INSERT INTO images (tile_data,tile_id) VALUES (?,?)");
                 }
+                b_stmt_images_hash = b_images_hash_column;
             }
-        } else { // '(conn# x): already closed'
-            i_rc = 1;
-            return i_rc;
         }
+        if ((i_type_tiles == 0) && (stmt_insert_tiles == null)) {
+            stmt_insert_tiles = db_mbtiles
+                    .compileStatement("INSERT INTO tiles (zoom_level,tile_column,tile_row,tile_data) VALUES (?,?,?,?)");
+        }
+    }
+    // -----------------------------------------------
 
-        // GPLog.androidLog(-1,"MBTilesDroidSpitter.insertTile: inserted["+i_z+"/"+i_x+"/"+i_y_osm+"] rc=["+i_rc+"]");
-        return i_rc;
+    /**
+     * Closes the compiled insert statements [before the Database is closed]
+     */
+    private void close_insert_statements() {
+        db_lock.writeLock().lock();
+        try {
+            if (stmt_insert_images != null)
+                stmt_insert_images.close();
+            if (stmt_insert_map != null)
+                stmt_insert_map.close();
+            if (stmt_insert_tiles != null)
+                stmt_insert_tiles.close();
+            stmt_insert_images = null;
+            stmt_insert_map = null;
+            stmt_insert_tiles = null;
+        } finally {
+            db_lock.writeLock().unlock();
+        }
     }
     // -----------------------------------------------
 
@@ -516,28 +647,30 @@ public class MBTilesDroidSpitter {
     /**
      * Function to check if image exists in the image-table
      * - avoids duplicate images
+     * - only the images with the same 'tile_hash' are compared [found with the 'images_hash' index]
      *
      * @param ba_tile_data the image-data extracted from the Bitmap.
      * @return tile_id of found image or blank
      */
-    private String search_tile_image(byte[] ba_tile_data) throws IOException { // The use of
-        // 'i_force_unique
-        // == 1' will
-        // probely slow
-        // things down to a
-        // craw
+    private String search_tile_image(byte[] ba_tile_data) throws IOException {
         String s_tile_id = "";
         if (i_type_tiles != 1) { // there will be no 'images' table, return
             return s_tile_id;
         }
-        String s_tile_data = get_hex(ba_tile_data);
-        String s_sql_query = "SELECT tile_id FROM images WHERE (hex(tile_data) = '" + s_tile_data + "')";
+        if (!b_images_hash) { // the 'images' could not be hashed [read-only]
+            return s_tile_id;
+        }
+        String s_sql_query = "SELECT tile_id,tile_data FROM images WHERE (tile_hash = " + get_tile_hash(ba_tile_data) + ")";
         db_lock.readLock().lock();
-        try { // ?? another way to query for binary data in java ??
+        try {
             final Cursor c = db_mbtiles.rawQuery(s_sql_query, null);
             if (c != null) {
-                if (c.moveToFirst()) { // TODO: do something if multiple results are returned
-                    s_tile_id = c.getString(c.getColumnIndex("tile_id"));
+                if (c.moveToFirst()) {
+                    do { // different images may have the same hash: compare the image-data
+                        if (Arrays.equals(ba_tile_data, c.getBlob(1))) {
+                            s_tile_id = c.getString(0);
+                        }
+                    } while ((s_tile_id.equals("")) && (c.moveToNext()));
                 }
                 c.close();
             }
@@ -557,6 +690,77 @@ public class MBTilesDroidSpitter {
     }
     // -----------------------------------------------
 
+    /**
+     * Function to add the 'tile_hash' field and its index to the 'images' table of existing mbtiles
+     * - images stored before [or by other applications] will be hashed, 100 per transaction
+     * - only the rowids of a transaction are selected together, each image is read by its own query
+     * [100 images of some 20-50 KB would not fit into the 2 MB CursorWindow]
+     * - this is done when the Database is opened, before any tile is inserted
+     * - 'b_images_hash' is set only once all images are hashed: when the Database is read-only or the hashing
+     * fails, it remains false and no search will be done [new images are hashed if the field exists]
+     *
+     * @return 0: no error
+     */
+    private int create_images_hash() {
+        int i_rc = 0;
+        if ((i_type_tiles != 1) || (!db_mbtiles.isOpen()) || (db_mbtiles.isReadOnly())) {
+            return 1;
+        }
+        db_lock.writeLock().lock();
+        try {
+            if (!b_images_hash_column) {
+                db_mbtiles.execSQL("ALTER TABLE images ADD COLUMN tile_hash INTEGER");
+                b_images_hash_column = true;
+            }
+            db_mbtiles.execSQL("CREATE INDEX IF NOT EXISTS images_hash ON images (tile_hash)");
+            SQLiteStatement update_hash = db_mbtiles.compileStatement("UPDATE images SET tile_hash = ? WHERE (rowid = ?)");
+            try {
+                List<Long> rowids = new ArrayList<Long>();
+                do {
+                    rowids.clear();
+                    final Cursor c = db_mbtiles.rawQuery(
+                            "SELECT rowid FROM images WHERE (tile_hash IS NULL) LIMIT 100", null);
+                    if (c != null) {
+                        while (c.moveToNext()) {
+                            rowids.add(c.getLong(0));
+                        }
+                        c.close();
+                    }
+                    db_mbtiles.beginTransaction();
+                    try {
+                        for (Long rowid : rowids) {
+                            byte[] ba_tile_data = null;
+                            final Cursor c_image = db_mbtiles.rawQuery("SELECT tile_data FROM images WHERE (rowid = "
+                                    + rowid + ")", null);
+                            if (c_image != null) {
+                                if (c_image.moveToFirst()) {
+                                    ba_tile_data = c_image.getBlob(0);
+                                }
+                                c_image.close();
+                            }
+                            update_hash.bindLong(1, get_tile_hash(ba_tile_data == null ? new byte[0] : ba_tile_data));
+                            update_hash.bindLong(2, rowid);
+                            update_hash.execute();
+                        }
+                        db_mbtiles.setTransactionSuccessful();
+                    } finally {
+                        db_mbtiles.endTransaction();
+                    }
+                } while (rowids.size() > 0);
+            } finally {
+                update_hash.close();
+            }
+            b_images_hash = true;
+        } catch (Exception e) {
+            i_rc = 1;
+            GPLog.error(this, "MBTilesDroidSpitter:create_images_hash[" + file_mbtiles.getAbsolutePath() + "]", e);
+        } finally {
+            db_lock.writeLock().unlock();
+        }
+        return i_rc;
+    }
+    // -----------------------------------------------
+
     /**
      * Function to check if inserted tile is outside known bounds and min/max zoom, update metadata if desired
      * - i_y_osm must be in is Open-Street-Map 'Slippy Map' notation [will be converted to 'tms' notation if needed]
@@ -725,6 +929,11 @@ public class MBTilesDroidSpitter {
                                 s_field = c_fields.getString(c_fields.getColumnIndex("name"));
                                 if ((s_field.equals("tile_id")) || (s_field.equals("tile_data"))) {
                                     i_field_count++;
+                                } else {
+                                    if (s_field.equals("tile_hash")) { // not all mbtiles images tables have
+                                        // a 'tile_hash': will be added when the Database is opened
+                                        b_images_hash_column = true;
+                                    }
                                 }
                             } while (c_fields.moveToNext());
                         }
@@ -1117,6 +1326,68 @@ public class MBTilesDroidSpitter {
     }
     // -----------------------------------------------
 
+    /**
+     * Deletes the records of the retrieved tiles from 'request_url' in one transaction
+     * - the table will be deleted when it is empty
+     *
+     * @param list_tile_id the tile_id's of the retrieved tiles
+     * @return amount of records of 'request_url' that are left
+     */
+    public int delete_list_request_url(List<String> list_tile_id) {
+        db_lock.writeLock().lock();
+        db_mbtiles.beginTransaction();
+        try {
+            for (String s_tile_id : list_tile_id) {
+                if (this.i_request_url_count < 1) {
+                    break;
+                }
+                insert_request_url(i_request_url_count_delete, s_tile_id, "");
+            }
+            db_mbtiles.setTransactionSuccessful();
+        } catch (Exception e) {
+            GPLog.error(this, "MBTilesDroidSplitter: [" + getName() + "] -E-> delete_list_request_url["
+                    + this.i_request_url_count + "]  list_tile_id.size[" + list_tile_id.size() + "]", e);
+        } finally {
+            db_mbtiles.endTransaction();
+            db_lock.writeLock().unlock();
+        }
+        return this.i_request_url_count;
+    }
+    // -----------------------------------------------
+
+    /**
+     * Returns a page of the collected 'request_url', sorted by tile_id
+     * - the next page is retrieved with the last tile_id of this page
+     *
+     * @param i_limit         amount of records to retrieve
+     * @param s_after_tile_id only records with a larger tile_id will be retrieved [first page: '']
+     * @return HashMap<String,String> mbtiles_request_url [tile_id,tile_url]
+     */
+    public HashMap<String, String> retrieve_request_url(int i_limit, String s_after_tile_id) {
+        HashMap<String, String> mbtiles_request_url = new LinkedHashMap<String, String>();
+        db_lock.readLock().lock();
+        try {
+            if (this.i_request_url_count > 0) {
+                Cursor c_tiles = db_mbtiles.rawQuery(
+                        "SELECT tile_id,tile_url FROM request_url WHERE (tile_id > ?) ORDER BY tile_id LIMIT " + i_limit,
+                        new String[]{s_after_tile_id});
+                if (c_tiles != null) {
+                    while (c_tiles.moveToNext()) {
+                        mbtiles_request_url.put(c_tiles.getString(0), c_tiles.getString(1));
+                    }
+                    c_tiles.close();
+                }
+            }
+        } catch (Exception e) {
+            GPLog.error(this, "MBTilesDroidSplitter: [" + getName() + "] -E-> retrieve_request_url["
+                    + this.i_request_url_count + "] after[" + s_after_tile_id + "]", e);
+        } finally {
+            db_lock.readLock().unlock();
+        }
+        return mbtiles_request_url;
+    }
+    // -----------------------------------------------
+
     /**
      * Returns list of collected 'request_url'
      * - Query only when 'this.i_request_url_count' > 0 ; i.e. Table exists and has records
@@ -1226,6 +1497,7 @@ public class MBTilesDroidSpitter {
         String s_mbtiles_field_tile_column = "tile_column";
         String s_mbtiles_field_tile_row = "tile_row";
         String s_mbtiles_field_tile_id = "tile_id";
+        String s_mbtiles_field_tile_hash = "tile_hash";
         String s_mbtiles_field_grid_id = "grid_id";
         String s_mbtiles_field_name = "name";
         String s_mbtiles_field_value = "value";
@@ -1238,7 +1510,7 @@ public class MBTilesDroidSpitter {
         String s_sql_create_grid_utfgrid = "CREATE TABLE IF NOT EXISTS grid_utfgrid (" + s_mbtiles_field_grid_id
                 + " TEXT,grid_utfgrid BLOB)";
         String s_sql_create_images = "CREATE TABLE IF NOT EXISTS " + s_images_tablename + " (" + s_mbtiles_field_tile_data
-                + " blob," + s_mbtiles_field_tile_id + " text)";
+                + " blob," + s_mbtiles_field_tile_id + " text," + s_mbtiles_field_tile_hash + " INTEGER)";
         String s_sql_create_keymap = "CREATE TABLE IF NOT EXISTS keymap (key_name TEXT,key_json TEXT)";
         String s_sql_create_map = "CREATE TABLE IF NOT EXISTS " + s_map_tablename + " (" + s_mbtiles_field_zoom_level
                 + " INTEGER," + s_mbtiles_field_tile_column + " INTEGER," + s_mbtiles_field_tile_row + " INTEGER,"
@@ -1275,6 +1547,8 @@ public class MBTilesDroidSpitter {
                 + s_mbtiles_field_grid_id + ")";
         String s_sql_create_index_images = "CREATE UNIQUE INDEX IF NOT EXISTS " + s_images_tablename + "_id ON "
                 + s_images_tablename + " (" + s_mbtiles_field_tile_id + " )";
+        String s_sql_create_index_images_hash = "CREATE INDEX IF NOT EXISTS " + s_images_tablename + "_hash ON "
+                + s_images_tablename + " (" + s_mbtiles_field_tile_hash + ")";
         String s_sql_create_index_keymap_lookup = "CREATE UNIQUE INDEX IF NOT EXISTS keymap_lookup ON keymap (key_name)";
         String s_sql_create_index_map = "CREATE UNIQUE INDEX IF NOT EXISTS " + s_map_tablename + "_index ON " + s_map_tablename
                 + " (" + s_mbtiles_field_zoom_level + "," + s_mbtiles_field_tile_column + "," + s_mbtiles_field_tile_row + ")";
@@ -1299,6 +1573,7 @@ public class MBTilesDroidSpitter {
             mbtiles_db.execSQL(s_sql_create_index_grid_key_lookup);
             mbtiles_db.execSQL(s_sql_create_index_grid_utfgrid_lookup);
             mbtiles_db.execSQL(s_sql_create_index_images);
+            mbtiles_db.execSQL(s_sql_create_index_images_hash);
             mbtiles_db.execSQL(s_sql_create_index_keymap_lookup);
             mbtiles_db.execSQL(s_sql_create_index_map);
             mbtiles_db.execSQL(s_sql_create_index_metadata);
@@ -1656,6 +1931,22 @@ public class MBTilesDroidSpitter {
         return sb_hex.toString();
     }
 
+    /**
+     * Calculates the 64-bit FNV-1a hash of the image-data
+     * - stored in 'images.tile_hash' to find duplicate images without comparing all stored images
+     *
+     * @param ba_data the image-data
+     * @return the hash value
+     */
+    public static long get_tile_hash(byte[] ba_data) {
+        long l_hash = 0xcbf29ce484222325L;
+        for (final byte b : ba_data) {
+            l_hash ^= (b & 0xff);
+            l_hash *= 0x100000001b3L;
+        }
+        return l_hash;
+    }
+
     // -----------------------------------------------
     static int[] rb_table = null; // for get_pixel_rgb
     static int[] g_table = null; // get_pixel_rgb
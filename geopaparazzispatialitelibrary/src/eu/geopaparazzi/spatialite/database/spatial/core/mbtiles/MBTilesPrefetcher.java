@@ -0,0 +1,483 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesDroidSpitter.TileData;
+
+/**
+ * Retrieves the tiles collected in the 'request_url' table of an mbtiles database.
+ * <p/>
+ * <p>The work is split into three stages, so that the network is never idle while tiles
+ * are decoded or stored:
+ * <ul>
+ * <li>a pool of fetcher threads downloads the tiles, with a limited amount of connections per host
+ * and retries with exponential backoff for timeouts and server errors</li>
+ * <li>a decoder thread decodes the downloaded images and compresses them for the database</li>
+ * <li>a {@link MBTilesBulkWriter} inserts the tiles in batches</li>
+ * </ul>
+ * <p>A 'request_url' record is deleted right after its tile is committed, tiles that could not be
+ * downloaded or inserted keep their record. The table therefore always contains the tiles still to be
+ * retrieved, and a prefetch that was cancelled or killed continues where it stopped the next time it is run.
+ * <p>Tiles are requested with {@link URL}, so any 'http' or 'file' url can be used as a source.
+ */
+public class MBTilesPrefetcher {
+    /**
+     * The database with the 'request_url' table, usually a
+     * {@link eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers.MbtilesDatabaseHandler}.
+     */
+    public interface TileStore {
+        /**
+         * @return the name of the database.
+         */
+        String getName();
+
+        /**
+         * Returns a page of the collected urls mapped to their tile id, sorted by tile id.
+         *
+         * @param limit       amount of records to retrieve.
+         * @param afterTileId only larger tile ids are retrieved [first page: ""].
+         * @return the map of ids, urls.
+         */
+        HashMap<String, String> getRequestUrlsMap(int limit, String afterTileId);
+
+        /**
+         * Delete the records of retrieved tiles in table: request_url.
+         *
+         * @param tileIds the tile ids to delete.
+         * @return the amount of open requests.
+         */
+        int deleteRequestUrls(List<String> tileIds);
+
+        /**
+         * Decodes a downloaded image and compresses it for the database.
+         *
+         * @param i_x           the value for tile_column field in the map,tiles Tables.
+         * @param i_y_osm       the value for tile_row field in the map,tiles Tables.
+         * @param i_z           the value for zoom_level field in the map,tiles Tables.
+         * @param ba_image_data the downloaded image-data.
+         * @return the tile or <code>null</code> if the data is not an image.
+         */
+        TileData createTileData(int i_x, int i_y_osm, int i_z, byte[] ba_image_data);
+
+        /**
+         * Create a writer that inserts many tiles in batched transactions.
+         *
+         * @param forceUnique if 1, it check if image is unique in Database.
+         * @param listener    notified of each written batch.
+         * @return the writer, with its thread started.
+         */
+        MBTilesBulkWriter createBulkWriter(int forceUnique, MBTilesBulkWriter.TilesInsertedListener listener);
+    }
+
+    /**
+     * Listener for the progress of a prefetch.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after a batch of tiles has been stored.
+         *
+         * @param storedTiles the amount of tiles stored so far.
+         * @param failedTiles the amount of tiles that could not be retrieved so far.
+         * @param openTiles   the amount of tiles still to be retrieved.
+         */
+        void onProgress(int storedTiles, int failedTiles, int openTiles);
+    }
+
+    /**
+     * Default amount of fetcher threads.
+     */
+    public static final int DEFAULT_FETCHERS = 4;
+    /**
+     * Default amount of simultaneous connections to one host.
+     */
+    public static final int DEFAULT_HOST_CONNECTIONS = 2;
+    /**
+     * Default amount of retries of a failed request.
+     */
+    public static final int DEFAULT_RETRIES = 3;
+    /**
+     * Default wait before the first retry, doubled for each further retry.
+     */
+    public static final long DEFAULT_BACKOFF_MILLIS = 1000;
+
+    /**
+     * Prefetch was completed.
+     */
+    public static final int RESULT_COMPLETED = 0;
+    /**
+     * Prefetch was cancelled.
+     */
+    public static final int RESULT_CANCELLED = 1;
+    /**
+     * Prefetch was aborted, since the server does not deliver tiles.
+     */
+    public static final int RESULT_SERVER_NOT_USABLE = 2;
+
+    private static final int PAGE_SIZE = 100;
+    private static final int MAX_BAD_REQUESTS = 10;
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private final TileStore tileStore;
+    private final int fetchers;
+    private final int hostConnections;
+    private final int retries;
+    private final long backoffMillis;
+    private final ConcurrentHashMap<String, Semaphore> hostSemaphores = new ConcurrentHashMap<String, Semaphore>();
+    private final ConcurrentHashMap<String, String> pendingTileIds = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger storedTiles = new AtomicInteger();
+    private final AtomicInteger failedTiles = new AtomicInteger();
+    private final AtomicInteger badRequests = new AtomicInteger();
+    private volatile boolean isCancelled = false;
+    private volatile String abortMessage = null;
+    private ExecutorService fetchExecutor;
+    private ExecutorService decodeExecutor;
+
+    /**
+     * Constructor.
+     *
+     * @param tileStore       the mbtiles database with the 'request_url' table.
+     * @param fetchers        the amount of fetcher threads.
+     * @param hostConnections the amount of simultaneous connections to one host.
+     * @param retries         the amount of retries of a failed request.
+     * @param backoffMillis   the wait before the first retry in milliseconds, doubled for each further retry.
+     */
+    public MBTilesPrefetcher(TileStore tileStore, int fetchers, int hostConnections, int retries,
+                             long backoffMillis) {
+        if (fetchers < 1 || hostConnections < 1) {
+            throw new IllegalArgumentException("fetchers and host connections must be positive: " + fetchers + ", "
+                    + hostConnections);
+        }
+        this.tileStore = tileStore;
+        this.fetchers = fetchers;
+        this.hostConnections = hostConnections;
+        this.retries = retries;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Retrieves all tiles of the 'request_url' table and waits until they are stored.
+     * <p/>
+     * <p>Tiles that could not be retrieved remain in the table for the next run.
+     *
+     * @param listener the listener for the progress [can be <code>null</code>].
+     * @return one of {@link #RESULT_COMPLETED}, {@link #RESULT_CANCELLED} or {@link #RESULT_SERVER_NOT_USABLE}.
+     */
+    public int run(final ProgressListener listener) {
+        final Semaphore openTiles = new Semaphore(4 * fetchers); // limits the memory of downloaded images
+        MBTilesBulkWriter mbtilesWriter = tileStore.createBulkWriter(0, new MBTilesBulkWriter.TilesInsertedListener() {
+            public void onTilesInserted(List<TileData> insertedTiles, List<TileData> notInsertedTiles) {
+                // the records of tiles that could not be inserted are kept for the next run
+                for (TileData tile : notInsertedTiles) {
+                    pendingTileIds.remove(getTileKey(tile.i_z, tile.i_x, tile.i_y_osm));
+                }
+                failedTiles.addAndGet(notInsertedTiles.size());
+                List<String> tileIds = new ArrayList<String>(insertedTiles.size());
+                for (TileData tile : insertedTiles) {
+                    String tileId = pendingTileIds.remove(getTileKey(tile.i_z, tile.i_x, tile.i_y_osm));
+                    if (tileId != null)
+                        tileIds.add(tileId);
+                }
+                int openCount = tileStore.deleteRequestUrls(tileIds);
+                storedTiles.addAndGet(tileIds.size());
+                if (listener != null)
+                    listener.onProgress(storedTiles.get(), failedTiles.get(), openCount);
+            }
+        });
+        synchronized (this) {
+            fetchExecutor = Executors.newFixedThreadPool(fetchers);
+            decodeExecutor = Executors.newSingleThreadExecutor();
+        }
+        try {
+            String lastTileId = "";
+            while (!isCancelled) {
+                HashMap<String, String> requestUrls = tileStore.getRequestUrlsMap(PAGE_SIZE, lastTileId);
+                if (requestUrls.isEmpty()) {
+                    break;
+                }
+                for (Map.Entry<String, String> requestUrl : requestUrls.entrySet()) {
+                    if (isCancelled) {
+                        break;
+                    }
+                    lastTileId = requestUrl.getKey();
+                    int[] zxy_osm_tms = MBTilesDroidSpitter.get_zxy_from_tile_id(lastTileId);
+                    if ((zxy_osm_tms == null) || (zxy_osm_tms.length != 4)) {
+                        failedTiles.incrementAndGet();
+                        continue;
+                    }
+                    openTiles.acquire();
+                    try {
+                        fetchExecutor.execute(new FetchTask(lastTileId, requestUrl.getValue(), zxy_osm_tms, openTiles,
+                                mbtilesWriter));
+                    } catch (RejectedExecutionException e) { // cancelled
+                        openTiles.release();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel();
+        } finally {
+            awaitTermination(fetchExecutor);
+            awaitTermination(decodeExecutor);
+            mbtilesWriter.close();
+        }
+        if (abortMessage != null) {
+            GPLog.androidLog(-1, "MBTilesPrefetcher[" + tileStore.getName() + "]: " + abortMessage);
+            return RESULT_SERVER_NOT_USABLE;
+        }
+        return isCancelled ? RESULT_CANCELLED : RESULT_COMPLETED;
+    }
+
+    /**
+     * Stops the running prefetch. Tiles already downloaded are still stored.
+     */
+    public synchronized void cancel() {
+        isCancelled = true;
+        if (fetchExecutor != null) {
+            fetchExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the amount of tiles stored so far.
+     */
+    public int getStoredTiles() {
+        return storedTiles.get();
+    }
+
+    /**
+     * @return the amount of tiles that could not be retrieved so far.
+     */
+    public int getFailedTiles() {
+        return failedTiles.get();
+    }
+
+    /**
+     * @return the reason why the prefetch was aborted or <code>null</code>.
+     */
+    public String getAbortMessage() {
+        return abortMessage;
+    }
+
+    private static String getTileKey(int i_z, int i_x, int i_y_osm) {
+        return i_z + "/" + i_x + "/" + i_y_osm;
+    }
+
+    /**
+     * Waits for the running tasks, they use the database. An interrupt cancels the prefetch, but
+     * the tasks are still waited for.
+     */
+    private void awaitTermination(ExecutorService executor) {
+        executor.shutdown();
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+                cancel();
+                executor.shutdownNow();
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void abort(String message) {
+        abortMessage = message;
+        cancel();
+    }
+
+    /**
+     * Downloads a tile, retrying timeouts and server errors.
+     *
+     * @param s_tile_url the url of the tile.
+     * @return the image-data or <code>null</code> if the tile could not be retrieved.
+     * @throws InterruptedException if cancelled while waiting.
+     */
+    private byte[] download(String s_tile_url) throws InterruptedException {
+        URL url;
+        try {
+            url = new URL(s_tile_url);
+        } catch (IOException e) {
+            GPLog.error(this, "MBTilesPrefetcher.download[" + s_tile_url + "]", e);
+            return null;
+        }
+        Semaphore hostSemaphore = hostSemaphores.get(url.getProtocol() + "://" + url.getHost());
+        if (hostSemaphore == null) {
+            hostSemaphore = new Semaphore(hostConnections);
+            Semaphore previous = hostSemaphores.putIfAbsent(url.getProtocol() + "://" + url.getHost(), hostSemaphore);
+            if (previous != null)
+                hostSemaphore = previous;
+        }
+        for (int attempt = 0; !isCancelled; attempt++) {
+            int httpCode;
+            byte[] data = null;
+            hostSemaphore.acquire();
+            try {
+                if (url.getProtocol().equals("file")) {
+                    data = read(url.openStream());
+                    httpCode = HttpURLConnection.HTTP_OK;
+                } else {
+                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                    connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+                    connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+                    connection.setInstanceFollowRedirects(false);
+                    try {
+                        httpCode = connection.getResponseCode();
+                        if (httpCode == HttpURLConnection.HTTP_OK)
+                            data = read(connection.getInputStream());
+                    } finally {
+                        connection.disconnect();
+                    }
+                }
+            } catch (IOException e) { // timeouts and lost connections are retried
+                httpCode = HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+                if (GPLog.LOG_HEAVY)
+                    GPLog.addLogEntry(this, "MBTilesPrefetcher.download[" + s_tile_url + "] " + e.getMessage());
+            } finally {
+                hostSemaphore.release();
+            }
+            switch (httpCode) {
+                case HttpURLConnection.HTTP_OK:
+                    return data;
+                case HttpURLConnection.HTTP_MOVED_TEMP: // a connection that returns no results until you activate an account
+                    abort("Internet Connection: recieved [" + httpCode + "] - aborting");
+                    return null;
+                case HttpURLConnection.HTTP_CLIENT_TIMEOUT:
+                case 429: // too many requests
+                    break;
+                default:
+                    if (httpCode < HttpURLConnection.HTTP_INTERNAL_ERROR) { // will not change with a retry
+                        return null;
+                    }
+                    break;
+            }
+            if (attempt >= retries) {
+                return null;
+            }
+            Thread.sleep(backoffMillis << attempt);
+        }
+        return null;
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(16384);
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Counts requests that did not return an image, aborts after {@link #MAX_BAD_REQUESTS} in a row.
+     */
+    private void onBadRequest() {
+        failedTiles.incrementAndGet();
+        if (badRequests.incrementAndGet() > MAX_BAD_REQUESTS && abortMessage == null) {
+            abort("Internet Connection: recieved [" + badRequests.get() + "] bad requests");
+        }
+    }
+
+    private class FetchTask implements Runnable {
+        private final String s_tile_id;
+        private final String s_tile_url;
+        private final int[] zxy_osm_tms;
+        private final Semaphore openTiles;
+        private final MBTilesBulkWriter mbtilesWriter;
+
+        FetchTask(String s_tile_id, String s_tile_url, int[] zxy_osm_tms, Semaphore openTiles, MBTilesBulkWriter mbtilesWriter) {
+            this.s_tile_id = s_tile_id;
+            this.s_tile_url = s_tile_url;
+            this.zxy_osm_tms = zxy_osm_tms;
+            this.openTiles = openTiles;
+            this.mbtilesWriter = mbtilesWriter;
+        }
+
+        public void run() {
+            boolean isDecoding = false;
+            try {
+                final byte[] data = download(s_tile_url);
+                if (data == null) {
+                    if (!isCancelled)
+                        onBadRequest();
+                    return;
+                }
+                decodeExecutor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            decode(data);
+                        } finally {
+                            openTiles.release();
+                        }
+                    }
+                });
+                isDecoding = true;
+            } catch (InterruptedException e) {
+                // cancelled
+            } finally {
+                if (!isDecoding)
+                    openTiles.release();
+            }
+        }
+
+        private void decode(byte[] data) {
+            TileData tile = tileStore.createTileData(zxy_osm_tms[1], zxy_osm_tms[2], zxy_osm_tms[0], data);
+            if (tile == null) { // possible 'access denied' - not a public server [returns HTTP_OK]
+                onBadRequest();
+                return;
+            }
+            badRequests.set(0);
+            String tileKey = getTileKey(zxy_osm_tms[0], zxy_osm_tms[1], zxy_osm_tms[2]);
+            try {
+                pendingTileIds.put(tileKey, s_tile_id);
+                mbtilesWriter.addTile(tile);
+            } catch (InterruptedException e) {
+                pendingTileIds.remove(tileKey);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -1,21 +1,14 @@
 package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 
 import eu.geopaparazzi.library.GPApplication;
 import eu.geopaparazzi.library.database.GPLog;
@@ -44,18 +37,13 @@ public class MBtilesAsync extends AsyncTask<MbtilesDatabaseHandler.AsyncTasks, S
     private String s_request_bounds_url = "";
     private int i_request_zoom_min = 22; // will be set properly on construction
     private int i_request_zoom_max = 0; // will be set properly on construction
-    private int i_request_zoom_level = -1; // active request zoom_level
     private int i_url_zoom_min = 22; // will be set properly on construction
     private int i_url_zoom_max = 0; // will be set properly on construction
     private String s_request_y_type = "osm"; // 0=osm ; 1=tms ; 2=wms
     private List<Integer> zoom_levels = null;
     private double[] request_bounds = null;
     private String s_message = "";
-    private int i_http_code = -1;
-    private int i_http_not_usable = 0;
-    private int i_http_bad_requests = 0;
-    private String s_http_message = "";
-    private String s_http_result = "";
+    private volatile MBTilesPrefetcher prefetcher = null;
     // -----------------------------------------------
     /**
       * Constructor
@@ -245,343 +233,69 @@ public class MBtilesAsync extends AsyncTask<MbtilesDatabaseHandler.AsyncTasks, S
     // -----------------------------------------------
     /**
       * will retrieve the list of requested tile-images
-      * - retrieves list from 'request_url' table [if any]
-      * - for each request 'on_request_tile_id_url' will be called
-      * -- isCancelled() is called before each request
-      * @return i_rc [ 0: task compleated; 1=task interupted]
+      * - retrieves the tiles of the 'request_url' table [if any] with a MBTilesPrefetcher
+      * - each stored tile is removed from 'request_url', a cancelled task will continue where it stopped
+      * -- cancelTask() will stop the prefetcher
+      * @return i_rc [ 0: task compleated; 3775=server not usable ; 3776=no internet connection ; 3777=task interupted]
      */
     private int on_request_url() {
         int i_rc = 0;
-        int i_count_tiles_total = db_mbtiles.getRequestUrlCount(1); // read the table and return
-                                                                    // the amount
-        int i_count_tiles_count = 0;
-        int i_count_tiles_left = 0;
-        int i_count_rest = 1;
-        int i_request_zoom_level_prev = -1;
-        if (i_count_tiles_total > 0) { // avoid divide by zero error
-            i_count_rest = i_count_tiles_total / 20; // 100=1% ; 80=1.25% ; 40=2.5% ; 20=5% ; 10=10%
-                                                     // ; 5=20% ; 1=100%
-            if (i_count_tiles_total > 10000) {
-                i_count_rest = i_count_tiles_total / 100; // 100=1% ;
-            } else {
-                if (i_count_tiles_total > 5000) {
-                    i_count_rest = i_count_tiles_total / 50; // 50=2% ;
-                } else {
-                    if (i_count_tiles_total > 2500) {
-                        i_count_rest = i_count_tiles_total / 25; // 25=2% ;
-                    }
-                }
-            }
-            if (i_count_rest < 1)
-                i_count_rest = 1;
+        final int i_count_tiles_total = db_mbtiles.getRequestUrlCount(1); // read the table and return
+                                                                          // the amount
+        if (i_count_tiles_total < 1) {
+            return i_rc;
         }
         Context context = GPApplication.getInstance();
-        boolean networkAvailable = NetworkUtilities.isNetworkAvailable(context);
-        int i_limit = 100; // avoid excesive memory usage
-        mbtiles_request_url = db_mbtiles.getRequestUrlsMap(i_limit);
-        while( mbtiles_request_url.size() > 0 ) {
-            for( Map.Entry<String, String> request_url : mbtiles_request_url.entrySet() ) {
-                if (i_http_not_usable > 0) {
-                    i_rc = 3775;
-                    s_message = "-W-> on_request_url[" + s_http_result + "][" + db_mbtiles.getName() + "]: mbtiles_request_url["
-                            + i_count_tiles_total + "] rc=" + i_rc;
-                    publishProgress(s_message);
-                    return i_rc;
-                }
-                if (!networkAvailable) {
-                    i_rc = 3776;
-                    s_http_result = "No Internet Connection";
-                    s_message = "-W-> on_request_url[" + s_http_result + "][" + db_mbtiles.getName() + "]: mbtiles_request_url["
-                            + i_count_tiles_total + "] rc=" + i_rc;
-                    publishProgress(s_message);
-                    return i_rc;
-                }
-                if (isCancelled()) {
-                    i_rc = 3777;
-                    s_message = "-W-> on_request_url[" + s_request_type + "][" + db_mbtiles.getName() + "]: mbtiles_request_url["
-                            + i_count_tiles_total + "] rc=" + i_rc;
-                    return i_rc;
-                }
-                String s_tile_id = request_url.getKey();
-                String s_tile_url = request_url.getValue();
-                i_rc = on_request_tile_id_url(s_tile_id, s_tile_url);
-                i_count_tiles_count++;
-                i_count_tiles_left = i_count_tiles_total - i_count_tiles_count;
-                if (i_request_zoom_level > 0) { // i_request_zoom_level is set in
-                                                // 'on_request_tile_id_url'
-                    if (i_request_zoom_level_prev < 0) { // The first message when starting - list
-                                                         // the first tile that was downloaded
-                        s_message = "-I-> on_request_url[" + s_request_type + "][" + db_mbtiles.getName()
-                                + "]: mbtiles_request_url[" + i_count_tiles_total + "] tile_id[" + s_tile_id + "] open["
-                                + i_count_tiles_left + "] rc=" + i_rc;
-                        publishProgress(s_message);
-                    }
-                    if (i_request_zoom_level_prev != i_request_zoom_level) { // A new Zoom-level has
-                                                                             // been started this
-                                                                             // will update the
-                                                                             // metadata Table with
-                                                                             // true min/max
-                                                                             // zoom-levels and
-                                                                             // bounds
-                        on_update_bounds();
-                        publishProgress("-I-> on_update_bounds[" + i_request_zoom_level + "][" + db_mbtiles.getName()
-                                + "]: bounds[" + db_mbtiles.getBoundsAsString() + "] zoom_levels["
-                                + db_mbtiles.getMinMaxZoomLevelsAsString() + "] center_parms[" + db_mbtiles.getCenterParms()
-                                + "] ");
-                        i_request_zoom_level_prev = i_request_zoom_level;
-                    }
-                }
-                if ((i_count_tiles_count % i_count_rest) == 0) {
-                    double d_procent = (double) i_count_tiles_left;
-                    d_procent = 100 - ((d_procent / i_count_tiles_total) * 100);
-                    s_message = "-I-> on_request_url[" + db_mbtiles.getName() + "][" + s_request_type + "]: tile_id[" + s_tile_id
-                            + "] retrieved[" + i_count_tiles_count + "] [" + String.format("%.4f", d_procent) + " %] open["
-                            + i_count_tiles_left + "] total[" + i_count_tiles_total + "]";
-                    publishProgress(s_message);
-                }
-            }
-            int i_count_tiles_test = db_mbtiles.getRequestUrlCount(1);
-            if (i_count_tiles_test != i_count_tiles_total) {
-                // retrieve the next amount, avoiding excesive memory usage
-                mbtiles_request_url = db_mbtiles.getRequestUrlsMap(i_limit);
-            } else { // something is wrong, return to avoid loop
-                i_rc = 3778;
-                s_message = "-W-> on_request_url[" + s_request_type + "][" + db_mbtiles.getName() + "]: mbtiles_request_url["
-                        + i_count_tiles_total + "] rc=" + i_rc;
-                return i_rc;
-            }
+        if (!s_request_protocol.equals("file") && !NetworkUtilities.isNetworkAvailable(context)) {
+            i_rc = 3776;
+            s_message = "-W-> on_request_url[No Internet Connection][" + db_mbtiles.getName() + "]: mbtiles_request_url["
+                    + i_count_tiles_total + "] rc=" + i_rc;
+            publishProgress(s_message);
+            return i_rc;
         }
-        i_count_tiles_total = db_mbtiles.getRequestUrlCount(1);
-        if (i_count_tiles_total < 1) { // when completed, call update_bounds
-            on_update_bounds();
-            publishProgress("-I-> on_update_bounds[" + i_request_zoom_level + "][" + db_mbtiles.getName() + "]: bounds["
-                    + db_mbtiles.getBoundsAsString() + "] zoom_levels[" + db_mbtiles.getMinMaxZoomLevelsAsString()
-                    + "] center_parms[" + db_mbtiles.getCenterParms() + "] ");
+        prefetcher = new MBTilesPrefetcher(db_mbtiles, MBTilesPrefetcher.DEFAULT_FETCHERS,
+                MBTilesPrefetcher.DEFAULT_HOST_CONNECTIONS, MBTilesPrefetcher.DEFAULT_RETRIES,
+                MBTilesPrefetcher.DEFAULT_BACKOFF_MILLIS);
+        if (isCancelled()) { // cancelled before the prefetcher could be stopped
+            return 3777;
         }
-        return i_rc;
-    }
-    // -----------------------------------------------
-    /**
-      * will retrieve  requested tile-image [on_download_tile]
-      * - will store each retieved bitmap in the mbtiles-file [db_mbtiles.insertBitmapTile]
-      * - will remove the request [db_mbtiles.delete_request_url]
-      * @param s_tile_id tile_id to use
-      * @param s_tile_url full url to retrieve tile with
-      * @return i_rc [ 0: image retrieved and stored; 101=image not retrieved ; 100=invalid mbtiles ; otherwise some storing error]
-     */
-    private int on_request_tile_id_url( String s_tile_id, String s_tile_url ) {
-        int i_rc = 0;
-        int[] zxy_osm_tms = MBTilesDroidSpitter.get_zxy_from_tile_id(s_tile_id);
-        if ((zxy_osm_tms != null) && (zxy_osm_tms.length == 4)) {
-            int i_zoom = zxy_osm_tms[0];
-            i_request_zoom_level = i_zoom;
-            int i_tile_x = zxy_osm_tms[1];
-            int i_tile_y_osm = zxy_osm_tms[2];
-            // int i_tile_y_tms = zxy_osm_tms[3];
-            try {
-                Bitmap tile_bitmap = on_download_tile_http(s_tile_url);
-                if (tile_bitmap != null) {
-                    // GPLog.androidLog(-1, "mbtiles_Async on_request_tile_id_url[" +
-                    // db_mbtiles.getName() + "][" + s_tile_id + "] ["+ s_tile_url +
-                    // "] i_tile_y_tms=" + i_tile_y_tms);
-                    i_rc = db_mbtiles.insertBitmapTile(i_tile_x, i_tile_y_osm, i_zoom, tile_bitmap, 0);
-                    if (i_rc == 0) {
-                        i_http_bad_requests = 0;
-                        db_mbtiles.deleteRequestUrl(s_tile_id);
-                    }
-                } else {
-                    if ((i_http_bad_requests > 10) && (i_http_not_usable == 0)) {
-                        // provider is not // sending // anything
-                        s_http_result = "Internet Connection: recieved [" + i_http_bad_requests + "] bad requests";
-                        i_http_not_usable = 1;
-                    }
-                }
-            } catch (Throwable t) {
-                i_rc = 2;
-
-                StringBuilder sb = new StringBuilder();
-                sb.append("mbtiles_Async on_request_tile_id_url[");
-                sb.append(db_mbtiles.getName());
-                sb.append("][");
-                sb.append(s_tile_id);
-                sb.append("] [");
-                sb.append(s_tile_url);
-                sb.append("] rc=");
-                sb.append(i_rc);
-                GPLog.error(this, sb.toString(), t);
-            }
-        } else {
-            i_rc = 1;
+        int i_result = prefetcher.run(new MBTilesPrefetcher.ProgressListener(){
+            public void onProgress( int i_count_tiles_stored, int i_count_tiles_failed, int i_count_tiles_left ) {
+                double d_procent = 100 - (((double) i_count_tiles_left / i_count_tiles_total) * 100);
+                publishProgress("-I-> on_request_url[" + db_mbtiles.getName() + "][" + s_request_type + "]: retrieved["
+                        + i_count_tiles_stored + "] failed[" + i_count_tiles_failed + "] [" + String.format("%.4f", d_procent)
+                        + " %] open[" + i_count_tiles_left + "] total[" + i_count_tiles_total + "]");
+            }
+        });
+        switch( i_result ) {
+        case MBTilesPrefetcher.RESULT_SERVER_NOT_USABLE:
+            i_rc = 3775;
+            s_message = "-W-> on_request_url[" + prefetcher.getAbortMessage() + "][" + db_mbtiles.getName()
+                    + "]: mbtiles_request_url[" + i_count_tiles_total + "] rc=" + i_rc;
+            publishProgress(s_message);
+            break;
+        case MBTilesPrefetcher.RESULT_CANCELLED:
+            i_rc = 3777;
+            s_message = "-W-> on_request_url[" + s_request_type + "][" + db_mbtiles.getName() + "]: mbtiles_request_url["
+                    + i_count_tiles_total + "] rc=" + i_rc;
+            break;
+        default:
+            break;
         }
         return i_rc;
     }
-    // -----------------------------------------------
     /**
-      * will retrieve  requested tile-image [s_tile_url]
-      * - goal is to determin whether we have a fake connection or a non-publich server
-      * -- provider will NOT return results - only requests for money - therefore connection not usable
-      * --- 302 HTTP_MOVED_TEMP
-      * -- even with 'access denied', HTTP_OK is returned
-      * Goal is to avoid unneeded / invalid requests assuming that a valid http-code is returned
-      * @param s_tile_url full url to retrieve tile with
-      * @return i_rc [ 0: image retrieved and stored; 101=image not retrieved ; 100=invalid mbtiles ; otherwise some storing error]
+      * Cancels the task and stops a running prefetch at once
+      * - onCancelled() is only called after doInBackground has returned, too late to stop the prefetcher
      */
-    private Bitmap on_download_tile_http( String s_tile_url ) throws Exception {
-        Bitmap tile_bitmap = null;
-        i_http_code = -1;
-        int i_image_null = 1;
-        int i_content_length = 0;
-        int i_http_code = 0;
-        String s_http_message = "";
-        try {
-            URL this_url = new URL(s_tile_url);
-            // GPLog.androidLog(-1, "mbtiles_Async on_request_tile_id_url[" + db_mbtiles.getName() +
-            // "][" + this_url.getProtocol() + "] ["+ s_tile_url + "] toExternalForm[" +
-            // this_url.toExternalForm()+"]");
-            InputStream input_stream = null;
-            HttpURLConnection this_http = null;
-            try {
-                if (this_url.getProtocol().equals("file")) {
-                    input_stream = this_url.openStream();
-                    s_http_message = "File:OK";
-                    i_http_code = 200;
-                    // GPLog.androidLog(-1, "mbtiles_Async on_request_tile_id_url[" +
-                    // db_mbtiles.getName() + "][" + this_url.getProtocol() + "] ["+ s_tile_url +
-                    // "] toExternalForm[" + this_url.toExternalForm()+"]");
-                } else {
-                    this_http = (HttpURLConnection) this_url.openConnection();
-                    if (this_http != null) {
-                        this_http.setDoInput(true);
-                        i_content_length = this_http.getContentLength(); // the size of the gziped
-                                                                         // value
-                                                                         // returned
-                        input_stream = this_http.getInputStream();
-                        s_http_message = this_http.getResponseMessage();
-                        i_http_code = this_http.getResponseCode();
-                    } else {
-                        s_http_message = "this_url.openConnection() failed";
-                        i_http_code = 778;
-                    }
-                }
-                if (input_stream != null) {
-                    tile_bitmap = BitmapFactory.decodeStream(input_stream);
-                    input_stream.close();
-                    if (tile_bitmap == null) { // possible 'access denied' - not a public server
-                                               // -should
-                                               // be considered an invalid server [returns HTTP_OK]
-                        if (i_content_length > 0) { // is probely an error text similer to:
-                                                    // <ServiceException
-                                                    // code="LayerNotDefined">theme
-                                                    // k_luftbild1938@senstadt access
-                                                    // denied</ServiceException>
-                        }
-                    } else {
-                        i_image_null = 0;
-                    }
-                } else {
-                    s_http_message = "input_stream is null";
-                    i_http_code = 779;
-                }
-            } catch (IOException e) {
-                if (e.getMessage().contains("ETIMEDOUT")) { // failed to connect to
-                                                                 // fbinter.stadt-berlin.de/141.15.4.15
-                                                                 // (port 80): connect failed:
-                                                                 // ETIMEDOUT (Connection timed out)
-                    i_http_code = 408;
-                    s_http_message = e.getMessage();
-                    tile_bitmap = null;
-                } else {
-                    s_message = "mbtiles_Async.on_download_tile: http_code[" + i_http_code + "] [" + s_http_message + "] "
-                            + e.getMessage();
-                    GPLog.error(this, s_message, e);
-                    tile_bitmap = null;
-                }
-            } finally { // will set values, depending on values to determin if this task should be
-                        // aborted
-                get_http_result(0, i_http_code, s_http_message, i_content_length, i_image_null);
-            }
-        } catch (Throwable t) {
-            s_message = "mbtiles_Async.on_download_tile: http_code[" + i_http_code + "] [" + s_http_message + "]";
-            GPLog.error(this, s_message, t);
+    public void cancelTask() {
+        cancel(true); // set first, a prefetcher created afterwards is checked in on_request_url
+        MBTilesPrefetcher running_prefetcher = prefetcher;
+        if (running_prefetcher != null) {
+            running_prefetcher.cancel();
         }
-        return tile_bitmap;
     }
     // -----------------------------------------------
-    /**
-      * will interpate the result and attempt to deside if this is a usable Internet connection
-      * - goal is to determin whether we have a fake connection or a non-publich server
-      * -- provider will NOT return results - only requests for money - therefore connection not usable
-      * --- 302: HTTP_MOVED_TEMP
-      * -- even with 'access denied', HTTP_OK is returned, but with an error text being sent (i_content_length != -1)
-      * @param i_parm reservered
-      * @param i_http_code http code recieved
-      * @param i_content_length gziped length of data recieved [images always '-1']
-      * @param i_image_null 0= no valid imageg recieved ; 1= valid image recieved
-      * @return i_http_code
-     */
-    private int get_http_result( int i_parm, int i_http_code, String s_http_message, int i_content_length, int i_image_null ) {
-        this.i_http_code = i_http_code;
-        this.s_http_message = s_http_message;
-        this.s_http_result = "[" + this.i_http_code + "][" + this.s_http_message + "]";
-        switch( this.i_http_code ) {
-        case HttpURLConnection.HTTP_OK: { // this is the desired result
-            if (i_image_null < 1) {
-                i_http_not_usable = 0; // is usable
-                i_http_bad_requests = 0;
-            } else { // possible 'access denied' - not a public server -should be considered an
-                     // invalid server [returns never the less: HTTP_OK]
-                     // after 10 attempts, will abort
-                i_http_bad_requests++;
-                // i_content_length=4;
-            }
-            // GPLog.androidLog(i_content_length,"mbtiles_Async.get_http_result: "+s_message);
-        }
-            break;
-        case HttpURLConnection.HTTP_MOVED_TEMP: { // this can be a connection that returns no
-                                                  // results until you activate an account
-            s_http_result = "Internet Connection: recieved [" + this.s_http_result + "] - aborting";
-            i_http_not_usable = 1;
-        }
-            break;
-        case HttpURLConnection.HTTP_CLIENT_TIMEOUT:
-        case HttpURLConnection.HTTP_BAD_REQUEST: { // 400: Bad Request
-                                                   // malformed url or tiles out of range
-                                                   // after 10 attempts, will abort
-            i_http_bad_requests++;
-        }
-            break;
-        default:
-            if (GPLog.LOG_HEAVY)
-                GPLog.androidLog(-1, "mbtiles_Async.get_http_result: " + s_http_result);
-            break;
-        }
-        s_message = "mbtiles_Async.get_http_result: i_image_null[" + i_image_null + "] content_length[" + i_content_length
-                + "] [" + s_http_result + "]";
-        // GPLog.androidLog(-1,"mbtiles_Async.get_http_result: "+s_message);
-        return this.i_http_code;
-    }
-
-    // TODO @mj10777 this seems to be unused.
-    //
-    // private Bitmap on_download_tile( String s_tile_url ) throws Exception {
-    // Bitmap tile_bitmap = null;
-    // try {
-    // URL this_url = new URL(s_tile_url);
-    // InputStream input_stream = null;
-    // HttpURLConnection this_http = null;
-    // try {
-    // input_stream = this_url.openStream();
-    // tile_bitmap = BitmapFactory.decodeStream(input_stream);
-    // input_stream.close();
-    // } catch (IOException e) {
-    // String s_message = e.getMessage();
-    // tile_bitmap = null;
-    // }
-    // } catch (Throwable t) {
-    // }
-    // return tile_bitmap;
-    // }
-    // -----------------------------------------------
     /**
       * Create list of 'request_url
       * - Assumtions:
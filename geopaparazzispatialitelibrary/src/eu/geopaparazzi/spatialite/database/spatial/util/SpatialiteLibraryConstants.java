@@ -34,6 +34,11 @@ public interface SpatialiteLibraryConstants {
      */
     public static final String PREFS_KEY_SPATIALITE_RECOVERY_MODE = "PREFS_KEY_SPATIALITE_RECOVERY_MODE"; //$NON-NLS-1$
 
+    /**
+     * Key used to define whether spatialite layers are rendered into cached tiles.
+     */
+    public static final String PREFS_KEY_SPATIALITE_TILED_RENDERING = "PREFS_KEY_SPATIALITE_TILED_RENDERING"; //$NON-NLS-1$
+
     /**
      * Key used to pass a lat temporarily through bundles. 
      */
@@ -126,6 +126,27 @@ public class SpatialiteUtilities {
      */
     public static String buildGeometriesInBoundsQuery( String destSrid, boolean withRowId, SpatialVectorTable table, double n,
             double s, double e, double w ) {
+        return buildGeometriesInBoundsQuery(destSrid, withRowId, table, String.valueOf(n), String.valueOf(s),
+                String.valueOf(e), String.valueOf(w));
+    }
+
+    /**
+     * Build a query to retrieve geometries from a table, with the bounds as parameters.
+     *
+     * <p>The query can be prepared once and reused. The bounds appear twice and have to be bound
+     * in the order w, n, e, s, w, n, e, s.
+     *
+     * @param destSrid the destination srid.
+     * @param withRowId if <code>true</code>, the ROWID is added in position 0 of the query.
+     * @param table the table to use.
+     * @return the query.
+     */
+    public static String buildGeometriesInBoundsQueryTemplate( String destSrid, boolean withRowId, SpatialVectorTable table ) {
+        return buildGeometriesInBoundsQuery(destSrid, withRowId, table, "?", "?", "?", "?");
+    }
+
+    private static String buildGeometriesInBoundsQuery( String destSrid, boolean withRowId, SpatialVectorTable table, String n,
+            String s, String e, String w ) {
         boolean doTransform = false;
         if (!table.getSrid().equals(destSrid)) {
             doTransform = true;
@@ -0,0 +1,215 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesDroidSpitter.TileData;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the {@link MBTilesPrefetcher} against a local http server.
+ */
+public class MBTilesPrefetcherTest {
+    private static final byte[] TILE_IMAGE = "tile".getBytes();
+    private static final int ZOOM = 10;
+    private static final int TILES_COUNT = 12;
+
+    private HttpServer server;
+    /*
+     * paths answered with an internal server error
+     */
+    private final Set<String> brokenPaths = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String> failingInserts = Collections.synchronizedSet(new HashSet<String>());
+    private volatile boolean isDatabaseBroken = false;
+    private final Map<String, byte[]> insertedTiles = new ConcurrentHashMap<String, byte[]>();
+    private final TreeMap<String, String> requestUrls = new TreeMap<String, String>();
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean isBroken = brokenPaths.contains(exchange.getRequestURI().getPath());
+                exchange.sendResponseHeaders(isBroken ? 500 : 200, isBroken ? -1 : TILE_IMAGE.length);
+                if (!isBroken) {
+                    OutputStream outputStream = exchange.getResponseBody();
+                    outputStream.write(TILE_IMAGE);
+                    outputStream.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        for (int x = 0; x < TILES_COUNT; x++) {
+            requestUrls.put(getTileId(x), baseUrl + getTilePath(x));
+        }
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testResumeAfterPartialFailure() throws Exception {
+        brokenPaths.add(getTilePath(3));
+        failingInserts.add(getTileKey(7));
+
+        MBTilesPrefetcher prefetcher = new MBTilesPrefetcher(new FakeTileStore(), 4, 2, 1, 10);
+        assertEquals(MBTilesPrefetcher.RESULT_COMPLETED, prefetcher.run(null));
+        assertEquals(TILES_COUNT - 2, prefetcher.getStoredTiles());
+        assertEquals(2, prefetcher.getFailedTiles());
+        assertEquals(TILES_COUNT - 2, insertedTiles.size());
+        // only the records of committed tiles are deleted
+        synchronized (requestUrls) {
+            assertEquals(Arrays.asList(getTileId(3), getTileId(7)), Arrays.asList(requestUrls.keySet().toArray()));
+        }
+
+        brokenPaths.clear();
+        failingInserts.clear();
+
+        prefetcher = new MBTilesPrefetcher(new FakeTileStore(), 4, 2, 1, 10);
+        assertEquals(MBTilesPrefetcher.RESULT_COMPLETED, prefetcher.run(null));
+        assertEquals(2, prefetcher.getStoredTiles());
+        assertEquals(0, prefetcher.getFailedTiles());
+        assertEquals(TILES_COUNT, insertedTiles.size());
+        synchronized (requestUrls) {
+            assertTrue(requestUrls.isEmpty());
+        }
+    }
+
+    @Test
+    public void testFailedTransactionKeepsAllRecords() throws Exception {
+        isDatabaseBroken = true;
+
+        MBTilesPrefetcher prefetcher = new MBTilesPrefetcher(new FakeTileStore(), 2, 1, 0, 10);
+        assertEquals(MBTilesPrefetcher.RESULT_COMPLETED, prefetcher.run(null));
+        assertEquals(0, prefetcher.getStoredTiles());
+        assertEquals(TILES_COUNT, prefetcher.getFailedTiles());
+        synchronized (requestUrls) {
+            assertEquals(TILES_COUNT, requestUrls.size());
+        }
+
+        isDatabaseBroken = false;
+
+        prefetcher = new MBTilesPrefetcher(new FakeTileStore(), 2, 1, 0, 10);
+        assertEquals(MBTilesPrefetcher.RESULT_COMPLETED, prefetcher.run(null));
+        assertEquals(TILES_COUNT, prefetcher.getStoredTiles());
+        synchronized (requestUrls) {
+            assertTrue(requestUrls.isEmpty());
+        }
+    }
+
+    private static String getTileId(int x) {
+        // ids sort by x, tiles with a larger x are in a later page
+        return ZOOM + "-" + String.format("%02d", x) + "-5.osm";
+    }
+
+    private static String getTilePath(int x) {
+        return "/" + ZOOM + "/" + x + "/5.png";
+    }
+
+    private static String getTileKey(int x) {
+        return ZOOM + "/" + x + "/5";
+    }
+
+    /**
+     * The 'request_url' table and the tiles table in memory.
+     */
+    private class FakeTileStore implements MBTilesPrefetcher.TileStore, MBTilesBulkWriter.TileInserter {
+        public String getName() {
+            return "test";
+        }
+
+        public boolean isValid() {
+            return true;
+        }
+
+        public HashMap<String, String> getRequestUrlsMap(int limit, String afterTileId) {
+            LinkedHashMap<String, String> page = new LinkedHashMap<String, String>();
+            synchronized (requestUrls) {
+                for (Map.Entry<String, String> requestUrl : requestUrls.tailMap(afterTileId, false).entrySet()) {
+                    if (page.size() == limit)
+                        break;
+                    page.put(requestUrl.getKey(), requestUrl.getValue());
+                }
+            }
+            return page;
+        }
+
+        public int deleteRequestUrls(List<String> tileIds) {
+            synchronized (requestUrls) {
+                for (String tileId : tileIds) {
+                    requestUrls.remove(tileId);
+                }
+                return requestUrls.size();
+            }
+        }
+
+        public TileData createTileData(int i_x, int i_y_osm, int i_z, byte[] ba_image_data) {
+            if (!Arrays.equals(TILE_IMAGE, ba_image_data))
+                return null;
+            return new TileData(i_x, i_y_osm, i_z, "", ba_image_data);
+        }
+
+        public MBTilesBulkWriter createBulkWriter(int forceUnique, MBTilesBulkWriter.TilesInsertedListener listener) {
+            return new MBTilesBulkWriter(this, forceUnique, 4, 50, listener);
+        }
+
+        public int insertTiles(List<TileData> tiles, int i_force_unique, List<TileData> failedTiles)
+                throws IOException {
+            if (isDatabaseBroken)
+                throw new IOException("database is locked");
+            int insertedCount = 0;
+            for (TileData tile : tiles) {
+                String tileKey = tile.i_z + "/" + tile.i_x + "/" + tile.i_y_osm;
+                if (failingInserts.contains(tileKey)) {
+                    failedTiles.add(tile);
+                } else {
+                    insertedTiles.put(tileKey, tile.ba_tile_data);
+                    insertedCount++;
+                }
+            }
+            return insertedCount;
+        }
+    }
+}